@@ -1,34 +1,132 @@
 package com.media.quickmedia.metadata;
 
+import com.media.quickmedia.metadata.config.MetaDataParserProperties;
 import com.media.quickmedia.metadata.error.MetaDataException;
-import lombok.RequiredArgsConstructor;
-import org.apache.tika.exception.TikaException;
+import com.media.quickmedia.model.MetaDataEntry;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Component;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.SAXException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 @Component
-@RequiredArgsConstructor
 public class MetaDataParser {
 
     private final Parser parser;
-    private final ContentHandler contentHandler;
-    private final ParseContext parseContext;
+    private final MetaDataParserProperties properties;
+    private final Scheduler scheduler;
+
+    public MetaDataParser(Parser parser, MetaDataParserProperties properties) {
+        this.parser = parser;
+        this.properties = properties;
+        this.scheduler = Schedulers.newBoundedElastic(properties.getThreads(), properties.getQueuedTasks(), "tika");
+    }
+
+    @PreDestroy
+    public void stop(){
+        scheduler.dispose();
+    }
+
+    public int headerBytes(){
+        return properties.getHeaderBytes();
+    }
 
     public Metadata parse(InputStream inputStream) {
+        return parse(inputStream, false);
+    }
+
+    //every parse gets its own handler and context, tika handlers are stateful and must not be shared
+    private Metadata parse(InputStream inputStream, boolean truncated) {
         Metadata metadata = new Metadata();
+        var limit = new WriteOutContentHandler(properties.getMaxCharacters());
+        var input = new EndTrackingInputStream(inputStream);
         try{
-            parser.parse(inputStream, contentHandler, metadata, parseContext);
+            parser.parse(input, new BodyContentHandler(limit), metadata, new ParseContext());
             return metadata;
         }catch(Exception exception){
+            //a header cut off at headerBytes fails once the parser runs off its end, what was read until then is kept.
+            //failing before the end means the content itself is broken
+            if(limit.isWriteLimitReached(exception) || (truncated && input.isEnded())){
+                return metadata;
+            }
             throw new MetaDataException(exception.getMessage());
         }
 
     }
+
+    //runs the blocking parse off the caller's thread, a parse over the timeout is interrupted
+    public Mono<Metadata> parseAsync(byte[] bytes){
+        return parseAsync(bytes, false);
+    }
+
+    //parses only the first headerBytes of the content and cancels the rest of the stream
+    public Mono<Metadata> parseHeader(Flux<DataBuffer> content){
+        return DataBufferUtils.join(DataBufferUtils.takeUntilByteCount(content, properties.getHeaderBytes()))
+                .map(dataBuffer -> {
+                    byte[] bytes = new byte[dataBuffer.readableByteCount()];
+                    dataBuffer.read(bytes);
+                    DataBufferUtils.release(dataBuffer);
+                    return bytes;
+                })
+                .defaultIfEmpty(new byte[0])
+                .flatMap(bytes -> parseAsync(bytes, bytes.length >= properties.getHeaderBytes()));
+    }
+
+    private Mono<Metadata> parseAsync(byte[] bytes, boolean truncated){
+        return Mono.fromCallable(() -> parse(new ByteArrayInputStream(bytes), truncated))
+                .subscribeOn(scheduler)
+                .timeout(properties.getTimeout())
+                .onErrorMap(TimeoutException.class, error ->
+                        new MetaDataException(String.format("Parse timed out after %s", properties.getTimeout())));
+    }
+
+    public static List<MetaDataEntry> toEntries(Metadata metadata){
+        return Arrays.stream(metadata.names())
+                .map(name -> new MetaDataEntry(name, metadata.get(name)))
+                .toList();
+    }
+
+    //remembers whether the parser read its input to the end
+    private static class EndTrackingInputStream extends FilterInputStream {
+
+        private boolean ended;
+
+        private EndTrackingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        boolean isEnded(){
+            return ended;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            ended |= read == -1;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            ended |= read == -1;
+            return read;
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package com.media.quickmedia.metadata.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.metadata.parser")
+@Data
+public class MetaDataParserProperties {
+
+    //threads running tika at once, parses beyond that wait in the scheduler queue
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queuedTasks = 1000;
+    private Duration timeout = Duration.ofSeconds(10);
+    //body text is only collected as a side effect of parsing, stop buffering it past this many characters
+    private int maxCharacters = 100_000;
+    //format metadata (exif, dimensions, the mp4 moov box when written up front) sits at the start of a file
+    private int headerBytes = 512 * 1024;
+}
@@ -0,0 +1,21 @@
+package com.media.quickmedia.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+//one entry per distinct payload stored in GridFS, keyed by its SHA-256
+@Document(collection = "content_blobs")
+@Data
+@Builder
+public class ContentBlob {
+
+    @Id
+    private String id;
+    @Indexed(unique = true)
+    private String blobId;
+    private long refCount;
+    private long length;
+}
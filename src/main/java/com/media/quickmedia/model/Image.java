@@ -5,6 +5,8 @@ import lombok.*;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.List;
+
 @Document(collection = "images")
 @Data
 @Builder
@@ -16,5 +18,11 @@ public class Image {
     @JsonIgnore
     private byte[] content;
     private String name;
+    @JsonIgnore
+    private String blobId;
+    @JsonIgnore
+    private List<MetaDataEntry> metadata;
+    @JsonIgnore
+    private MetaDataStatus metadataStatus;
 
 }
@@ -0,0 +1,16 @@
+package com.media.quickmedia.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class ImagePage {
+
+    private List<Image> images;
+    //pass back as the cursor for the next page
+    private String lastId;
+    private boolean hasMore;
+}
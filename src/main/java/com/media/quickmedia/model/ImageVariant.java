@@ -0,0 +1,29 @@
+package com.media.quickmedia.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+//a downscaled copy of an image, id is <imageId>:<size> where size is the longest edge in pixels
+@Document(collection = "image_variants")
+@CompoundIndex(def = "{'imageId': 1, 'size': 1}")
+@Data
+@Builder
+public class ImageVariant {
+
+    @Id
+    private String id;
+    private String imageId;
+    private int size;
+    private int width;
+    private int height;
+    private String contentType;
+    //stored like images, inline when small and spilled to GridFS otherwise
+    @JsonIgnore
+    private byte[] content;
+    @JsonIgnore
+    private String blobId;
+}
@@ -0,0 +1,28 @@
+package com.media.quickmedia.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+//one pending variant generation per image, id is the image id. every node polls this collection and claims
+//jobs with a lease, a node that dies mid job lets the lease run out and another one picks the job up
+@Document(collection = "image_variant_jobs")
+@CompoundIndex(def = "{'status': 1, 'runAfter': 1}")
+@Data
+@Builder(toBuilder = true)
+public class ImageVariantJob {
+
+    @Id
+    private String id;
+    private ImageVariantJobStatus status;
+    private int attempts;
+    private String owner;
+    private Instant leaseUntil;
+    private Instant runAfter;
+    private Instant createdAt;
+    private String error;
+}
@@ -0,0 +1,7 @@
+package com.media.quickmedia.model;
+
+public enum ImageVariantJobStatus {
+    PENDING,
+    RUNNING,
+    FAILED
+}
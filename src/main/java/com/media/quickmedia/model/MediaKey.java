@@ -0,0 +1,20 @@
+package com.media.quickmedia.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+//the key handed out for a large media upload, several keys can share one GridFS blob
+@Document(collection = "media_keys")
+@Data
+@Builder
+public class MediaKey {
+
+    @Id
+    private String id;
+    private String name;
+    @Indexed
+    private String blobId;
+}
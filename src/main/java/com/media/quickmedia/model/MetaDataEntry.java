@@ -0,0 +1,17 @@
+package com.media.quickmedia.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+//stored as a list rather than a map since Tika keys may contain dots
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MetaDataEntry {
+
+    private String key;
+    private String value;
+}
@@ -0,0 +1,7 @@
+package com.media.quickmedia.model;
+
+//an image the pipeline has not finished with has no status and is parsed on demand
+public enum MetaDataStatus {
+    EXTRACTED,
+    FAILED
+}
@@ -0,0 +1,24 @@
+package com.media.quickmedia.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+@Document(collection = "migrations")
+@Data
+@Builder(toBuilder = true)
+public class MigrationCheckpoint {
+
+    @Id
+    private String id;
+    //_id of the last document handled, the next batch resumes after it
+    private String lastId;
+    private long migratedCount;
+    private long migratedBytes;
+    private boolean paused;
+    private boolean completed;
+    private Instant updatedAt;
+}
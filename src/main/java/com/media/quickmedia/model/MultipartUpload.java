@@ -0,0 +1,44 @@
+package com.media.quickmedia.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.Map;
+
+//a parallel upload, the id doubles as the GridFS file id its parts' chunks are written under
+@Document(collection = "multipart_uploads")
+@Data
+@Builder(toBuilder = true)
+public class MultipartUpload {
+
+    @Id
+    private String id;
+    private String name;
+    //every part but the last is exactly this long, a multiple of chunkSize so part k starts at a known chunk
+    private long partSize;
+    private int chunkSize;
+    //part number to bytes written for it
+    private Map<String, Long> parts;
+    //part number to the attempt currently writing it, completion waits until this is empty
+    private Map<String, PartWriter> writers;
+    private UploadSessionStatus status;
+    private String mediaKey;
+    private Instant createdAt;
+    @Indexed
+    private Instant expiresAt;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class PartWriter {
+        private String attempt;
+        private Instant leaseUntil;
+    }
+}
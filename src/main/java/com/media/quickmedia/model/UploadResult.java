@@ -0,0 +1,23 @@
+package com.media.quickmedia.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+//outcome of one item of a batch, id is set when it was stored and error when it was not
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadResult {
+
+    private int index;
+    private String name;
+    private String id;
+    private String error;
+
+    public boolean isSuccess(){
+        return error == null;
+    }
+}
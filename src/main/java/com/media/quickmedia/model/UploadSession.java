@@ -0,0 +1,32 @@
+package com.media.quickmedia.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.List;
+
+//a resumable upload, its bytes live in upload_session_chunks until it is finished into GridFS
+@Document(collection = "upload_sessions")
+@Data
+@Builder(toBuilder = true)
+public class UploadSession {
+
+    @Id
+    private String id;
+    private String name;
+    //bytes committed so far, the next chunk has to start here
+    private long committedOffset;
+    private int chunkCount;
+    //id of the chunk committed at each n, an append that lost the race to commit leaves its chunk out of this list
+    private List<String> chunkIds;
+    private UploadSessionStatus status;
+    //key issued on finish, kept until expiry so a retried finish gets the same one
+    private String mediaKey;
+    private Instant createdAt;
+    @Indexed
+    private Instant expiresAt;
+}
@@ -0,0 +1,24 @@
+package com.media.quickmedia.model;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+//id is <sessionId>:<n>:<attempt>, concurrent appends at one offset never overwrite each other and the session
+//records which attempt was committed
+@Document(collection = "upload_session_chunks")
+@CompoundIndex(def = "{'sessionId': 1, 'n': 1}")
+@Data
+@Builder
+public class UploadSessionChunk {
+
+    @Id
+    private String id;
+    private String sessionId;
+    private int n;
+    private long offset;
+    private byte[] data;
+    private long crc32c;
+}
@@ -0,0 +1,9 @@
+package com.media.quickmedia.model;
+
+public enum UploadSessionStatus {
+    OPEN,
+    FINISHING,
+    FINISHED,
+    //multipart uploads only, claimed for deletion so no part can be written any more
+    ABORTING
+}
@@ -16,4 +16,6 @@ public class Video {
     private String name;
     @JsonIgnore
     private byte[] content;
+    @JsonIgnore
+    private String blobId;
 }
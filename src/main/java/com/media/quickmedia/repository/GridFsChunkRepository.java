@@ -0,0 +1,150 @@
+package com.media.quickmedia.repository;
+
+import com.media.quickmedia.repository.cache.ChunkDiskCache;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@Repository
+@RequiredArgsConstructor
+public class GridFsChunkRepository {
+
+    public static final String CHUNKS_COLLECTION = "fs.chunks";
+    public static final String FILES_COLLECTION = "fs.files";
+    //files written compressed carry the codec in their metadata, each chunk is deflated on its own and
+    //holds chunkSize bytes of content, so length and chunk numbers stay in content coordinates
+    public static final String CODEC_METADATA = "_codec";
+    public static final String STORED_LENGTH_METADATA = "_storedLength";
+    public static final String DEFLATE = "deflate";
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ChunkDiskCache chunkDiskCache;
+
+    public boolean cachesChunks(){
+        return chunkDiskCache.isEnabled();
+    }
+
+    //the GridFS driver expects every chunk but the last to hold exactly chunkSize bytes, so compressed
+    //files can only be read through readRange
+    public static boolean isCompressed(GridFSFile gridFSFile){
+        return gridFSFile.getMetadata() != null && DEFLATE.equals(gridFSFile.getMetadata().getString(CODEC_METADATA));
+    }
+
+    //reads only the chunks covering the inclusive byte window [start, end] and trims the edge chunks to it
+    public Flux<DataBuffer> readRange(GridFSFile gridFSFile, long start, long end){
+        int chunkSize = gridFSFile.getChunkSize();
+        int firstChunk = (int) (start / chunkSize);
+        int lastChunk = (int) (end / chunkSize);
+        if(!chunkDiskCache.isEnabled()){
+            return fromMongo(gridFSFile, firstChunk, lastChunk, start, end);
+        }
+        return Flux.defer(() -> Flux.fromIterable(runs(gridFSFile.getObjectId(), firstChunk, lastChunk)))
+                .concatMap(run -> run.cached ?
+                        fromCache(gridFSFile, run.first, run.last, start, end) :
+                        fromMongo(gridFSFile, run.first, run.last, start, end));
+    }
+
+    private Flux<DataBuffer> fromCache(GridFSFile gridFSFile, int firstChunk, int lastChunk, long start, long end){
+        int chunkSize = gridFSFile.getChunkSize();
+        return Flux.range(firstChunk, lastChunk - firstChunk + 1)
+                .concatMap(n -> chunkDiskCache.get(gridFSFile.getObjectId(), n)
+                        .map(data -> Flux.just(slice(data, n, chunkSize, start, end)))
+                        .orElseGet(() -> fromMongo(gridFSFile, n, n, start, end)));
+    }
+
+    private Flux<DataBuffer> fromMongo(GridFSFile gridFSFile, int firstChunk, int lastChunk, long start, long end){
+        int chunkSize = gridFSFile.getChunkSize();
+        var chunkQuery = query(where("files_id").is(gridFSFile.getObjectId())
+                .and("n").gte(firstChunk).lte(lastChunk))
+                .with(Sort.by(Sort.Direction.ASC, "n"));
+
+        return reactiveMongoTemplate.find(chunkQuery, Document.class, CHUNKS_COLLECTION)
+                .map(chunk -> {
+                    int n = chunk.getInteger("n");
+                    byte[] data = content(gridFSFile, n, chunk.get("data", Binary.class).getData());
+                    chunkDiskCache.offer(gridFSFile.getObjectId(), n, data);
+                    return slice(ByteBuffer.wrap(data), n, chunkSize, start, end);
+                });
+    }
+
+    //the cache keeps inflated chunks so hits skip the inflater as well as Mongo
+    private byte[] content(GridFSFile gridFSFile, int n, byte[] data){
+        if(!isCompressed(gridFSFile)){
+            return data;
+        }
+        int length = (int) Math.min(gridFSFile.getChunkSize(), gridFSFile.getLength() - (long) n * gridFSFile.getChunkSize());
+        var inflater = new Inflater();
+        try{
+            inflater.setInput(data);
+            byte[] content = new byte[length];
+            int filled = 0;
+            while(filled < length && !inflater.finished()){
+                int inflated = inflater.inflate(content, filled, length - filled);
+                if(inflated == 0 && inflater.needsInput()){
+                    break;
+                }
+                filled += inflated;
+            }
+            if(filled != length){
+                throw new IllegalStateException(String.format("Chunk %d of file %s inflated to %d bytes, expected %d",
+                        n, gridFSFile.getObjectId(), filled, length));
+            }
+            return content;
+        }catch(DataFormatException exception){
+            throw new IllegalStateException(String.format("Chunk %d of file %s is corrupt", n, gridFSFile.getObjectId()), exception);
+        }finally{
+            inflater.end();
+        }
+    }
+
+    private DataBuffer slice(ByteBuffer data, int n, int chunkSize, long start, long end){
+        long chunkStart = (long) n * chunkSize;
+        int from = (int) Math.max(0, start - chunkStart);
+        int to = (int) Math.min(data.remaining(), end - chunkStart + 1);
+        return DefaultDataBufferFactory.sharedInstance.wrap(data.slice(from, to - from));
+    }
+
+    //splits the chunk window into alternating cached and uncached stretches so misses cost one query each
+    private List<Run> runs(ObjectId fileId, int firstChunk, int lastChunk){
+        List<Run> runs = new ArrayList<>();
+        Run current = null;
+        for(int n = firstChunk; n <= lastChunk; n++){
+            boolean cached = chunkDiskCache.contains(fileId, n);
+            if(current == null || current.cached != cached){
+                current = new Run(n, n, cached);
+                runs.add(current);
+            }
+            current.last = n;
+        }
+        return runs;
+    }
+
+    private static class Run {
+        private final int first;
+        private int last;
+        private final boolean cached;
+
+        private Run(int first, int last, boolean cached) {
+            this.first = first;
+            this.last = last;
+            this.cached = cached;
+        }
+    }
+}
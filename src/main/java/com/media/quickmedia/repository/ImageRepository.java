@@ -1,9 +1,21 @@
 package com.media.quickmedia.repository;
 
 import com.media.quickmedia.model.Image;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface ImageRepository extends ReactiveMongoRepository<Image, String> {
-    //todo make pageable list response
+
+    //keyset pages on _id so every page is an index range scan, never a skip. pages never carry content,
+    //a page of inline images would otherwise pull every image into memory at once
+    @Query(value = "{ '_id': { $gt: ?0 } }", fields = "{ 'content': 0 }")
+    Flux<Image> findMetadataPageAfter(ObjectId lastId, Pageable pageable);
+
+    @Query(value = "{ '_id': ?0 }", fields = "{ 'content': 0 }")
+    Mono<Image> findMetadataById(String id);
 
 }
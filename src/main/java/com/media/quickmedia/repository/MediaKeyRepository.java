@@ -0,0 +1,10 @@
+package com.media.quickmedia.repository;
+
+import com.media.quickmedia.model.MediaKey;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+public interface MediaKeyRepository extends ReactiveMongoRepository<MediaKey, String> {
+
+    Mono<Boolean> existsByBlobId(String blobId);
+}
@@ -0,0 +1,7 @@
+package com.media.quickmedia.repository;
+
+import com.media.quickmedia.model.MigrationCheckpoint;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+public interface MigrationCheckpointRepository extends ReactiveMongoRepository<MigrationCheckpoint, String> {
+}
@@ -0,0 +1,258 @@
+package com.media.quickmedia.repository.cache;
+
+import com.media.quickmedia.repository.cache.config.ChunkCacheProperties;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+//node local cache of GridFS chunks appended to fixed size memory mapped segment files,
+//whole segments are evicted least recently used first once the disk budget is exceeded
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ChunkDiskCache {
+
+    private static final int RECORD_MAGIC = 0x51434b31;
+    //magic, files_id, n, length
+    private static final int HEADER_BYTES = 4 + 12 + 4 + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final ChunkCacheProperties properties;
+
+    private final Map<ChunkKey, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final Object writeLock = new Object();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private Segment active;
+    private Scheduler writer;
+
+    @PostConstruct
+    public void open(){
+        if(!properties.isEnabled()){
+            return;
+        }
+        try{
+            Files.createDirectories(properties.getDirectory());
+            try(Stream<Path> files = Files.list(properties.getDirectory())){
+                files.filter(this::isSegment)
+                        .sorted(Comparator.comparingLong(this::sequence))
+                        .forEach(this::recover);
+            }
+        }catch(IOException exception){
+            throw new UncheckedIOException(exception);
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        synchronized (writeLock){
+            enforceBudget();
+        }
+        writer = Schedulers.newSingle("chunk-cache");
+        log.info("Chunk cache opened with {} segments and {} chunks", segments.size(), index.size());
+    }
+
+    @PreDestroy
+    public void close(){
+        if(writer != null){
+            writer.dispose();
+        }
+    }
+
+    public boolean isEnabled(){
+        return properties.isEnabled();
+    }
+
+    //returns a read only view straight over the mapped file, nothing is copied onto the heap
+    public Optional<ByteBuffer> get(ObjectId fileId, int n){
+        if(!properties.isEnabled()){
+            return Optional.empty();
+        }
+        var location = index.get(new ChunkKey(fileId, n));
+        if(location == null || location.getSegment().isEvicted()){
+            return Optional.empty();
+        }
+        location.getSegment().touch(clock.incrementAndGet());
+        return Optional.of(location.getSegment().getBuffer()
+                .slice(location.getOffset() + HEADER_BYTES, location.getLength())
+                .asReadOnlyBuffer());
+    }
+
+    public boolean contains(ObjectId fileId, int n){
+        var location = index.get(new ChunkKey(fileId, n));
+        return location != null && !location.getSegment().isEvicted();
+    }
+
+    //write behind for readers: the copy into the mapped segment runs on the cache's own thread and
+    //chunks are dropped rather than queued once writeBehindChunks are already waiting
+    public void offer(ObjectId fileId, int n, byte[] data){
+        if(!properties.isEnabled() || contains(fileId, n)){
+            return;
+        }
+        if(pendingWrites.incrementAndGet() > properties.getWriteBehindChunks()){
+            pendingWrites.decrementAndGet();
+            return;
+        }
+        writer.schedule(() -> {
+            try{
+                put(fileId, n, data);
+            }catch(RuntimeException exception){
+                log.warn("Failed to cache chunk {} of file {}: {}", n, fileId, exception.getMessage());
+            }finally{
+                pendingWrites.decrementAndGet();
+            }
+        });
+    }
+
+    public void put(ObjectId fileId, int n, byte[] data){
+        int recordBytes = HEADER_BYTES + data.length;
+        if(!properties.isEnabled() || recordBytes > properties.getSegmentBytes()){
+            return;
+        }
+        var key = new ChunkKey(fileId, n);
+        synchronized (writeLock){
+            if(index.containsKey(key)){
+                return;
+            }
+            if(active == null || active.remaining() < recordBytes){
+                active = createSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1);
+                enforceBudget();
+            }
+            var buffer = active.getBuffer();
+            int offset = active.getWritePosition();
+            buffer.put(offset + 4, fileId.toByteArray());
+            buffer.putInt(offset + 16, n);
+            buffer.putInt(offset + 20, data.length);
+            buffer.put(offset + HEADER_BYTES, data);
+            //the magic goes in last so a torn record is never picked up on recovery
+            buffer.putInt(offset, RECORD_MAGIC);
+            active.setWritePosition(offset + recordBytes);
+            active.touch(clock.incrementAndGet());
+            index.put(key, new Location(active, offset, data.length));
+        }
+    }
+
+    private void recover(Path path){
+        var segment = map(sequence(path), path);
+        var buffer = segment.getBuffer();
+        int position = 0;
+        while(position + HEADER_BYTES <= buffer.capacity() && buffer.getInt(position) == RECORD_MAGIC){
+            byte[] fileId = new byte[12];
+            buffer.get(position + 4, fileId);
+            int n = buffer.getInt(position + 16);
+            int length = buffer.getInt(position + 20);
+            if(length < 0 || position + HEADER_BYTES + length > buffer.capacity()){
+                break;
+            }
+            index.put(new ChunkKey(new ObjectId(fileId), n), new Location(segment, position, length));
+            position += HEADER_BYTES + length;
+        }
+        segment.setWritePosition(position);
+        segment.touch(clock.incrementAndGet());
+        segments.put(segment.getSequence(), segment);
+    }
+
+    private Segment createSegment(long sequence){
+        var path = properties.getDirectory().resolve(SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+        var segment = map(sequence, path);
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    private Segment map(long sequence, Path path){
+        try(var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            return new Segment(sequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, properties.getSegmentBytes()));
+        }catch(IOException exception){
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private void enforceBudget(){
+        while((long) segments.size() * properties.getSegmentBytes() > properties.getMaxBytes() && segments.size() > 1){
+            segments.values().stream()
+                    .filter(segment -> segment != active)
+                    .min(Comparator.comparingLong(Segment::getLastAccess))
+                    .ifPresent(this::evict);
+        }
+    }
+
+    //readers holding a slice keep the mapping alive, so the file can go right away
+    private void evict(Segment segment){
+        segment.setEvicted(true);
+        segments.remove(segment.getSequence());
+        index.values().removeIf(location -> location.getSegment() == segment);
+        try{
+            Files.deleteIfExists(segment.getPath());
+        }catch(IOException exception){
+            log.warn("Failed to delete chunk cache segment {}: {}", segment.getPath(), exception.getMessage());
+        }
+        log.info("Evicted chunk cache segment {}", segment.getSequence());
+    }
+
+    private boolean isSegment(Path path){
+        var name = path.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private long sequence(Path path){
+        var name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    @Value
+    private static class ChunkKey {
+        ObjectId fileId;
+        int n;
+    }
+
+    @Value
+    private static class Location {
+        Segment segment;
+        int offset;
+        int length;
+    }
+
+    @Getter
+    @Setter
+    @RequiredArgsConstructor
+    private static class Segment {
+        private final long sequence;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private volatile int writePosition;
+        private volatile long lastAccess;
+        private volatile boolean evicted;
+
+        int remaining(){
+            return buffer.capacity() - writePosition;
+        }
+
+        void touch(long tick){
+            lastAccess = tick;
+        }
+    }
+}
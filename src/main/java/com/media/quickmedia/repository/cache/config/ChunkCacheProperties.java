@@ -0,0 +1,21 @@
+package com.media.quickmedia.repository.cache.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.media.chunk-cache")
+@Data
+public class ChunkCacheProperties {
+
+    //off by default, point directory at local SSD before enabling
+    private boolean enabled = false;
+    private Path directory = Path.of(System.getProperty("java.io.tmpdir"), "quickmedia", "chunks");
+    private int segmentBytes = 64 * 1024 * 1024;
+    private long maxBytes = 1024L * 1024 * 1024;
+    //chunks read from Mongo waiting to be copied into the cache, more are served but not cached
+    private int writeBehindChunks = 64;
+}
@@ -1,16 +1,31 @@
 package com.media.quickmedia.restcontroller;
 
+import com.media.quickmedia.model.MultipartUpload;
+import com.media.quickmedia.model.UploadSession;
+import com.media.quickmedia.restcontroller.config.MultipartLimitProperties;
+import com.media.quickmedia.restcontroller.config.RawUploadProperties;
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
 import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
+import com.media.quickmedia.restcontroller.support.LimitedFilePart;
 import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.types.ObjectId;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
 
 @RestController
@@ -19,21 +34,63 @@ import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
 @Slf4j
 public class LargeMediaController {
 
+    public static final String CHECKSUM_HEADER = "X-Checksum-CRC32C";
+
     private final MediaService mediaService;
+    private final UploadSessionService uploadSessionService;
+    private final MultipartUploadService multipartUploadService;
+    private final RawUploadProperties rawUploadProperties;
+    private final MultipartLimitProperties multipartLimitProperties;
 
+    //chunkSize, when given, asks for that GridFS chunk size instead of the configured one
     @PostMapping(value = "/large-upload")
-    public Mono<String> addLargeImage(@RequestPart("file") Mono<FilePart> filePartMono){
+    public Mono<String> addLargeImage(@RequestPart("file") Mono<FilePart> filePartMono,
+                                      @RequestParam(value = "chunkSize", defaultValue = "0") int chunkSize){
         return filePartMono.doOnNext(filePart -> {
                     log.info("Received new file with name {}", filePart.filename());
-                }).flatMap(mediaService::saveLarge)
+                }).flatMap(filePart -> {
+                    var limited = new LimitedFilePart(filePart, multipartLimitProperties.getLargeUploadMaxBytes());
+                    return mediaService.saveLarge(limited, chunkSize)
+                            .onErrorMap(error -> limited.isExceeded(), error -> limited.tooLarge());
+                })
                 .flatMap(objectId -> Mono.just(objectId.toHexString()))
-                .onErrorMap(error->{
+                .onErrorMap(error -> !(error instanceof PayloadTooLargeException), error->{
                     throw new RestControllerRequestException(error);
                 });
 
 
     }
 
+    //single file uploads without multipart parsing or temp files, the body is piped straight into GridFS.
+    //the size check runs before the body is subscribed, and reactor netty only answers Expect: 100-continue
+    //on that subscription, so a refused client never sends its bytes
+    @PutMapping("/{name}")
+    public Mono<String> putMedia(@PathVariable("name") String name,
+                                 @RequestHeader HttpHeaders headers,
+                                 @RequestParam(value = "chunkSize", defaultValue = "0") int chunkSize,
+                                 @RequestBody Flux<DataBuffer> body){
+        long maxBytes = rawUploadProperties.getMaxBytes();
+        if(headers.getContentLength() > maxBytes){
+            return Mono.error(new PayloadTooLargeException(String.format("Upload of %d bytes exceeds the limit of %d",
+                    headers.getContentLength(), maxBytes)));
+        }
+        var contentType = headers.getContentType() == null ? MediaType.APPLICATION_OCTET_STREAM : headers.getContentType();
+        var received = new AtomicLong();
+        var limited = body.doOnNext(dataBuffer -> {
+            if(received.addAndGet(dataBuffer.readableByteCount()) > maxBytes){
+                DataBufferUtils.release(dataBuffer);
+                throw new PayloadTooLargeException(String.format("Upload exceeds the limit of %d bytes", maxBytes));
+            }
+        });
+        log.info("Received raw upload {} of type {}", name, contentType);
+        return mediaService.saveRaw(name, limited, contentType, headers.getContentLength(), chunkSize)
+                .map(ObjectId::toHexString)
+                .onErrorMap(error -> !(error instanceof PayloadTooLargeException), error->{
+                    log.error("Failed to store raw upload {}: {}", name, error.getMessage());
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
     @GetMapping(value = "/large-download/{id}",
             produces = APPLICATION_OCTET_STREAM_VALUE)
     public Flux<Void> getLargeImage(@PathVariable("id") String id, ServerWebExchange serverWebExchange) {
@@ -47,6 +104,98 @@ public class LargeMediaController {
                 });
     }
 
+    @PostMapping("/sessions")
+    public Mono<UploadSession> createSession(@RequestParam("name") String name){
+        return uploadSessionService.create(name)
+                .onErrorMap(error->{
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    @GetMapping("/sessions/{id}")
+    public Mono<UploadSession> getSession(@PathVariable("id") String id){
+        return uploadSessionService.status(id)
+                .onErrorMap(error->{
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    //the body is one chunk starting at offset, a reconnecting client asks getSession for the committed offset first
+    @PutMapping(value = "/sessions/{id}", consumes = APPLICATION_OCTET_STREAM_VALUE)
+    public Mono<UploadSession> appendChunk(@PathVariable("id") String id,
+                                           @RequestParam("offset") long offset,
+                                           @RequestHeader(value = CHECKSUM_HEADER, required = false) Long crc32c,
+                                           @RequestBody Flux<DataBuffer> body){
+        return DataBufferUtils.join(body, uploadSessionService.maxChunkBytes())
+                .map(dataBuffer -> {
+                    byte[] bytes = new byte[dataBuffer.readableByteCount()];
+                    dataBuffer.read(bytes);
+                    DataBufferUtils.release(dataBuffer);
+                    return bytes;
+                })
+                .defaultIfEmpty(new byte[0])
+                .flatMap(bytes -> uploadSessionService.append(id, offset, bytes, crc32c))
+                .onErrorMap(error->{
+                    log.error("Failed to append to upload session {}: {}", id, error.getMessage());
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    @PostMapping("/sessions/{id}/finish")
+    public Mono<String> finishSession(@PathVariable("id") String id,
+                                      @RequestParam(value = "length", defaultValue = "0") long length){
+        return uploadSessionService.finish(id, length)
+                .onErrorMap(error->{
+                    log.error("Failed to finish upload session {}: {}", id, error.getMessage());
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    @PostMapping("/multipart")
+    public Mono<MultipartUpload> createMultipart(@RequestParam("name") String name,
+                                                 @RequestParam(value = "partSize", defaultValue = "0") long partSize){
+        return multipartUploadService.create(name, partSize)
+                .onErrorMap(error->{
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    //parts can be sent concurrently on separate connections, each body is one whole part
+    @PutMapping(value = "/multipart/{id}/parts/{part}", consumes = APPLICATION_OCTET_STREAM_VALUE)
+    public Mono<Long> uploadPart(@PathVariable("id") String id,
+                                 @PathVariable("part") int part,
+                                 @RequestBody Flux<DataBuffer> body){
+        return multipartUploadService.uploadPart(id, part, body.map(dataBuffer -> {
+                    byte[] bytes = new byte[dataBuffer.readableByteCount()];
+                    dataBuffer.read(bytes);
+                    DataBufferUtils.release(dataBuffer);
+                    return ByteBuffer.wrap(bytes);
+                }))
+                .onErrorMap(error->{
+                    log.error("Failed to upload part {} of {}: {}", part, id, error.getMessage());
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    @PostMapping("/multipart/{id}/complete")
+    public Mono<String> completeMultipart(@PathVariable("id") String id,
+                                          @RequestParam(value = "parts", defaultValue = "0") int parts){
+        return multipartUploadService.complete(id, parts)
+                .onErrorMap(error->{
+                    log.error("Failed to complete multipart upload {}: {}", id, error.getMessage());
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    @DeleteMapping("/multipart/{id}")
+    public Mono<String> abortMultipart(@PathVariable("id") String id){
+        return multipartUploadService.abort(id)
+                .onErrorMap(error->{
+                    throw new RestControllerRequestException(error);
+                })
+                .thenReturn(id);
+    }
+
     //todo add name validation ie. png jpeg or movie
     //add a endpoint to get the metadata from an image
 
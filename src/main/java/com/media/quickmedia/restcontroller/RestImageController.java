@@ -1,7 +1,11 @@
 package com.media.quickmedia.restcontroller;
 
 import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImagePage;
+import com.media.quickmedia.restcontroller.config.MultipartLimitProperties;
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
 import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
+import com.media.quickmedia.restcontroller.support.LimitedFilePart;
 import com.media.quickmedia.service.ImageService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -21,13 +25,28 @@ import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
 public class RestImageController {
 
     private final ImageService imageService;
+    private final MultipartLimitProperties multipartLimitProperties;
 
     @PostMapping(value = "/upload")
     public Mono<Image> addNewImage(@RequestPart("file") Mono<FilePart> filePartMono) {
         return filePartMono.doOnNext(filePart -> {
             log.info("Received new file with name {}", filePart.filename());
         })
-                .flatMap(imageService::saveImage)
+                .flatMap(filePart -> {
+                    var limited = new LimitedFilePart(filePart, multipartLimitProperties.getImageMaxBytes());
+                    return imageService.saveImage(limited)
+                            .onErrorMap(error -> limited.isExceeded(), error -> limited.tooLarge());
+                })
+                .onErrorMap(error -> !(error instanceof PayloadTooLargeException), error->{
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    //metadata only, content is fetched per image through /download/{id}
+    @GetMapping
+    public Mono<ImagePage> listImages(@RequestParam(value = "after", required = false) String after,
+                                      @RequestParam(value = "size", defaultValue = "0") int size){
+        return imageService.listImages(after, size, true, 0)
                 .onErrorMap(error->{
                     throw new RestControllerRequestException(error);
                 });
@@ -35,10 +54,11 @@ public class RestImageController {
 
     @GetMapping(value = "/download/{id}",
             produces = APPLICATION_OCTET_STREAM_VALUE)
-    public Mono<ResponseEntity<InputStreamResource>> getImage(@PathVariable("id") String id) {
+    public Mono<ResponseEntity<InputStreamResource>> getImage(@PathVariable("id") String id,
+                                                              @RequestParam(value = "size", defaultValue = "0") int size) {
         return Mono.just(id)
                 .log()
-                .flatMap(imageService::getImage)
+                .flatMap(_id -> imageService.getImage(_id, size))
                 .flatMap(inputStreamResource -> Mono.just(new ResponseEntity<>(inputStreamResource, HttpStatus.OK)))
                 .onErrorMap(error->{
                     throw new RestControllerRequestException(error);
@@ -2,15 +2,19 @@ package com.media.quickmedia.restcontroller;
 
 import com.media.quickmedia.model.Image;
 import com.media.quickmedia.model.Video;
+import com.media.quickmedia.restcontroller.config.MultipartLimitProperties;
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
 import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
+import com.media.quickmedia.restcontroller.support.LimitedFilePart;
 import com.media.quickmedia.service.VideoService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
@@ -22,25 +26,30 @@ import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
 public class RestVideoController {
 
     private final VideoService videoService;
+    private final MultipartLimitProperties multipartLimitProperties;
 
     @PostMapping(value = "/upload")
     public Mono<Video> addNewVideo(@RequestPart("file") Mono<FilePart> filePartMono){
         return filePartMono.doOnNext(filePart -> {
             log.info("Received new file with name {}", filePart.filename());
 
-        }).flatMap(videoService::saveVideo)
-                .onErrorMap(error->{
+        }).flatMap(filePart -> {
+                    var limited = new LimitedFilePart(filePart, multipartLimitProperties.getVideoMaxBytes());
+                    return videoService.saveVideo(limited)
+                            .onErrorMap(error -> limited.isExceeded(), error -> limited.tooLarge());
+                })
+                .onErrorMap(error -> !(error instanceof PayloadTooLargeException), error->{
                     throw new RestControllerRequestException(error);
                 });
     }
 
     @GetMapping(value = "/download/{id}",
             produces = APPLICATION_OCTET_STREAM_VALUE)
-    public Mono<ResponseEntity<InputStreamResource>> getVideo(@PathVariable("id") String id) {
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getVideo(@PathVariable("id") String id) {
         return Mono.just(id)
                 .flatMap(videoService::getVideo)
-                .flatMap(inputStreamResource ->
-                        Mono.just(new ResponseEntity<>(inputStreamResource, HttpStatus.OK)))
+                .flatMap(content ->
+                        Mono.just(new ResponseEntity<>(content, HttpStatus.OK)))
                 .onErrorMap(error->{
                     throw new RestControllerRequestException(error);
                 });
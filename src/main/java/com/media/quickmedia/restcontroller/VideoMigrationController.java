@@ -0,0 +1,43 @@
+package com.media.quickmedia.restcontroller;
+
+import com.media.quickmedia.model.MigrationCheckpoint;
+import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
+import com.media.quickmedia.service.migration.VideoMigrationService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/videos/migration")
+public class VideoMigrationController {
+
+    private final VideoMigrationService videoMigrationService;
+
+    @GetMapping
+    public Mono<MigrationCheckpoint> status(){
+        return videoMigrationService.status()
+                .onErrorMap(error->{
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    @PostMapping("/pause")
+    public Mono<MigrationCheckpoint> pause(){
+        return videoMigrationService.pause()
+                .onErrorMap(error->{
+                    throw new RestControllerRequestException(error);
+                });
+    }
+
+    @PostMapping("/resume")
+    public Mono<MigrationCheckpoint> resume(){
+        return videoMigrationService.resume()
+                .onErrorMap(error->{
+                    throw new RestControllerRequestException(error);
+                });
+    }
+}
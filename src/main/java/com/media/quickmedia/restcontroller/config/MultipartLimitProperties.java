@@ -0,0 +1,20 @@
+package com.media.quickmedia.restcontroller.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+//largest file each multipart endpoint stores, spring.webflux.multipart.max-disk-usage-per-part is shared by
+//all of them and has to be at least the largest of these
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.media.multipart-limits")
+@Data
+public class MultipartLimitProperties {
+
+    //POST /images/upload
+    private long imageMaxBytes = 64L * 1024 * 1024;
+    //POST /videos/upload
+    private long videoMaxBytes = 2L * 1024 * 1024 * 1024;
+    //POST /media/large-upload
+    private long largeUploadMaxBytes = 5L * 1024 * 1024 * 1024;
+}
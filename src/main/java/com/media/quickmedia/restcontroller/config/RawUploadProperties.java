@@ -0,0 +1,14 @@
+package com.media.quickmedia.restcontroller.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.media.raw-upload")
+@Data
+public class RawUploadProperties {
+
+    //largest body accepted by PUT /media/{name}, a declared Content-Length above it is refused before any bytes are read
+    private long maxBytes = 2L * 1024 * 1024 * 1024;
+}
@@ -0,0 +1,7 @@
+package com.media.quickmedia.restcontroller.error;
+
+public class PayloadTooLargeException extends RuntimeException{
+    public PayloadTooLargeException(String message){
+        super(message);
+    }
+}
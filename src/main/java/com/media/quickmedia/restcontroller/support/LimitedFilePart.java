@@ -0,0 +1,64 @@
+package com.media.quickmedia.restcontroller.support;
+
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
+import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+//fails the part's content once it passes maxBytes, services wrap their errors so callers ask isExceeded
+//to tell an oversized upload from a storage failure
+@RequiredArgsConstructor
+public class LimitedFilePart implements FilePart {
+
+    private final FilePart filePart;
+    private final long maxBytes;
+    private final AtomicBoolean exceeded = new AtomicBoolean();
+
+    public boolean isExceeded(){
+        return exceeded.get();
+    }
+
+    public PayloadTooLargeException tooLarge(){
+        return new PayloadTooLargeException(String.format("Upload %s exceeds the limit of %d bytes", filename(), maxBytes));
+    }
+
+    @Override
+    public String filename() {
+        return filePart.filename();
+    }
+
+    @Override
+    public String name() {
+        return filePart.name();
+    }
+
+    @Override
+    public HttpHeaders headers() {
+        return filePart.headers();
+    }
+
+    @Override
+    public Flux<DataBuffer> content() {
+        var received = new AtomicLong();
+        return filePart.content().doOnNext(dataBuffer -> {
+            if(received.addAndGet(dataBuffer.readableByteCount()) > maxBytes){
+                DataBufferUtils.release(dataBuffer);
+                exceeded.set(true);
+                throw tooLarge();
+            }
+        });
+    }
+
+    @Override
+    public Mono<Void> transferTo(Path dest) {
+        return DataBufferUtils.write(content(), dest);
+    }
+}
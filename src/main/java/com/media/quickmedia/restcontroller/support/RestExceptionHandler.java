@@ -1,5 +1,6 @@
 package com.media.quickmedia.restcontroller.support;
 
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
 import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -17,4 +18,10 @@ public class RestExceptionHandler {
         log.info("Request threw an exception with trace: {}", exception.toString());
     }
 
+    @ExceptionHandler(PayloadTooLargeException.class)
+    @ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+    void handlePayloadTooLarge(PayloadTooLargeException exception){
+        log.info("Rejected upload: {}", exception.getMessage());
+    }
+
 }
@@ -3,25 +3,42 @@ package com.media.quickmedia.service;
 import com.google.protobuf.ByteString;
 import com.media.quickmedia.metadata.MetaDataParser;
 import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImagePage;
+import com.media.quickmedia.model.MetaDataEntry;
+import com.media.quickmedia.model.MetaDataStatus;
+import com.media.quickmedia.model.UploadResult;
 import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.cache.CachedImage;
+import com.media.quickmedia.service.cache.ImageCache;
+import com.media.quickmedia.service.config.ImagePageProperties;
 import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.grpc.MetaDataResponses;
+import com.media.quickmedia.service.metadata.MetaDataPipeline;
+import com.media.quickmedia.service.storage.BatchIngestEngine;
+import com.media.quickmedia.service.storage.ImageBatchWriter;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import com.media.quickmedia.service.utils.DataBufferService;
+import com.media.quickmedia.service.variant.ImageVariantPipeline;
+import com.media.quickmedia.service.variant.ImageVariantService;
 import com.proto.service.BatchUploadRequest;
-import com.proto.service.ImageMetaData;
+import com.proto.service.DownloadResponse;
 import com.proto.service.MetaDataRequest;
 import com.proto.service.MetaDataResponse;
+import com.proto.service.UploadRequest;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
 import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 @RequiredArgsConstructor
@@ -30,94 +47,198 @@ public class ImageService {
 
     private final ImageRepository imageRepository;
     private final MetaDataParser metaDataParser;
+    private final ImageStorageEngine imageStorageEngine;
+    private final ImageCache imageCache;
+    private final ImagePageProperties imagePageProperties;
+    private final MetaDataPipeline metaDataPipeline;
+    private final ImageBatchWriter imageBatchWriter;
+    private final BatchIngestEngine batchIngestEngine;
+    private final ImageVariantPipeline imageVariantPipeline;
+    private final ImageVariantService imageVariantService;
+    private final DataBufferService dataBufferService;
 
+    //the part is streamed, only images small enough to stay inline are ever held in memory whole
     public Mono<Image> saveImage(FilePart filePart){
-        return DataBufferUtils.join(filePart.content())
-                .flatMap(dataBuffer -> Mono.just(dataBuffer.asByteBuffer().array()))
-                .flatMap(bytes -> {
-                    log.info("Saving file with size: {}", bytes.length);
-
-                    return Mono.just(Image.builder()
-                            .name(filePart.filename())
-                            .content(bytes)
-                            .build());
+        return Mono.just(filePart)
+                .flatMap(fp -> imageStorageEngine.save(fp.filename(), fp.content()))
+                .doOnNext(image -> {
+                    metaDataPipeline.submit(image.getId());
+                    imageVariantPipeline.submit(image.getId());
                 })
-                .flatMap(imageRepository::save)
                 .doOnError(error->{
                     throw new RepositoryException("Cannot save filepart: "+ filePart.filename());
                 });
 
     }
     public Mono<Image> saveImage(ByteString bytes, String name){
-        return Mono.just(Image.builder()
-                .name(name)
-                .content(bytes.toByteArray())
-                        .build())
-                .flatMap(imageRepository::save)
+        return Mono.just(bytes)
+                .flatMap(byteString -> imageStorageEngine.save(name, byteString.toByteArray()))
+                .doOnNext(image -> {
+                    metaDataPipeline.submit(image.getId());
+                    imageVariantPipeline.submit(image.getId());
+                })
                 .doOnError(error->{
                     throw new RepositoryException("Cannot save file: "+ name);
                 });
     }
 
     public Mono<InputStreamResource> getImage(String id){
-        return imageRepository.findById(id)
-                .flatMap(image -> {
-                    InputStreamResource inputStreamResource = new InputStreamResource(new ByteArrayInputStream(image.getContent()));
+        return getImage(id, 0);
+    }
+
+    public Mono<InputStreamResource> getImage(String id, int size){
+        return cachedImage(id, size)
+                .flatMap(cachedImage -> {
+                    InputStreamResource inputStreamResource = new InputStreamResource(new ByteArrayInputStream(cachedImage.getContent()));
                     return Mono.just(inputStreamResource);
                 }).switchIfEmpty(Mono.error(new RepositoryException(String.format("Cannot find image by id %s", id))));
     }
 
     public Mono<ByteArrayInputStream> getImageStream(String id){
-        return imageRepository.findById(id)
-                .flatMap(image -> Mono.just(new ByteArrayInputStream(image.getContent())))
+        return cachedImage(id)
+                .flatMap(cachedImage -> Mono.just(new ByteArrayInputStream(cachedImage.getContent())))
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("Cannot find image by id %s", id))));
+    }
+
+    public Mono<DownloadResponse> getDownloadResponse(String id){
+        return getDownloadResponse(id, 0);
+    }
+
+    public Mono<DownloadResponse> getDownloadResponse(String id, int size){
+        return cachedImage(id, size)
+                .map(CachedImage::toResponse)
                 .switchIfEmpty(Mono.error(new RepositoryException(String.format("Cannot find image by id %s", id))));
     }
 
+    private Mono<CachedImage> cachedImage(String id){
+        return imageCache.get(id, _id -> imageRepository.findById(_id)
+                .flatMap(imageStorageEngine::content));
+    }
+
+    //variants are cached under their own id, an image whose variants are not generated yet is served whole
+    private Mono<CachedImage> cachedImage(String id, int size){
+        if(size <= 0){
+            return cachedImage(id);
+        }
+        return imageVariantService.nearest(id, size)
+                .flatMap(variant -> imageCache.get(variant.getId(), ignored -> imageVariantService.content(variant)))
+                .switchIfEmpty(Mono.defer(() -> cachedImage(id)));
+    }
+
     public Mono<String> removeImage(String id){
         return Mono.just(id)
-                .flatMap(imageRepository::deleteById)
+                .flatMap(imageStorageEngine::delete)
+                .then(imageVariantService.delete(id)
+                        .doOnNext(imageCache::invalidate)
+                        .then())
+                .doFinally(ignored -> imageCache.invalidate(id))
                 .doOnError(error->{
                     throw new RepositoryException(String.format("Failed to remove image with id: %s", id));
                 })
                 .thenReturn(id);
     }
 
-    @Transactional
-    public Mono<List<Image>> batchUpload(BatchUploadRequest batchUploadRequest) {
+    public Mono<List<UploadResult>> batchUpload(BatchUploadRequest batchUploadRequest) {
         return Mono.just(batchUploadRequest)
-                .flatMapIterable(BatchUploadRequest::getUploadRequestsList)
-                .flatMap(uploadRequest -> {
-                    var image = Image.builder()
-                            .content(uploadRequest.getData().getData().toByteArray())
-                            .name(uploadRequest.getKey().getKey())
-                            .build();
-                    return imageRepository.save(image);
-                })
-                .collectList()
+                .flatMap(request -> imageBatchWriter.write(request.getUploadRequestsList(), request.getAtomic()))
+                .doOnNext(results -> results.stream()
+                        .filter(UploadResult::isSuccess)
+                        .forEach(result -> {
+                            metaDataPipeline.submit(result.getId());
+                            imageVariantPipeline.submit(result.getId());
+                        }))
                 .doOnError(error->{
-                    throw new RepositoryException(String.format("Failed to batch upload image with id: %s", batchUploadRequest.toString()));
+                    throw new RepositoryException(String.format("Failed to batch upload images: %d items", batchUploadRequest.getUploadRequestsCount()));
                 }
                 );
     }
 
+    //each item streams through the storage engine like a multipart upload, so only images small enough to stay
+    //inline are ever held whole
+    public Flux<UploadResult> batchUploadStream(Flux<UploadRequest> uploadRequests){
+        return batchIngestEngine.ingestChunked(uploadRequests, (name, chunks) -> imageStorageEngine.save(name,
+                        chunks.map(byteString -> dataBufferService.makeDataBuffer(byteString.asReadOnlyByteBuffer())))
+                .doOnNext(image -> {
+                    metaDataPipeline.submit(image.getId());
+                    imageVariantPipeline.submit(image.getId());
+                })
+                .map(Image::getId));
+    }
+
+    //one extra row is read to know whether another page follows, the byte cap may end a page early
+    //but always lets at least one image through. rows are read without content, content is then loaded
+    //one image at a time so at most one image past the cap is ever fetched
+    public Mono<ImagePage> listImages(String afterId, int pageSize, boolean metadataOnly, long maxBytes){
+        return Mono.defer(() -> {
+            int size = pageSize <= 0 ? imagePageProperties.getDefaultSize() : Math.min(pageSize, imagePageProperties.getMaxSize());
+            long byteCap = maxBytes <= 0 ? imagePageProperties.getMaxBytes() : Math.min(maxBytes, imagePageProperties.getMaxBytes());
+            var cursor = afterId == null || afterId.isEmpty() ? new ObjectId(new byte[12]) : new ObjectId(afterId);
+            var page = PageRequest.of(0, size + 1, Sort.by(Sort.Direction.ASC, "id"));
+            AtomicLong used = new AtomicLong();
+
+            return imageRepository.findMetadataPageAfter(cursor, page).collectList()
+                    .flatMap(found -> Flux.fromIterable(found.subList(0, Math.min(size, found.size())))
+                            .concatMap(image -> metadataOnly ? Mono.just(image) : withContent(image), 1)
+                            .takeWhile(image -> {
+                                long length = image.getContent() == null ? 0 : image.getContent().length;
+                                long before = used.getAndAdd(length);
+                                return before == 0 || before + length <= byteCap;
+                            })
+                            .collectList()
+                            .map(taken -> ImagePage.builder()
+                                    .images(taken)
+                                    .lastId(taken.isEmpty() ? afterId : taken.get(taken.size() - 1).getId())
+                                    .hasMore(found.size() > taken.size())
+                                    .build()));
+        })
+                .doOnError(error->{
+                    throw new RepositoryException(String.format("Failed to list images after id: %s", afterId));
+                });
+    }
+
+    private Mono<Image> withContent(Image image){
+        var content = image.getBlobId() == null ?
+                imageRepository.findById(image.getId()).map(found -> found.getContent() == null ? new byte[0] : found.getContent()) :
+                imageStorageEngine.content(image);
+        return content
+                .map(bytes -> Image.builder()
+                        .id(image.getId())
+                        .name(image.getName())
+                        .blobId(image.getBlobId())
+                        .content(bytes)
+                        .build());
+    }
+
+    //metadata extracted by the pipeline is served from the document and images it failed on are not parsed again.
+    //images it has not reached yet have their header parsed on demand and the result is kept for the next call
     public Mono<MetaDataResponse> getMetaData(MetaDataRequest metaDataRequest) {
         return Mono.just(metaDataRequest)
                 .flatMap(request-> Mono.just(request.getKey().getKey()))
-                .flatMap(imageRepository::findById)
-                .flatMap(image->{
-                    InputStream inputStream = new ByteArrayInputStream(image.getContent());
-                    return Mono.just(metaDataParser.parse(inputStream));
-                })
-                .flatMap(metadata -> {
-                    var metaDataBuilder = MetaDataResponse.newBuilder();
-                    Arrays.stream(metadata.names())
-                            .forEach(name -> metaDataBuilder.addMetaData(ImageMetaData.newBuilder()
-                                    .setValue(metadata.get(name))
-                                    .setKey(name).build()));
-                    return Mono.just(metaDataBuilder.build());
-                })
+                .flatMap(id -> imageRepository.findMetadataById(id)
+                        .flatMap(image -> {
+                            if(image.getMetadata() != null){
+                                return Mono.just(image.getMetadata());
+                            }
+                            if(image.getMetadataStatus() == MetaDataStatus.FAILED){
+                                return Mono.error(new RepositoryException(String.format("Metadata of image %s could not be extracted", id)));
+                            }
+                            return (image.getBlobId() != null ? Mono.just(image) : imageRepository.findById(id))
+                                    .flatMap(this::parseHeader)
+                                    .flatMap(entries -> metaDataPipeline.storeParsed(id, entries)
+                                            .onErrorResume(error -> {
+                                                log.warn("Failed to keep parsed metadata of image {}: {}", id, error.getMessage());
+                                                return Mono.empty();
+                                            })
+                                            .thenReturn(entries));
+                        }))
+                .map(MetaDataResponses::of)
                 .doOnError(error->{
                     throw new RepositoryException(String.format("Failed to get meta image with id: %s", metaDataRequest.toString()));
                 });
     }
+
+    private Mono<List<MetaDataEntry>> parseHeader(Image image){
+        return metaDataParser.parseHeader(imageStorageEngine.head(image, metaDataParser.headerBytes()))
+                .map(MetaDataParser::toEntries);
+    }
 }
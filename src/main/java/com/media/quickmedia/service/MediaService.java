@@ -1,61 +1,205 @@
 package com.media.quickmedia.service;
 
 import com.google.protobuf.ByteString;
-import com.media.quickmedia.model.Image;
+import com.media.quickmedia.metadata.MetaDataParser;
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.MediaKeyRepository;
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
 import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.grpc.MetaDataResponses;
+import com.media.quickmedia.service.storage.BatchIngestEngine;
+import com.media.quickmedia.service.storage.ChunkSizePolicy;
+import com.media.quickmedia.service.storage.ContentStore;
 import com.media.quickmedia.service.utils.DataBufferService;
+import com.mongodb.client.gridfs.model.GridFSFile;
 import com.proto.service.BatchUploadRequest;
+import com.proto.service.MetaDataRequest;
+import com.proto.service.MetaDataResponse;
+import com.proto.service.UploadRequest;
 import lombok.RequiredArgsConstructor;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
 import org.bson.types.ObjectId;
-import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
 import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class MediaService {
+
+    public static final String MEDIA_BLOB_METADATA = "media";
+
     private final ReactiveGridFsTemplate gridFsTemplate;
     private final DataBufferService dataBufferService;
+    private final GridFsChunkRepository gridFsChunkRepository;
+    private final ContentStore contentStore;
+    private final MediaKeyRepository mediaKeyRepository;
+    private final MetaDataParser metaDataParser;
+    private final BatchIngestEngine batchIngestEngine;
 
     public Mono<ObjectId> saveLarge(FilePart filePart){
+        return saveLarge(filePart, 0);
+    }
+
+    //the part's declared type is kept for downloads and lets compression skip formats that are compressed already.
+    //chunkSize above 0 asks for that GridFS chunk size instead of the configured one
+    public Mono<ObjectId> saveLarge(FilePart filePart, int chunkSize){
         return Mono.just(filePart)
-                .flatMap(fp -> gridFsTemplate.store(fp.content(), fp.filename()))
+                .flatMap(fp -> {
+                    var metadata = withChunkSize(new Document("type", MEDIA_BLOB_METADATA), chunkSize);
+                    var contentType = fp.headers().getContentType();
+                    if(contentType != null){
+                        metadata.append("_contentType", contentType.toString());
+                    }
+                    return contentStore.store(fp.content(), fp.filename(), metadata);
+                })
+                .flatMap(blobId -> newKey(blobId, filePart.filename()))
                 .doOnError(ignored->{
                     throw new RepositoryException(String.format("Unable to save file: %s", filePart.filename()));
                 });
     }
 
+    //a raw request body goes to GridFS as it arrives, the content type is kept where range downloads look for it.
+    //contentLength is the declared Content-Length, -1 for chunked bodies
+    public Mono<ObjectId> saveRaw(String fileName, Flux<DataBuffer> content, MediaType contentType, long contentLength){
+        return saveRaw(fileName, content, contentType, contentLength, 0);
+    }
+
+    public Mono<ObjectId> saveRaw(String fileName, Flux<DataBuffer> content, MediaType contentType, long contentLength,
+                                  int chunkSize){
+        return Mono.just(fileName)
+                .flatMap(name -> contentStore.store(content, name, withChunkSize(new Document("type", MEDIA_BLOB_METADATA)
+                        .append("_contentType", contentType.toString()), chunkSize), contentLength))
+                .flatMap(blobId -> newKey(blobId, fileName))
+                //a body cut off for exceeding the upload limit keeps its own type so the caller can answer 413
+                .onErrorMap(error -> !(error instanceof PayloadTooLargeException),
+                        error -> new RepositoryException(String.format("Unable to save file: %s", fileName)));
+    }
+
     public Flux<Void> downloadLarge(String id, ServerWebExchange exchange){
         return Mono.just(id)
                 .log()
-                .flatMap(_id-> gridFsTemplate.findOne(query(where("_id").is(_id))))
+                .flatMap(this::findBlob)
                 .switchIfEmpty(Mono.error(new RepositoryException(String.format("No file found with id: %s", id))))
-                .flatMap(gridFsTemplate::getResource)
-                .flatMapMany(r->exchange.getResponse().writeWith(r.getDownloadStream()))
+                .flatMapMany(gridFSFile -> writeFile(gridFSFile, exchange))
                 .doOnError(ignored-> {
                     throw new RepositoryException(String.format("Unable to get file: %s", id));
                 });
     }
 
+    private Mono<Void> writeFile(GridFSFile gridFSFile, ServerWebExchange exchange){
+        var response = exchange.getResponse();
+        var headers = response.getHeaders();
+        long length = gridFSFile.getLength();
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.setETag(String.format("\"%s\"", gridFSFile.getObjectId().toHexString()));
+        headers.setLastModified(gridFSFile.getUploadDate().toInstant());
+
+        var requestHeaders = exchange.getRequest().getHeaders();
+        List<HttpRange> ranges = requestedRanges(requestHeaders, headers);
+        if(ranges.isEmpty()){
+            headers.setContentLength(length);
+            return response.writeWith(readFile(gridFSFile));
+        }
+
+        List<HttpRange> satisfiable = ranges.stream()
+                .filter(range -> length > 0 && range.getRangeStart(length) < length)
+                .toList();
+        if(satisfiable.isEmpty()){
+            response.setStatusCode(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            headers.set(HttpHeaders.CONTENT_RANGE, String.format("bytes */%d", length));
+            return response.setComplete();
+        }
+
+        response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+        if(satisfiable.size() == 1){
+            long start = satisfiable.get(0).getRangeStart(length);
+            long end = satisfiable.get(0).getRangeEnd(length);
+            headers.set(HttpHeaders.CONTENT_RANGE, contentRange(start, end, length));
+            headers.setContentLength(end - start + 1);
+            return response.writeWith(gridFsChunkRepository.readRange(gridFSFile, start, end));
+        }
+        return writeMultipleRanges(gridFSFile, satisfiable, response);
+    }
+
+    private List<HttpRange> requestedRanges(HttpHeaders requestHeaders, HttpHeaders responseHeaders){
+        try{
+            var ranges = requestHeaders.getRange();
+            var ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+            if(ifRange != null && !ifRange.equals(responseHeaders.getETag())
+                    && !ifRange.equals(responseHeaders.getFirst(HttpHeaders.LAST_MODIFIED))){
+                return List.of();
+            }
+            return ranges;
+        }catch(IllegalArgumentException exception){
+            log.info("Ignoring invalid range header: {}", exception.getMessage());
+            return List.of();
+        }
+    }
+
+    private Mono<Void> writeMultipleRanges(GridFSFile gridFSFile, List<HttpRange> ranges, ServerHttpResponse response){
+        long length = gridFSFile.getLength();
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        String contentType = gridFSFile.getMetadata() != null && gridFSFile.getMetadata().containsKey("_contentType") ?
+                gridFSFile.getMetadata().getString("_contentType") : APPLICATION_OCTET_STREAM_VALUE;
+
+        long contentLength = 0;
+        List<Flux<DataBuffer>> parts = new ArrayList<>();
+        for(HttpRange range: ranges){
+            long start = range.getRangeStart(length);
+            long end = range.getRangeEnd(length);
+            byte[] partHeader = String.format("\r\n--%s\r\n%s: %s\r\n%s: %s\r\n\r\n", boundary,
+                    HttpHeaders.CONTENT_TYPE, contentType,
+                    HttpHeaders.CONTENT_RANGE, contentRange(start, end, length)).getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeader.length + end - start + 1;
+            parts.add(Flux.concat(Mono.fromSupplier(() -> dataBufferService.makeDataBuffer(partHeader)),
+                    gridFsChunkRepository.readRange(gridFSFile, start, end)));
+        }
+        byte[] closingBoundary = String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+        contentLength += closingBoundary.length;
+
+        response.getHeaders().setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+        response.getHeaders().setContentLength(contentLength);
+        return response.writeWith(Flux.concat(parts)
+                .concatWith(Mono.fromSupplier(() -> dataBufferService.makeDataBuffer(closingBoundary))));
+    }
+
+    private String contentRange(long start, long end, long length){
+        return String.format("bytes %d-%d/%d", start, end, length);
+    }
+
     public Mono<ObjectId> saveLarge(ByteString bytes, String fileName){
         return Mono.just(bytes)
                 .log()
-                .flatMap(byteString -> gridFsTemplate.store(Flux.just(dataBufferService
-                                .makeDataBuffer(byteString.asReadOnlyByteBuffer())),
-                        fileName))
+                .flatMap(byteString -> contentStore.store(byteString.asReadOnlyByteBuffer(), fileName,
+                        new Document("type", MEDIA_BLOB_METADATA)))
+                .flatMap(blobId -> newKey(blobId, fileName))
                 .log()
                 .doOnError(ignored->{
                     throw new RepositoryException(String.format("Unable to save file: %s", fileName));
@@ -65,40 +209,85 @@ public class MediaService {
     public Mono<InputStream> downloadLarge(String id){
         return Mono.just(id)
                 .log()
-                .flatMap(_id->gridFsTemplate.findOne(query(where("_id").is(_id))))
+                .flatMap(this::findBlob)
                 .switchIfEmpty(Mono.error(new RepositoryException(String.format("No file found with id: %s", id))))
                 .log()
-                .flatMap(gridFsTemplate::getResource)
-                .flatMap(ReactiveGridFsResource::getInputStream)
+                .flatMap(gridFSFile -> GridFsChunkRepository.isCompressed(gridFSFile) ?
+                        DataBufferUtils.join(readFile(gridFSFile)).map(dataBuffer -> dataBuffer.asInputStream(true)) :
+                        gridFsTemplate.getResource(gridFSFile).flatMap(ReactiveGridFsResource::getInputStream))
                 .doOnError(ignored->{
                     throw new RepositoryException(String.format("Unable to get file: %s", id));
                 });
     }
 
 
-    public Flux<byte[]> downloadStream(String id) {
+    public Flux<DataBuffer> downloadStream(String id) {
         return Mono.just(id)
-                .flatMap(_id-> gridFsTemplate.findOne(query(where("_id").is(id))))
+                .flatMap(this::findBlob)
                 .switchIfEmpty(Mono.error(new RepositoryException(String.format("No file found with id: %s", id))))
                 .log()
-                .flatMap(gridFsTemplate::getResource)
-                .flatMapMany(ReactiveGridFsResource::getDownloadStream)
-                .flatMap(dataBuffer -> {
-                    byte[] bytes = dataBuffer.asByteBuffer().array();
-                    return Flux.just(bytes);
-                }).doOnError(ignored->{
+                .flatMapMany(this::readFile)
+                .doOnError(ignored->{
                     throw new RepositoryException(String.format("Unable to get file: %s", id));
                 });
     }
 
+    public Flux<DataBuffer> downloadStream(String id, long offset, long length) {
+        return stat(id)
+                .flatMapMany(gridFSFile -> {
+                    long fileLength = gridFSFile.getLength();
+                    if(offset < 0 || length < 0 || offset >= fileLength){
+                        return Flux.error(new RepositoryException(String.format("Range %d+%d is outside file %s of length %d",
+                                offset, length, id, fileLength)));
+                    }
+                    long end = length == 0 ? fileLength - 1 : Math.min(fileLength - 1, offset + length - 1);
+                    return gridFsChunkRepository.readRange(gridFSFile, offset, end);
+                })
+                .doOnError(ignored->{
+                    throw new RepositoryException(String.format("Unable to get file: %s", id));
+                });
+    }
+
+    //only the chunks covering the parser's header window are read, whatever the size of the file
+    public Mono<MetaDataResponse> getMetaData(MetaDataRequest metaDataRequest) {
+        var id = metaDataRequest.getKey().getKey();
+        return stat(id)
+                .flatMap(gridFSFile -> metaDataParser.parseHeader(gridFSFile.getLength() == 0 ? Flux.empty() :
+                        gridFsChunkRepository.readRange(gridFSFile, 0,
+                                Math.min(gridFSFile.getLength(), metaDataParser.headerBytes()) - 1)))
+                .map(metadata -> MetaDataResponses.of(MetaDataParser.toEntries(metadata)))
+                .doOnError(ignored->{
+                    throw new RepositoryException(String.format("Failed to get metadata for file: %s", id));
+                });
+    }
+
+    //the name comes from the key, a deduplicated blob only carries the filename of whoever stored it first
+    public Mono<MediaStat> describe(String id){
+        return mediaKeyRepository.findById(id)
+                .flatMap(key -> gridFsTemplate.findOne(query(where("_id").is(key.getBlobId())))
+                        .map(gridFSFile -> new MediaStat(key.getName(), gridFSFile)))
+                .switchIfEmpty(Mono.defer(() -> gridFsTemplate.findOne(query(where("_id").is(id)))
+                        .map(gridFSFile -> new MediaStat(gridFSFile.getFilename(), gridFSFile))))
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("No file found with id: %s", id))));
+    }
+
+    public Mono<GridFSFile> stat(String id) {
+        return Mono.just(id)
+                .flatMap(this::findBlob)
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("No file found with id: %s", id))));
+    }
+
     public Mono<ObjectId> uploadStream(Flux<ByteString> bytes, String fileName){
-        return bytes.map(ByteString::toByteArray)
-                .map(dataBufferService::makeDataBuffer)
-                .collectList()
-                .flatMap(defaultDataBuffers -> {
-                    var dataBuffer = dataBufferService.joinDataBuffers(defaultDataBuffers);
-                    return gridFsTemplate.store(Flux.just(dataBuffer), fileName);
-                }).doOnError(ignored->{
+        return uploadStream(bytes, fileName, 0);
+    }
+
+    public Mono<ObjectId> uploadStream(Flux<ByteString> bytes, String fileName, int chunkSize){
+        return Mono.just(fileName)
+                .flatMap(name -> contentStore.store(bytes.map(byteString -> dataBufferService
+                                .makeDataBuffer(byteString.asReadOnlyByteBuffer())),
+                        name, withChunkSize(new Document("type", MEDIA_BLOB_METADATA), chunkSize)))
+                .flatMap(blobId -> newKey(blobId, fileName))
+                .doOnError(ignored->{
                     throw new RepositoryException(String.format("Unable to save file: %s", fileName));
                 });
     }
@@ -106,28 +295,89 @@ public class MediaService {
     public Mono<ObjectId> delete(ObjectId objectId){
         return Mono.just(objectId)
                 .log()
-                .flatMap(_id-> gridFsTemplate.delete(query(where("_id").is(_id))))
+                .flatMap(_id-> mediaKeyRepository.findById(_id.toHexString())
+                        .flatMap(key -> mediaKeyRepository.delete(key)
+                                .then(contentStore.release(new ObjectId(key.getBlobId())))
+                                .thenReturn(key))
+                        .switchIfEmpty(Mono.defer(() -> releaseLegacy(_id).then(Mono.empty()))))
                 .doOnError(error->{
                     throw new RepositoryException(String.format("Cannot delete file with id: %s", objectId.toHexString()));
                 })
                 .thenReturn(objectId);
     }
 
-    public Mono<List<ObjectId>> batchUpload(BatchUploadRequest batchUploadRequest) {
+    public Mono<List<UploadResult>> batchUpload(BatchUploadRequest batchUploadRequest) {
         return Mono.just(batchUploadRequest)
-                .flatMapIterable(BatchUploadRequest::getUploadRequestsList)
-                .flatMap(uploadRequest -> {
-                    var byteString = uploadRequest.getData().getData();
-                    var fileName = uploadRequest.getKey().getKey();
-                    return gridFsTemplate.store(Flux.just(dataBufferService
-                                    .makeDataBuffer(byteString.asReadOnlyByteBuffer())),
-                            fileName);
-                })
-                .collectList()
+                .flatMap(request -> batchIngestEngine.ingest(Flux.fromIterable(request.getUploadRequestsList()), this::store)
+                        .collectList())
                 .doOnError(error->{
-                            throw new RepositoryException(String.format("Failed to batch upload video with id: %s", batchUploadRequest.toString()));
+                            throw new RepositoryException(String.format("Failed to batch upload %d videos", batchUploadRequest.getUploadRequestsCount()));
                         }
                 );
 
     }
+
+    //each item streams straight into GridFS, memory stays flat however large the batch
+    public Flux<UploadResult> batchUploadStream(Flux<UploadRequest> uploadRequests){
+        return batchIngestEngine.ingestChunked(uploadRequests, (name, chunks) -> uploadStream(chunks, name)
+                .map(ObjectId::toHexString));
+    }
+
+    private Mono<String> store(UploadRequest uploadRequest){
+        var fileName = uploadRequest.getKey().getKey();
+        return contentStore.store(uploadRequest.getData().getData().asReadOnlyByteBuffer(), fileName,
+                        new Document("type", MEDIA_BLOB_METADATA))
+                .flatMap(blobId -> newKey(blobId, fileName))
+                .map(ObjectId::toHexString);
+    }
+
+    //with the local chunk cache on, whole file reads go chunk by chunk so repeat plays never reach Mongo,
+    //compressed files always do since only the chunk reader inflates them
+    private Flux<DataBuffer> readFile(GridFSFile gridFSFile){
+        if((gridFsChunkRepository.cachesChunks() || GridFsChunkRepository.isCompressed(gridFSFile)) && gridFSFile.getLength() > 0){
+            return gridFsChunkRepository.readRange(gridFSFile, 0, gridFSFile.getLength() - 1);
+        }
+        return gridFsTemplate.getResource(gridFSFile)
+                .flatMapMany(ReactiveGridFsResource::getDownloadStream);
+    }
+
+    //keys issued before deduplication are GridFS ids themselves
+    //an id without a key is only deleted as a blob when it predates keys, a blob that is deduplicated or
+    //referenced by some key or video, image or variant document belongs to them and is left alone
+    private Mono<Void> releaseLegacy(ObjectId blobId){
+        return Mono.zip(contentStore.isReferenced(blobId), mediaKeyRepository.existsByBlobId(blobId.toHexString()))
+                .flatMap(owned -> {
+                    if(owned.getT1() || owned.getT2()){
+                        log.warn("Refusing to delete blob {} by id, it is still referenced", blobId.toHexString());
+                        return Mono.empty();
+                    }
+                    return contentStore.release(blobId);
+                });
+    }
+
+    private Mono<GridFSFile> findBlob(String id){
+        return mediaKeyRepository.findById(id)
+                .map(MediaKey::getBlobId)
+                .defaultIfEmpty(id)
+                .flatMap(blobId -> gridFsTemplate.findOne(query(where("_id").is(blobId))));
+    }
+
+    //a requested size is kept with the file so the policy, and later re-chunking, honour it
+    private static Document withChunkSize(Document metadata, int chunkSize){
+        return chunkSize > 0 ? metadata.append(ChunkSizePolicy.CHUNK_SIZE_METADATA, chunkSize) : metadata;
+    }
+
+    private Mono<ObjectId> newKey(ObjectId blobId, String name){
+        return mediaKeyRepository.save(MediaKey.builder()
+                        .name(name)
+                        .blobId(blobId.toHexString())
+                        .build())
+                .map(key -> new ObjectId(key.getId()));
+    }
+
+    @Value
+    public static class MediaStat {
+        String name;
+        GridFSFile file;
+    }
 }
@@ -1,59 +1,79 @@
 package com.media.quickmedia.service;
 
-import com.media.quickmedia.model.Image;
 import com.media.quickmedia.model.Video;
 import com.media.quickmedia.repository.VideoRepository;
 import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.utils.DataBufferService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.buffer.DataBufferUtils;
+import org.bson.Document;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.io.ByteArrayInputStream;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class VideoService {
 
+    public static final String VIDEO_BLOB_METADATA = "video";
+
     private final VideoRepository videoRepository;
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final DataBufferService dataBufferService;
 
     public Mono<Video> saveVideo(FilePart filePart){
-        return DataBufferUtils.join(filePart.content())
-                .flatMap(dataBuffer -> Mono.just(dataBuffer.asByteBuffer().array()))
-                .flatMap(bytes -> {
-                    log.info("Saving file with size: {}", bytes.length);
+        return Mono.just(filePart)
+                .flatMap(fp -> gridFsTemplate.store(fp.content(), fp.filename(), new Document("type", VIDEO_BLOB_METADATA)))
+                .flatMap(blobId -> {
+                    log.info("Saved video {} to blob {}", filePart.filename(), blobId.toHexString());
 
-                    return Mono.just(Video.builder()
+                    return videoRepository.save(Video.builder()
                             .name(filePart.filename())
-                            .content(bytes)
+                            .blobId(blobId.toHexString())
                             .build());
                 })
-                .flatMap(videoRepository::save)
                 .doOnError(ignored->{
                     throw new RepositoryException(String.format("Failed to save video: %s", filePart.filename()));
                 });
 
     }
 
-    public Mono<InputStreamResource> getVideo(String id){
+    //videos not yet migrated to GridFS are still served from their inline content
+    public Mono<Flux<DataBuffer>> getVideo(String id){
         return videoRepository.findById(id)
-                .flatMap(image -> {
-                    InputStreamResource inputStreamResource = new InputStreamResource(new ByteArrayInputStream(image.getContent()));
-                    return Mono.just(inputStreamResource);
-                })
+                .map(this::content)
                 .switchIfEmpty(Mono.error(new RepositoryException(String.format("Unable to find file with id: %s", id))));
     }
 
     public Mono<String> delete(String id){
         return Mono.just(id)
-                .flatMap(videoRepository::deleteById)
+                .flatMap(videoRepository::findById)
+                .flatMap(video -> video.getBlobId() == null ? Mono.empty() :
+                        gridFsTemplate.delete(query(where("_id").is(video.getBlobId()))))
+                .then(Mono.defer(() -> videoRepository.deleteById(id)))
                 .doOnError(error->{
                     throw new RepositoryException(String.format("Failed to remove video with id: %s", id));
                 })
                 .thenReturn(id);
     }
+
+    private Flux<DataBuffer> content(Video video){
+        if(video.getBlobId() == null){
+            return Mono.justOrEmpty(video.getContent())
+                    .map(dataBufferService::makeDataBuffer)
+                    .flux();
+        }
+        return gridFsTemplate.findOne(query(where("_id").is(video.getBlobId())))
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("No blob found for video: %s", video.getId()))))
+                .flatMap(gridFsTemplate::getResource)
+                .flatMapMany(ReactiveGridFsResource::getDownloadStream);
+    }
 }
@@ -0,0 +1,25 @@
+package com.media.quickmedia.service.cache;
+
+import com.google.protobuf.UnsafeByteOperations;
+import com.proto.service.DataChunk;
+import com.proto.service.DownloadResponse;
+import lombok.Value;
+
+//content is never mutated once cached, so a response can wrap it without a copy
+@Value
+public class CachedImage {
+
+    byte[] content;
+
+    public static CachedImage of(byte[] content){
+        return new CachedImage(content);
+    }
+
+    public DownloadResponse toResponse(){
+        return DownloadResponse.newBuilder()
+                .setData(DataChunk.newBuilder()
+                        .setData(UnsafeByteOperations.unsafeWrap(content))
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,73 @@
+package com.media.quickmedia.service.cache;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.media.quickmedia.service.cache.config.ImageCacheProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.function.Function;
+
+//read-through cache for hot image content, Caffeine's W-TinyLFU decides admission and eviction by weight
+//loads are held as futures so concurrent misses share one read and invalidation drops a load still in flight
+@Component
+@Slf4j
+public class ImageCache {
+
+    public static final String CACHE_NAME = "images";
+    //rough per entry bookkeeping so tiny thumbnails are not weighed as free
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final ImageCacheProperties properties;
+    private final AsyncCache<String, CachedImage> cache;
+
+    public ImageCache(ImageCacheProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(properties.getMaxBytes())
+                .weigher((String id, CachedImage image) -> image.getContent().length + ENTRY_OVERHEAD_BYTES)
+                .recordStats()
+                .buildAsync();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        //completed loads are weighed after the fact, so settle caffeine's maintenance before sampling
+        Gauge.builder("quickmedia.images.cache.resident", cache.synchronous(), c -> {
+                    c.cleanUp();
+                    return c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+                })
+                .baseUnit("bytes")
+                .description("Bytes of image content held in the cache")
+                .register(meterRegistry);
+        Gauge.builder("quickmedia.images.cache.hit.ratio", cache.synchronous(), c -> c.stats().hitRate())
+                .register(meterRegistry);
+    }
+
+    public Mono<CachedImage> get(String id, Function<String, Mono<byte[]>> loader){
+        if(!properties.isEnabled()){
+            return loader.apply(id).map(CachedImage::of);
+        }
+        return Mono.defer(() -> {
+            var pending = cache.get(id, (key, executor) -> loader.apply(key).map(CachedImage::of).toFuture());
+            //a copy so a cancelled caller does not cancel the load other callers are waiting on
+            return Mono.fromFuture(pending.thenApply(Function.identity()))
+                    .doOnNext(image -> {
+                        if(!admissible(image.getContent())){
+                            cache.asMap().remove(id, pending);
+                        }
+                    });
+        });
+    }
+
+    //removing the mapping is enough for a pending load, its result is never written back
+    public void invalidate(String id){
+        cache.synchronous().invalidate(id);
+    }
+
+    private boolean admissible(byte[] bytes){
+        return bytes.length <= properties.getMaxEntryBytes();
+    }
+}
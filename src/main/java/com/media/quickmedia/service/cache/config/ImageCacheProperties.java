@@ -0,0 +1,17 @@
+package com.media.quickmedia.service.cache.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.images.cache")
+@Data
+public class ImageCacheProperties {
+
+    private boolean enabled = true;
+    //total bytes of image content kept resident
+    private long maxBytes = 64L * 1024 * 1024;
+    //larger images are served but never admitted
+    private int maxEntryBytes = 1024 * 1024;
+}
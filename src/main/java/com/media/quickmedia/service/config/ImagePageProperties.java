@@ -0,0 +1,16 @@
+package com.media.quickmedia.service.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.images.page")
+@Data
+public class ImagePageProperties {
+
+    private int defaultSize = 20;
+    private int maxSize = 100;
+    //kept under the default 4MB gRPC message limit, clients may only ask for less
+    private long maxBytes = 3L * 1024 * 1024;
+}
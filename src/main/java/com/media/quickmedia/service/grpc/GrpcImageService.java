@@ -1,8 +1,9 @@
 package com.media.quickmedia.service.grpc;
 
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.media.quickmedia.model.Image;
 import com.media.quickmedia.service.ImageService;
+import com.media.quickmedia.service.grpc.server.GrpcServerTransport;
 import com.proto.service.*;
 import com.proto.service.DataChunk;
 import com.proto.service.DownloadRequest;
@@ -12,13 +13,14 @@ import com.proto.service.ReactorImageServiceGrpc;
 import com.proto.service.UploadRequest;
 import com.proto.service.UploadResponse;
 import com.salesforce.grpc.contrib.spring.GrpcService;
+import io.grpc.CallOptions;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.io.IOException;
 import java.util.stream.Collectors;
 
 @GrpcService
@@ -28,6 +30,13 @@ public class GrpcImageService extends ReactorImageServiceGrpc.ImageServiceImplBa
 
     //todo addd it tests
     private final ImageService imageService;
+    private final GrpcServerTransport grpcServerTransport;
+
+    @Override
+    protected CallOptions getCallOptions(int methodId) {
+        return grpcServerTransport.callOptions();
+    }
+
     @Override
     public Mono<UploadResponse> upload(Mono<UploadRequest> request) {
         return request.doOnNext(uploadRequest -> log.info("Received request: {}", uploadRequest.getKey().getKey()))
@@ -53,22 +62,9 @@ public class GrpcImageService extends ReactorImageServiceGrpc.ImageServiceImplBa
         return request.doOnNext(downloadRequest -> {
             log.info("Received request: {}", downloadRequest.getKey().getKey());
         })
-                .flatMap(downloadRequest -> imageService.getImageStream(downloadRequest
+                .flatMap(downloadRequest -> imageService.getDownloadResponse(downloadRequest
                         .getKey()
-                        .getKey()))
-                .flatMap(inputStream -> {
-                    try {
-                        return Mono.just(DownloadResponse
-                                .newBuilder()
-                                .setData(DataChunk
-                                        .newBuilder()
-                                        .setData(ByteString.readFrom(inputStream))
-                                        .build())
-                                .build());
-                    } catch (IOException e) {
-                        return Mono.error(e);
-                    }
-                })
+                        .getKey(), downloadRequest.getSize()))
                 .onErrorMap(ignored->{
                     log.error("Error received from download: {}", ignored.getMessage());
                     throw new StatusRuntimeException(Status.UNAVAILABLE);
@@ -96,25 +92,60 @@ public class GrpcImageService extends ReactorImageServiceGrpc.ImageServiceImplBa
             log.info("Received request to batchUpload image");
         })
                 .flatMap(imageService::batchUpload)
-                .flatMap(images -> {
-                    var uploads = images.stream()
-                            .map(Image::getId)
-                            .map(id-> UploadResponse
-                                    .newBuilder()
-                                    .setKey(Key.newBuilder()
-                                            .setKey(id).build()).build())
-                            .toList();
-
-                    return Mono.just(BatchUploadResponse
-                            .newBuilder()
-                            .addAllUploadResponse(uploads).build());
-                })
+                .map(results -> BatchUploadResponse
+                        .newBuilder()
+                        .addAllUploadResponse(results.stream().map(UploadResponses::of).toList())
+                        .build())
                 .doOnError(ignored->{
                     log.error("Error received from batch upload: {}", ignored.getMessage());
                     throw new StatusRuntimeException(Status.UNAVAILABLE);
                 });
     }
 
+    @Override
+    public Flux<UploadResponse> batchUploadStream(Flux<UploadRequest> request) {
+        return imageService.batchUploadStream(request)
+                .map(UploadResponses::of)
+                .onErrorMap(error->{
+                    log.error("Error received from batch upload stream: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    @Override
+    public Mono<DownloadAllImagesResponse> downloadImages(Mono<DownloadAllImagesRequest> request) {
+        return request.doOnNext(next-> log.info("Received request to download images after {}", next.getStartId()))
+                .flatMap(downloadAllImagesRequest -> imageService.listImages(downloadAllImagesRequest.getStartId(),
+                        downloadAllImagesRequest.getPageSize().isEmpty() ? 0 : Integer.parseInt(downloadAllImagesRequest.getPageSize()),
+                        downloadAllImagesRequest.getMetadataOnly(),
+                        downloadAllImagesRequest.getMaxBytes()))
+                .map(imagePage -> DownloadAllImagesResponse.newBuilder()
+                        .addAllImageResponse(imagePage.getImages().stream()
+                                .map(this::toImageResponse)
+                                .toList())
+                        .setLastId(imagePage.getLastId() == null ? "" : imagePage.getLastId())
+                        .setHasMore(imagePage.isHasMore())
+                        .build())
+                .onErrorMap(ignored->{
+                    log.error("Error received from download images: {}", ignored.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    private ImageResponse toImageResponse(Image image){
+        var imageResponse = ImageResponse.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey(image.getId()).build())
+                .setName(image.getName() == null ? "" : image.getName());
+        if(image.getContent() != null){
+            imageResponse.setDataChunk(DataChunk.newBuilder()
+                    .setData(UnsafeByteOperations.unsafeWrap(image.getContent()))
+                    .setSize(image.getContent().length)
+                    .build());
+        }
+        return imageResponse.build();
+    }
+
     @Override
     public Mono<MetaDataResponse> getMetaData(Mono<MetaDataRequest> request) {
         return request.doOnNext(next-> log.info("Received request to getMetaData image"))
@@ -1,20 +1,31 @@
 package com.media.quickmedia.service.grpc;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.UnsafeByteOperations;
 import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.UploadSession;
 import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.grpc.server.GrpcServerTransport;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
 import com.proto.service.*;
 import com.salesforce.grpc.contrib.spring.GrpcService;
+import io.grpc.CallOptions;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.bson.types.ObjectId;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.PooledDataBuffer;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @GrpcService
@@ -23,6 +34,14 @@ import java.util.stream.Collectors;
 public class GrpcVideoService extends ReactorVideoServiceGrpc.VideoServiceImplBase {
 
     private final MediaService mediaService;
+    private final GrpcServerTransport grpcServerTransport;
+    private final UploadSessionService uploadSessionService;
+    private final MultipartUploadService multipartUploadService;
+
+    @Override
+    protected CallOptions getCallOptions(int methodId) {
+        return grpcServerTransport.callOptions();
+    }
 
     @Override
     public Mono<UploadResponse> upload(Mono<UploadRequest> request) {
@@ -77,39 +96,99 @@ public class GrpcVideoService extends ReactorVideoServiceGrpc.VideoServiceImplBa
     public Flux<DownloadResponse> downloadStream(Mono<DownloadRequest> request) {
         return request.doOnNext(downloadRequest -> log.info("Received request: {}", downloadRequest.getKey().getKey())
         )
-                .flatMapMany(downloadRequest -> mediaService.downloadStream(downloadRequest.getKey().getKey()))
-                .flatMap(bytes -> {
-                    ByteString byteString = ByteString.copyFrom(bytes);
-                    return Flux.just(byteString);
-                })
-                .flatMap(bytes -> Flux.just(DownloadResponse.newBuilder()
-                        .setData(
-                                DataChunk.newBuilder()
-                                        .setData(bytes)
-                                        .setSize(bytes.size())
-                                        .build()).build()))
+                .flatMapMany(downloadRequest -> toDownloadResponses(
+                        mediaService.downloadStream(downloadRequest.getKey().getKey()), 0))
                 .onErrorMap(error->{
                     log.error("Error received from download stream: {}", error.getMessage());
                     throw new StatusRuntimeException(Status.UNAVAILABLE);
                 });
     }
 
+    @Override
+    public Flux<DownloadResponse> downloadRange(Mono<RangeDownloadRequest> request) {
+        return request.doOnNext(rangeRequest -> log.info("Received range request: {} offset: {} length: {}",
+                        rangeRequest.getKey().getKey(), rangeRequest.getOffset(), rangeRequest.getLength()))
+                .flatMapMany(rangeRequest -> toDownloadResponses(mediaService.downloadStream(rangeRequest.getKey().getKey(),
+                        rangeRequest.getOffset(), rangeRequest.getLength()), rangeRequest.getOffset()))
+                .onErrorMap(error->{
+                    log.error("Error received from download range: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    @Override
+    public Mono<StatResponse> stat(Mono<StatRequest> request) {
+        return request.doOnNext(statRequest -> log.info("Received stat request: {}", statRequest.getKey().getKey()))
+                .flatMap(statRequest -> mediaService.describe(statRequest.getKey().getKey())
+                        .map(mediaStat -> StatResponse.newBuilder()
+                                .setKey(statRequest.getKey())
+                                .setName(mediaStat.getName())
+                                .setLength(mediaStat.getFile().getLength())
+                                .setChunkSize(mediaStat.getFile().getChunkSize())
+                                .build()))
+                .onErrorMap(error->{
+                    log.error("Error received from stat request: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    @Override
+    public Mono<MetaDataResponse> getMetaData(Mono<MetaDataRequest> request) {
+        return request.doOnNext(metaDataRequest -> log.info("Received metadata request: {}", metaDataRequest.getKey().getKey()))
+                .flatMap(mediaService::getMetaData)
+                .onErrorMap(error->{
+                    log.error("Error received from get metadata: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    private Flux<DownloadResponse> toDownloadResponses(Flux<DataBuffer> dataBuffers, long startOffset){
+        var position = new AtomicLong(startOffset);
+        return dataBuffers.concatMap(dataBuffer ->
+                toDownloadResponse(dataBuffer, position.getAndAdd(dataBuffer.readableByteCount())));
+    }
+
+    //the message outlives this method, so pooled buffers are copied out and released here and
+    //unpooled chunks are wrapped without a copy and left to the garbage collector
+    private Mono<DownloadResponse> toDownloadResponse(DataBuffer dataBuffer, long offset){
+        return Mono.fromSupplier(() -> {
+            ByteString bytes = dataBuffer instanceof PooledDataBuffer
+                    ? copyAndRelease(dataBuffer)
+                    : UnsafeByteOperations.unsafeWrap(dataBuffer.asByteBuffer());
+            return DownloadResponse.newBuilder()
+                    .setData(
+                            DataChunk.newBuilder()
+                                    .setData(bytes)
+                                    .setSize(bytes.size())
+                                    .setOffset(offset)
+                                    .build()).build();
+        });
+    }
+
+    private ByteString copyAndRelease(DataBuffer dataBuffer){
+        try {
+            return ByteString.copyFrom(dataBuffer.asByteBuffer());
+        } finally {
+            DataBufferUtils.release(dataBuffer);
+        }
+    }
+
     @Override
     public Mono<UploadResponse> uploadStream(Flux<UploadRequest> request) {
-        AtomicReference<String> fileName = new AtomicReference<>("");
         return request
-                .doOnNext(uploadRequest->
-                        log.info("Received request to upload: {}", uploadRequest.getKey().getKey()))
-                .map(uploadRequest -> {
-                    fileName.set(uploadRequest.getKey().getKey());
-                    return uploadRequest.getData().getData();
-
-                }).collectList()
-                .flatMap(byteStrings -> {
-                    ByteString[] byteStrings1 = new ByteString[byteStrings.size()];
-                    byteStrings1 = byteStrings.toArray(byteStrings1);
-                    return mediaService.uploadStream(Flux.just(byteStrings1), fileName.get());
+                .switchOnFirst((first, uploadRequests) -> {
+                    if(!first.hasValue()){
+                        return uploadRequests.then(Mono.<ObjectId>error(
+                                new IllegalArgumentException("Upload stream did not contain any requests")));
+                    }
+                    var fileName = first.get().getKey().getKey();
+                    //chunk_size is unsigned on the wire, anything past int range is capped by the policy anyway
+                    var chunkSize = (int) Math.min(Integer.toUnsignedLong(first.get().getChunkSize()), Integer.MAX_VALUE);
+                    log.info("Received request to upload: {}", fileName);
+                    return mediaService.uploadStream(uploadRequests
+                            .map(uploadRequest -> uploadRequest.getData().getData()), fileName, chunkSize);
                 })
+                .next()
                 .flatMap(objectId -> {
                     UploadResponse uploadResponse = UploadResponse
                             .newBuilder()
@@ -141,27 +220,167 @@ public class GrpcVideoService extends ReactorVideoServiceGrpc.VideoServiceImplBa
 
     }
 
+    @Override
+    public Flux<UploadResponse> batchUploadStream(Flux<UploadRequest> request) {
+        return mediaService.batchUploadStream(request)
+                .map(UploadResponses::of)
+                .onErrorMap(error->{
+                    log.error("Error received from batch upload stream: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
     @Override
     public Mono<BatchUploadResponse> batchUploadVideo(Mono<BatchUploadRequest> request) {
         return request.doOnNext(next->{
                     log.info("Received request to batchUpload image");
                 })
                 .flatMap(mediaService::batchUpload)
-                .flatMap(objectIdList -> {
+                .map(results -> BatchUploadResponse
+                        .newBuilder()
+                        .addAllUploadResponse(results.stream().map(UploadResponses::of).toList())
+                        .build())
+                .doOnError(ignored->{
+                    log.error("Error received from batch upload: {}", ignored.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
 
-                    var responses = objectIdList.stream()
-                            .map(id -> UploadResponse.newBuilder()
-                                    .setKey(Key.newBuilder()
-                                            .setKey(id.toHexString())
-                                            .build()).build()).toList();
+    @Override
+    public Mono<UploadSessionResponse> createUploadSession(Mono<CreateUploadSessionRequest> request) {
+        return request.doOnNext(createRequest -> log.info("Received request to open upload session for {}", createRequest.getName()))
+                .flatMap(createRequest -> uploadSessionService.create(createRequest.getName()))
+                .map(this::toSessionResponse)
+                .onErrorMap(error->{
+                    log.error("Error received from create upload session: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
 
-                    return Mono.just(BatchUploadResponse
-                            .newBuilder()
-                            .addAllUploadResponse(responses).build());
+    @Override
+    public Mono<UploadSessionResponse> getUploadSession(Mono<UploadSessionRequest> request) {
+        return request.flatMap(sessionRequest -> uploadSessionService.status(sessionRequest.getSessionId()))
+                .map(this::toSessionResponse)
+                .onErrorMap(error->{
+                    log.error("Error received from get upload session: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    @Override
+    public Mono<UploadSessionResponse> appendChunk(Mono<AppendChunkRequest> request) {
+        return request.flatMap(this::append)
+                .onErrorMap(error->{
+                    log.error("Error received from append chunk: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    //chunks are committed strictly in order, each acknowledgement carries the new committed offset
+    @Override
+    public Flux<UploadSessionResponse> appendChunks(Flux<AppendChunkRequest> request) {
+        return request.concatMap(this::append)
+                .onErrorMap(error->{
+                    log.error("Error received from append chunks: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    @Override
+    public Mono<UploadResponse> finishUploadSession(Mono<FinishUploadSessionRequest> request) {
+        return request.doOnNext(finishRequest -> log.info("Received request to finish upload session {}", finishRequest.getSessionId()))
+                .flatMap(finishRequest -> uploadSessionService.finish(finishRequest.getSessionId(), finishRequest.getLength()))
+                .map(key -> UploadResponse.newBuilder()
+                        .setKey(Key.newBuilder()
+                                .setKey(key).build())
+                        .build())
+                .onErrorMap(error->{
+                    log.error("Error received from finish upload session: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    @Override
+    public Mono<MultipartUploadResponse> createMultipartUpload(Mono<CreateMultipartUploadRequest> request) {
+        return request.doOnNext(createRequest -> log.info("Received request to start multipart upload for {}", createRequest.getName()))
+                .flatMap(createRequest -> multipartUploadService.create(createRequest.getName(), createRequest.getPartSize()))
+                .map(upload -> MultipartUploadResponse.newBuilder()
+                        .setUploadId(upload.getId())
+                        .setPartSize(upload.getPartSize())
+                        .setChunkSize(upload.getChunkSize())
+                        .build())
+                .onErrorMap(error->{
+                    log.error("Error received from create multipart upload: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    //the part streams into fs.chunks as it arrives, nothing beyond one chunk per write in flight is buffered
+    @Override
+    public Mono<UploadPartResponse> uploadPart(Flux<UploadPartRequest> request) {
+        return request
+                .switchOnFirst((first, partRequests) -> {
+                    if(!first.hasValue()){
+                        return partRequests.then(Mono.<UploadPartResponse>error(
+                                new IllegalArgumentException("Part stream did not contain any requests")));
+                    }
+                    var uploadId = first.get().getUploadId();
+                    int partNumber = first.get().getPartNumber();
+                    return multipartUploadService.uploadPart(uploadId, partNumber,
+                                    partRequests.map(partRequest -> partRequest.getData().asReadOnlyByteBuffer()))
+                            .map(length -> UploadPartResponse.newBuilder()
+                                    .setUploadId(uploadId)
+                                    .setPartNumber(partNumber)
+                                    .setLength(length)
+                                    .build());
                 })
-                .doOnError(ignored->{
-                    log.error("Error received from batch upload: {}", ignored.getMessage());
+                .next()
+                .onErrorMap(error->{
+                    log.error("Error received from upload part: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    @Override
+    public Mono<UploadResponse> completeMultipartUpload(Mono<CompleteMultipartUploadRequest> request) {
+        return request.doOnNext(completeRequest -> log.info("Received request to complete multipart upload {}", completeRequest.getUploadId()))
+                .flatMap(completeRequest -> multipartUploadService.complete(completeRequest.getUploadId(), completeRequest.getPartCount()))
+                .map(key -> UploadResponse.newBuilder()
+                        .setKey(Key.newBuilder()
+                                .setKey(key).build())
+                        .build())
+                .onErrorMap(error->{
+                    log.error("Error received from complete multipart upload: {}", error.getMessage());
                     throw new StatusRuntimeException(Status.UNAVAILABLE);
                 });
     }
+
+    @Override
+    public Mono<Empty> abortMultipartUpload(Mono<MultipartUploadRequest> request) {
+        return request.doOnNext(abortRequest -> log.info("Received request to abort multipart upload {}", abortRequest.getUploadId()))
+                .flatMap(abortRequest -> multipartUploadService.abort(abortRequest.getUploadId()))
+                .thenReturn(Empty.getDefaultInstance())
+                .onErrorMap(error->{
+                    log.error("Error received from abort multipart upload: {}", error.getMessage());
+                    throw new StatusRuntimeException(Status.UNAVAILABLE);
+                });
+    }
+
+    private Mono<UploadSessionResponse> append(AppendChunkRequest appendRequest){
+        return uploadSessionService.append(appendRequest.getSessionId(), appendRequest.getOffset(),
+                        appendRequest.getData().toByteArray(),
+                        appendRequest.getCrc32C() == 0 ? null : Integer.toUnsignedLong(appendRequest.getCrc32C()))
+                .map(this::toSessionResponse);
+    }
+
+    private UploadSessionResponse toSessionResponse(UploadSession session){
+        return UploadSessionResponse.newBuilder()
+                .setSessionId(session.getId())
+                .setCommittedOffset(session.getCommittedOffset())
+                .setExpiresAt(Timestamp.newBuilder()
+                        .setSeconds(session.getExpiresAt().getEpochSecond())
+                        .setNanos(session.getExpiresAt().getNano())
+                        .build())
+                .build();
+    }
 }
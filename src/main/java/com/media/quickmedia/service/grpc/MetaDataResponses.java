@@ -0,0 +1,21 @@
+package com.media.quickmedia.service.grpc;
+
+import com.media.quickmedia.model.MetaDataEntry;
+import com.proto.service.ImageMetaData;
+import com.proto.service.MetaDataResponse;
+
+import java.util.List;
+
+public final class MetaDataResponses {
+
+    private MetaDataResponses() {
+    }
+
+    public static MetaDataResponse of(List<MetaDataEntry> entries){
+        var metaDataBuilder = MetaDataResponse.newBuilder();
+        entries.forEach(entry -> metaDataBuilder.addMetaData(ImageMetaData.newBuilder()
+                .setValue(entry.getValue())
+                .setKey(entry.getKey()).build()));
+        return metaDataBuilder.build();
+    }
+}
@@ -0,0 +1,24 @@
+package com.media.quickmedia.service.grpc;
+
+import com.media.quickmedia.model.UploadResult;
+import com.proto.service.Key;
+import com.proto.service.UploadResponse;
+
+public final class UploadResponses {
+
+    private UploadResponses() {
+    }
+
+    //a failed item carries its error instead of a key
+    public static UploadResponse of(UploadResult result){
+        if(!result.isSuccess()){
+            return UploadResponse.newBuilder()
+                    .setError(result.getError())
+                    .build();
+        }
+        return UploadResponse.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey(result.getId()).build())
+                .build();
+    }
+}
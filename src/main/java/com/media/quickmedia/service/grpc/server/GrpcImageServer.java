@@ -1,8 +1,8 @@
 package com.media.quickmedia.service.grpc.server;
 
-import com.google.common.util.concurrent.UncaughtExceptionHandlers;
 import com.media.quickmedia.service.grpc.GrpcImageService;
 import com.media.quickmedia.service.grpc.GrpcVideoService;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
 import io.grpc.Server;
 import io.grpc.netty.NettyServerBuilder;
 import lombok.RequiredArgsConstructor;
@@ -10,10 +10,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinWorkerThread;
-import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
 
 @Component
 @RequiredArgsConstructor
@@ -23,33 +20,29 @@ public class GrpcImageServer implements CommandLineRunner {
     private Server server;
     private final GrpcImageService grpcImageService;
     private final GrpcVideoService grpcVideoService;
+    private final GrpcServerProperties grpcServerProperties;
+    private final GrpcServerExecutors grpcServerExecutors;
+    private final GrpcServerTransport grpcServerTransport;
 
 
     @Override
     public void run(String... args) throws Exception {
 
-       server = NettyServerBuilder.forPort(9999)
+        var serverBuilder = NettyServerBuilder.forPort(grpcServerProperties.getPort())
                 .addService(grpcImageService)
-                .addService(grpcVideoService)
-                .executor(getServerExecuter(1))
-                .build();
+                .addService(grpcVideoService);
+        grpcServerExecutors.configure(serverBuilder);
+        grpcServerTransport.configure(serverBuilder);
+        server = serverBuilder.build();
 
         server.start();
         log.info("Grpc service started...");
     }
 
-    private Executor getServerExecuter(int numOfThreads){
-        return new ForkJoinPool(numOfThreads,
-                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
-                    final AtomicInteger integer = new AtomicInteger();
-                    @Override
-                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
-                        var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
-                                .newThread(pool);
-                        thread.setDaemon(true);
-                        thread.setName("grpc-server");
-                        return thread;
-                    }
-                } , UncaughtExceptionHandlers.systemExit(), true);
+    @PreDestroy
+    public void stop(){
+        if(server != null){
+            server.shutdown();
+        }
     }
 }
@@ -0,0 +1,85 @@
+package com.media.quickmedia.service.grpc.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import io.grpc.Metadata;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallExecutorSupplier;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class GrpcServerExecutors {
+
+    private final GrpcServerProperties properties;
+
+    private final Map<String, Executor> serviceExecutors = new ConcurrentHashMap<>();
+    private final List<ExecutorService> pools = new CopyOnWriteArrayList<>();
+    private Executor sharedExecutor;
+
+    public void configure(ServerBuilder<?> serverBuilder){
+        log.info("Grpc server using {} executor", properties.getExecutor());
+        switch (properties.getExecutor()) {
+            case DIRECT -> serverBuilder.directExecutor();
+            case FORK_JOIN -> serverBuilder.executor(sharedExecutor());
+            case PER_SERVICE -> serverBuilder
+                    .executor(sharedExecutor())
+                    .callExecutor(new ServerCallExecutorSupplier() {
+                        @Override
+                        public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata) {
+                            return executorFor(call.getMethodDescriptor().getServiceName());
+                        }
+                    });
+        }
+    }
+
+    public Executor executorFor(String serviceName){
+        return switch (properties.getExecutor()) {
+            case DIRECT -> MoreExecutors.directExecutor();
+            case FORK_JOIN -> sharedExecutor();
+            case PER_SERVICE -> serviceExecutors.computeIfAbsent(serviceName, name ->
+                    newPool(properties.getServiceThreads().getOrDefault(name, properties.getThreads()), name));
+        };
+    }
+
+    private synchronized Executor sharedExecutor(){
+        if(sharedExecutor == null){
+            sharedExecutor = newPool(properties.getThreads(), "grpc-server");
+        }
+        return sharedExecutor;
+    }
+
+    private ExecutorService newPool(int threads, String name){
+        var count = new AtomicInteger();
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory = pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setDaemon(true);
+            thread.setName(String.format("%s-%d", name, count.getAndIncrement()));
+            return thread;
+        };
+        var pool = new ForkJoinPool(threads, threadFactory,
+                (thread, error) -> log.error("Uncaught error on grpc thread {}", thread.getName(), error), true);
+        pools.add(pool);
+        return pool;
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        pools.forEach(ExecutorService::shutdown);
+    }
+}
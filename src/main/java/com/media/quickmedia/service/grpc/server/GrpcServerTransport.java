@@ -0,0 +1,82 @@
+package com.media.quickmedia.service.grpc.server;
+
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import io.grpc.CallOptions;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.salesforce.reactorgrpc.stub.ReactorCallOptions.CALL_OPTIONS_LOW_TIDE;
+import static com.salesforce.reactorgrpc.stub.ReactorCallOptions.CALL_OPTIONS_PREFETCH;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class GrpcServerTransport {
+
+    private final GrpcServerProperties properties;
+
+    private final List<EventLoopGroup> eventLoopGroups = new ArrayList<>();
+
+    public boolean usesEpoll(){
+        return properties.isNativeTransport() && Epoll.isAvailable();
+    }
+
+    public void configure(NettyServerBuilder serverBuilder){
+        boolean epoll = usesEpoll();
+        log.info("Grpc server using {} transport", epoll ? "epoll" : "nio");
+        Class<? extends ServerChannel> channelType = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+        serverBuilder
+                .channelType(channelType)
+                .bossEventLoopGroup(eventLoopGroup(epoll, properties.getBossThreads(), "grpc-boss"))
+                .workerEventLoopGroup(eventLoopGroup(epoll, properties.getWorkerThreads(), "grpc-worker"))
+                .flowControlWindow(properties.getFlowControlWindow())
+                .maxInboundMessageSize(properties.getMaxInboundMessageSize())
+                .keepAliveTime(properties.getKeepAliveTime().toNanos(), TimeUnit.NANOSECONDS)
+                .keepAliveTimeout(properties.getKeepAliveTimeout().toNanos(), TimeUnit.NANOSECONDS)
+                .permitKeepAliveTime(properties.getPermitKeepAliveTime().toNanos(), TimeUnit.NANOSECONDS)
+                .maxConcurrentCallsPerConnection(properties.getMaxConcurrentCallsPerConnection());
+        if(StringUtils.hasText(properties.getResponseCompression()) && !properties.getCompressedMethods().isEmpty()){
+            serverBuilder.intercept(new ResponseCompressionInterceptor(properties.getResponseCompression(), properties.getCompressedMethods()));
+        }
+    }
+
+    //reactor-grpc reads the client stream prefetch from the call options a service hands back
+    public CallOptions callOptions(){
+        var callOptions = CallOptions.DEFAULT;
+        if(properties.getPrefetch() != null){
+            callOptions = callOptions.withOption(CALL_OPTIONS_PREFETCH, properties.getPrefetch());
+        }
+        if(properties.getLowTide() != null){
+            callOptions = callOptions.withOption(CALL_OPTIONS_LOW_TIDE, properties.getLowTide());
+        }
+        return callOptions;
+    }
+
+    private EventLoopGroup eventLoopGroup(boolean epoll, int threads, String name){
+        var threadFactory = new DefaultThreadFactory(name, true);
+        EventLoopGroup group = epoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+        eventLoopGroups.add(group);
+        return group;
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        eventLoopGroups.forEach(EventLoopGroup::shutdownGracefully);
+    }
+}
@@ -0,0 +1,36 @@
+package com.media.quickmedia.service.grpc.server;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Set;
+
+//compresses the responses of the configured methods when the client says it can decode them
+@RequiredArgsConstructor
+@Slf4j
+class ResponseCompressionInterceptor implements ServerInterceptor {
+
+    static final Metadata.Key<String> ACCEPT_ENCODING = Metadata.Key.of("grpc-accept-encoding", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final String encoding;
+    private final Set<String> methods;
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        if(methods.contains(call.getMethodDescriptor().getFullMethodName()) && accepts(headers.get(ACCEPT_ENCODING))){
+            call.setCompression(encoding);
+        }
+        return next.startCall(call, headers);
+    }
+
+    private boolean accepts(String acceptEncoding){
+        return acceptEncoding != null && Arrays.stream(acceptEncoding.split(","))
+                .anyMatch(accepted -> accepted.trim().equalsIgnoreCase(encoding));
+    }
+}
@@ -0,0 +1,53 @@
+package com.media.quickmedia.service.grpc.server.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.grpc.server")
+@Data
+public class GrpcServerProperties {
+
+    public enum ExecutorMode {
+        //callbacks run on the netty event loop, only safe because every rpc is non blocking
+        DIRECT,
+        //one work stealing pool shared by every service
+        FORK_JOIN,
+        //a work stealing pool per service so a busy service cannot starve the others
+        PER_SERVICE
+    }
+
+    private int port = 9999;
+    private ExecutorMode executor = ExecutorMode.FORK_JOIN;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    //per service thread counts for PER_SERVICE keyed by the full grpc service name, others use threads
+    private Map<String, Integer> serviceThreads = new HashMap<>();
+
+    //epoll when the native library loads, nio otherwise
+    private boolean nativeTransport = true;
+    private int bossThreads = 1;
+    //0 leaves the worker group at netty's default of two threads per core
+    private int workerThreads = 0;
+    //larger windows keep a single downloadStream from stalling on window updates
+    private int flowControlWindow = 1024 * 1024;
+    //unary upload and batchUpload carry the whole file, so this caps their size
+    private int maxInboundMessageSize = 16 * 1024 * 1024;
+    private Duration keepAliveTime = Duration.ofHours(2);
+    private Duration keepAliveTimeout = Duration.ofSeconds(20);
+    private Duration permitKeepAliveTime = Duration.ofMinutes(5);
+    private int maxConcurrentCallsPerConnection = Integer.MAX_VALUE;
+    //messages reactor-grpc requests ahead from a client stream, null keeps the library default
+    private Integer prefetch;
+    private Integer lowTide;
+    //response compression for the listed full method names, only used when the client lists the encoding
+    //in grpc-accept-encoding, blank turns it off
+    private String responseCompression = "gzip";
+    private Set<String> compressedMethods = new HashSet<>(Set.of("service.grpc.VideoService/downloadStream"));
+}
@@ -0,0 +1,145 @@
+package com.media.quickmedia.service.metadata;
+
+import com.media.quickmedia.metadata.MetaDataParser;
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.MetaDataEntry;
+import com.media.quickmedia.model.MetaDataStatus;
+import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.metadata.config.MetaDataPipelineProperties;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//parses each stored image once off the request path and keeps the result on the image document
+@Service
+@Slf4j
+public class MetaDataPipeline {
+
+    private final ImageRepository imageRepository;
+    private final ImageStorageEngine imageStorageEngine;
+    private final MetaDataParser metaDataParser;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final MetaDataPipelineProperties properties;
+
+    private final Sinks.Many<String> jobs;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Timer parseTimer;
+    private final Counter failures;
+    private final Counter rejected;
+
+    private Disposable subscription;
+
+    public MetaDataPipeline(ImageRepository imageRepository,
+                            ImageStorageEngine imageStorageEngine,
+                            MetaDataParser metaDataParser,
+                            ReactiveMongoTemplate reactiveMongoTemplate,
+                            MetaDataPipelineProperties properties,
+                            MeterRegistry meterRegistry) {
+        this.imageRepository = imageRepository;
+        this.imageStorageEngine = imageStorageEngine;
+        this.metaDataParser = metaDataParser;
+        this.reactiveMongoTemplate = reactiveMongoTemplate;
+        this.properties = properties;
+
+        this.jobs = Sinks.many().unicast().onBackpressureBuffer(new ArrayBlockingQueue<>(properties.getQueueCapacity()));
+
+        Gauge.builder("quickmedia.metadata.queue", queued, AtomicInteger::get)
+                .description("Images waiting for metadata extraction")
+                .register(meterRegistry);
+        this.parseTimer = Timer.builder("quickmedia.metadata.parse")
+                .description("Time spent parsing one image")
+                .register(meterRegistry);
+        this.failures = Counter.builder("quickmedia.metadata.failures")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("quickmedia.metadata.rejected")
+                .description("Jobs dropped because the queue was full")
+                .register(meterRegistry);
+    }
+
+    //flatMap only pulls as many jobs as there are workers, the rest wait in the bounded queue
+    @PostConstruct
+    public void start(){
+        if(!properties.isEnabled()){
+            return;
+        }
+        subscription = jobs.asFlux()
+                .doOnNext(ignored -> queued.decrementAndGet())
+                .flatMap(this::extract, properties.getWorkers())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop(){
+        if(subscription != null){
+            subscription.dispose();
+        }
+    }
+
+    //never blocks the upload, a full queue leaves the image pending for on demand parsing
+    public void submit(String id){
+        if(!properties.isEnabled()){
+            return;
+        }
+        queued.incrementAndGet();
+        Sinks.EmitResult result;
+        synchronized (jobs){
+            result = jobs.tryEmitNext(id);
+        }
+        if(result.isFailure()){
+            queued.decrementAndGet();
+            rejected.increment();
+            log.warn("Metadata queue rejected image {}: {}", id, result);
+        }
+    }
+
+    public Mono<Void> extract(String id){
+        return imageRepository.findById(id)
+                .flatMap(image -> Mono.defer(() -> {
+                    var sample = Timer.start();
+                    return metaDataParser.parseHeader(imageStorageEngine.head(image, metaDataParser.headerBytes()))
+                            .doFinally(ignored -> sample.stop(parseTimer));
+                }))
+                .map(MetaDataParser::toEntries)
+                .flatMap(entries -> store(id, entries, MetaDataStatus.EXTRACTED))
+                .onErrorResume(error -> {
+                    log.warn("Failed to extract metadata for image {}: {}", id, error.getMessage());
+                    failures.increment();
+                    return store(id, null, MetaDataStatus.FAILED)
+                            .onErrorResume(ignored -> Mono.empty());
+                })
+                .then();
+    }
+
+    //an on demand parse only fills in images without a status, so it never replaces what extract stored
+    public Mono<Void> storeParsed(String id, List<MetaDataEntry> entries){
+        return reactiveMongoTemplate.updateFirst(query(where("_id").is(id).and("metadataStatus").exists(false)),
+                        new Update().set("metadata", entries).set("metadataStatus", MetaDataStatus.EXTRACTED),
+                        Image.class)
+                .then();
+    }
+
+    private Mono<Void> store(String id, List<MetaDataEntry> entries, MetaDataStatus status){
+        return reactiveMongoTemplate.updateFirst(query(where("_id").is(id)),
+                        new Update().set("metadata", entries).set("metadataStatus", status),
+                        Image.class)
+                .then();
+    }
+}
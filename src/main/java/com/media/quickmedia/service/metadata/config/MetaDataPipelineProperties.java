@@ -0,0 +1,17 @@
+package com.media.quickmedia.service.metadata.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.metadata.pipeline")
+@Data
+public class MetaDataPipelineProperties {
+
+    private boolean enabled = true;
+    //images in flight at once, the parse itself runs on the metadata parser's scheduler
+    private int workers = 2;
+    //uploads beyond this many waiting jobs are left pending and parsed on demand
+    private int queueCapacity = 1000;
+}
@@ -0,0 +1,216 @@
+package com.media.quickmedia.service.migration;
+
+import com.media.quickmedia.model.ContentBlob;
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.MigrationCheckpoint;
+import com.media.quickmedia.model.Video;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.MigrationCheckpointRepository;
+import com.media.quickmedia.service.migration.config.RechunkProperties;
+import com.media.quickmedia.service.storage.ChunkSizePolicy;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsUpload;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//rewrites GridFS files whose chunk size differs from what the chunk size policy picks for them now.
+//the copy gets a new id, references move over to it and the old file is deleted after a grace period,
+//so readers always find one complete file and nothing has to stop
+@Service
+@Slf4j
+public class RechunkService {
+
+    public static final String CHECKPOINT_ID = "gridfs-rechunk";
+
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ChunkSizePolicy chunkSizePolicy;
+    private final MigrationCheckpointRepository checkpointRepository;
+    private final RechunkProperties properties;
+
+    private final Counter rechunkedFiles;
+    private final Counter rechunkedBytes;
+
+    private Disposable subscription;
+
+    public RechunkService(ReactiveGridFsTemplate gridFsTemplate,
+                          ReactiveMongoTemplate reactiveMongoTemplate,
+                          ChunkSizePolicy chunkSizePolicy,
+                          MigrationCheckpointRepository checkpointRepository,
+                          RechunkProperties properties,
+                          MeterRegistry meterRegistry) {
+        this.gridFsTemplate = gridFsTemplate;
+        this.reactiveMongoTemplate = reactiveMongoTemplate;
+        this.chunkSizePolicy = chunkSizePolicy;
+        this.checkpointRepository = checkpointRepository;
+        this.properties = properties;
+
+        this.rechunkedFiles = Counter.builder("quickmedia.migration.rechunk.files")
+                .description("GridFS files rewritten at a new chunk size")
+                .register(meterRegistry);
+        this.rechunkedBytes = Counter.builder("quickmedia.migration.rechunk.bytes")
+                .baseUnit("bytes")
+                .description("GridFS bytes rewritten at a new chunk size")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start(){
+        if(!properties.isEnabled()){
+            log.info("GridFS re-chunking disabled");
+            return;
+        }
+        subscription = Flux.interval(properties.getInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> rechunkBatch()
+                        .onErrorResume(error -> {
+                            log.error("GridFS re-chunking batch failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }), 1)
+                .takeUntil(MigrationCheckpoint::isCompleted)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop(){
+        if(subscription != null){
+            subscription.dispose();
+        }
+    }
+
+    public Mono<MigrationCheckpoint> rechunkBatch(){
+        return checkpoint()
+                .flatMap(checkpoint -> checkpoint.isCompleted() ? Mono.just(checkpoint) : runBatch(checkpoint));
+    }
+
+    private Mono<MigrationCheckpoint> runBatch(MigrationCheckpoint checkpoint){
+        return gridFsTemplate.find(batch(checkpoint.getLastId()))
+                .concatMap(this::rechunk)
+                .collectList()
+                .flatMap(results -> advance(checkpoint, results));
+    }
+
+    private Mono<RechunkResult> rechunk(GridFSFile file){
+        var oldId = file.getObjectId();
+        var metadata = file.getMetadata() == null ? new Document() : file.getMetadata();
+        int target = chunkSizePolicy.chunkSize(metadata, file.getLength());
+        //compressed files are read chunk by chunk and cannot be copied through the driver, they keep their size
+        if(file.getLength() == 0 || file.getChunkSize() == target || GridFsChunkRepository.isCompressed(file)){
+            return Mono.just(RechunkResult.skipped(oldId));
+        }
+        return gridFsTemplate.getResource(file)
+                .flatMap(resource -> gridFsTemplate.store(ReactiveGridFsUpload.fromPublisher(resource.getDownloadStream())
+                        .filename(file.getFilename())
+                        .metadata(metadata)
+                        .chunkSize(target)
+                        .build()))
+                .flatMap(newId -> keepLegacyKey(file, newId)
+                        .then(repoint(oldId, newId))
+                        .then(Mono.delay(properties.getGracePeriod()))
+                        //dedup claims made during the grace period may still have handed out the old id
+                        .then(repoint(oldId, newId))
+                        .then(gridFsTemplate.delete(query(where("_id").is(oldId))))
+                        .doOnSuccess(ignored -> log.info("Re-chunked GridFS file {} into {} from {} to {} byte chunks",
+                                oldId, newId, file.getChunkSize(), target))
+                        .thenReturn(new RechunkResult(oldId, file.getLength(), true)))
+                //a failure before the delete leaves the old file in place, so every reference still resolves
+                .onErrorResume(error -> {
+                    log.warn("Failed to re-chunk GridFS file {}: {}", oldId, error.getMessage());
+                    return Mono.just(RechunkResult.skipped(oldId));
+                });
+    }
+
+    //files stored before deduplication have no content_blobs entry and may still be addressed by their own id,
+    //a media key under that id keeps such links working. blobs a document still holds are repointed instead,
+    //a key for them would let the media endpoints delete content that document still uses
+    private Mono<Void> keepLegacyKey(GridFSFile file, ObjectId newId){
+        var referenced = query(where("blobId").is(file.getObjectId().toHexString()));
+        return Flux.<Class<?>>just(ContentBlob.class, Video.class, Image.class, ImageVariant.class)
+                .concatMap(type -> reactiveMongoTemplate.exists(referenced, type))
+                .any(Boolean::booleanValue)
+                .flatMap(owned -> owned ? Mono.empty() : reactiveMongoTemplate.save(MediaKey.builder()
+                        .id(file.getObjectId().toHexString())
+                        .name(file.getFilename())
+                        .blobId(newId.toHexString())
+                        .build()))
+                .then();
+    }
+
+    //the content index moves first, so new uploads of the same payload deduplicate onto the copy
+    private Mono<Void> repoint(ObjectId oldId, ObjectId newId){
+        var from = query(where("blobId").is(oldId.toHexString()));
+        var to = new Update().set("blobId", newId.toHexString());
+        return reactiveMongoTemplate.updateFirst(from, to, ContentBlob.class)
+                .then(reactiveMongoTemplate.updateMulti(from, to, MediaKey.class))
+                .then(reactiveMongoTemplate.updateMulti(from, to, Image.class))
+                .then(reactiveMongoTemplate.updateMulti(from, to, Video.class))
+                .then(reactiveMongoTemplate.updateMulti(from, to, ImageVariant.class))
+                .then();
+    }
+
+    //an empty batch after a cursor restarts from the beginning once, so files that failed are retried
+    private Mono<MigrationCheckpoint> advance(MigrationCheckpoint checkpoint, List<RechunkResult> results){
+        var next = checkpoint.toBuilder().updatedAt(Instant.now());
+        if(results.isEmpty()){
+            next.lastId(null).completed(checkpoint.getLastId() == null);
+        }else{
+            long files = results.stream().filter(RechunkResult::isRechunked).count();
+            long bytes = results.stream().mapToLong(RechunkResult::getBytes).sum();
+            rechunkedFiles.increment(files);
+            rechunkedBytes.increment(bytes);
+            next.lastId(results.get(results.size() - 1).getFileId().toHexString())
+                    .migratedCount(checkpoint.getMigratedCount() + files)
+                    .migratedBytes(checkpoint.getMigratedBytes() + bytes);
+        }
+        return checkpointRepository.save(next.build())
+                .doOnNext(saved -> log.info("GridFS re-chunking checkpoint at {}, rewrote {} files", saved.getLastId(), saved.getMigratedCount()));
+    }
+
+    private Query batch(String lastId){
+        var criteria = lastId == null ? new Criteria() : where("_id").gt(new ObjectId(lastId));
+        return query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .limit(properties.getBatchSize());
+    }
+
+    private Mono<MigrationCheckpoint> checkpoint(){
+        return checkpointRepository.findById(CHECKPOINT_ID)
+                .defaultIfEmpty(MigrationCheckpoint.builder().id(CHECKPOINT_ID).build());
+    }
+
+    @Value
+    private static class RechunkResult {
+        ObjectId fileId;
+        long bytes;
+        boolean rechunked;
+
+        static RechunkResult skipped(ObjectId fileId){
+            return new RechunkResult(fileId, 0, false);
+        }
+    }
+}
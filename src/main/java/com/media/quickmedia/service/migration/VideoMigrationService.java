@@ -0,0 +1,229 @@
+package com.media.quickmedia.service.migration;
+
+import com.media.quickmedia.model.MigrationCheckpoint;
+import com.media.quickmedia.model.Video;
+import com.media.quickmedia.repository.MigrationCheckpointRepository;
+import com.media.quickmedia.repository.VideoRepository;
+import com.media.quickmedia.service.migration.config.VideoMigrationProperties;
+import com.media.quickmedia.service.utils.DataBufferService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.media.quickmedia.service.VideoService.VIDEO_BLOB_METADATA;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//moves videos still holding their bytes inline in the videos collection into GridFS, a few at a time
+@Service
+@Slf4j
+public class VideoMigrationService {
+
+    public static final String CHECKPOINT_ID = "videos-gridfs";
+
+    private final VideoRepository videoRepository;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final DataBufferService dataBufferService;
+    private final MigrationCheckpointRepository checkpointRepository;
+    private final VideoMigrationProperties properties;
+
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    private final AtomicLong remaining = new AtomicLong(-1);
+    private final Counter migratedVideos;
+    private final Counter migratedBytes;
+    private final Timer batchTimer;
+
+    private Disposable subscription;
+
+    public VideoMigrationService(VideoRepository videoRepository,
+                                 ReactiveMongoTemplate reactiveMongoTemplate,
+                                 ReactiveGridFsTemplate gridFsTemplate,
+                                 DataBufferService dataBufferService,
+                                 MigrationCheckpointRepository checkpointRepository,
+                                 VideoMigrationProperties properties,
+                                 MeterRegistry meterRegistry) {
+        this.videoRepository = videoRepository;
+        this.reactiveMongoTemplate = reactiveMongoTemplate;
+        this.gridFsTemplate = gridFsTemplate;
+        this.dataBufferService = dataBufferService;
+        this.checkpointRepository = checkpointRepository;
+        this.properties = properties;
+
+        this.migratedVideos = Counter.builder("quickmedia.migration.videos.migrated")
+                .description("Videos moved to GridFS")
+                .register(meterRegistry);
+        this.migratedBytes = Counter.builder("quickmedia.migration.videos.bytes")
+                .baseUnit("bytes")
+                .description("Video bytes moved to GridFS")
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("quickmedia.migration.videos.batch")
+                .description("Time spent migrating one batch")
+                .register(meterRegistry);
+        Gauge.builder("quickmedia.migration.videos.paused", paused, flag -> flag.get() ? 1 : 0)
+                .register(meterRegistry);
+        Gauge.builder("quickmedia.migration.videos.remaining", remaining, AtomicLong::get)
+                .description("Videos left to migrate, -1 until the first batch ran")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start(){
+        if(!properties.isEnabled()){
+            log.info("Video migration disabled");
+            return;
+        }
+        subscription = checkpoint()
+                .doOnNext(checkpoint -> paused.set(checkpoint.isPaused()))
+                .thenMany(Flux.interval(properties.getInterval()))
+                .onBackpressureDrop()
+                .concatMap(tick -> migrateBatch()
+                        .onErrorResume(error -> {
+                            log.error("Video migration batch failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }), 1)
+                .takeUntil(MigrationCheckpoint::isCompleted)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop(){
+        if(subscription != null){
+            subscription.dispose();
+        }
+    }
+
+    public Mono<MigrationCheckpoint> migrateBatch(){
+        return checkpoint()
+                .flatMap(checkpoint -> paused.get() || checkpoint.isCompleted() ?
+                        Mono.just(checkpoint) : runBatch(checkpoint));
+    }
+
+    public Mono<MigrationCheckpoint> pause(){
+        paused.set(true);
+        return updatePaused(true);
+    }
+
+    public Mono<MigrationCheckpoint> resume(){
+        paused.set(false);
+        return updatePaused(false);
+    }
+
+    public Mono<MigrationCheckpoint> status(){
+        return checkpoint();
+    }
+
+    private Mono<MigrationCheckpoint> runBatch(MigrationCheckpoint checkpoint){
+        return Mono.defer(() -> {
+            long started = System.nanoTime();
+            return reactiveMongoTemplate.find(pendingBatch(checkpoint.getLastId()), Video.class)
+                    .concatMap(this::migrate)
+                    .collectList()
+                    .flatMap(results -> advance(checkpoint, results))
+                    .doOnSuccess(ignored -> batchTimer.record(Duration.ofNanos(System.nanoTime() - started)));
+        });
+    }
+
+    //re-reads the full document and swaps content for blobId only if nobody else did it first
+    private Mono<MigrationResult> migrate(Video pending){
+        return videoRepository.findById(pending.getId())
+                .filter(video -> video.getBlobId() == null && video.getContent() != null)
+                .flatMap(video -> gridFsTemplate.store(Flux.just(dataBufferService.makeDataBuffer(video.getContent())),
+                                video.getName(), new Document("type", VIDEO_BLOB_METADATA))
+                        .flatMap(blobId -> reactiveMongoTemplate.updateFirst(
+                                        query(where("_id").is(video.getId()).and("blobId").exists(false)),
+                                        new Update().set("blobId", blobId.toHexString()).unset("content"),
+                                        Video.class)
+                                .flatMap(result -> result.getModifiedCount() == 1 ?
+                                        Mono.just(new MigrationResult(video.getId(), video.getContent().length, true)) :
+                                        gridFsTemplate.delete(query(where("_id").is(blobId)))
+                                                .thenReturn(MigrationResult.skipped(video.getId())))))
+                .defaultIfEmpty(MigrationResult.skipped(pending.getId()))
+                .onErrorResume(error -> {
+                    log.warn("Failed to migrate video {}: {}", pending.getId(), error.getMessage());
+                    return Mono.just(MigrationResult.skipped(pending.getId()));
+                });
+    }
+
+    //an empty batch after a cursor restarts from the beginning once, so videos that failed are retried
+    private Mono<MigrationCheckpoint> advance(MigrationCheckpoint checkpoint, List<MigrationResult> results){
+        var next = checkpoint.toBuilder().updatedAt(Instant.now());
+        if(results.isEmpty()){
+            next.lastId(null).completed(checkpoint.getLastId() == null);
+        }else{
+            long videos = results.stream().filter(MigrationResult::isMigrated).count();
+            long bytes = results.stream().mapToLong(MigrationResult::getBytes).sum();
+            migratedVideos.increment(videos);
+            migratedBytes.increment(bytes);
+            next.lastId(results.get(results.size() - 1).getVideoId())
+                    .migratedCount(checkpoint.getMigratedCount() + videos)
+                    .migratedBytes(checkpoint.getMigratedBytes() + bytes);
+        }
+        return reactiveMongoTemplate.count(query(pending()), Video.class)
+                .doOnNext(remaining::set)
+                .then(checkpointRepository.save(next.build()))
+                .doOnNext(saved -> log.info("Video migration checkpoint at {}, migrated {} videos", saved.getLastId(), saved.getMigratedCount()));
+    }
+
+    private Query pendingBatch(String lastId){
+        var criteria = pending();
+        if(lastId != null){
+            criteria.and("_id").gt(new ObjectId(lastId));
+        }
+        var batch = query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .limit(properties.getBatchSize());
+        batch.fields().exclude("content");
+        return batch;
+    }
+
+    private Criteria pending(){
+        return where("blobId").exists(false).and("content").exists(true);
+    }
+
+    private Mono<MigrationCheckpoint> updatePaused(boolean isPaused){
+        return checkpoint()
+                .map(checkpoint -> checkpoint.toBuilder().paused(isPaused).updatedAt(Instant.now()).build())
+                .flatMap(checkpointRepository::save);
+    }
+
+    private Mono<MigrationCheckpoint> checkpoint(){
+        return checkpointRepository.findById(CHECKPOINT_ID)
+                .defaultIfEmpty(MigrationCheckpoint.builder().id(CHECKPOINT_ID).build());
+    }
+
+    @Value
+    private static class MigrationResult {
+        String videoId;
+        long bytes;
+        boolean migrated;
+
+        static MigrationResult skipped(String videoId){
+            return new MigrationResult(videoId, 0, false);
+        }
+    }
+}
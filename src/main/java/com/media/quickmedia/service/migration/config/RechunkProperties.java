@@ -0,0 +1,20 @@
+package com.media.quickmedia.service.migration.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.migration.rechunk")
+@Data
+public class RechunkProperties {
+
+    //off by default, it rewrites every GridFS file whose chunk size differs from what the policy picks today
+    private boolean enabled = false;
+    private int batchSize = 2;
+    private Duration interval = Duration.ofSeconds(30);
+    //time between repointing references and deleting the old file, lets reads and dedup claims on it finish
+    private Duration gracePeriod = Duration.ofSeconds(30);
+}
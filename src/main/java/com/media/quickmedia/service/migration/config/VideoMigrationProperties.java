@@ -0,0 +1,18 @@
+package com.media.quickmedia.service.migration.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.migration.videos")
+@Data
+public class VideoMigrationProperties {
+
+    private boolean enabled = true;
+    //videos moved to GridFS per tick, kept small so the migration does not starve live traffic
+    private int batchSize = 10;
+    private Duration interval = Duration.ofSeconds(5);
+}
@@ -0,0 +1,98 @@
+package com.media.quickmedia.service.storage;
+
+import com.google.protobuf.ByteString;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.service.storage.config.BatchIngestProperties;
+import com.proto.service.UploadRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+//stores batch items with bounded parallelism under a byte budget shared by every batch in flight
+@Component
+@Slf4j
+public class BatchIngestEngine {
+
+    private final BatchIngestProperties properties;
+    private final ByteBudget byteBudget;
+
+    public BatchIngestEngine(BatchIngestProperties properties) {
+        this.properties = properties;
+        this.byteBudget = new ByteBudget(properties.getMaxInFlightBytes());
+    }
+
+    //one result per item in request order, a failed item never fails the batch
+    public Flux<UploadResult> ingest(Flux<UploadRequest> uploadRequests, Function<UploadRequest, Mono<String>> store){
+        var index = new AtomicInteger();
+        return uploadRequests
+                .map(uploadRequest -> new IndexedRequest(index.getAndIncrement(), uploadRequest))
+                .flatMapSequential(indexed -> ingest(indexed, store), properties.getParallelism());
+    }
+
+    //items arrive as runs of chunks closed by a request without more, each is stored as it streams in.
+    //store must consume the chunks as they come rather than join them, the budget only covers a streaming item
+    public Flux<UploadResult> ingestChunked(Flux<UploadRequest> chunks, BiFunction<String, Flux<ByteString>, Mono<String>> store){
+        var index = new AtomicInteger();
+        return chunks
+                .windowUntil(chunk -> !chunk.getMore(), false, properties.getChunkPrefetch())
+                .flatMapSequential(item -> ingestItem(index, item, store), properties.getParallelism());
+    }
+
+    private Mono<UploadResult> ingestItem(AtomicInteger index, Flux<UploadRequest> chunks,
+                                          BiFunction<String, Flux<ByteString>, Mono<String>> store){
+        return chunks.switchOnFirst((first, all) -> {
+                    if(!first.hasValue()){
+                        return Flux.<UploadResult>empty();
+                    }
+                    int itemIndex = index.getAndIncrement();
+                    var name = first.get().getKey().getKey();
+                    return Mono.usingWhen(byteBudget.acquire(properties.getStreamItemBytes()),
+                                    permit -> Mono.defer(() -> store.apply(name, all.map(chunk -> chunk.getData().getData()))),
+                                    permit -> Mono.fromRunnable(permit::release))
+                            .map(id -> UploadResult.builder()
+                                    .index(itemIndex)
+                                    .name(name)
+                                    .id(id)
+                                    .build())
+                            .onErrorResume(error -> Mono.just(failed(itemIndex, name, error)));
+                })
+                .next();
+    }
+
+    private Mono<UploadResult> ingest(IndexedRequest indexed, Function<UploadRequest, Mono<String>> store){
+        var name = indexed.uploadRequest.getKey().getKey();
+        return Mono.usingWhen(byteBudget.acquire(indexed.uploadRequest.getData().getData().size()),
+                        permit -> Mono.defer(() -> store.apply(indexed.uploadRequest)),
+                        permit -> Mono.fromRunnable(permit::release))
+                .map(id -> UploadResult.builder()
+                        .index(indexed.index)
+                        .name(name)
+                        .id(id)
+                        .build())
+                .onErrorResume(error -> Mono.just(failed(indexed.index, name, error)));
+    }
+
+    private UploadResult failed(int index, String name, Throwable error){
+        log.warn("Failed to store batch item {} ({}): {}", index, name, error.getMessage());
+        return UploadResult.builder()
+                .index(index)
+                .name(name)
+                .error(error.getMessage() == null ? error.getClass().getSimpleName() : error.getMessage())
+                .build();
+    }
+
+    private static class IndexedRequest {
+        private final int index;
+        private final UploadRequest uploadRequest;
+
+        private IndexedRequest(int index, UploadRequest uploadRequest) {
+            this.index = index;
+            this.uploadRequest = uploadRequest;
+        }
+    }
+}
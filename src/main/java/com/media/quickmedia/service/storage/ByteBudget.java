@@ -0,0 +1,100 @@
+package com.media.quickmedia.service.storage;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//admits work by size, waiters are served in arrival order so a large item is not starved by small ones
+public class ByteBudget {
+
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    private final long capacity;
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private long inFlight;
+
+    public ByteBudget(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public Mono<Permit> acquire(long bytes){
+        return Mono.<Permit>create(sink -> {
+                    var waiter = new Waiter(bytes, sink);
+                    sink.onCancel(() -> {
+                        if(waiter.state.compareAndSet(WAITING, CANCELLED)){
+                            synchronized (this){
+                                waiters.remove(waiter);
+                            }
+                            grantWaiting();
+                        }
+                    });
+                    synchronized (this){
+                        waiters.add(waiter);
+                    }
+                    grantWaiting();
+                })
+                .doOnDiscard(Permit.class, Permit::release);
+    }
+
+    public synchronized long inFlight(){
+        return inFlight;
+    }
+
+    private void grantWaiting(){
+        while(true){
+            Waiter next;
+            synchronized (this){
+                next = waiters.peek();
+                //an oversized item is let through once nothing else is running
+                if(next == null || (inFlight > 0 && inFlight + next.bytes > capacity)){
+                    return;
+                }
+                waiters.poll();
+                if(!next.state.compareAndSet(WAITING, GRANTED)){
+                    continue;
+                }
+                inFlight += next.bytes;
+            }
+            next.sink.success(new Permit(next.bytes));
+        }
+    }
+
+    private void release(long bytes){
+        synchronized (this){
+            inFlight -= bytes;
+        }
+        grantWaiting();
+    }
+
+    public class Permit {
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public void release(){
+            if(released.compareAndSet(false, true)){
+                ByteBudget.this.release(bytes);
+            }
+        }
+    }
+
+    private static class Waiter {
+        private final long bytes;
+        private final MonoSink<Permit> sink;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private Waiter(long bytes, MonoSink<Permit> sink) {
+            this.bytes = bytes;
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.service.storage.config.CompressionProperties;
+import com.media.quickmedia.service.utils.Rechunker;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+
+//decides whether an upload is worth compressing and deflates it chunk by chunk, every chunk inflates on its
+//own so range reads only touch the chunks they cover
+@Component
+@RequiredArgsConstructor
+public class ChunkCompressor {
+
+    private final CompressionProperties properties;
+
+    public int concurrency(){
+        return properties.getConcurrency();
+    }
+
+    //only declared types are tried, most uploads carry no type and are mostly jpeg or mp4, which would pay
+    //for the copy into chunks and a trial deflate for nothing
+    public boolean applies(Document metadata){
+        if(!properties.isEnabled()){
+            return false;
+        }
+        var contentType = metadata == null ? null : metadata.getString("_contentType");
+        if(contentType == null){
+            return false;
+        }
+        try{
+            var mediaType = MediaType.parseMediaType(contentType);
+            return properties.getSkipMediaTypes().stream()
+                    .noneMatch(skipped -> MediaType.parseMediaType(skipped).includes(mediaType));
+        }catch(InvalidMediaTypeException exception){
+            return false;
+        }
+    }
+
+    //the first chunk stands in for the whole file
+    public boolean worthCompressing(byte[] sample){
+        return sample.length > 0 && compress(sample).length <= sample.length * properties.getMaxRatio();
+    }
+
+    public byte[] compress(byte[] chunk){
+        var deflater = new Deflater(properties.getLevel());
+        try{
+            deflater.setInput(chunk);
+            deflater.finish();
+            var output = new ByteArrayOutputStream(chunk.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while(!deflater.finished()){
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        }finally{
+            deflater.end();
+        }
+    }
+
+    //cuts the upload into chunkSize pieces, the buffers are copied and released
+    public Flux<byte[]> split(Flux<DataBuffer> content, int chunkSize){
+        return Flux.defer(() -> {
+            var rechunker = new Rechunker(chunkSize);
+            return content.concatMapIterable(dataBuffer -> {
+                        try{
+                            return rechunker.accept(dataBuffer.asByteBuffer());
+                        }finally{
+                            DataBufferUtils.release(dataBuffer);
+                        }
+                    })
+                    .concatWith(Mono.fromSupplier(rechunker::finish));
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.service.storage.config.ChunkSizeProperties;
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+//picks the GridFS chunk size of a new file: a size asked for by the upload, then the configured size for its
+//media type, then for its blob type, then one adapted to a known length, then the default
+@Component
+@RequiredArgsConstructor
+public class ChunkSizePolicy {
+
+    //chunks share the 16MB document limit with their _id, files_id and n
+    static final int MAX_CHUNK_SIZE = 15 * 1024 * 1024;
+    //adaptive sizes are rounded up to this so files of similar length end up with the same chunk size
+    static final int ALIGNMENT = 64 * 1024;
+    //set on a file's metadata by uploads that ask for a size, re-chunking keeps honouring it
+    public static final String CHUNK_SIZE_METADATA = "_chunkSize";
+
+    private final ChunkSizeProperties properties;
+
+    //declaredLength below 1 means the length is not known up front
+    public int chunkSize(Document metadata, long declaredLength){
+        Integer requested = metadata == null ? null : metadata.getInteger(CHUNK_SIZE_METADATA);
+        if(requested != null && requested > 0){
+            return bound(Math.max(requested, ALIGNMENT));
+        }
+        Integer configured = metadata == null ? null : byMediaType(metadata.getString("_contentType"));
+        if(configured == null && metadata != null){
+            configured = properties.getTypes().get(metadata.getString("type"));
+        }
+        if(configured != null){
+            return bound(configured);
+        }
+        if(properties.isAdaptive() && declaredLength > 0){
+            return bound(adaptive(declaredLength));
+        }
+        return bound(properties.getDefaultSize());
+    }
+
+    private long adaptive(long declaredLength){
+        long perChunk = (declaredLength + properties.getTargetChunks() - 1) / Math.max(properties.getTargetChunks(), 1);
+        long aligned = (perChunk + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        return Math.min(Math.max(aligned, properties.getMinSize()), properties.getMaxSize());
+    }
+
+    private Integer byMediaType(String contentType){
+        if(contentType == null || properties.getMediaTypes().isEmpty()){
+            return null;
+        }
+        try{
+            var mediaType = MediaType.parseMediaType(contentType);
+            return properties.getMediaTypes().entrySet().stream()
+                    .filter(entry -> MediaType.parseMediaType(entry.getKey()).includes(mediaType))
+                    .sorted((left, right) -> MediaType.SPECIFICITY_COMPARATOR.compare(
+                            MediaType.parseMediaType(left.getKey()), MediaType.parseMediaType(right.getKey())))
+                    .map(Map.Entry::getValue)
+                    .findFirst()
+                    .orElse(null);
+        }catch(InvalidMediaTypeException exception){
+            return null;
+        }
+    }
+
+    private int bound(long chunkSize){
+        return (int) Math.min(Math.max(chunkSize, 1), MAX_CHUNK_SIZE);
+    }
+}
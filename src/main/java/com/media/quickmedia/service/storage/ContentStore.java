@@ -0,0 +1,203 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.model.ContentBlob;
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.model.Video;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.utils.DataBufferService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsUpload;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//content addressed GridFS storage, identical payloads share one blob and are reference counted
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ContentStore {
+
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final DataBufferService dataBufferService;
+    private final ChunkSizePolicy chunkSizePolicy;
+    private final ChunkCompressor chunkCompressor;
+
+    public Mono<ObjectId> store(Flux<DataBuffer> content, String name, Document metadata){
+        return store(content, name, metadata, -1);
+    }
+
+    //the hash is only known once the stream ends, so a duplicate is written and then discarded.
+    //declaredLength sizes the chunks when the caller knows it, -1 otherwise
+    public Mono<ObjectId> store(Flux<DataBuffer> content, String name, Document metadata, long declaredLength){
+        return Mono.defer(() -> {
+            MessageDigest digest = sha256();
+            AtomicLong length = new AtomicLong();
+            return upload(content.doOnNext(dataBuffer -> {
+                        digest.update(dataBuffer.asByteBuffer());
+                        length.addAndGet(dataBuffer.readableByteCount());
+                    }), name, metadata, declaredLength)
+                    .flatMap(blobId -> {
+                        String hash = HexFormat.of().formatHex(digest.digest());
+                        return claim(hash)
+                                .flatMap(existing -> discard(blobId).thenReturn(new ObjectId(existing.getBlobId())))
+                                .switchIfEmpty(Mono.defer(() -> register(hash, blobId, length.get())));
+                    });
+        });
+    }
+
+    //payloads already in memory are hashed first so a duplicate never touches GridFS
+    public Mono<ObjectId> store(ByteBuffer content, String name, Document metadata){
+        return Mono.fromSupplier(() -> hash(content))
+                .flatMap(hash -> claim(hash)
+                        .map(existing -> new ObjectId(existing.getBlobId()))
+                        .switchIfEmpty(Mono.defer(() -> upload(Flux.just(dataBufferService.makeDataBuffer(content)),
+                                        name, metadata, content.remaining())
+                                .flatMap(blobId -> register(hash, blobId, content.remaining())))));
+    }
+
+    //blobs written before deduplication have no index entry and are deleted straight away
+    public Mono<Void> release(ObjectId blobId){
+        return reactiveMongoTemplate.findAndModify(query(where("blobId").is(blobId.toHexString())),
+                        new Update().inc("refCount", -1),
+                        FindAndModifyOptions.options().returnNew(true),
+                        ContentBlob.class)
+                .flatMap(contentBlob -> contentBlob.getRefCount() > 0 ? Mono.just(false) : reclaim(contentBlob, blobId))
+                .switchIfEmpty(Mono.defer(() -> discard(blobId).thenReturn(true)))
+                .then();
+    }
+
+    //true once the blob is deduplicated or a video, image or variant document points at it,
+    //releasing it then has to go through whoever holds that reference
+    public Mono<Boolean> isReferenced(ObjectId blobId){
+        var referenced = query(where("blobId").is(blobId.toHexString()));
+        return Flux.<Class<?>>just(ContentBlob.class, Video.class, Image.class, ImageVariant.class)
+                .concatMap(type -> reactiveMongoTemplate.exists(referenced, type))
+                .any(Boolean::booleanValue);
+    }
+
+    //the first chunk decides whether the whole upload is stored compressed or handed to GridFS as it is
+    private Mono<ObjectId> upload(Flux<DataBuffer> content, String name, Document metadata, long declaredLength){
+        int chunkSize = chunkSizePolicy.chunkSize(metadata, declaredLength);
+        if(!chunkCompressor.applies(metadata)){
+            return upload(content, name, metadata, chunkSize);
+        }
+        return chunkCompressor.split(content, chunkSize)
+                .switchOnFirst((first, chunks) -> first.hasValue() && chunkCompressor.worthCompressing(first.get()) ?
+                        uploadCompressed(chunks, name, metadata, chunkSize) :
+                        upload(chunks.map(dataBufferService::makeDataBuffer), name, metadata, chunkSize))
+                .next();
+    }
+
+    private Mono<ObjectId> upload(Flux<DataBuffer> content, String name, Document metadata, int chunkSize){
+        return gridFsTemplate.store(ReactiveGridFsUpload.fromPublisher(content)
+                .filename(name)
+                .metadata(metadata)
+                .chunkSize(chunkSize)
+                .build());
+    }
+
+    //chunks and the files document are written directly, the driver would reject chunks shorter than chunkSize.
+    //the files document goes last, so until then readers cannot see the file
+    private Mono<ObjectId> uploadCompressed(Flux<byte[]> chunks, String name, Document metadata, int chunkSize){
+        var fileId = new ObjectId();
+        var length = new AtomicLong();
+        var stored = new AtomicLong();
+        return chunks.index()
+                .flatMap(chunk -> Mono.fromCallable(() -> {
+                                    byte[] data = chunkCompressor.compress(chunk.getT2());
+                                    length.addAndGet(chunk.getT2().length);
+                                    stored.addAndGet(data.length);
+                                    return new Document("files_id", fileId)
+                                            .append("n", chunk.getT1().intValue())
+                                            .append("data", new Binary(data));
+                                })
+                                .subscribeOn(Schedulers.parallel())
+                                .flatMap(document -> reactiveMongoTemplate.insert(document, GridFsChunkRepository.CHUNKS_COLLECTION)),
+                        chunkCompressor.concurrency())
+                .then(Mono.defer(() -> reactiveMongoTemplate.insert(new Document("_id", fileId)
+                                .append("length", length.get())
+                                .append("chunkSize", chunkSize)
+                                .append("uploadDate", new Date())
+                                .append("filename", name)
+                                .append("metadata", new Document(metadata)
+                                        .append(GridFsChunkRepository.CODEC_METADATA, GridFsChunkRepository.DEFLATE)
+                                        .append(GridFsChunkRepository.STORED_LENGTH_METADATA, stored.get())),
+                        GridFsChunkRepository.FILES_COLLECTION)))
+                .doOnNext(ignored -> log.info("Stored {} compressed from {} to {} bytes", name, length.get(), stored.get()))
+                .thenReturn(fileId)
+                .onErrorResume(error -> reactiveMongoTemplate.remove(query(where("files_id").is(fileId)), GridFsChunkRepository.CHUNKS_COLLECTION)
+                        .then(Mono.error(error)));
+    }
+
+    private Mono<ContentBlob> claim(String hash){
+        return reactiveMongoTemplate.findAndModify(query(where("_id").is(hash)),
+                        new Update().inc("refCount", 1),
+                        FindAndModifyOptions.options().returnNew(true),
+                        ContentBlob.class)
+                .doOnNext(existing -> log.info("Deduplicated upload onto blob {}", existing.getBlobId()));
+    }
+
+    //two uploads of the same new payload race on the hash, the loser drops its copy and claims the winner's
+    private Mono<ObjectId> register(String hash, ObjectId blobId, long length){
+        return reactiveMongoTemplate.insert(ContentBlob.builder()
+                        .id(hash)
+                        .blobId(blobId.toHexString())
+                        .refCount(1)
+                        .length(length)
+                        .build())
+                .thenReturn(blobId)
+                .onErrorResume(DuplicateKeyException.class, duplicate -> discard(blobId)
+                        .then(claim(hash))
+                        .map(existing -> new ObjectId(existing.getBlobId()))
+                        .switchIfEmpty(Mono.error(new RepositoryException(String.format("Lost blob for hash: %s", hash)))));
+    }
+
+    //a concurrent claim may have revived the entry since the decrement, then the blob stays
+    private Mono<Boolean> reclaim(ContentBlob contentBlob, ObjectId blobId){
+        return reactiveMongoTemplate.remove(query(where("_id").is(contentBlob.getId()).and("refCount").lte(0)), ContentBlob.class)
+                .flatMap(result -> result.getDeletedCount() == 1 ?
+                        discard(blobId).thenReturn(true) : Mono.just(false));
+    }
+
+    private Mono<Void> discard(ObjectId blobId){
+        return gridFsTemplate.delete(query(where("_id").is(blobId)));
+    }
+
+    private String hash(ByteBuffer content){
+        MessageDigest digest = sha256();
+        digest.update(content.duplicate());
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private MessageDigest sha256(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException exception){
+            throw new IllegalStateException(exception);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.service.storage.config.ImageBatchProperties;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.InsertManyOptions;
+import com.proto.service.UploadRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+//writes a batch of images with one insertMany per sub batch instead of one save per image
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ImageBatchWriter {
+
+    private final ImageStorageEngine imageStorageEngine;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final TransactionalOperator transactionalOperator;
+    private final ImageBatchProperties imageBatchProperties;
+
+    //results come back in request order, atomic batches either store every item or report every item failed
+    public Mono<List<UploadResult>> write(List<UploadRequest> uploadRequests, boolean atomic){
+        return Flux.fromStream(IntStream.range(0, uploadRequests.size()).boxed())
+                .flatMapSequential(index -> prepare(index, uploadRequests.get(index)), imageBatchProperties.getConcurrency())
+                .collectList()
+                .flatMap(items -> atomic ? insertAtomic(items) : insertUnordered(items))
+                .map(items -> items.stream().map(Item::toResult).toList());
+    }
+
+    private Mono<Item> prepare(int index, UploadRequest uploadRequest){
+        var item = new Item(index, uploadRequest.getKey().getKey());
+        return imageStorageEngine.prepare(item.name, uploadRequest.getData().getData().toByteArray())
+                .map(image -> {
+                    image.setId(new ObjectId().toHexString());
+                    item.image = image;
+                    return item;
+                })
+                .onErrorResume(error -> {
+                    item.error = String.format("Failed to store content: %s", error.getMessage());
+                    return Mono.just(item);
+                });
+    }
+
+    //unordered inserts let mongo keep going past a failed document, its index says which one it was
+    private Mono<List<Item>> insertUnordered(List<Item> items){
+        String collection = reactiveMongoTemplate.getCollectionName(Image.class);
+        return Flux.fromIterable(subBatches(ready(items)))
+                .concatMap(batch -> reactiveMongoTemplate.getCollection(collection)
+                        .flatMap(mongoCollection -> Mono.from(mongoCollection.insertMany(toDocuments(batch),
+                                new InsertManyOptions().ordered(false))))
+                        .then(Mono.<Void>empty())
+                        .onErrorResume(error -> failBatch(batch, error)))
+                .then(Mono.defer(() -> discardFailed(items)))
+                .thenReturn(items);
+    }
+
+    private Mono<List<Item>> insertAtomic(List<Item> items){
+        var failed = items.stream().filter(item -> item.error != null).findFirst();
+        if(failed.isPresent()){
+            return abort(items, failed.get().error);
+        }
+        return transactionalOperator.transactional(Flux.fromIterable(subBatches(items))
+                        .concatMap(batch -> reactiveMongoTemplate.insert(batch.stream().map(item -> item.image).toList(), Image.class)))
+                .then(Mono.just(items))
+                .onErrorResume(error -> abort(items, error.getMessage()));
+    }
+
+    private Mono<List<Item>> abort(List<Item> items, String reason){
+        items.forEach(item -> item.error = String.format("Batch aborted: %s", reason));
+        return discardFailed(items).thenReturn(items);
+    }
+
+    private Mono<Void> failBatch(List<Item> batch, Throwable error){
+        if(error instanceof MongoBulkWriteException bulkWriteException){
+            bulkWriteException.getWriteErrors()
+                    .forEach(writeError -> batch.get(writeError.getIndex()).error = writeError.getMessage());
+        }else{
+            log.error("Failed to insert batch of {} images: {}", batch.size(), error.getMessage());
+            batch.forEach(item -> item.error = error.getMessage());
+        }
+        return Mono.empty();
+    }
+
+    private Mono<Void> discardFailed(List<Item> items){
+        return Flux.fromIterable(items)
+                .filter(item -> item.error != null && item.image != null)
+                .concatMap(item -> imageStorageEngine.discard(item.image)
+                        .onErrorResume(error -> {
+                            log.warn("Failed to release blob of image {}: {}", item.name, error.getMessage());
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+
+    private List<Item> ready(List<Item> items){
+        return items.stream().filter(item -> item.error == null).toList();
+    }
+
+    //closes a sub batch at maxCount documents or once its inline content reaches maxBytes
+    private List<List<Item>> subBatches(List<Item> items){
+        List<List<Item>> batches = new ArrayList<>();
+        List<Item> current = new ArrayList<>();
+        long bytes = 0;
+        for(Item item : items){
+            long size = item.image.getContent() == null ? 0 : item.image.getContent().length;
+            if(!current.isEmpty() && (current.size() >= imageBatchProperties.getMaxCount()
+                    || bytes + size > imageBatchProperties.getMaxBytes())){
+                batches.add(current);
+                current = new ArrayList<>();
+                bytes = 0;
+            }
+            current.add(item);
+            bytes += size;
+        }
+        if(!current.isEmpty()){
+            batches.add(current);
+        }
+        return batches;
+    }
+
+    private List<Document> toDocuments(List<Item> batch){
+        return batch.stream()
+                .map(item -> {
+                    var document = new Document();
+                    reactiveMongoTemplate.getConverter().write(item.image, document);
+                    return document;
+                })
+                .toList();
+    }
+
+    private static class Item {
+        private final int index;
+        private final String name;
+        private Image image;
+        private String error;
+
+        Item(int index, String name) {
+            this.index = index;
+            this.name = name;
+        }
+
+        private UploadResult toResult(){
+            return UploadResult.builder()
+                    .index(index)
+                    .name(name)
+                    .id(error == null ? image.getId() : null)
+                    .error(error)
+                    .build();
+        }
+    }
+}
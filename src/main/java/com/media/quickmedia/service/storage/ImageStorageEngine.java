@@ -0,0 +1,140 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.storage.config.ImageStorageProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ImageStorageEngine {
+
+    public static final String IMAGE_BLOB_METADATA = "image";
+
+    private final ImageRepository imageRepository;
+    private final ReactiveGridFsTemplate gridFsTemplate;
+    private final ContentStore contentStore;
+    private final ImageStorageProperties imageStorageProperties;
+    private final GridFsChunkRepository gridFsChunkRepository;
+
+    public Mono<Image> save(String name, byte[] bytes){
+        return prepare(name, bytes).flatMap(imageRepository::save);
+    }
+
+    //holds at most inlineThreshold bytes plus one buffer, anything longer streams on into GridFS
+    public Mono<Image> save(String name, Flux<DataBuffer> content){
+        return Mono.defer(() -> {
+            var length = new AtomicLong();
+            return content
+                    .bufferUntil(dataBuffer -> length.addAndGet(dataBuffer.readableByteCount()) > imageStorageProperties.getInlineThreshold())
+                    .switchOnFirst((first, buffers) -> {
+                        if(!first.hasValue() || length.get() <= imageStorageProperties.getInlineThreshold()){
+                            return buffers.concatMapIterable(list -> list)
+                                    .collectList()
+                                    .map(this::toBytes)
+                                    .flatMap(bytes -> save(name, bytes));
+                        }
+                        log.info("Streaming image {} to GridFS", name);
+                        return contentStore.store(buffers.concatMapIterable(list -> list), name, new Document("type", IMAGE_BLOB_METADATA))
+                                .flatMap(blobId -> imageRepository.save(Image.builder()
+                                        .name(name)
+                                        .blobId(blobId.toHexString())
+                                        .build()));
+                    })
+                    .next();
+        });
+    }
+
+    //builds the unsaved image document, large content is written to GridFS first
+    public Mono<Image> prepare(String name, byte[] bytes){
+        if(bytes.length <= imageStorageProperties.getInlineThreshold()){
+            return Mono.just(Image.builder()
+                    .name(name)
+                    .content(bytes)
+                    .build());
+        }
+        log.info("Spilling image {} with size {} to GridFS", name, bytes.length);
+        return contentStore.store(ByteBuffer.wrap(bytes), name, new Document("type", IMAGE_BLOB_METADATA))
+                .map(blobId -> Image.builder()
+                        .name(name)
+                        .blobId(blobId.toHexString())
+                        .build());
+    }
+
+    //undoes prepare for an image whose document was never stored
+    public Mono<Void> discard(Image image){
+        return image.getBlobId() == null ? Mono.empty() : contentStore.release(new ObjectId(image.getBlobId()));
+    }
+
+    public Mono<byte[]> content(Image image){
+        if(image.getBlobId() == null){
+            return Mono.justOrEmpty(image.getContent());
+        }
+        return gridFsTemplate.findOne(query(where("_id").is(image.getBlobId())))
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("No blob found for image: %s", image.getId()))))
+                .flatMap(gridFSFile -> GridFsChunkRepository.isCompressed(gridFSFile) ?
+                        DataBufferUtils.join(gridFsChunkRepository.readRange(gridFSFile, 0, gridFSFile.getLength() - 1)) :
+                        gridFsTemplate.getResource(gridFSFile).flatMap(resource -> DataBufferUtils.join(resource.getDownloadStream())))
+                .map(this::toBytes);
+    }
+
+    //the first maxBytes of the image, for spilled images only the chunks covering them are read
+    public Flux<DataBuffer> head(Image image, long maxBytes){
+        if(image.getBlobId() == null){
+            return Mono.justOrEmpty(image.getContent())
+                    .map(bytes -> (DataBuffer) DefaultDataBufferFactory.sharedInstance
+                            .wrap(ByteBuffer.wrap(bytes, 0, (int) Math.min(bytes.length, maxBytes))))
+                    .flux();
+        }
+        return gridFsTemplate.findOne(query(where("_id").is(image.getBlobId())))
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("No blob found for image: %s", image.getId()))))
+                .flatMapMany(gridFSFile -> gridFSFile.getLength() == 0 ? Flux.empty() :
+                        gridFsChunkRepository.readRange(gridFSFile, 0, Math.min(gridFSFile.getLength(), maxBytes) - 1));
+    }
+
+    public Mono<Void> delete(String id){
+        return imageRepository.findById(id)
+                .flatMap(image -> image.getBlobId() == null ? Mono.empty() :
+                        contentStore.release(new ObjectId(image.getBlobId())))
+                .then(Mono.defer(() -> imageRepository.deleteById(id)));
+    }
+
+    private byte[] toBytes(List<DataBuffer> dataBuffers){
+        byte[] bytes = new byte[dataBuffers.stream().mapToInt(DataBuffer::readableByteCount).sum()];
+        int position = 0;
+        for(DataBuffer dataBuffer: dataBuffers){
+            int length = dataBuffer.readableByteCount();
+            dataBuffer.read(bytes, position, length);
+            position += length;
+            DataBufferUtils.release(dataBuffer);
+        }
+        return bytes;
+    }
+
+    private byte[] toBytes(DataBuffer dataBuffer){
+        byte[] bytes = new byte[dataBuffer.readableByteCount()];
+        dataBuffer.read(bytes);
+        DataBufferUtils.release(dataBuffer);
+        return bytes;
+    }
+}
@@ -0,0 +1,21 @@
+package com.media.quickmedia.service.storage.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.media.batch-ingest")
+@Data
+public class BatchIngestProperties {
+
+    //GridFS writes running at once for one batch
+    private int parallelism = 4;
+    //bytes of all batches being written at once, an item larger than this still runs but alone
+    private long maxInFlightBytes = 64 * 1024 * 1024;
+    //what a streamed item is charged against maxInFlightBytes while it is written, its size is unknown up front
+    //but it never holds more than the inline threshold or a GridFS chunk plus the chunks prefetched for it
+    private long streamItemBytes = 8 * 1024 * 1024;
+    //chunks of a streamed batch read ahead of the item being written
+    private int chunkPrefetch = 2;
+}
@@ -0,0 +1,26 @@
+package com.media.quickmedia.service.storage.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.gridfs.chunk-size")
+@Data
+public class ChunkSizeProperties {
+
+    //the GridFS driver default, used when nothing else applies
+    private int defaultSize = 255 * 1024;
+    //keyed by blob type (image, video, media), all blobs share one bucket so the type stands in for it
+    private Map<String, Integer> types = new HashMap<>();
+    //keyed by media type, wildcards such as video/* work, set as quickmedia.gridfs.chunk-size.media-types[video/*]
+    private Map<String, Integer> mediaTypes = new HashMap<>();
+    //files without a configured size and with a declared length aim at this many chunks, between min and max
+    private boolean adaptive = true;
+    private int targetChunks = 256;
+    private int minSize = 255 * 1024;
+    private int maxSize = 4 * 1024 * 1024;
+}
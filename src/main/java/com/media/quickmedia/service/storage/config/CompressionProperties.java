@@ -0,0 +1,27 @@
+package com.media.quickmedia.service.storage.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.storage.compression")
+@Data
+public class CompressionProperties {
+
+    private boolean enabled = true;
+    //deflate level, 1 favours upload throughput over ratio
+    private int level = 1;
+    //a file is compressed only when its first chunk deflates to at most this fraction of its size
+    private double maxRatio = 0.9;
+    //chunks deflated at once per upload, off the event loop
+    private int concurrency = 4;
+    //declared types that are compressed already and skip the trial on the first chunk, wildcards work
+    private List<String> skipMediaTypes = new ArrayList<>(List.of(
+            "image/jpeg", "image/png", "image/gif", "image/webp", "image/avif", "image/heic",
+            "video/*", "audio/mpeg", "audio/aac", "audio/ogg", "audio/opus",
+            "application/zip", "application/gzip", "application/x-7z-compressed", "application/x-xz"));
+}
@@ -0,0 +1,17 @@
+package com.media.quickmedia.service.storage.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.images.batch")
+@Data
+public class ImageBatchProperties {
+
+    //documents per insertMany, a sub batch also closes once its inline content reaches maxBytes
+    private int maxCount = 100;
+    private long maxBytes = 8 * 1024 * 1024;
+    //items spilled to GridFS at once while a batch is being prepared
+    private int concurrency = 4;
+}
@@ -0,0 +1,14 @@
+package com.media.quickmedia.service.storage.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.images.storage")
+@Data
+public class ImageStorageProperties {
+
+    //images up to this many bytes stay inline in the images collection, larger ones spill to GridFS
+    private int inlineThreshold = 1024 * 1024;
+}
@@ -0,0 +1,332 @@
+package com.media.quickmedia.service.upload;
+
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.MultipartUpload;
+import com.media.quickmedia.model.UploadSessionStatus;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.MediaKeyRepository;
+import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.upload.config.MultipartUploadProperties;
+import com.media.quickmedia.service.utils.Rechunker;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.media.quickmedia.service.MediaService.MEDIA_BLOB_METADATA;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//S3 style multipart uploads, parts arrive concurrently on separate streams and their chunks go straight
+//into fs.chunks at their final n, the fs.files document is only written on completion
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MultipartUploadService {
+
+    public static final String FILES_COLLECTION = GridFsChunkRepository.FILES_COLLECTION;
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final MediaKeyRepository mediaKeyRepository;
+    private final MultipartUploadProperties properties;
+
+    private Disposable sweeper;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start(){
+        ensureChunkIndex().subscribe(null, error -> log.error("Failed to create the GridFS chunk index: {}", error.getMessage()));
+        sweeper = Flux.interval(properties.getSweepInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> expire()
+                        .onErrorResume(error -> {
+                            log.error("Multipart upload sweep failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop(){
+        if(sweeper != null){
+            sweeper.dispose();
+        }
+    }
+
+    //the driver only creates files_id_1_n_1 on its first GridFS upload, part chunks are upserted on it so on a fresh
+    //database they would scan the collection and could race into duplicate (files_id, n) chunks
+    public Mono<String> ensureChunkIndex(){
+        return reactiveMongoTemplate.indexOps(GridFsChunkRepository.CHUNKS_COLLECTION)
+                .ensureIndex(new Index().on("files_id", Sort.Direction.ASC).on("n", Sort.Direction.ASC)
+                        .unique().named("files_id_1_n_1"));
+    }
+
+    //a requested part size is rounded up to whole chunks
+    public Mono<MultipartUpload> create(String name, long partSize){
+        return Mono.fromSupplier(() -> {
+                    int chunkSize = properties.getChunkSize();
+                    long partChunks = partSize <= 0 ? properties.getDefaultPartChunks() :
+                            Math.min((partSize + chunkSize - 1) / chunkSize, properties.getMaxPartChunks());
+                    var now = Instant.now();
+                    return MultipartUpload.builder()
+                            .id(new ObjectId().toHexString())
+                            .name(name)
+                            .partSize(partChunks * chunkSize)
+                            .chunkSize(chunkSize)
+                            .parts(new HashMap<>())
+                            .status(UploadSessionStatus.OPEN)
+                            .createdAt(now)
+                            .expiresAt(now.plus(properties.getTtl()))
+                            .build();
+                })
+                .flatMap(reactiveMongoTemplate::insert)
+                .doOnNext(upload -> log.info("Started multipart upload {} for {} with part size {}",
+                        upload.getId(), name, upload.getPartSize()));
+    }
+
+    public Mono<MultipartUpload> status(String id){
+        return reactiveMongoTemplate.findOne(query(where("_id").is(id).and("expiresAt").gt(Instant.now())), MultipartUpload.class)
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("No multipart upload with id: %s", id))));
+    }
+
+    //parts are numbered from 1, re-sending a part overwrites its chunks, the buffers are consumed.
+    //an attempt holds its part while it writes, so two attempts at one part never interleave their chunks
+    public Mono<Long> uploadPart(String id, int partNumber, Flux<ByteBuffer> content){
+        return status(id)
+                .flatMap(upload -> {
+                    if(upload.getStatus() != UploadSessionStatus.OPEN){
+                        return Mono.error(new RepositoryException(String.format("Multipart upload %s is %s", id, upload.getStatus())));
+                    }
+                    if(partNumber < 1 || partNumber > properties.getMaxParts()){
+                        return Mono.error(new RepositoryException(String.format("Part number %d is outside 1..%d",
+                                partNumber, properties.getMaxParts())));
+                    }
+                    return Mono.usingWhen(acquire(id, partNumber),
+                            attempt -> writePart(upload, partNumber, attempt, content),
+                            attempt -> Mono.empty(),
+                            (attempt, error) -> release(id, partNumber, attempt),
+                            attempt -> release(id, partNumber, attempt));
+                })
+                .doOnNext(length -> log.info("Stored part {} of multipart upload {} with {} bytes", partNumber, id, length));
+    }
+
+    //a lease left behind by a dead node can be taken over once it lapses
+    private Mono<String> acquire(String id, int partNumber){
+        var attempt = new ObjectId().toHexString();
+        var now = Instant.now();
+        var writer = "writers." + partNumber;
+        return reactiveMongoTemplate.findAndModify(query(where("_id").is(id)
+                                .and("status").is(UploadSessionStatus.OPEN)
+                                .orOperator(where(writer).exists(false), where(writer + ".leaseUntil").lte(now))),
+                        new Update().set(writer, new MultipartUpload.PartWriter(attempt, now.plus(properties.getPartLease()))),
+                        FindAndModifyOptions.options().returnNew(true),
+                        MultipartUpload.class)
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("Part %d of multipart upload %s is being written or the upload is no longer open",
+                        partNumber, id))))
+                .thenReturn(attempt);
+    }
+
+    private Mono<Void> release(String id, int partNumber, String attempt){
+        var writer = "writers." + partNumber;
+        return reactiveMongoTemplate.updateFirst(query(where("_id").is(id).and(writer + ".attempt").is(attempt)),
+                        new Update().unset(writer), MultipartUpload.class)
+                .then();
+    }
+
+    private Mono<Long> writePart(MultipartUpload upload, int partNumber, String attempt, Flux<ByteBuffer> content){
+        var fileId = new ObjectId(upload.getId());
+        int partChunks = (int) (upload.getPartSize() / upload.getChunkSize());
+        int firstChunk = (partNumber - 1) * partChunks;
+        var length = new AtomicLong();
+        var index = new AtomicInteger();
+        var writer = "writers." + partNumber;
+        return Flux.defer(() -> {
+                    var rechunker = new Rechunker(upload.getChunkSize());
+                    return content.concatMapIterable(rechunker::accept)
+                            .concatWith(Mono.fromSupplier(rechunker::finish));
+                })
+                .map(data -> {
+                    int n = index.getAndIncrement();
+                    if(n >= partChunks){
+                        throw new RepositoryException(String.format("Part %d of multipart upload %s is larger than %d bytes",
+                                partNumber, upload.getId(), upload.getPartSize()));
+                    }
+                    length.addAndGet(data.length);
+                    return new Document("files_id", fileId)
+                            .append("n", firstChunk + n)
+                            .append("data", new Binary(data));
+                })
+                .flatMap(this::writeChunk, properties.getWriteConcurrency())
+                //the part only counts if the upload is still open and this attempt still holds it
+                .then(Mono.defer(() -> length.get() == 0 ?
+                        Mono.error(new RepositoryException(String.format("Part %d of multipart upload %s is empty", partNumber, upload.getId()))) :
+                        reactiveMongoTemplate.updateFirst(query(where("_id").is(upload.getId())
+                                                .and("status").is(UploadSessionStatus.OPEN)
+                                                .and(writer + ".attempt").is(attempt)),
+                                        new Update().set("parts." + partNumber, length.get())
+                                                .unset(writer)
+                                                .set("expiresAt", Instant.now().plus(properties.getTtl())),
+                                        MultipartUpload.class)
+                                .flatMap(result -> result.getMatchedCount() == 0 ?
+                                        Mono.error(new RepositoryException(String.format("Multipart upload %s was completed or part %d was taken over while it was written",
+                                                upload.getId(), partNumber))) :
+                                        Mono.just(length.get()))));
+    }
+
+    //keyed on files_id and n so a retried part replaces what an earlier attempt left behind
+    private Mono<Void> writeChunk(Document chunk){
+        return reactiveMongoTemplate.upsert(query(where("files_id").is(chunk.get("files_id")).and("n").is(chunk.get("n"))),
+                        new Update().set("data", chunk.get("data")),
+                        GridFsChunkRepository.CHUNKS_COLLECTION)
+                .then();
+    }
+
+    //partCount 0 takes every part received, parts have to run from 1 with only the last one short.
+    //completion waits for every part attempt to finish, the parts are checked again on the claimed document
+    public Mono<String> complete(String id, int partCount){
+        return status(id)
+                .flatMap(upload -> {
+                    if(upload.getStatus() == UploadSessionStatus.FINISHED){
+                        return Mono.just(upload.getMediaKey());
+                    }
+                    return Mono.fromCallable(() -> length(upload, partCount))
+                            .then(Mono.defer(() -> dropLapsedWriters(upload)))
+                            .then(Mono.defer(() -> claim(id)))
+                            .flatMap(claimed -> assemble(claimed, partCount));
+                });
+    }
+
+    private Mono<Void> dropLapsedWriters(MultipartUpload upload){
+        var now = Instant.now();
+        var writers = upload.getWriters() == null ? new HashMap<String, MultipartUpload.PartWriter>() : upload.getWriters();
+        return Flux.fromIterable(writers.entrySet())
+                .filter(entry -> entry.getValue().getLeaseUntil() == null || entry.getValue().getLeaseUntil().isBefore(now))
+                .concatMap(entry -> release(upload.getId(), Integer.parseInt(entry.getKey()), entry.getValue().getAttempt()))
+                .then();
+    }
+
+    private long length(MultipartUpload upload, int partCount){
+        var parts = upload.getParts() == null ? new HashMap<String, Long>() : upload.getParts();
+        int count = partCount > 0 ? partCount : parts.size();
+        if(count == 0 || parts.size() != count){
+            throw new RepositoryException(String.format("Multipart upload %s has %d parts, expected %d",
+                    upload.getId(), parts.size(), count));
+        }
+        long length = 0;
+        for(int part = 1; part <= count; part++){
+            Long partLength = parts.get(String.valueOf(part));
+            if(partLength == null){
+                throw new RepositoryException(String.format("Multipart upload %s is missing part %d", upload.getId(), part));
+            }
+            if(part < count && partLength != upload.getPartSize()){
+                throw new RepositoryException(String.format("Part %d of multipart upload %s has %d bytes, only the last part may be shorter than %d",
+                        part, upload.getId(), partLength, upload.getPartSize()));
+            }
+            length += partLength;
+        }
+        return length;
+    }
+
+    private Mono<MultipartUpload> claim(String id){
+        return reactiveMongoTemplate.findAndModify(query(where("_id").is(id)
+                                .and("status").is(UploadSessionStatus.OPEN)
+                                .orOperator(where("writers").exists(false), where("writers").is(new Document()))),
+                        new Update().set("status", UploadSessionStatus.FINISHING)
+                                .set("expiresAt", Instant.now().plus(properties.getTtl())),
+                        FindAndModifyOptions.options().returnNew(true),
+                        MultipartUpload.class)
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("Multipart upload %s has parts still being written or is already being completed", id))));
+    }
+
+    //chunks past the end are leftovers of a longer attempt at the last part
+    private Mono<String> assemble(MultipartUpload upload, int partCount){
+        var fileId = new ObjectId(upload.getId());
+        var length = new AtomicLong();
+        return Mono.fromCallable(() -> length.addAndGet(length(upload, partCount)))
+                .flatMap(total -> reactiveMongoTemplate.remove(query(where("files_id").is(fileId)
+                                .and("n").gte((total + upload.getChunkSize() - 1) / upload.getChunkSize())), GridFsChunkRepository.CHUNKS_COLLECTION)
+                        .then(reactiveMongoTemplate.insert(new Document("_id", fileId)
+                                .append("length", total)
+                                .append("chunkSize", upload.getChunkSize())
+                                .append("uploadDate", new Date())
+                                .append("filename", upload.getName())
+                                .append("metadata", new Document("type", MEDIA_BLOB_METADATA)), FILES_COLLECTION)))
+                .then(mediaKeyRepository.save(MediaKey.builder()
+                        .name(upload.getName())
+                        .blobId(upload.getId())
+                        .build()))
+                .map(MediaKey::getId)
+                .flatMap(key -> reactiveMongoTemplate.updateFirst(query(where("_id").is(upload.getId())),
+                                new Update().set("status", UploadSessionStatus.FINISHED).set("mediaKey", key),
+                                MultipartUpload.class)
+                        .thenReturn(key))
+                .doOnNext(key -> log.info("Completed multipart upload {} into {} with {} bytes", upload.getId(), key, length.get()))
+                .onErrorResume(error -> reactiveMongoTemplate.updateFirst(query(where("_id").is(upload.getId())),
+                                new Update().set("status", UploadSessionStatus.OPEN), MultipartUpload.class)
+                        .then(Mono.error(error)));
+    }
+
+    public Mono<Void> abort(String id){
+        return status(id)
+                .flatMap(upload -> upload.getStatus() == UploadSessionStatus.FINISHED ?
+                        Mono.error(new RepositoryException(String.format("Multipart upload %s is already complete", id))) :
+                        dropLapsedWriters(upload)
+                                .then(Mono.defer(() -> claimForDiscard(id, UploadSessionStatus.OPEN, UploadSessionStatus.ABORTING)))
+                                .switchIfEmpty(Mono.error(new RepositoryException(String.format("Multipart upload %s has parts still being written or is being completed", id))))
+                                .flatMap(this::discard));
+    }
+
+    //a completed upload only drops its bookkeeping, the file belongs to its media key by now.
+    //an upload with a part still being written is left for a later sweep, a stuck completion is discarded
+    public Mono<Long> expire(){
+        return reactiveMongoTemplate.find(query(where("expiresAt").lte(Instant.now())), MultipartUpload.class)
+                .concatMap(upload -> upload.getStatus() == UploadSessionStatus.FINISHED ?
+                        reactiveMongoTemplate.remove(upload).thenReturn(upload) :
+                        dropLapsedWriters(upload)
+                                .then(Mono.defer(() -> claimForDiscard(upload.getId(), UploadSessionStatus.OPEN,
+                                        UploadSessionStatus.FINISHING, UploadSessionStatus.ABORTING)))
+                                .flatMap(claimed -> discard(claimed).thenReturn(claimed)))
+                .count()
+                .doOnNext(count -> {
+                    if(count > 0){
+                        log.info("Expired {} multipart uploads", count);
+                    }
+                });
+    }
+
+    //a part attempt upserts chunks until it finishes, so the chunks are only removed once no attempt holds a part
+    //and none can start, otherwise its late chunks would outlive both the upload and the sweep
+    private Mono<MultipartUpload> claimForDiscard(String id, UploadSessionStatus... statuses){
+        return reactiveMongoTemplate.findAndModify(query(where("_id").is(id)
+                                .and("status").in((Object[]) statuses)
+                                .orOperator(where("writers").exists(false), where("writers").is(new Document()))),
+                        new Update().set("status", UploadSessionStatus.ABORTING),
+                        FindAndModifyOptions.options().returnNew(true),
+                        MultipartUpload.class);
+    }
+
+    private Mono<Void> discard(MultipartUpload upload){
+        return reactiveMongoTemplate.remove(query(where("files_id").is(new ObjectId(upload.getId()))), GridFsChunkRepository.CHUNKS_COLLECTION)
+                .then(reactiveMongoTemplate.remove(upload))
+                .then();
+    }
+}
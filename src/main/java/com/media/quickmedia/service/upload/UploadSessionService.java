@@ -0,0 +1,258 @@
+package com.media.quickmedia.service.upload;
+
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.UploadSession;
+import com.media.quickmedia.model.UploadSessionChunk;
+import com.media.quickmedia.model.UploadSessionStatus;
+import com.media.quickmedia.repository.MediaKeyRepository;
+import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.storage.ContentStore;
+import com.media.quickmedia.service.upload.config.UploadSessionProperties;
+import com.media.quickmedia.service.utils.DataBufferService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import static com.media.quickmedia.service.MediaService.MEDIA_BLOB_METADATA;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//resumable uploads, chunks are committed one at a time at explicit offsets so a broken upload
+//picks up at the committed offset instead of starting over
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UploadSessionService {
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ContentStore contentStore;
+    private final MediaKeyRepository mediaKeyRepository;
+    private final DataBufferService dataBufferService;
+    private final UploadSessionProperties properties;
+
+    private Disposable sweeper;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start(){
+        sweeper = Flux.interval(properties.getSweepInterval())
+                .onBackpressureDrop()
+                .concatMap(tick -> expire()
+                        .onErrorResume(error -> {
+                            log.error("Upload session sweep failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop(){
+        if(sweeper != null){
+            sweeper.dispose();
+        }
+    }
+
+    public int maxChunkBytes(){
+        return properties.getMaxChunkBytes();
+    }
+
+    public Mono<UploadSession> create(String name){
+        return Mono.fromSupplier(Instant::now)
+                .flatMap(now -> reactiveMongoTemplate.insert(UploadSession.builder()
+                        .name(name)
+                        .status(UploadSessionStatus.OPEN)
+                        .createdAt(now)
+                        .expiresAt(now.plus(properties.getTtl()))
+                        .build()))
+                .doOnNext(session -> log.info("Opened upload session {} for {}", session.getId(), name));
+    }
+
+    public Mono<UploadSession> status(String id){
+        return reactiveMongoTemplate.findOne(query(where("_id").is(id).and("expiresAt").gt(Instant.now())), UploadSession.class)
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("No upload session with id: %s", id))));
+    }
+
+    //a chunk wholly below the committed offset was stored by an earlier attempt whose acknowledgement got lost,
+    //it is acknowledged again without being rewritten once the committed bytes it covers turn out to be the same
+    public Mono<UploadSession> append(String id, long offset, byte[] data, Long crc32c){
+        return Mono.defer(() -> {
+            if(data.length == 0 || data.length > properties.getMaxChunkBytes()){
+                return Mono.error(new RepositoryException(String.format("Chunk of %d bytes is outside 1..%d",
+                        data.length, properties.getMaxChunkBytes())));
+            }
+            long checksum = crc32c(data);
+            if(crc32c != null && crc32c != checksum){
+                return Mono.error(new RepositoryException(String.format("Checksum mismatch for chunk at offset %d of session %s", offset, id)));
+            }
+            return status(id).flatMap(session -> {
+                if(session.getStatus() != UploadSessionStatus.OPEN){
+                    return Mono.error(new RepositoryException(String.format("Upload session %s is %s", id, session.getStatus())));
+                }
+                if(offset + data.length <= session.getCommittedOffset()){
+                    return sameAsReplayed(session, offset, data.length, checksum);
+                }
+                if(offset != session.getCommittedOffset()){
+                    return Mono.error(new RepositoryException(String.format("Upload session %s expects offset %d, got %d",
+                            id, session.getCommittedOffset(), offset)));
+                }
+                return commit(session, data, checksum);
+            });
+        });
+    }
+
+    //the chunk is written under its own attempt id before the offset moves, the offset only moves for the attempt
+    //that finds it unchanged and records that attempt, so a losing append can neither replace committed bytes
+    //nor be acknowledged for bytes it did not send
+    private Mono<UploadSession> commit(UploadSession session, byte[] data, long checksum){
+        var id = session.getId();
+        long offset = session.getCommittedOffset();
+        int n = session.getChunkCount();
+        var chunkId = String.format("%s:%d:%s", id, n, new ObjectId().toHexString());
+        return reactiveMongoTemplate.insert(UploadSessionChunk.builder()
+                        .id(chunkId)
+                        .sessionId(id)
+                        .n(n)
+                        .offset(offset)
+                        .data(data)
+                        .crc32c(checksum)
+                        .build())
+                .then(Mono.defer(() -> reactiveMongoTemplate.findAndModify(
+                        query(where("_id").is(id)
+                                .and("committedOffset").is(offset)
+                                .and("status").is(UploadSessionStatus.OPEN)),
+                        new Update().inc("committedOffset", data.length)
+                                .inc("chunkCount", 1)
+                                .push("chunkIds", chunkId)
+                                .set("expiresAt", Instant.now().plus(properties.getTtl())),
+                        FindAndModifyOptions.options().returnNew(true),
+                        UploadSession.class)))
+                .switchIfEmpty(Mono.defer(() -> reactiveMongoTemplate.remove(query(where("_id").is(chunkId)), UploadSessionChunk.class)
+                        .then(status(id))
+                        .flatMap(current -> sameAsCommitted(current, n, offset, data.length, checksum))
+                        .switchIfEmpty(Mono.error(new RepositoryException(String.format("Upload session %s moved on while appending at offset %d", id, offset))))));
+    }
+
+    //a concurrent append won the offset, this one is acknowledged only if the winner stored the same bytes
+    private Mono<UploadSession> sameAsCommitted(UploadSession session, int n, long offset, int length, long checksum){
+        if(session.getChunkIds() == null || session.getChunkIds().size() <= n){
+            return Mono.empty();
+        }
+        return reactiveMongoTemplate.findById(session.getChunkIds().get(n), UploadSessionChunk.class)
+                .filter(committed -> committed.getCrc32c() == checksum && committed.getData().length == length)
+                .map(committed -> session)
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("Upload session %s already holds different bytes at offset %d",
+                        session.getId(), offset))));
+    }
+
+    //a replay need not line up with the chunks it was committed as, so the checksum runs over the committed
+    //bytes between offset and offset + length, wherever they fall
+    private Mono<UploadSession> sameAsReplayed(UploadSession session, long offset, int length, long checksum){
+        var chunkIds = session.getChunkIds() == null ? List.<String>of() : session.getChunkIds();
+        long end = offset + length;
+        return Mono.defer(() -> {
+            var crc = new CRC32C();
+            var covered = new AtomicLong(offset);
+            return reactiveMongoTemplate.find(query(where("_id").in(chunkIds).and("offset").lt(end))
+                            .with(Sort.by(Sort.Direction.ASC, "n")), UploadSessionChunk.class)
+                    .filter(chunk -> chunk.getOffset() + chunk.getData().length > offset)
+                    //committed chunks are contiguous, a chunk that does not start where the last one ended leaves a hole
+                    .takeWhile(chunk -> chunk.getOffset() <= covered.get())
+                    .doOnNext(chunk -> {
+                        int from = (int) (covered.get() - chunk.getOffset());
+                        int to = (int) Math.min(chunk.getData().length, end - chunk.getOffset());
+                        crc.update(chunk.getData(), from, to - from);
+                        covered.set(chunk.getOffset() + to);
+                    })
+                    .then(Mono.fromSupplier(() -> covered.get() == end && crc.getValue() == checksum))
+                    .flatMap(same -> same ? Mono.just(session) :
+                            Mono.error(new RepositoryException(String.format("Upload session %s already holds different bytes at offset %d",
+                                    session.getId(), offset))));
+        });
+    }
+
+    //chunks are streamed in order into the content store, so the finished file is a normal deduplicated GridFS blob
+    public Mono<String> finish(String id, long expectedLength){
+        return status(id)
+                .flatMap(session -> {
+                    if(session.getStatus() == UploadSessionStatus.FINISHED){
+                        return Mono.just(session.getMediaKey());
+                    }
+                    if(expectedLength > 0 && expectedLength != session.getCommittedOffset()){
+                        return Mono.error(new RepositoryException(String.format("Upload session %s holds %d bytes, expected %d",
+                                id, session.getCommittedOffset(), expectedLength)));
+                    }
+                    return claim(id).flatMap(this::assemble);
+                });
+    }
+
+    private Mono<UploadSession> claim(String id){
+        return reactiveMongoTemplate.findAndModify(query(where("_id").is(id).and("status").is(UploadSessionStatus.OPEN)),
+                        new Update().set("status", UploadSessionStatus.FINISHING)
+                                .set("expiresAt", Instant.now().plus(properties.getTtl())),
+                        FindAndModifyOptions.options().returnNew(true),
+                        UploadSession.class)
+                .switchIfEmpty(Mono.error(new RepositoryException(String.format("Upload session %s is already being finished", id))));
+    }
+
+    private Mono<String> assemble(UploadSession session){
+        var id = session.getId();
+        var chunkIds = session.getChunkIds() == null ? List.<String>of() : session.getChunkIds();
+        var chunks = reactiveMongoTemplate.find(query(where("_id").in(chunkIds))
+                                .with(Sort.by(Sort.Direction.ASC, "n")), UploadSessionChunk.class)
+                .map(chunk -> dataBufferService.makeDataBuffer(chunk.getData()));
+        return contentStore.store(chunks, session.getName(), new Document("type", MEDIA_BLOB_METADATA), session.getCommittedOffset())
+                .flatMap(blobId -> mediaKeyRepository.save(MediaKey.builder()
+                        .name(session.getName())
+                        .blobId(blobId.toHexString())
+                        .build()))
+                .map(MediaKey::getId)
+                .flatMap(key -> reactiveMongoTemplate.updateFirst(query(where("_id").is(id)),
+                                new Update().set("status", UploadSessionStatus.FINISHED).set("mediaKey", key),
+                                UploadSession.class)
+                        .then(removeChunks(id))
+                        .thenReturn(key))
+                .doOnNext(key -> log.info("Finished upload session {} into {} with {} bytes", id, key, session.getCommittedOffset()))
+                .onErrorResume(error -> reactiveMongoTemplate.updateFirst(query(where("_id").is(id)),
+                                new Update().set("status", UploadSessionStatus.OPEN), UploadSession.class)
+                        .then(Mono.error(error)));
+    }
+
+    public Mono<Long> expire(){
+        return reactiveMongoTemplate.find(query(where("expiresAt").lte(Instant.now())), UploadSession.class)
+                .concatMap(session -> removeChunks(session.getId())
+                        .then(reactiveMongoTemplate.remove(session))
+                        .thenReturn(session))
+                .count()
+                .doOnNext(count -> {
+                    if(count > 0){
+                        log.info("Expired {} upload sessions", count);
+                    }
+                });
+    }
+
+    private Mono<Void> removeChunks(String id){
+        return reactiveMongoTemplate.remove(query(where("sessionId").is(id)), UploadSessionChunk.class).then();
+    }
+
+    public static long crc32c(byte[] data){
+        var crc = new CRC32C();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,26 @@
+package com.media.quickmedia.service.upload.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.media.multipart")
+@Data
+public class MultipartUploadProperties {
+
+    //GridFS chunk size of files assembled from parts, the driver default
+    private int chunkSize = 255 * 1024;
+    //part size in chunks when the client does not ask for one
+    private int defaultPartChunks = 32;
+    private int maxPartChunks = 400;
+    private int maxParts = 10000;
+    //chunk inserts in flight for one part
+    private int writeConcurrency = 4;
+    //how long a part upload holds its part before a retry may take it over, only matters when a node dies mid-part
+    private Duration partLease = Duration.ofMinutes(15);
+    private Duration ttl = Duration.ofHours(24);
+    private Duration sweepInterval = Duration.ofMinutes(15);
+}
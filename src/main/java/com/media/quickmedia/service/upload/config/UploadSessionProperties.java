@@ -0,0 +1,19 @@
+package com.media.quickmedia.service.upload.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.media.upload-sessions")
+@Data
+public class UploadSessionProperties {
+
+    //idle time after which a session and its chunks are dropped, every append extends it
+    private Duration ttl = Duration.ofHours(24);
+    //a chunk is stored as one document so it has to stay well below the 16MB BSON limit
+    private int maxChunkBytes = 8 * 1024 * 1024;
+    private Duration sweepInterval = Duration.ofMinutes(15);
+}
@@ -6,7 +6,6 @@ import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.stereotype.Service;
 
 import java.nio.ByteBuffer;
-import java.util.List;
 
 @Service
 public class DataBufferService {
@@ -20,9 +19,4 @@ public class DataBufferService {
         return dataBufferFactory.wrap(bytes);
     }
 
-    public DataBuffer joinDataBuffers(List<DataBuffer> dataBuffers){
-        DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
-        return dataBufferFactory.join(dataBuffers);
-    }
-
 }
@@ -0,0 +1,46 @@
+package com.media.quickmedia.service.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+//cuts a byte stream into pieces of exactly chunkSize, only the last one may be shorter
+public class Rechunker {
+
+    private final int chunkSize;
+    private byte[] current;
+    private int filled;
+
+    public Rechunker(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public List<byte[]> accept(ByteBuffer bytes){
+        List<byte[]> full = new ArrayList<>();
+        while(bytes.hasRemaining()){
+            if(current == null){
+                current = new byte[chunkSize];
+                filled = 0;
+            }
+            int length = Math.min(bytes.remaining(), chunkSize - filled);
+            bytes.get(current, filled, length);
+            filled += length;
+            if(filled == chunkSize){
+                full.add(current);
+                current = null;
+            }
+        }
+        return full;
+    }
+
+    //the trailing partial chunk, null when the stream ended on a chunk boundary
+    public byte[] finish(){
+        if(current == null){
+            return null;
+        }
+        byte[] last = new byte[filled];
+        System.arraycopy(current, 0, last, 0, filled);
+        current = null;
+        return last;
+    }
+}
@@ -0,0 +1,127 @@
+package com.media.quickmedia.service.variant;
+
+import com.media.quickmedia.service.variant.config.ImageVariantProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+//downscales with the JDK only, blocking and CPU bound, so callers run it on a worker pool
+@Component
+@RequiredArgsConstructor
+public class ImageResizer {
+
+    private final ImageVariantProperties properties;
+
+    //decodes the original once and scales each size from the next larger result, halving at most per step
+    //so bilinear filtering never skips pixels
+    public List<ScaledImage> resize(byte[] original, List<Integer> sizes){
+        var decoded = read(original, sizes.stream().mapToInt(Integer::intValue).max().orElse(0));
+        int longest = Math.max(decoded.getWidth(), decoded.getHeight());
+        boolean alpha = decoded.getImage().getColorModel().hasAlpha();
+        List<ScaledImage> scaled = new ArrayList<>();
+        BufferedImage current = decoded.getImage();
+        for(int size : sizes.stream().distinct().sorted(Comparator.reverseOrder()).toList()){
+            if(size <= 0 || size >= longest){
+                continue;
+            }
+            int width = Math.max(1, (int) Math.round((double) decoded.getWidth() * size / longest));
+            int height = Math.max(1, (int) Math.round((double) decoded.getHeight() * size / longest));
+            current = scale(current, Math.min(width, current.getWidth()), Math.min(height, current.getHeight()), alpha);
+            scaled.add(new ScaledImage(size, current.getWidth(), current.getHeight(), alpha ? "image/png" : "image/jpeg",
+                    write(current, alpha ? "png" : "jpeg")));
+        }
+        return scaled;
+    }
+
+    //the header is read before any pixels so an image declaring huge dimensions is refused without allocating them,
+    //large originals are decoded subsampled down to twice the largest size since nothing bigger is ever written
+    private Decoded read(byte[] original, int largest){
+        try(var input = ImageIO.createImageInputStream(new ByteArrayInputStream(original))){
+            var readers = input == null ? null : ImageIO.getImageReaders(input);
+            if(readers == null || !readers.hasNext()){
+                throw new IllegalArgumentException("Unsupported image format");
+            }
+            var reader = readers.next();
+            try{
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if((long) width * height > properties.getMaxPixels()){
+                    throw new IllegalArgumentException(String.format("Image of %dx%d exceeds the limit of %d pixels",
+                            width, height, properties.getMaxPixels()));
+                }
+                var param = reader.getDefaultReadParam();
+                int factor = largest <= 0 ? 1 : Math.max(1, Math.max(width, height) / (2 * largest));
+                if(factor > 1){
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return new Decoded(reader.read(0, param), width, height);
+            }finally{
+                reader.dispose();
+            }
+        }catch(IOException exception){
+            //the bytes are already in memory, so a read failure means a corrupt image and retrying cannot help
+            throw new IllegalArgumentException(String.format("Unreadable image: %s", exception.getMessage()), exception);
+        }
+    }
+
+    private BufferedImage scale(BufferedImage source, int width, int height, boolean alpha){
+        var current = source;
+        do{
+            int stepWidth = Math.max(width, current.getWidth() / 2);
+            int stepHeight = Math.max(height, current.getHeight() / 2);
+            var next = new BufferedImage(stepWidth, stepHeight, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            try{
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, stepWidth, stepHeight, null);
+            }finally{
+                graphics.dispose();
+            }
+            current = next;
+        }while(current.getWidth() != width || current.getHeight() != height);
+        return current;
+    }
+
+    private byte[] write(BufferedImage image, String format){
+        try{
+            var output = new ByteArrayOutputStream();
+            if(!ImageIO.write(image, format, output)){
+                throw new IllegalStateException(String.format("No image writer for %s", format));
+            }
+            return output.toByteArray();
+        }catch(IOException exception){
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    //dimensions are the original's, the image may be subsampled
+    @Value
+    private static class Decoded {
+        BufferedImage image;
+        int width;
+        int height;
+    }
+
+    @Value
+    public static class ScaledImage {
+        int size;
+        int width;
+        int height;
+        String contentType;
+        byte[] content;
+    }
+}
@@ -0,0 +1,227 @@
+package com.media.quickmedia.service.variant;
+
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.model.ImageVariantJob;
+import com.media.quickmedia.model.ImageVariantJobStatus;
+import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import com.media.quickmedia.service.variant.config.ImageVariantProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//generates the configured variants of every stored image off the request path. jobs live in Mongo so
+//all nodes share them, scaling runs on a small bounded pool so it cannot crowd out request handling
+@Service
+@Slf4j
+public class ImageVariantPipeline {
+
+    private final ImageRepository imageRepository;
+    private final ImageStorageEngine imageStorageEngine;
+    private final ImageVariantService imageVariantService;
+    private final ImageResizer imageResizer;
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ImageVariantProperties properties;
+
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName();
+    private final Sinks.Many<Long> wakeups = Sinks.many().unicast().onBackpressureBuffer();
+    private final Timer resizeTimer;
+    private final Counter generated;
+    private final Counter failures;
+
+    private Scheduler scheduler;
+    private Disposable subscription;
+
+    public ImageVariantPipeline(ImageRepository imageRepository,
+                                ImageStorageEngine imageStorageEngine,
+                                ImageVariantService imageVariantService,
+                                ImageResizer imageResizer,
+                                ReactiveMongoTemplate reactiveMongoTemplate,
+                                ImageVariantProperties properties,
+                                MeterRegistry meterRegistry) {
+        this.imageRepository = imageRepository;
+        this.imageStorageEngine = imageStorageEngine;
+        this.imageVariantService = imageVariantService;
+        this.imageResizer = imageResizer;
+        this.reactiveMongoTemplate = reactiveMongoTemplate;
+        this.properties = properties;
+
+        this.resizeTimer = Timer.builder("quickmedia.images.variants.resize")
+                .description("Time spent decoding and scaling one image")
+                .register(meterRegistry);
+        this.generated = Counter.builder("quickmedia.images.variants.generated")
+                .description("Variants stored")
+                .register(meterRegistry);
+        this.failures = Counter.builder("quickmedia.images.variants.failures")
+                .register(meterRegistry);
+    }
+
+    //polls for jobs from other nodes and wakes up straight away for uploads on this one
+    @EventListener(ApplicationReadyEvent.class)
+    public void start(){
+        if(!properties.isEnabled()){
+            log.info("Image variants disabled");
+            return;
+        }
+        scheduler = Schedulers.newBoundedElastic(properties.getWorkers(), properties.getBatchSize(), "image-variants");
+        subscription = Flux.merge(Flux.interval(properties.getPollInterval()), wakeups.asFlux())
+                .onBackpressureDrop()
+                .concatMap(tick -> drain()
+                        .onErrorResume(error -> {
+                            log.error("Image variant poll failed: {}", error.getMessage());
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void stop(){
+        if(subscription != null){
+            subscription.dispose();
+        }
+        if(scheduler != null){
+            scheduler.dispose();
+        }
+    }
+
+    //never fails the upload, an image whose job could not be queued is served at its original size
+    public void submit(String imageId){
+        if(!properties.isEnabled()){
+            return;
+        }
+        enqueue(imageId).subscribe(ignored -> {
+            synchronized (wakeups){
+                wakeups.tryEmitNext(0L);
+            }
+        }, error -> log.warn("Failed to queue variants for image {}: {}", imageId, error.getMessage()));
+    }
+
+    //an image queued again while its job waits keeps one job
+    public Mono<ImageVariantJob> enqueue(String imageId){
+        var now = Instant.now();
+        return reactiveMongoTemplate.findAndModify(query(where("_id").is(imageId)),
+                new Update().set("status", ImageVariantJobStatus.PENDING)
+                        .set("attempts", 0)
+                        .set("runAfter", now)
+                        .unset("owner")
+                        .unset("leaseUntil")
+                        .setOnInsert("createdAt", now),
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                ImageVariantJob.class);
+    }
+
+    //claims one job at a time as workers free up and stops at the first empty claim
+    public Mono<Void> drain(){
+        return Flux.range(0, properties.getBatchSize())
+                .concatMap(ignored -> claim().map(Optional::of).defaultIfEmpty(Optional.empty()), 1)
+                .takeWhile(Optional::isPresent)
+                .map(Optional::get)
+                .flatMap(this::process, properties.getWorkers())
+                .then();
+    }
+
+    //pending jobs that are due, and running jobs whose node let the lease lapse
+    private Mono<ImageVariantJob> claim(){
+        var now = Instant.now();
+        var claimable = new Criteria().orOperator(
+                        where("status").is(ImageVariantJobStatus.PENDING).and("runAfter").lte(now),
+                        where("status").is(ImageVariantJobStatus.RUNNING).and("leaseUntil").lt(now));
+        return reactiveMongoTemplate.findAndModify(query(claimable).with(Sort.by(Sort.Direction.ASC, "runAfter")),
+                new Update().set("status", ImageVariantJobStatus.RUNNING)
+                        .set("owner", owner)
+                        .set("leaseUntil", now.plus(properties.getLease()))
+                        .inc("attempts", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                ImageVariantJob.class);
+    }
+
+    public Mono<Long> process(ImageVariantJob job){
+        return imageRepository.findById(job.getId())
+                .flatMap(image -> generate(image)
+                        .flatMap(count -> complete(job).thenReturn(count)))
+                //the image was deleted while its job waited
+                .switchIfEmpty(Mono.defer(() -> complete(job).thenReturn(0L)))
+                .onErrorResume(error -> {
+                    log.warn("Failed to generate variants for image {}: {}", job.getId(), error.getMessage());
+                    failures.increment();
+                    return fail(job, error).thenReturn(0L);
+                });
+    }
+
+    private Mono<Long> generate(Image image){
+        return imageStorageEngine.content(image)
+                .flatMap(bytes -> Mono.fromCallable(() -> {
+                            var sample = Timer.start();
+                            try{
+                                return imageResizer.resize(bytes, properties.getSizes());
+                            }finally{
+                                sample.stop(resizeTimer);
+                            }
+                        })
+                        .subscribeOn(scheduler == null ? Schedulers.boundedElastic() : scheduler))
+                .flatMapMany(Flux::fromIterable)
+                .concatMap(scaled -> imageStorageEngine.prepare(String.format("%s@%d", image.getName(), scaled.getSize()), scaled.getContent())
+                        .flatMap(prepared -> imageVariantService.replace(ImageVariant.builder()
+                                .id(image.getId() + ":" + scaled.getSize())
+                                .imageId(image.getId())
+                                .size(scaled.getSize())
+                                .width(scaled.getWidth())
+                                .height(scaled.getHeight())
+                                .contentType(scaled.getContentType())
+                                .content(prepared.getContent())
+                                .blobId(prepared.getBlobId())
+                                .build())))
+                .doOnNext(ignored -> generated.increment())
+                .count()
+                //an image deleted while it was being scaled must not leave its variants behind
+                .flatMap(count -> imageRepository.existsById(image.getId())
+                        .flatMap(exists -> exists ? Mono.just(count) : imageVariantService.delete(image.getId()).then(Mono.just(0L))))
+                .doOnNext(count -> log.info("Stored {} variants of image {}", count, image.getId()));
+    }
+
+    //only the node holding the lease removes the job, a job re-queued meanwhile is left for its next run
+    private Mono<Void> complete(ImageVariantJob job){
+        return reactiveMongoTemplate.remove(query(where("_id").is(job.getId())
+                        .and("owner").is(owner)
+                        .and("status").is(ImageVariantJobStatus.RUNNING)), ImageVariantJob.class)
+                .then();
+    }
+
+    //images the JDK cannot decode or that exceed maxPixels fail for good, anything else is retried with a growing delay
+    private Mono<Void> fail(ImageVariantJob job, Throwable error){
+        boolean retry = !(error instanceof IllegalArgumentException) && job.getAttempts() < properties.getMaxAttempts();
+        var update = new Update().set("error", String.valueOf(error.getMessage())).unset("owner").unset("leaseUntil");
+        if(retry){
+            update.set("status", ImageVariantJobStatus.PENDING)
+                    .set("runAfter", Instant.now().plus(properties.getRetryDelay().multipliedBy(job.getAttempts())));
+        }else{
+            update.set("status", ImageVariantJobStatus.FAILED);
+        }
+        return reactiveMongoTemplate.updateFirst(query(where("_id").is(job.getId()).and("owner").is(owner)), update, ImageVariantJob.class)
+                .then();
+    }
+}
@@ -0,0 +1,56 @@
+package com.media.quickmedia.service.variant;
+
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//reads and removes the variants the pipeline stored for an image
+@Service
+@RequiredArgsConstructor
+public class ImageVariantService {
+
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ImageStorageEngine imageStorageEngine;
+
+    //the smallest variant at least as large as asked for, empty when the original is the nearest
+    public Mono<ImageVariant> nearest(String imageId, int size){
+        return reactiveMongoTemplate.findOne(query(where("imageId").is(imageId).and("size").gte(size))
+                        .with(Sort.by(Sort.Direction.ASC, "size")),
+                ImageVariant.class);
+    }
+
+    public Mono<byte[]> content(ImageVariant variant){
+        return imageStorageEngine.content(asImage(variant));
+    }
+
+    //a re-run job replaces the variant it wrote before and drops the old copy's blob reference
+    public Mono<ImageVariant> replace(ImageVariant variant){
+        return reactiveMongoTemplate.findById(variant.getId(), ImageVariant.class)
+                .flatMap(previous -> reactiveMongoTemplate.save(variant)
+                        .flatMap(saved -> imageStorageEngine.discard(asImage(previous)).thenReturn(saved)))
+                .switchIfEmpty(Mono.defer(() -> reactiveMongoTemplate.save(variant)));
+    }
+
+    //emits the ids of the removed variants so callers can drop them from caches
+    public Flux<String> delete(String imageId){
+        return reactiveMongoTemplate.findAllAndRemove(query(where("imageId").is(imageId)), ImageVariant.class)
+                .concatMap(variant -> imageStorageEngine.discard(asImage(variant)).thenReturn(variant.getId()));
+    }
+
+    private Image asImage(ImageVariant variant){
+        return Image.builder()
+                .id(variant.getId())
+                .content(variant.getContent())
+                .blobId(variant.getBlobId())
+                .build();
+    }
+}
@@ -0,0 +1,31 @@
+package com.media.quickmedia.service.variant.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Configuration
+@ConfigurationProperties(prefix = "quickmedia.images.variants")
+@Data
+public class ImageVariantProperties {
+
+    private boolean enabled = true;
+    //longest edge of each variant in pixels, images already smaller than a size get no variant for it
+    private List<Integer> sizes = new ArrayList<>(List.of(64, 256, 1024));
+    //threads decoding and scaling images, also the number of jobs a node works on at once
+    private int workers = 2;
+    //jobs claimed per poll before the node waits for the next tick
+    private int batchSize = 16;
+    private Duration pollInterval = Duration.ofSeconds(1);
+    //a claimed job goes back to the queue when its node has not finished it within this time
+    private Duration lease = Duration.ofMinutes(2);
+    //originals declaring more pixels than this are not decoded at all, their job fails without retrying
+    private long maxPixels = 50_000_000L;
+    private int maxAttempts = 3;
+    //multiplied by the attempt number before a failed job is retried
+    private Duration retryDelay = Duration.ofSeconds(30);
+}
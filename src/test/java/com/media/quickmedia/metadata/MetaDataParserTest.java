@@ -1,17 +1,151 @@
 package com.media.quickmedia.metadata;
 
+import com.media.quickmedia.metadata.config.MetaDataParserProperties;
+import com.media.quickmedia.metadata.error.MetaDataException;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.Parser;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 
 class MetaDataParserTest {
 
+    private MetaDataParserProperties properties;
+
+    private MetaDataParser metaDataParser;
+
     @BeforeEach
     void setUp() {
+        properties = new MetaDataParserProperties();
+        metaDataParser = new MetaDataParser(new AutoDetectParser(), properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        metaDataParser.stop();
+    }
+
+    private byte[] photo() throws IOException {
+        try(var inputStream = ClassLoader.getSystemResourceAsStream("test_photo.jpg")){
+            return inputStream.readAllBytes();
+        }
+    }
+
+    @Test
+    void when_parseAsync_concurrently_thenResultsMatchSequentialParse() throws IOException {
+        var bytes = photo();
+        var expected = metaDataParser.parse(new ByteArrayInputStream(bytes)).size();
+
+        StepVerifier.create(Flux.range(0, 16)
+                        .flatMap(ignored -> metaDataParser.parseAsync(bytes))
+                        .map(Metadata::size))
+                .thenConsumeWhile(size -> size == expected)
+                .verifyComplete();
+    }
+
+    @Test
+    void when_parseHeader_thenReadsOnlyPrefix() throws IOException {
+        var bytes = photo();
+        properties.setHeaderBytes(64 * 1024);
+        var emitted = new AtomicLong();
+        Flux<DataBuffer> chunks = Flux.range(0, (bytes.length + 1023) / 1024)
+                .<DataBuffer>map(n -> DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(bytes, n * 1024, Math.min(1024, bytes.length - n * 1024))))
+                .doOnNext(ignored -> emitted.incrementAndGet());
+        var expected = metaDataParser.parse(new ByteArrayInputStream(bytes)).get(Metadata.CONTENT_TYPE);
+
+        StepVerifier.create(metaDataParser.parseHeader(chunks))
+                .consumeNextWith(metadata -> assertEquals(expected, metadata.get(Metadata.CONTENT_TYPE)))
+                .verifyComplete();
+
+        assertEquals(64, emitted.get());
+    }
+
+    @Test
+    void when_parse_bodyOverLimit_thenStillReturnsMetadata() {
+        properties.setMaxCharacters(10);
+        var text = "quickmedia ".repeat(1000).getBytes(StandardCharsets.UTF_8);
+
+        var metadata = metaDataParser.parse(new ByteArrayInputStream(text));
+
+        assertNotNull(metadata.get(Metadata.CONTENT_TYPE));
     }
 
     @Test
-    void parse() {
+    void when_parse_parserFails_thenThrows() throws Exception {
+        var parser = mock(Parser.class);
+        doThrow(new TikaException("broken")).when(parser).parse(any(), any(), any(), any());
+        metaDataParser.stop();
+        metaDataParser = new MetaDataParser(parser, properties);
+
+        assertThrows(MetaDataException.class, () -> metaDataParser.parse(new ByteArrayInputStream(new byte[]{1})));
+    }
+
+    @Test
+    void when_parseHeader_failsAtEndOfTruncatedInput_thenReturnsMetadata() throws Exception {
+        var parser = mock(Parser.class);
+        doAnswer(invocation -> {
+            invocation.<InputStream>getArgument(0).readAllBytes();
+            invocation.<Metadata>getArgument(2).set(Metadata.CONTENT_TYPE, "video/mp4");
+            throw new TikaException("unexpected end of stream");
+        }).when(parser).parse(any(), any(), any(), any());
+        properties.setHeaderBytes(4);
+        metaDataParser.stop();
+        metaDataParser = new MetaDataParser(parser, properties);
+
+        StepVerifier.create(metaDataParser.parseHeader(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[8]))))
+                .consumeNextWith(metadata -> assertEquals("video/mp4", metadata.get(Metadata.CONTENT_TYPE)))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_parseHeader_failsBeforeEndOfTruncatedInput_thenThrows() throws Exception {
+        var parser = mock(Parser.class);
+        doAnswer(invocation -> {
+            invocation.<InputStream>getArgument(0).read();
+            invocation.<Metadata>getArgument(2).set(Metadata.CONTENT_TYPE, "video/mp4");
+            invocation.<Metadata>getArgument(2).set("width", "1");
+            throw new TikaException("corrupt");
+        }).when(parser).parse(any(), any(), any(), any());
+        properties.setHeaderBytes(4);
+        metaDataParser.stop();
+        metaDataParser = new MetaDataParser(parser, properties);
+
+        StepVerifier.create(metaDataParser.parseHeader(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[8]))))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof MetaDataException));
+    }
+
+    @Test
+    void when_parseAsync_slow_thenTimesOut() throws Exception {
+        var parser = mock(Parser.class);
+        doAnswer(invocation -> {
+            Thread.sleep(5000);
+            return null;
+        }).when(parser).parse(any(), any(), any(), any());
+        properties.setTimeout(Duration.ofMillis(50));
+        metaDataParser.stop();
+        metaDataParser = new MetaDataParser(parser, properties);
+
+        StepVerifier.create(metaDataParser.parseAsync(new byte[]{1}))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof MetaDataException));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,203 @@
+package com.media.quickmedia.repository;
+
+import com.media.quickmedia.repository.cache.ChunkDiskCache;
+import com.media.quickmedia.repository.cache.config.ChunkCacheProperties;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class GridFsChunkRepositoryTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    private GridFsChunkRepository gridFsChunkRepository;
+
+    private final ObjectId fileId = new ObjectId("62c314e22525c96a4ae223b3");
+
+    @BeforeEach
+    void setUp() {
+        gridFsChunkRepository = new GridFsChunkRepository(reactiveMongoTemplate, new ChunkDiskCache(new ChunkCacheProperties()));
+    }
+
+    private ChunkDiskCache openCache(Path directory){
+        var properties = new ChunkCacheProperties();
+        properties.setEnabled(true);
+        properties.setDirectory(directory);
+        properties.setSegmentBytes(1024);
+        var chunkDiskCache = new ChunkDiskCache(properties);
+        chunkDiskCache.open();
+        return chunkDiskCache;
+    }
+
+    //misses reach the disk cache through its write-behind thread
+    private void awaitCached(ChunkDiskCache chunkDiskCache, int... chunks){
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        for(int n : chunks){
+            while(!chunkDiskCache.contains(fileId, n)){
+                assertTrue(System.nanoTime() < deadline);
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @Test
+    void when_readRange_spansChunks_thenTrimsEdges() {
+        var gridFSFile = new GridFSFile(new BsonObjectId(fileId), "file", 10, 4, new Date(), null);
+        var chunk1 = new Document("files_id", fileId).append("n", 1).append("data", new Binary(new byte[]{4, 5, 6, 7}));
+        var chunk2 = new Document("files_id", fileId).append("n", 2).append("data", new Binary(new byte[]{8, 9}));
+        var queryCaptor = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(queryCaptor.capture(), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Flux.just(chunk1, chunk2));
+
+        StepVerifier.create(gridFsChunkRepository.readRange(gridFSFile, 5, 8))
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(3, dataBuffer.readableByteCount());
+                    assertEquals(5, dataBuffer.read());
+                })
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(1, dataBuffer.readableByteCount());
+                    assertEquals(8, dataBuffer.read());
+                })
+                .verifyComplete();
+
+        var chunkFilter = queryCaptor.getValue().getQueryObject();
+        assertEquals(fileId, chunkFilter.get("files_id"));
+        assertEquals(new Document("$gte", 1).append("$lte", 2), chunkFilter.get("n"));
+    }
+
+    @Test
+    void when_readRange_singleChunk_thenReturnsSlice() {
+        var gridFSFile = new GridFSFile(new BsonObjectId(fileId), "file", 4, 4, new Date(), null);
+        var chunk = new Document("files_id", fileId).append("n", 0).append("data", new Binary(new byte[]{0, 1, 2, 3}));
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Flux.just(chunk));
+
+        StepVerifier.create(gridFsChunkRepository.readRange(gridFSFile, 1, 2))
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(2, dataBuffer.readableByteCount());
+                    assertEquals(1, dataBuffer.read());
+                    assertEquals(2, dataBuffer.read());
+                })
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate).find(any(Query.class), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION));
+    }
+
+    @Test
+    void when_readRange_compressed_thenInflatesChunks() {
+        var metadata = new Document(GridFsChunkRepository.CODEC_METADATA, GridFsChunkRepository.DEFLATE);
+        var gridFSFile = new GridFSFile(new BsonObjectId(fileId), "file", 6, 4, new Date(), metadata);
+        var chunk0 = new Document("files_id", fileId).append("n", 0).append("data", new Binary(deflate(new byte[]{0, 1, 2, 3})));
+        var chunk1 = new Document("files_id", fileId).append("n", 1).append("data", new Binary(deflate(new byte[]{4, 5})));
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Flux.just(chunk0, chunk1));
+
+        StepVerifier.create(gridFsChunkRepository.readRange(gridFSFile, 3, 5))
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(1, dataBuffer.readableByteCount());
+                    assertEquals(3, dataBuffer.read());
+                })
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(2, dataBuffer.readableByteCount());
+                    assertEquals(4, dataBuffer.read());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_readRange_corruptCompressedChunk_thenFails() {
+        var metadata = new Document(GridFsChunkRepository.CODEC_METADATA, GridFsChunkRepository.DEFLATE);
+        var gridFSFile = new GridFSFile(new BsonObjectId(fileId), "file", 4, 4, new Date(), metadata);
+        var chunk = new Document("files_id", fileId).append("n", 0).append("data", new Binary(new byte[]{0, 1, 2, 3}));
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Flux.just(chunk));
+
+        StepVerifier.create(gridFsChunkRepository.readRange(gridFSFile, 0, 3))
+                .verifyError(IllegalStateException.class);
+    }
+
+    private byte[] deflate(byte[] data){
+        var deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Test
+    void when_readRange_repeated_thenServedFromDiskCache(@TempDir Path directory) {
+        var chunkDiskCache = openCache(directory);
+        gridFsChunkRepository = new GridFsChunkRepository(reactiveMongoTemplate, chunkDiskCache);
+        var gridFSFile = new GridFSFile(new BsonObjectId(fileId), "file", 6, 4, new Date(), null);
+        var chunk0 = new Document("files_id", fileId).append("n", 0).append("data", new Binary(new byte[]{0, 1, 2, 3}));
+        var chunk1 = new Document("files_id", fileId).append("n", 1).append("data", new Binary(new byte[]{4, 5}));
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Flux.just(chunk0, chunk1));
+
+        StepVerifier.create(gridFsChunkRepository.readRange(gridFSFile, 0, 5))
+                .expectNextCount(2)
+                .verifyComplete();
+        awaitCached(chunkDiskCache, 0, 1);
+        StepVerifier.create(gridFsChunkRepository.readRange(gridFSFile, 1, 4))
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(3, dataBuffer.readableByteCount());
+                    assertEquals(1, dataBuffer.read());
+                })
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(1, dataBuffer.readableByteCount());
+                    assertEquals(4, dataBuffer.read());
+                })
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, times(1)).find(any(Query.class), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION));
+    }
+
+    @Test
+    void when_readRange_partiallyCached_thenQueriesOnlyMisses(@TempDir Path directory) {
+        var chunkDiskCache = openCache(directory);
+        chunkDiskCache.put(fileId, 0, new byte[]{0, 1, 2, 3});
+        gridFsChunkRepository = new GridFsChunkRepository(reactiveMongoTemplate, chunkDiskCache);
+        var gridFSFile = new GridFSFile(new BsonObjectId(fileId), "file", 6, 4, new Date(), null);
+        var chunk1 = new Document("files_id", fileId).append("n", 1).append("data", new Binary(new byte[]{4, 5}));
+        var queryCaptor = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.find(queryCaptor.capture(), eq(Document.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Flux.just(chunk1));
+
+        StepVerifier.create(gridFsChunkRepository.readRange(gridFSFile, 0, 5))
+                .consumeNextWith(dataBuffer -> assertEquals(4, dataBuffer.readableByteCount()))
+                .consumeNextWith(dataBuffer -> assertEquals(2, dataBuffer.readableByteCount()))
+                .verifyComplete();
+
+        assertEquals(new Document("$gte", 1).append("$lte", 1), queryCaptor.getValue().getQueryObject().get("n"));
+    }
+}
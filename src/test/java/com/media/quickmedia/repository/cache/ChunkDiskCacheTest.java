@@ -0,0 +1,127 @@
+package com.media.quickmedia.repository.cache;
+
+import com.media.quickmedia.repository.cache.config.ChunkCacheProperties;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkDiskCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private final ObjectId fileId = new ObjectId("62c314e22525c96a4ae223b3");
+
+    private ChunkDiskCache open(long maxBytes){
+        return open(maxBytes, 64);
+    }
+
+    private ChunkDiskCache open(long maxBytes, int writeBehindChunks){
+        var properties = new ChunkCacheProperties();
+        properties.setWriteBehindChunks(writeBehindChunks);
+        properties.setEnabled(true);
+        properties.setDirectory(directory);
+        properties.setSegmentBytes(64);
+        properties.setMaxBytes(maxBytes);
+        var chunkDiskCache = new ChunkDiskCache(properties);
+        chunkDiskCache.open();
+        return chunkDiskCache;
+    }
+
+    private byte[] bytes(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    void when_put_thenGetReturnsMappedView() {
+        var chunkDiskCache = open(1024);
+        chunkDiskCache.put(fileId, 3, new byte[]{1, 2, 3});
+
+        var cached = chunkDiskCache.get(fileId, 3);
+        assertTrue(cached.isPresent());
+        assertTrue(cached.get().isDirect());
+        assertTrue(cached.get().isReadOnly());
+        assertArrayEquals(new byte[]{1, 2, 3}, bytes(cached.get()));
+        assertTrue(chunkDiskCache.get(fileId, 4).isEmpty());
+    }
+
+    @Test
+    void when_offer_thenWrittenInBackground() {
+        var chunkDiskCache = open(1024);
+        chunkDiskCache.offer(fileId, 3, new byte[]{1, 2, 3});
+
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while(!chunkDiskCache.contains(fileId, 3)){
+            assertTrue(System.nanoTime() < deadline);
+            Thread.onSpinWait();
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, bytes(chunkDiskCache.get(fileId, 3).orElseThrow()));
+        chunkDiskCache.close();
+    }
+
+    @Test
+    void when_offer_writeBehindFull_thenDropped() {
+        var chunkDiskCache = open(1024, 0);
+        chunkDiskCache.offer(fileId, 3, new byte[]{1, 2, 3});
+        chunkDiskCache.close();
+
+        assertFalse(chunkDiskCache.contains(fileId, 3));
+    }
+
+    @Test
+    void when_reopened_thenIndexRebuiltFromSegments() {
+        var chunkDiskCache = open(1024);
+        chunkDiskCache.put(fileId, 0, new byte[]{1, 2, 3});
+        chunkDiskCache.put(fileId, 1, new byte[30]);
+        chunkDiskCache.put(fileId, 2, new byte[]{9});
+
+        var reopened = open(1024);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, bytes(reopened.get(fileId, 0).orElseThrow()));
+        assertEquals(30, reopened.get(fileId, 1).orElseThrow().remaining());
+        assertArrayEquals(new byte[]{9}, bytes(reopened.get(fileId, 2).orElseThrow()));
+    }
+
+    @Test
+    void when_overBudget_thenEvictsLeastRecentSegment() throws Exception {
+        var chunkDiskCache = open(128);
+        chunkDiskCache.put(fileId, 0, new byte[30]);
+        chunkDiskCache.put(fileId, 1, new byte[30]);
+        chunkDiskCache.get(fileId, 0);
+        chunkDiskCache.put(fileId, 2, new byte[30]);
+
+        assertTrue(chunkDiskCache.get(fileId, 0).isPresent());
+        assertTrue(chunkDiskCache.get(fileId, 1).isEmpty());
+        assertTrue(chunkDiskCache.get(fileId, 2).isPresent());
+        try(Stream<Path> files = Files.list(directory)){
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void when_chunkLargerThanSegment_thenSkipped() {
+        var chunkDiskCache = open(1024);
+        chunkDiskCache.put(fileId, 0, new byte[64]);
+
+        assertTrue(chunkDiskCache.get(fileId, 0).isEmpty());
+    }
+
+    @Test
+    void when_disabled_thenNothingCached() {
+        var chunkDiskCache = new ChunkDiskCache(new ChunkCacheProperties());
+        chunkDiskCache.open();
+        chunkDiskCache.put(fileId, 0, new byte[]{1});
+
+        assertFalse(chunkDiskCache.isEnabled());
+        assertTrue(chunkDiskCache.get(fileId, 0).isEmpty());
+    }
+}
@@ -1,23 +1,48 @@
 package com.media.quickmedia.restcontroller;
 
+import com.media.quickmedia.metadata.MetaDataParser;
+import com.media.quickmedia.model.UploadSession;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.MediaKeyRepository;
+import com.media.quickmedia.restcontroller.config.MultipartLimitProperties;
+import com.media.quickmedia.restcontroller.config.RawUploadProperties;
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
 import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
 import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.storage.BatchIngestEngine;
+import com.media.quickmedia.service.storage.ContentStore;
+import com.media.quickmedia.service.storage.config.BatchIngestProperties;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
+import com.media.quickmedia.service.utils.DataBufferService;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 @ExtendWith(MockitoExtension.class)
 class LargeMediaControllerTest {
@@ -27,9 +52,19 @@ class LargeMediaControllerTest {
     @Mock
     private MediaService mediaService;
 
+    @Mock
+    private UploadSessionService uploadSessionService;
+
+    @Mock
+    private MultipartUploadService multipartUploadService;
+
+    private RawUploadProperties rawUploadProperties;
+
     @BeforeEach
     void init(){
-        largeMediaController = new LargeMediaController(mediaService);
+        rawUploadProperties = new RawUploadProperties();
+        rawUploadProperties.setMaxBytes(4);
+        largeMediaController = new LargeMediaController(mediaService, uploadSessionService, multipartUploadService, rawUploadProperties, new MultipartLimitProperties());
     }
 
     @Test
@@ -38,9 +73,9 @@ class LargeMediaControllerTest {
 
         FilePart filePart = mock(FilePart.class);
 
-        when(mediaService.saveLarge(any())).thenReturn(Mono.just(expected));
+        when(mediaService.saveLarge(any(), eq(0))).thenReturn(Mono.just(expected));
 
-        StepVerifier.create(largeMediaController.addLargeImage(Mono.just(filePart)))
+        StepVerifier.create(largeMediaController.addLargeImage(Mono.just(filePart), 0))
                 .consumeNextWith(next->{
                     assertEquals(expected.toHexString(), next);
                 }).verifyComplete();
@@ -49,9 +84,9 @@ class LargeMediaControllerTest {
     @Test
     void when_addLage_fails_thenThrows(){
         FilePart filePart = mock(FilePart.class);
-        when(mediaService.saveLarge(any())).thenThrow(new RuntimeException());
+        when(mediaService.saveLarge(any(), eq(0))).thenThrow(new RuntimeException());
 
-        StepVerifier.create(largeMediaController.addLargeImage(Mono.just(filePart)))
+        StepVerifier.create(largeMediaController.addLargeImage(Mono.just(filePart), 0))
                 .verifyErrorSatisfies(error->{
                    assertTrue(error instanceof RestControllerRequestException);
                 });
@@ -101,4 +136,90 @@ class LargeMediaControllerTest {
                     assertTrue(error instanceof RestControllerRequestException);
                 });
     }
-}
\ No newline at end of file
+
+    @Test
+    void when_appendChunk_thenJoinsBody(){
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        var session = UploadSession.builder().id("session").committedOffset(3).build();
+        when(uploadSessionService.maxChunkBytes()).thenReturn(16);
+        when(uploadSessionService.append("session", 0, new byte[]{1, 2, 3}, null)).thenReturn(Mono.just(session));
+
+        StepVerifier.create(largeMediaController.appendChunk("session", 0, null,
+                        Flux.just(factory.wrap(new byte[]{1, 2}), factory.wrap(new byte[]{3}))))
+                .expectNext(session)
+                .verifyComplete();
+    }
+
+    @Test
+    void when_appendChunk_overLimit_thenThrows(){
+        when(uploadSessionService.maxChunkBytes()).thenReturn(2);
+
+        StepVerifier.create(largeMediaController.appendChunk("session", 0, null,
+                        Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2, 3}))))
+                .verifyErrorSatisfies(error->{
+                    assertTrue(error instanceof RestControllerRequestException);
+                });
+    }
+
+    @Test
+    void when_uploadPart_thenPassesBody(){
+        when(multipartUploadService.uploadPart(eq("upload"), eq(1), any())).thenAnswer(invocation -> {
+            Flux<ByteBuffer> content = invocation.getArgument(2);
+            return content.map(ByteBuffer::remaining).reduce(0L, Long::sum);
+        });
+
+        StepVerifier.create(largeMediaController.uploadPart("upload", 1,
+                        Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2, 3}))))
+                .expectNext(3L)
+                .verifyComplete();
+    }
+
+    @Test
+    void when_putMedia_thenStoresBodyWithContentType(){
+        var headers = new HttpHeaders();
+        headers.setContentType(MediaType.valueOf("video/mp4"));
+        headers.setContentLength(3);
+        var expected = new ObjectId("62c314e22525c96a4ae223b3");
+        when(mediaService.saveRaw(eq("movie.mp4"), any(), eq(MediaType.valueOf("video/mp4")), eq(3L), eq(0))).thenAnswer(invocation -> {
+            Flux<DataBuffer> content = invocation.getArgument(1);
+            return content.then(Mono.just(expected));
+        });
+
+        StepVerifier.create(largeMediaController.putMedia("movie.mp4", headers, 0,
+                        Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2, 3}))))
+                .expectNext(expected.toHexString())
+                .verifyComplete();
+    }
+
+    @Test
+    void when_putMedia_declaredTooLarge_thenRejectsWithoutReading(){
+        var headers = new HttpHeaders();
+        headers.setContentLength(5);
+        var subscribed = new AtomicBoolean();
+
+        StepVerifier.create(largeMediaController.putMedia("movie.mp4", headers, 0,
+                        Flux.<DataBuffer>empty().doOnSubscribe(ignored -> subscribed.set(true))))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof PayloadTooLargeException));
+
+        assertFalse(subscribed.get());
+        verifyNoInteractions(mediaService);
+    }
+
+    @Test
+    void when_putMedia_chunkedTooLarge_thenPayloadTooLargeThroughMediaService(){
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        var contentStore = mock(ContentStore.class);
+        when(contentStore.store(any(Flux.class), eq("movie.mp4"), any(Document.class), eq(-1L))).thenAnswer(invocation -> {
+            Flux<DataBuffer> content = invocation.getArgument(0);
+            return content.then(Mono.just(new ObjectId()));
+        });
+        var realMediaService = new MediaService(mock(ReactiveGridFsTemplate.class), new DataBufferService(),
+                mock(GridFsChunkRepository.class), contentStore, mock(MediaKeyRepository.class),
+                mock(MetaDataParser.class), new BatchIngestEngine(new BatchIngestProperties()));
+        var controller = new LargeMediaController(realMediaService, uploadSessionService, multipartUploadService, rawUploadProperties, new MultipartLimitProperties());
+
+        StepVerifier.create(controller.putMedia("movie.mp4", new HttpHeaders(), 0,
+                        Flux.just(factory.wrap(new byte[]{1, 2, 3}), factory.wrap(new byte[]{4, 5}))))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof PayloadTooLargeException));
+    }
+}
@@ -1,7 +1,11 @@
 package com.media.quickmedia.restcontroller;
 
 import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImagePage;
+import com.media.quickmedia.restcontroller.config.MultipartLimitProperties;
+import com.media.quickmedia.restcontroller.error.PayloadTooLargeException;
 import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
+import com.media.quickmedia.service.error.RepositoryException;
 import com.media.quickmedia.service.ImageService;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,14 +14,20 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.io.ByteArrayInputStream;
+import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -32,20 +42,41 @@ class RestImageControllerTest {
 
     RestImageController restImageController;
 
+    MultipartLimitProperties multipartLimitProperties;
+
     @BeforeEach
     void setUp() {
-        restImageController = new RestImageController(imageService);
+        multipartLimitProperties = new MultipartLimitProperties();
+        restImageController = new RestImageController(imageService, multipartLimitProperties);
     }
 
     @AfterEach
     void tearDown() {
     }
 
+    @Test
+    void when_listImages_success_thenReturnsPage() {
+        var imagePage = ImagePage.builder().images(List.of()).build();
+        when(imageService.listImages("cursor", 10, true, 0)).thenReturn(Mono.just(imagePage));
+
+        StepVerifier.create(restImageController.listImages("cursor", 10))
+                .consumeNextWith(response -> assertEquals(imagePage, response))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_listImages_fails_thenThrows() {
+        when(imageService.listImages(any(), anyInt(), anyBoolean(), anyLong())).thenReturn(Mono.error(new RuntimeException()));
+
+        StepVerifier.create(restImageController.listImages(null, 0))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RestControllerRequestException));
+    }
+
     @Test
     void when_addNewImage_success_thenSucceed() {
         FilePart filePart = mock(FilePart.class);
         Image image = Image.builder().build();
-        when(imageService.saveImage(filePart)).thenReturn(Mono.just(image));
+        when(imageService.saveImage(any())).thenReturn(Mono.just(image));
 
         StepVerifier.create(restImageController.addNewImage(Mono.just(filePart)))
                 .consumeNextWith(response->{
@@ -53,11 +84,25 @@ class RestImageControllerTest {
                 }).verifyComplete();
     }
 
+    @Test
+    void when_addNewImage_overLimit_thenPayloadTooLarge() {
+        multipartLimitProperties.setImageMaxBytes(4);
+        FilePart filePart = mock(FilePart.class);
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        when(filePart.content()).thenReturn(Flux.just(factory.wrap(new byte[]{1, 2, 3}), factory.wrap(new byte[]{4, 5})));
+        when(imageService.saveImage(any())).thenAnswer(invocation -> invocation.<FilePart>getArgument(0).content()
+                .then(Mono.<Image>empty())
+                .onErrorMap(error -> new RepositoryException("Cannot save filepart")));
+
+        StepVerifier.create(restImageController.addNewImage(Mono.just(filePart)))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof PayloadTooLargeException));
+    }
+
     @Test
     void when_addNewImage_fails_thenThrows(){
         FilePart filePart = mock(FilePart.class);
         Image image = Image.builder().build();
-        when(imageService.saveImage(filePart)).thenThrow(new RuntimeException());
+        when(imageService.saveImage(any())).thenThrow(new RuntimeException());
 
         StepVerifier.create(restImageController.addNewImage(Mono.just(filePart)))
                 .verifyErrorSatisfies(error->{
@@ -74,9 +119,9 @@ class RestImageControllerTest {
                 .build();
         InputStreamResource inputStreamResource = new InputStreamResource(new ByteArrayInputStream(image.getContent()));
 
-        when(imageService.getImage(any())).thenReturn(Mono.just(inputStreamResource));
+        when(imageService.getImage("id", 256)).thenReturn(Mono.just(inputStreamResource));
 
-        StepVerifier.create(restImageController.getImage("id")).consumeNextWith(inputStreamResourceResponseEntity -> {
+        StepVerifier.create(restImageController.getImage("id", 256)).consumeNextWith(inputStreamResourceResponseEntity -> {
             assertEquals(inputStreamResource, inputStreamResourceResponseEntity.getBody());
             assertEquals(HttpStatus.OK, inputStreamResourceResponseEntity.getStatusCode());
         }).verifyComplete();
@@ -84,9 +129,9 @@ class RestImageControllerTest {
 
     @Test
     void when_getImage_fails_thenThrows() {
-        when(imageService.getImage("hello")).thenThrow(new RuntimeException());
+        when(imageService.getImage("hello", 0)).thenThrow(new RuntimeException());
 
-        StepVerifier.create(restImageController.getImage("hello"))
+        StepVerifier.create(restImageController.getImage("hello", 0))
                 .verifyErrorSatisfies(error -> {
                     assertTrue(error instanceof RestControllerRequestException);
         });
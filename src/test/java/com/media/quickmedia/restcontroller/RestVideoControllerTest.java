@@ -1,6 +1,7 @@
 package com.media.quickmedia.restcontroller;
 
 import com.media.quickmedia.model.Video;
+import com.media.quickmedia.restcontroller.config.MultipartLimitProperties;
 import com.media.quickmedia.restcontroller.error.RestControllerRequestException;
 import com.media.quickmedia.service.VideoService;
 import org.junit.jupiter.api.AfterEach;
@@ -9,13 +10,14 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
-import java.io.ByteArrayInputStream;
 import java.util.Objects;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -35,7 +37,7 @@ class RestVideoControllerTest {
 
     @BeforeEach
     void setUp() {
-        restVideoController = new RestVideoController(videoService);
+        restVideoController = new RestVideoController(videoService, new MultipartLimitProperties());
 
     }
 
@@ -48,7 +50,7 @@ class RestVideoControllerTest {
         FilePart filePart = mock(FilePart.class);
         Video video = Video.builder()
                 .build();
-        when(videoService.saveVideo(filePart)).thenReturn(Mono.just(video));
+        when(videoService.saveVideo(any())).thenReturn(Mono.just(video));
 
         StepVerifier.create(restVideoController.addNewVideo(Mono.just(filePart)))
                 .consumeNextWith(video1 -> {
@@ -60,7 +62,7 @@ class RestVideoControllerTest {
     @Test
     void when_addNewVideo_fails_thenThrows(){
         FilePart filePart = mock(FilePart.class);
-        when(videoService.saveVideo(filePart)).thenThrow(new RuntimeException());
+        when(videoService.saveVideo(any())).thenThrow(new RuntimeException());
 
         StepVerifier.create(restVideoController.addNewVideo(Mono.just(filePart)))
                 .verifyErrorSatisfies(error->{
@@ -71,20 +73,18 @@ class RestVideoControllerTest {
     @Test
     void when_getVideo_success_thenSucceed() {
         var bytes = new byte[]{1,2,3};
-        InputStreamResource inputStreamResource = new InputStreamResource(new ByteArrayInputStream(bytes));
-        when(videoService.getVideo(any())).thenReturn(Mono.just(inputStreamResource));
+        Flux<DataBuffer> content = Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(bytes));
+        when(videoService.getVideo(any())).thenReturn(Mono.just(content));
 
         StepVerifier.create(restVideoController.getVideo("hadouken"))
-                .consumeNextWith(inputStreamResourceResponseEntity -> {
-                    assertTrue(inputStreamResourceResponseEntity.getStatusCode().is2xxSuccessful());
-                    assertTrue(Objects.requireNonNull(inputStreamResourceResponseEntity.getBody()).exists());
+                .consumeNextWith(responseEntity -> {
+                    assertTrue(responseEntity.getStatusCode().is2xxSuccessful());
+                    assertEquals(content, Objects.requireNonNull(responseEntity.getBody()));
                 }).verifyComplete();
     }
 
     @Test
     void when_getVideo_fails_thenThrows(){
-        var bytes = new byte[]{1,2,3};
-        InputStreamResource inputStreamResource = new InputStreamResource(new ByteArrayInputStream(bytes));
         when(videoService.getVideo(any())).thenThrow(new RuntimeException());
 
         StepVerifier.create(restVideoController.getVideo("hadouken"))
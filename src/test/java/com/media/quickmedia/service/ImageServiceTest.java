@@ -2,16 +2,38 @@ package com.media.quickmedia.service;
 
 import com.google.protobuf.ByteString;
 import com.media.quickmedia.metadata.MetaDataParser;
+import com.media.quickmedia.metadata.error.MetaDataException;
 import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.model.MetaDataEntry;
+import com.media.quickmedia.model.MetaDataStatus;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.repository.GridFsChunkRepository;
 import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.cache.ImageCache;
+import com.media.quickmedia.service.cache.config.ImageCacheProperties;
+import com.media.quickmedia.service.config.ImagePageProperties;
 import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.metadata.MetaDataPipeline;
+import com.media.quickmedia.service.storage.BatchIngestEngine;
+import com.media.quickmedia.service.storage.ContentStore;
+import com.media.quickmedia.service.storage.ImageBatchWriter;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import com.media.quickmedia.service.storage.config.BatchIngestProperties;
+import com.media.quickmedia.service.storage.config.ImageStorageProperties;
+import com.media.quickmedia.service.utils.DataBufferService;
+import com.media.quickmedia.service.variant.ImageVariantPipeline;
+import com.media.quickmedia.service.variant.ImageVariantService;
 import com.proto.service.BatchUploadRequest;
+import com.proto.service.DataChunk;
 import com.proto.service.Key;
 import com.proto.service.MetaDataRequest;
 import com.proto.service.UploadRequest;
 import io.grpc.StatusRuntimeException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.tika.metadata.Metadata;
 import org.bouncycastle.asn1.cms.MetaData;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -19,6 +41,8 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
 import org.springframework.http.codec.multipart.FilePart;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -26,11 +50,19 @@ import reactor.test.StepVerifier;
 
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -45,9 +77,38 @@ class ImageServiceTest {
     @Mock
     private MetaDataParser metaDataParser;
 
+    @Mock
+    private ReactiveGridFsTemplate gridFsTemplate;
+
+    @Mock
+    private ContentStore contentStore;
+
+    @Mock
+    private GridFsChunkRepository gridFsChunkRepository;
+
+    @Mock
+    private MetaDataPipeline metaDataPipeline;
+
+    @Mock
+    private ImageBatchWriter imageBatchWriter;
+
+    @Mock
+    private ImageVariantPipeline imageVariantPipeline;
+
+    @Mock
+    private ImageVariantService imageVariantService;
+
+    private ImagePageProperties pageProperties;
+
     @BeforeEach
     public void init(){
-        imageService = new ImageService(imageRepository, metaDataParser);
+        pageProperties = new ImagePageProperties();
+        pageProperties.setMaxBytes(5);
+        var imageStorageEngine = new ImageStorageEngine(imageRepository, gridFsTemplate,
+                contentStore, new ImageStorageProperties(), gridFsChunkRepository);
+        imageService = new ImageService(imageRepository, metaDataParser, imageStorageEngine,
+                new ImageCache(new ImageCacheProperties(), new SimpleMeterRegistry()), pageProperties, metaDataPipeline, imageBatchWriter,
+                new BatchIngestEngine(new BatchIngestProperties()), imageVariantPipeline, imageVariantService, new DataBufferService());
     }
 
 
@@ -129,6 +190,8 @@ class ImageServiceTest {
             assertEquals(image2, image1);
         }).verifyComplete();
 
+        verify(metaDataPipeline).submit("my-id");
+
     }
     @Test
     void when_saveImageFails_byteString_thenThrows() {
@@ -223,11 +286,53 @@ class ImageServiceTest {
 
     }
 
+    @Test
+    void when_getImageStream_repeated_thenServedFromCache() {
+        Image image = Image.builder()
+                .name("test")
+                .content(new byte[]{1, 2, 3})
+                .build();
+
+        when(imageRepository.findById("test")).thenReturn(Mono.just(image));
+
+        StepVerifier.create(imageService.getImageStream("test"))
+                .consumeNextWith(Assertions::assertNotNull)
+                .verifyComplete();
+        StepVerifier.create(imageService.getDownloadResponse("test"))
+                .consumeNextWith(response -> assertEquals(ByteString.copyFrom(new byte[]{1, 2, 3}), response.getData().getData()))
+                .verifyComplete();
+
+        verify(imageRepository, times(1)).findById("test");
+    }
+
+    @Test
+    void when_removeImage_cached_thenInvalidates() {
+        Image image = Image.builder()
+                .id("test")
+                .content(new byte[]{1, 2, 3})
+                .build();
+
+        when(imageRepository.findById("test")).thenReturn(Mono.just(image), Mono.just(image), Mono.empty());
+        when(imageRepository.deleteById("test")).thenReturn(Mono.empty());
+        when(imageVariantService.delete("test")).thenReturn(Flux.empty());
+
+        StepVerifier.create(imageService.getImageStream("test"))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(imageService.removeImage("test"))
+                .expectNext("test")
+                .verifyComplete();
+        StepVerifier.create(imageService.getImageStream("test"))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+    }
+
     @Test
     void when_removeImage_success_thenReturns(){
         var id = "id";
+        when(imageRepository.findById(id)).thenReturn(Mono.just(Image.builder().id(id).build()));
         when(imageRepository.deleteById(id))
                 .thenReturn(Mono.empty());
+        when(imageVariantService.delete(id)).thenReturn(Flux.empty());
 
         StepVerifier.create(imageService.removeImage("id"))
                 .consumeNextWith(_id-> {
@@ -238,8 +343,10 @@ class ImageServiceTest {
     @Test
     void when_removeImage_fails_thenThrows(){
         var id = "id";
+        when(imageRepository.findById(id)).thenReturn(Mono.empty());
         when(imageRepository.deleteById(id))
                 .thenThrow(new RuntimeException());
+        when(imageVariantService.delete(id)).thenReturn(Flux.empty());
 
         StepVerifier.create(imageService.removeImage("id"))
                 .verifyErrorSatisfies(error->{
@@ -248,7 +355,7 @@ class ImageServiceTest {
     }
 
     @Test
-    void when_batchUpload_success_thenReturns(){
+    void when_batchUpload_success_thenSubmitsStoredItems(){
         var uploadRequest = List.of(UploadRequest.newBuilder()
                         .setKey(Key
                                 .newBuilder()
@@ -257,16 +364,66 @@ class ImageServiceTest {
                 .setKey(Key.newBuilder()
                         .setKey("world").build()).build());
         var request = BatchUploadRequest.newBuilder()
-                        .addAllUploadRequests(uploadRequest).build();
-        Image img = Image.builder()
-                        .id("something").build();
+                        .addAllUploadRequests(uploadRequest)
+                        .setAtomic(true).build();
+        var results = List.of(UploadResult.builder().index(0).name("hello").id("something").build(),
+                UploadResult.builder().index(1).name("world").error("duplicate key").build());
 
-        when(imageRepository.save(any())).thenReturn(Mono.just(img));
+        when(imageBatchWriter.write(uploadRequest, true)).thenReturn(Mono.just(results));
 
         StepVerifier.create(imageService.batchUpload(request))
                 .consumeNextWith(response->{
                     assertEquals(2, response.size());
                 }).verifyComplete();
+
+        verify(metaDataPipeline).submit("something");
+        verify(metaDataPipeline, times(1)).submit(anyString());
+        verify(imageVariantPipeline).submit("something");
+        verify(imageVariantPipeline, times(1)).submit(anyString());
+    }
+
+    @Test
+    void when_getImage_withSize_thenServesNearestVariant() {
+        var variant = ImageVariant.builder().id("test:256").imageId("test").size(256).content(new byte[]{4, 5}).build();
+        when(imageVariantService.nearest("test", 200)).thenReturn(Mono.just(variant));
+        when(imageVariantService.content(variant)).thenReturn(Mono.just(new byte[]{4, 5}));
+
+        StepVerifier.create(imageService.getDownloadResponse("test", 200))
+                .consumeNextWith(response -> assertEquals(ByteString.copyFrom(new byte[]{4, 5}), response.getData().getData()))
+                .verifyComplete();
+
+        verify(imageRepository, never()).findById(anyString());
+    }
+
+    @Test
+    void when_getImage_withSize_noVariant_thenServesOriginal() {
+        var image = Image.builder().id("test").content(new byte[]{1, 2, 3}).build();
+        when(imageVariantService.nearest("test", 4096)).thenReturn(Mono.empty());
+        when(imageRepository.findById("test")).thenReturn(Mono.just(image));
+
+        StepVerifier.create(imageService.getDownloadResponse("test", 4096))
+                .consumeNextWith(response -> assertEquals(ByteString.copyFrom(new byte[]{1, 2, 3}), response.getData().getData()))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_removeImage_withVariants_thenInvalidatesVariants() {
+        var variant = ImageVariant.builder().id("test:64").imageId("test").size(64).content(new byte[]{7}).build();
+        when(imageVariantService.nearest("test", 64)).thenReturn(Mono.just(variant));
+        when(imageVariantService.content(variant)).thenReturn(Mono.just(new byte[]{7}), Mono.just(new byte[]{8}));
+        when(imageRepository.findById("test")).thenReturn(Mono.just(Image.builder().id("test").build()));
+        when(imageRepository.deleteById("test")).thenReturn(Mono.empty());
+        when(imageVariantService.delete("test")).thenReturn(Flux.just("test:64"));
+
+        StepVerifier.create(imageService.getDownloadResponse("test", 64))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(imageService.removeImage("test"))
+                .expectNext("test")
+                .verifyComplete();
+        StepVerifier.create(imageService.getDownloadResponse("test", 64))
+                .consumeNextWith(response -> assertEquals(ByteString.copyFrom(new byte[]{8}), response.getData().getData()))
+                .verifyComplete();
     }
     @Test
     void when_batchUpload_fails_thenThrows(){
@@ -279,10 +436,8 @@ class ImageServiceTest {
                                 .setKey("world").build()).build());
         var request = BatchUploadRequest.newBuilder()
                 .addAllUploadRequests(uploadRequest).build();
-        Image img = Image.builder()
-                .id("something").build();
 
-        when(imageRepository.save(any())).thenThrow(new RuntimeException());
+        when(imageBatchWriter.write(any(), eq(false))).thenReturn(Mono.error(new RuntimeException()));
 
         StepVerifier.create(imageService.batchUpload(request))
                 .verifyErrorSatisfies(error->{
@@ -290,6 +445,33 @@ class ImageServiceTest {
                 });
     }
 
+    @Test
+    void when_batchUploadStream_thenStreamsChunksPerImage(){
+        var chunks = Flux.just(UploadRequest.newBuilder()
+                        .setKey(Key.newBuilder().setKey("hello").build())
+                        .setData(DataChunk.newBuilder().setData(ByteString.copyFrom(new byte[]{1, 2})).build())
+                        .setMore(true).build(),
+                UploadRequest.newBuilder()
+                        .setKey(Key.newBuilder().setKey("hello").build())
+                        .setData(DataChunk.newBuilder().setData(ByteString.copyFrom(new byte[]{3})).build())
+                        .build());
+        when(imageRepository.save(any())).thenAnswer(invocation -> {
+            Image image = invocation.getArgument(0);
+            assertEquals(3, image.getContent().length);
+            image.setId("something");
+            return Mono.just(image);
+        });
+
+        StepVerifier.create(imageService.batchUploadStream(chunks))
+                .consumeNextWith(result -> {
+                    assertEquals("something", result.getId());
+                    assertEquals("hello", result.getName());
+                })
+                .verifyComplete();
+
+        verify(metaDataPipeline).submit("something");
+        verify(imageVariantPipeline).submit("something");
+    }
 
     @Test
     void when_getMetaData_thenReturns(){
@@ -299,8 +481,10 @@ class ImageServiceTest {
         var metaData = new Metadata();
         metaData.set("hello", "world");
         metaData.set("this", "blue");
+        when(imageRepository.findMetadataById(anyString())).thenReturn(Mono.just(Image.builder().name("my-id").build()));
         when(imageRepository.findById(anyString())).thenReturn(Mono.just(image));
-        when(metaDataParser.parse(any())).thenReturn(metaData);
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.just(metaData));
+        when(metaDataPipeline.storeParsed(eq("my-id"), any())).thenReturn(Mono.empty());
         var metaDataReq = MetaDataRequest.newBuilder()
                         .setKey(Key.newBuilder()
                                 .setKey("my-id").build()).build();
@@ -324,6 +508,65 @@ class ImageServiceTest {
             assertTrue(val2.isPresent());
             assertEquals("world", val2.get().getValue());
         }).verifyComplete();
+
+        verify(metaDataPipeline).storeParsed(eq("my-id"), argThat(entries -> entries.size() == 2));
+    }
+
+    @Test
+    void when_getMetaData_storeFails_thenStillReturns(){
+        var metaData = new Metadata();
+        metaData.set("hello", "world");
+        when(imageRepository.findMetadataById("my-id")).thenReturn(Mono.just(Image.builder().name("my-id").build()));
+        when(imageRepository.findById("my-id")).thenReturn(Mono.just(Image.builder().content(new byte[]{1}).build()));
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.just(metaData));
+        when(metaDataPipeline.storeParsed(eq("my-id"), any())).thenReturn(Mono.error(new RuntimeException("mongo down")));
+        var metaDataReq = MetaDataRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("my-id").build()).build();
+
+        StepVerifier.create(imageService.getMetaData(metaDataReq))
+                .consumeNextWith(next -> assertEquals(1, next.getMetaDataList().size()))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_getMetaData_failed_thenThrowsWithoutParsing(){
+        var image = Image.builder()
+                .name("my-id")
+                .metadataStatus(MetaDataStatus.FAILED)
+                .build();
+        when(imageRepository.findMetadataById("my-id")).thenReturn(Mono.just(image));
+        var metaDataReq = MetaDataRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("my-id").build()).build();
+
+        StepVerifier.create(imageService.getMetaData(metaDataReq))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+
+        verifyNoInteractions(metaDataParser);
+        verifyNoInteractions(metaDataPipeline);
+        verify(imageRepository, never()).findById(anyString());
+    }
+
+    @Test
+    void when_getMetaData_extracted_thenSkipsParser(){
+        var image = Image.builder()
+                .name("my-id")
+                .metadata(List.of(MetaDataEntry.builder().key("hello").value("world").build()))
+                .metadataStatus(MetaDataStatus.EXTRACTED)
+                .build();
+        when(imageRepository.findMetadataById("my-id")).thenReturn(Mono.just(image));
+        var metaDataReq = MetaDataRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("my-id").build()).build();
+
+        StepVerifier.create(imageService.getMetaData(metaDataReq)).consumeNextWith(next->{
+            assertEquals(1, next.getMetaDataList().size());
+            assertEquals("world", next.getMetaData(0).getValue());
+        }).verifyComplete();
+
+        verifyNoInteractions(metaDataParser);
+        verify(imageRepository, never()).findById(anyString());
     }
 
     @Test
@@ -334,7 +577,7 @@ class ImageServiceTest {
         var metaData = new Metadata();
         metaData.set("hello", "world");
         metaData.set("this", "blue");
-        when(imageRepository.findById(anyString())).thenThrow(new RuntimeException());
+        when(imageRepository.findMetadataById(anyString())).thenThrow(new RuntimeException());
 
         var metaDataReq = MetaDataRequest.newBuilder()
                 .setKey(Key.newBuilder()
@@ -353,8 +596,9 @@ class ImageServiceTest {
         var metaData = new Metadata();
         metaData.set("hello", "world");
         metaData.set("this", "blue");
+        when(imageRepository.findMetadataById(anyString())).thenReturn(Mono.just(Image.builder().name("my-id").build()));
         when(imageRepository.findById(anyString())).thenReturn(Mono.just(image));
-        when(metaDataParser.parse(any())).thenThrow(new RuntimeException());
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.error(new MetaDataException("broken")));
         var metaDataReq = MetaDataRequest.newBuilder()
                 .setKey(Key.newBuilder()
                         .setKey("my-id").build()).build();
@@ -363,4 +607,62 @@ class ImageServiceTest {
             assertTrue(error instanceof RepositoryException);
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    void when_listImages_firstPage_thenReadsAfterMinimumId(){
+        var images = Flux.just(Image.builder().id("62c314e22525c96a4ae223b1").name("a").build(),
+                Image.builder().id("62c314e22525c96a4ae223b2").name("b").build(),
+                Image.builder().id("62c314e22525c96a4ae223b3").name("c").build());
+        when(imageRepository.findMetadataPageAfter(eq(new ObjectId(new byte[12])), any(Pageable.class))).thenReturn(images);
+
+        StepVerifier.create(imageService.listImages(null, 2, true, 0))
+                .consumeNextWith(page -> {
+                    assertEquals(2, page.getImages().size());
+                    assertEquals("62c314e22525c96a4ae223b2", page.getLastId());
+                    assertTrue(page.isHasMore());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_listImages_lastPage_thenNoMore(){
+        var cursor = "62c314e22525c96a4ae223b2";
+        when(imageRepository.findMetadataPageAfter(eq(new ObjectId(cursor)), any(Pageable.class)))
+                .thenReturn(Flux.just(Image.builder().id("62c314e22525c96a4ae223b3").name("c").build()));
+
+        StepVerifier.create(imageService.listImages(cursor, 2, true, 0))
+                .consumeNextWith(page -> {
+                    assertEquals(1, page.getImages().size());
+                    assertEquals("62c314e22525c96a4ae223b3", page.getLastId());
+                    assertFalse(page.isHasMore());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_listImages_overByteCap_thenEndsPageEarly(){
+        var images = Flux.just(Image.builder().id("62c314e22525c96a4ae223b1").build(),
+                Image.builder().id("62c314e22525c96a4ae223b2").build(),
+                Image.builder().id("62c314e22525c96a4ae223b3").build());
+        when(imageRepository.findMetadataPageAfter(any(ObjectId.class), any(Pageable.class))).thenReturn(images);
+        when(imageRepository.findById("62c314e22525c96a4ae223b1"))
+                .thenReturn(Mono.just(Image.builder().id("62c314e22525c96a4ae223b1").content(new byte[]{1, 2, 3}).build()));
+        when(imageRepository.findById("62c314e22525c96a4ae223b2"))
+                .thenReturn(Mono.just(Image.builder().id("62c314e22525c96a4ae223b2").content(new byte[]{4, 5, 6}).build()));
+
+        StepVerifier.create(imageService.listImages("", 10, false, 0))
+                .consumeNextWith(page -> {
+                    assertEquals(1, page.getImages().size());
+                    assertArrayEquals(new byte[]{1, 2, 3}, page.getImages().get(0).getContent());
+                    assertEquals("62c314e22525c96a4ae223b1", page.getLastId());
+                    assertTrue(page.isHasMore());
+                }).verifyComplete();
+
+        //content is loaded one image at a time, nothing past the image that crossed the cap is read
+        verify(imageRepository, never()).findById("62c314e22525c96a4ae223b3");
+    }
+
+    @Test
+    void when_listImages_invalidCursor_thenThrows(){
+        StepVerifier.create(imageService.listImages("not-an-id", 10, true, 0))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+    }
+}
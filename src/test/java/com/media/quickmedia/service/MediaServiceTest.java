@@ -1,31 +1,52 @@
 package com.media.quickmedia.service;
 
 import com.google.protobuf.ByteString;
-import com.media.quickmedia.model.Image;
+import com.media.quickmedia.metadata.MetaDataParser;
+import com.media.quickmedia.metadata.error.MetaDataException;
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.MediaKeyRepository;
 import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.storage.BatchIngestEngine;
+import com.media.quickmedia.service.storage.ChunkSizePolicy;
+import com.media.quickmedia.service.storage.ContentStore;
+import com.media.quickmedia.service.storage.config.BatchIngestProperties;
 import com.media.quickmedia.service.utils.DataBufferService;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import com.proto.service.BatchUploadRequest;
 import com.proto.service.Key;
+import com.proto.service.MetaDataRequest;
 import com.proto.service.UploadRequest;
+import org.apache.tika.metadata.Metadata;
+import org.bson.BsonObjectId;
 import org.bson.BsonValue;
 import org.bson.ByteBuf;
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.reactivestreams.Publisher;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
 import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -39,8 +60,12 @@ import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
@@ -54,11 +79,35 @@ class MediaServiceTest {
     @Mock
     private DataBufferService dataBufferService;
 
+    @Mock
+    private GridFsChunkRepository gridFsChunkRepository;
+
+    @Mock
+    private ContentStore contentStore;
+
+    @Mock
+    private MediaKeyRepository mediaKeyRepository;
+
+    @Mock
+    private MetaDataParser metaDataParser;
+
     private MediaService mediaService;
 
+    private final ObjectId blobId = new ObjectId("62c314e22525c96a4ae223b4");
+
     @BeforeEach
     void setUp() {
-        mediaService = new MediaService(fsTemplate, dataBufferService);
+        mediaService = new MediaService(fsTemplate, dataBufferService, gridFsChunkRepository, contentStore, mediaKeyRepository, metaDataParser,
+                new BatchIngestEngine(new BatchIngestProperties()));
+        lenient().when(mediaKeyRepository.findById(anyString())).thenReturn(Mono.empty());
+    }
+
+    private void issuesKey(String keyId){
+        when(mediaKeyRepository.save(any())).thenAnswer(invocation -> {
+            MediaKey key = invocation.getArgument(0);
+            key.setId(keyId);
+            return Mono.just(key);
+        });
     }
 
     @Test
@@ -67,17 +116,63 @@ class MediaServiceTest {
         DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
 
         FilePart filePart = mock(FilePart.class);
+        var headers = new HttpHeaders();
+        headers.setContentType(MediaType.valueOf("video/mp4"));
         when(filePart.filename()).thenReturn("test");
+        when(filePart.headers()).thenReturn(headers);
         when(filePart.content()).thenReturn(Flux.just(dataBufferFactory.wrap(data)));
 
-
-        when(fsTemplate.store(filePart.content(), filePart.filename())).thenReturn(Mono.just(new ObjectId("62c314e22525c96a4ae223b3")));
+        var metadata = ArgumentCaptor.forClass(Document.class);
+        when(contentStore.store(any(Flux.class), eq("test"), metadata.capture())).thenReturn(Mono.just(blobId));
+        issuesKey("62c314e22525c96a4ae223b3");
         ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
 
         StepVerifier.create(mediaService.saveLarge(filePart)).consumeNextWith(objectId1 -> {
             assertEquals(expected, objectId1);
         }).verifyComplete();
 
+        assertEquals("video/mp4", metadata.getValue().getString("_contentType"));
+
+    }
+
+    @Test
+    void when_saveRaw_thenStoresContentType() {
+        var metadata = ArgumentCaptor.forClass(Document.class);
+        when(contentStore.store(any(Flux.class), eq("movie.mp4"), metadata.capture(), eq(1L))).thenReturn(Mono.just(blobId));
+        issuesKey("62c314e22525c96a4ae223b3");
+
+        StepVerifier.create(mediaService.saveRaw("movie.mp4", Flux.just(new DefaultDataBufferFactory().wrap(new byte[]{1})),
+                        MediaType.valueOf("video/mp4"), 1))
+                .expectNext(new ObjectId("62c314e22525c96a4ae223b3"))
+                .verifyComplete();
+
+        assertEquals("video/mp4", metadata.getValue().getString("_contentType"));
+        assertEquals(MediaService.MEDIA_BLOB_METADATA, metadata.getValue().getString("type"));
+        assertFalse(metadata.getValue().containsKey(ChunkSizePolicy.CHUNK_SIZE_METADATA));
+    }
+
+    @Test
+    void when_saveRaw_chunkSizeRequested_thenKeepsItInMetadata() {
+        var metadata = ArgumentCaptor.forClass(Document.class);
+        when(contentStore.store(any(Flux.class), eq("movie.mp4"), metadata.capture(), eq(1L))).thenReturn(Mono.just(blobId));
+        issuesKey("62c314e22525c96a4ae223b3");
+
+        StepVerifier.create(mediaService.saveRaw("movie.mp4", Flux.just(new DefaultDataBufferFactory().wrap(new byte[]{1})),
+                        MediaType.valueOf("video/mp4"), 1, 1024 * 1024))
+                .expectNext(new ObjectId("62c314e22525c96a4ae223b3"))
+                .verifyComplete();
+
+        assertEquals(1024 * 1024, metadata.getValue().getInteger(ChunkSizePolicy.CHUNK_SIZE_METADATA));
+    }
+
+    @Test
+    void when_saveRaw_storeFails_thenRepositoryException() {
+        when(contentStore.store(any(Flux.class), eq("movie.mp4"), any(Document.class), eq(1L)))
+                .thenReturn(Mono.error(new IllegalStateException("mongo down")));
+
+        StepVerifier.create(mediaService.saveRaw("movie.mp4", Flux.just(new DefaultDataBufferFactory().wrap(new byte[]{1})),
+                        MediaType.valueOf("video/mp4"), 1))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
     }
 
     @Test
@@ -87,10 +182,11 @@ class MediaServiceTest {
 
         FilePart filePart = mock(FilePart.class);
         when(filePart.filename()).thenReturn("test");
+        when(filePart.headers()).thenReturn(new HttpHeaders());
         when(filePart.content()).thenReturn(Flux.just(dataBufferFactory.wrap(data)));
 
 
-        when(fsTemplate.store(any(), anyString()))
+        when(contentStore.store(any(Flux.class), anyString(), any(Document.class)))
                 .thenThrow(new RuntimeException());
 
         StepVerifier.create(mediaService.saveLarge(filePart))
@@ -102,23 +198,122 @@ class MediaServiceTest {
 
     @Test
     void when_downloadLarge_success_thenSucceed() {
-        BsonValue bsonValue = mock(BsonValue.class);
-        GridFSFile gridFSFile = new GridFSFile(bsonValue, "fcuk", 1, 1, new Date(), null);
+        GridFSFile gridFSFile = rangeFile(3);
         ReactiveGridFsResource reactiveGridFsResource = mock(ReactiveGridFsResource.class);
-        ServerWebExchange serverWebExchange = mock(ServerWebExchange.class);
-        ServerHttpResponse serverHttpResponse = mock(ServerHttpResponse.class);
+        var exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/media/large-download/test-id"));
         DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
         var db=  dataBufferFactory.wrap(new byte[]{1, 2, 3});
 
         when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
         when(fsTemplate.getResource(gridFSFile)).thenReturn(Mono.just(reactiveGridFsResource));
-        when(serverWebExchange.getResponse()).thenReturn(serverHttpResponse);
         when(reactiveGridFsResource.getDownloadStream()).thenReturn(Flux.just(db));
-        when(serverHttpResponse.writeWith(reactiveGridFsResource.getDownloadStream())).thenReturn(Mono.empty());
 
-        StepVerifier.create(mediaService.downloadLarge("test-id", serverWebExchange))
+        StepVerifier.create(mediaService.downloadLarge("test-id", exchange))
+                .verifyComplete();
+
+        var response = exchange.getResponse();
+        assertNull(response.getStatusCode());
+        assertEquals("bytes", response.getHeaders().getFirst(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(3, response.getHeaders().getContentLength());
+        assertArrayEquals(new byte[]{1, 2, 3}, responseBytes(exchange));
+    }
+
+    @Test
+    void when_downloadLarge_singleRange_thenPartialContent() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/media/large-download/test-id")
+                .header(HttpHeaders.RANGE, "bytes=2-5"));
+
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(gridFsChunkRepository.readRange(gridFSFile, 2, 5))
+                .thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{2, 3, 4, 5})));
+
+        StepVerifier.create(mediaService.downloadLarge("test-id", exchange))
+                .verifyComplete();
+
+        var response = exchange.getResponse();
+        assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+        assertEquals("bytes 2-5/10", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        assertEquals(4, response.getHeaders().getContentLength());
+        assertArrayEquals(new byte[]{2, 3, 4, 5}, responseBytes(exchange));
+    }
+
+    @Test
+    void when_downloadLarge_multipleRanges_thenMultipartByteRanges() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/media/large-download/test-id")
+                .header(HttpHeaders.RANGE, "bytes=0-1,-2"));
+
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(dataBufferService.makeDataBuffer(any(byte[].class)))
+                .thenAnswer(invocation -> DefaultDataBufferFactory.sharedInstance.wrap((byte[]) invocation.getArgument(0)));
+        when(gridFsChunkRepository.readRange(gridFSFile, 0, 1))
+                .thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap("ab".getBytes())));
+        when(gridFsChunkRepository.readRange(gridFSFile, 8, 9))
+                .thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap("yz".getBytes())));
+
+        StepVerifier.create(mediaService.downloadLarge("test-id", exchange))
                 .verifyComplete();
 
+        var response = exchange.getResponse();
+        var contentType = response.getHeaders().getContentType();
+        assertEquals(HttpStatus.PARTIAL_CONTENT, response.getStatusCode());
+        assertNotNull(contentType);
+        assertEquals("byteranges", contentType.getSubtype());
+        var body = responseBytes(exchange);
+        var text = new String(body);
+        assertEquals(body.length, response.getHeaders().getContentLength());
+        assertTrue(text.contains("Content-Range: bytes 0-1/10\r\n\r\nab"));
+        assertTrue(text.contains("Content-Range: bytes 8-9/10\r\n\r\nyz"));
+        assertTrue(text.endsWith("--" + contentType.getParameter("boundary") + "--\r\n"));
+    }
+
+    @Test
+    void when_downloadLarge_unsatisfiableRange_thenRangeNotSatisfiable() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/media/large-download/test-id")
+                .header(HttpHeaders.RANGE, "bytes=20-30"));
+
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+
+        StepVerifier.create(mediaService.downloadLarge("test-id", exchange))
+                .verifyComplete();
+
+        var response = exchange.getResponse();
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatusCode());
+        assertEquals("bytes */10", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void when_downloadLarge_staleIfRange_thenFullContent() {
+        GridFSFile gridFSFile = rangeFile(3);
+        ReactiveGridFsResource reactiveGridFsResource = mock(ReactiveGridFsResource.class);
+        var exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/media/large-download/test-id")
+                .header(HttpHeaders.RANGE, "bytes=1-2")
+                .header(HttpHeaders.IF_RANGE, "\"some-other-version\""));
+
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(fsTemplate.getResource(gridFSFile)).thenReturn(Mono.just(reactiveGridFsResource));
+        when(reactiveGridFsResource.getDownloadStream())
+                .thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2, 3})));
+
+        StepVerifier.create(mediaService.downloadLarge("test-id", exchange))
+                .verifyComplete();
+
+        assertNull(exchange.getResponse().getStatusCode());
+        assertArrayEquals(new byte[]{1, 2, 3}, responseBytes(exchange));
+    }
+
+    private GridFSFile rangeFile(long length){
+        return new GridFSFile(new BsonObjectId(new ObjectId("62c314e22525c96a4ae223b3")), "fcuk", length, 4, new Date(), null);
+    }
+
+    private byte[] responseBytes(MockServerWebExchange exchange){
+        var joined = DataBufferUtils.join(exchange.getResponse().getBody()).block();
+        assertNotNull(joined);
+        byte[] bytes = new byte[joined.readableByteCount()];
+        joined.read(bytes);
+        return bytes;
     }
 
     @Test
@@ -147,8 +342,8 @@ class MediaServiceTest {
         var db = dataBufferFactory.wrap(bs.asReadOnlyByteBuffer());
 
         var oi = new ObjectId("62c314e22525c96a4ae223b3");
-        when(dataBufferService.makeDataBuffer(bs.asReadOnlyByteBuffer())).thenReturn(db);
-        when(fsTemplate.store(any(), anyString())).thenReturn(Mono.just(oi));
+        when(contentStore.store(eq(bs.asReadOnlyByteBuffer()), eq("some-file-name"), any(Document.class))).thenReturn(Mono.just(blobId));
+        issuesKey(oi.toHexString());
 
 
         StepVerifier.create(mediaService.saveLarge(bs, "some-file-name")).consumeNextWith(noi->{
@@ -165,7 +360,7 @@ class MediaServiceTest {
         var db = dataBufferFactory.wrap(bs.asReadOnlyByteBuffer());
 
         var oi = new ObjectId("62c314e22525c96a4ae223b3");
-        when(dataBufferService.makeDataBuffer(bs.asReadOnlyByteBuffer())).thenThrow(new RuntimeException());
+        when(contentStore.store(any(ByteBuffer.class), anyString(), any(Document.class))).thenThrow(new RuntimeException());
 
         StepVerifier.create(mediaService.saveLarge(bs, "some-file-name")).verifyErrorSatisfies(error->{
             assertTrue(error instanceof RepositoryException);
@@ -242,18 +437,126 @@ class MediaServiceTest {
     }
 
 
+    @Test
+    void when_downloadStream_chunkCacheEnabled_thenReadsChunks() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var db = DefaultDataBufferFactory.sharedInstance.wrap(new byte[10]);
+
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(gridFsChunkRepository.cachesChunks()).thenReturn(true);
+        when(gridFsChunkRepository.readRange(gridFSFile, 0, 9)).thenReturn(Flux.just(db));
+
+        StepVerifier.create(mediaService.downloadStream("test-id"))
+                .consumeNextWith(dataBuffer -> assertEquals(db, dataBuffer))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_downloadStreamRange_success_thenReadsWindow() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var db = DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{2, 3, 4, 5});
+
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(gridFsChunkRepository.readRange(gridFSFile, 2, 5)).thenReturn(Flux.just(db));
+
+        StepVerifier.create(mediaService.downloadStream("test-id", 2, 4))
+                .consumeNextWith(dataBuffer -> assertEquals(db, dataBuffer))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_downloadStreamRange_noLength_thenReadsToEnd() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var db = DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{7, 8, 9});
+
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(gridFsChunkRepository.readRange(gridFSFile, 7, 9)).thenReturn(Flux.just(db));
+
+        StepVerifier.create(mediaService.downloadStream("test-id", 7, 0))
+                .consumeNextWith(dataBuffer -> assertEquals(db, dataBuffer))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_downloadStreamRange_outsideFile_thenThrows() {
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(rangeFile(10)));
+
+        StepVerifier.create(mediaService.downloadStream("test-id", 10, 1))
+                .verifyErrorSatisfies(error -> {
+                    assertTrue(error instanceof RepositoryException);
+                });
+    }
+
+    @Test
+    void when_stat_exists_thenReturnsFile() {
+        GridFSFile gridFSFile = rangeFile(10);
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+
+        StepVerifier.create(mediaService.stat("test-id"))
+                .consumeNextWith(file -> assertEquals(gridFSFile, file))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_getMetaData_largeFile_thenReadsOnlyHeader() {
+        GridFSFile gridFSFile = rangeFile(3_000_000_000L);
+        var metadata = new Metadata();
+        metadata.set("Content-Type", "video/mp4");
+        var header = DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2, 3});
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(metaDataParser.headerBytes()).thenReturn(1024);
+        when(gridFsChunkRepository.readRange(gridFSFile, 0, 1023)).thenReturn(Flux.just(header));
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.just(metadata));
+        var request = MetaDataRequest.newBuilder().setKey(Key.newBuilder().setKey("test-id").build()).build();
+
+        StepVerifier.create(mediaService.getMetaData(request))
+                .consumeNextWith(response -> {
+                    assertEquals(1, response.getMetaDataCount());
+                    assertEquals("video/mp4", response.getMetaData(0).getValue());
+                })
+                .verifyComplete();
+
+        verify(gridFsChunkRepository).readRange(gridFSFile, 0, 1023);
+    }
+
+    @Test
+    void when_getMetaData_parserFails_thenThrows() {
+        GridFSFile gridFSFile = rangeFile(10);
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.just(gridFSFile));
+        when(metaDataParser.headerBytes()).thenReturn(1024);
+        when(gridFsChunkRepository.readRange(gridFSFile, 0, 9)).thenReturn(Flux.empty());
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.error(new MetaDataException("broken")));
+        var request = MetaDataRequest.newBuilder().setKey(Key.newBuilder().setKey("test-id").build()).build();
+
+        StepVerifier.create(mediaService.getMetaData(request))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+    }
+
+    @Test
+    void when_stat_dne_thenThrows() {
+        when(fsTemplate.findOne(query(where("_id").is("test-id")))).thenReturn(Mono.empty());
+
+        StepVerifier.create(mediaService.stat("test-id"))
+                .verifyErrorSatisfies(error -> {
+                    assertTrue(error instanceof RepositoryException);
+                });
+    }
+
     @Test
     void when_uploadStream_success_thenSucceed() {
-        var stream = Flux.just(ByteString.copyFrom(new byte[]{1, 2, 3}));
-        byte[] bytes = new byte[]{1, 2, 3};
-        var bs = ByteString.copyFrom(bytes);
+        var stream = Flux.just(ByteString.copyFrom(new byte[]{1, 2, 3}), ByteString.copyFrom(new byte[]{4, 5}));
         DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
-        var db = dataBufferFactory.wrap(bs.asReadOnlyByteBuffer());
+        var db = dataBufferFactory.wrap(new byte[]{1, 2, 3});
 
         var oi = new ObjectId("62c314e22525c96a4ae223b3");
-        when(dataBufferService.makeDataBuffer(bs.toByteArray())).thenReturn(db);
-        when(dataBufferService.joinDataBuffers(any())).thenReturn(db);
-        when(fsTemplate.store(any(), anyString())).thenReturn(Mono.just(oi));
+        when(dataBufferService.makeDataBuffer(any(ByteBuffer.class))).thenReturn(db);
+        when(contentStore.store(any(Flux.class), eq("my-file"), any(Document.class))).thenAnswer(invocation -> {
+            Publisher<DataBuffer> content = invocation.getArgument(0);
+            return Flux.from(content).count()
+                    .doOnNext(count -> assertEquals(2, count))
+                    .thenReturn(blobId);
+        });
+        issuesKey(oi.toHexString());
 
         StepVerifier.create(mediaService.uploadStream(stream, "my-file")).consumeNextWith(
                 result->{
@@ -265,15 +568,8 @@ class MediaServiceTest {
     @Test
     void when_uploadStream_fails_thenThrows() {
         var stream = Flux.just(ByteString.copyFrom(new byte[]{1, 2, 3}));
-        byte[] bytes = new byte[]{1, 2, 3};
-        var bs = ByteString.copyFrom(bytes);
-        DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
-        var db = dataBufferFactory.wrap(bs.asReadOnlyByteBuffer());
 
-        var oi = new ObjectId("62c314e22525c96a4ae223b3");
-        when(dataBufferService.makeDataBuffer(bs.toByteArray())).thenReturn(db);
-        when(dataBufferService.joinDataBuffers(any())).thenReturn(db);
-        when(fsTemplate.store(any(), anyString())).thenThrow(new RuntimeException());
+        when(contentStore.store(any(Flux.class), anyString(), any(Document.class))).thenThrow(new RuntimeException());
 
         StepVerifier.create(mediaService.uploadStream(stream, "my-file")).verifyErrorSatisfies(
                 error->{
@@ -284,22 +580,92 @@ class MediaServiceTest {
 
     @Test
     void when_deleteFile_success_thenReturns(){
-        when(fsTemplate.delete(any()))
+        var oi = new ObjectId("62c314e22525c96a4ae223b3");
+        when(contentStore.isReferenced(oi)).thenReturn(Mono.just(false));
+        when(mediaKeyRepository.existsByBlobId(oi.toHexString())).thenReturn(Mono.just(false));
+        when(contentStore.release(oi))
                 .thenReturn(Mono.empty());
 
-        var oi = new ObjectId("62c314e22525c96a4ae223b3");
         StepVerifier.create(mediaService.delete(oi))
                 .consumeNextWith(objectId -> {
                     assertEquals(oi, objectId);
                 }).verifyComplete();
     }
 
+    @Test
+    void when_deleteFile_sharedKey_thenReleasesBlob(){
+        var oi = new ObjectId("62c314e22525c96a4ae223b3");
+        var key = MediaKey.builder().id(oi.toHexString()).blobId(blobId.toHexString()).build();
+        when(mediaKeyRepository.findById(oi.toHexString())).thenReturn(Mono.just(key));
+        when(mediaKeyRepository.delete(key)).thenReturn(Mono.empty());
+        when(contentStore.release(blobId)).thenReturn(Mono.empty());
+
+        StepVerifier.create(mediaService.delete(oi))
+                .expectNext(oi)
+                .verifyComplete();
+
+        verify(contentStore).release(blobId);
+    }
+
+    @Test
+    void when_deleteFile_unknownIdOfDeduplicatedBlob_thenLeavesBlob(){
+        when(contentStore.isReferenced(blobId)).thenReturn(Mono.just(true));
+        when(mediaKeyRepository.existsByBlobId(blobId.toHexString())).thenReturn(Mono.just(true));
+
+        StepVerifier.create(mediaService.delete(blobId))
+                .expectNext(blobId)
+                .verifyComplete();
+
+        verify(contentStore, never()).release(any());
+    }
+
+    @Test
+    void when_deleteFile_unknownIdOfVideoBlob_thenLeavesBlob(){
+        when(contentStore.isReferenced(blobId)).thenReturn(Mono.just(true));
+        when(mediaKeyRepository.existsByBlobId(blobId.toHexString())).thenReturn(Mono.just(false));
+
+        StepVerifier.create(mediaService.delete(blobId))
+                .expectNext(blobId)
+                .verifyComplete();
+
+        verify(contentStore, never()).release(any());
+    }
+
+    @Test
+    void when_describe_sharedKey_thenUsesKeyName() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var key = MediaKey.builder().id("key-id").name("second-upload.mp4").blobId(blobId.toHexString()).build();
+        when(mediaKeyRepository.findById("key-id")).thenReturn(Mono.just(key));
+        when(fsTemplate.findOne(query(where("_id").is(blobId.toHexString())))).thenReturn(Mono.just(gridFSFile));
+
+        StepVerifier.create(mediaService.describe("key-id"))
+                .consumeNextWith(mediaStat -> {
+                    assertEquals("second-upload.mp4", mediaStat.getName());
+                    assertEquals(gridFSFile, mediaStat.getFile());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_stat_sharedKey_thenResolvesBlob() {
+        GridFSFile gridFSFile = rangeFile(10);
+        var key = MediaKey.builder().id("key-id").blobId(blobId.toHexString()).build();
+        when(mediaKeyRepository.findById("key-id")).thenReturn(Mono.just(key));
+        when(fsTemplate.findOne(query(where("_id").is(blobId.toHexString())))).thenReturn(Mono.just(gridFSFile));
+
+        StepVerifier.create(mediaService.stat("key-id"))
+                .consumeNextWith(file -> assertEquals(gridFSFile, file))
+                .verifyComplete();
+    }
+
     @Test
     void when_deleteFile_fails_thenThrows(){
-        when(fsTemplate.delete(any()))
+        var oi = new ObjectId("62c314e22525c96a4ae223b3");
+        when(contentStore.isReferenced(oi)).thenReturn(Mono.just(false));
+        when(mediaKeyRepository.existsByBlobId(oi.toHexString())).thenReturn(Mono.just(false));
+        when(contentStore.release(any()))
                 .thenThrow(new RuntimeException());
 
-        var oi = new ObjectId("62c314e22525c96a4ae223b3");
         StepVerifier.create(mediaService.delete(oi))
                 .verifyErrorSatisfies(error->{
                     assertTrue(error instanceof RepositoryException);
@@ -324,18 +690,20 @@ class MediaServiceTest {
         var db = dataBufferFactory.wrap(bs.asReadOnlyByteBuffer());
 
         var oi = new ObjectId("62c314e22525c96a4ae223b3");
-        when(dataBufferService.makeDataBuffer(any(ByteBuffer.class))).thenReturn(db);
-        when(fsTemplate.store(any(), anyString())).thenReturn(Mono.just(oi));
+        when(contentStore.store(any(ByteBuffer.class), anyString(), any(Document.class))).thenReturn(Mono.just(blobId));
+        issuesKey(oi.toHexString());
 
 
         StepVerifier.create(mediaService.batchUpload(request))
                 .consumeNextWith(response->{
                     assertEquals(2, response.size());
+                    assertEquals("world", response.get(1).getName());
+                    assertEquals(oi.toHexString(), response.get(1).getId());
                 }).verifyComplete();
     }
 
     @Test
-    void when_batchUpload_fails_cantConvert_thenThrows(){
+    void when_batchUpload_oneItemFails_thenOthersStored(){
         var uploadRequest = List.of(UploadRequest.newBuilder()
                         .setKey(Key
                                 .newBuilder()
@@ -346,22 +714,20 @@ class MediaServiceTest {
         var request = BatchUploadRequest.newBuilder()
                 .addAllUploadRequests(uploadRequest).build();
 
-        byte[] bytes = new byte[]{1, 2, 3};
-        var bs = ByteString.copyFrom(bytes);
-        DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
-        var db = dataBufferFactory.wrap(bs.asReadOnlyByteBuffer());
-
         var oi = new ObjectId("62c314e22525c96a4ae223b3");
-        when(dataBufferService.makeDataBuffer(any(ByteBuffer.class))).thenThrow(new RuntimeException());
+        when(contentStore.store(any(ByteBuffer.class), eq("hello"), any(Document.class))).thenReturn(Mono.error(new RuntimeException("gridfs down")));
+        when(contentStore.store(any(ByteBuffer.class), eq("world"), any(Document.class))).thenReturn(Mono.just(blobId));
+        issuesKey(oi.toHexString());
 
         StepVerifier.create(mediaService.batchUpload(request))
-                .verifyErrorSatisfies(error->{
-                    assertTrue(error instanceof RepositoryException);
-                });
+                .consumeNextWith(response->{
+                    assertEquals("gridfs down", response.get(0).getError());
+                    assertTrue(response.get(1).isSuccess());
+                }).verifyComplete();
     }
 
     @Test
-    void when_batchUpload_fails_cantStore_thenThrows(){
+    void when_batchUpload_storeThrows_thenReportedPerItem(){
         var uploadRequest = List.of(UploadRequest.newBuilder()
                         .setKey(Key
                                 .newBuilder()
@@ -372,18 +738,12 @@ class MediaServiceTest {
         var request = BatchUploadRequest.newBuilder()
                 .addAllUploadRequests(uploadRequest).build();
 
-        byte[] bytes = new byte[]{1, 2, 3};
-        var bs = ByteString.copyFrom(bytes);
-        DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
-        var db = dataBufferFactory.wrap(bs.asReadOnlyByteBuffer());
-
-        var oi = new ObjectId("62c314e22525c96a4ae223b3");
-        when(dataBufferService.makeDataBuffer(any(ByteBuffer.class))).thenThrow(new RuntimeException());
-
+        when(contentStore.store(any(ByteBuffer.class), anyString(), any(Document.class))).thenThrow(new RuntimeException());
 
         StepVerifier.create(mediaService.batchUpload(request))
-                .verifyErrorSatisfies(error->{
-                    assertTrue(error instanceof RepositoryException);
-                });
+                .consumeNextWith(response->{
+                    assertEquals(2, response.size());
+                    assertTrue(response.stream().noneMatch(UploadResult::isSuccess));
+                }).verifyComplete();
     }
-}
\ No newline at end of file
+}
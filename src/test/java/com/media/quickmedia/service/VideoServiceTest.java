@@ -1,24 +1,33 @@
 package com.media.quickmedia.service;
 
-import com.media.quickmedia.model.Image;
 import com.media.quickmedia.model.Video;
 import com.media.quickmedia.repository.VideoRepository;
 import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.utils.DataBufferService;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
 import org.springframework.http.codec.multipart.FilePart;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.util.Date;
+
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
 class VideoServiceTest {
@@ -26,11 +35,16 @@ class VideoServiceTest {
     @Mock
     private VideoRepository videoRepository;
 
+    @Mock
+    private ReactiveGridFsTemplate gridFsTemplate;
+
     private VideoService videoService;
 
+    private final ObjectId blobId = new ObjectId("62c314e22525c96a4ae223b3");
+
     @BeforeEach
     void setUp() {
-        videoService = new VideoService(videoRepository);
+        videoService = new VideoService(videoRepository, gridFsTemplate, new DataBufferService());
     }
 
     @Test
@@ -41,15 +55,16 @@ class VideoServiceTest {
         FilePart filePart = mock(FilePart.class);
         when(filePart.filename()).thenReturn("test");
         when(filePart.content()).thenReturn(Flux.just(dataBufferFactory.wrap(data)));
+        when(gridFsTemplate.store(any(), eq("test"), any(Document.class))).thenReturn(Mono.just(blobId));
 
         Video video = Video.builder()
                 .name("test")
-                .content(new byte[]{1, 2, 3})
+                .blobId(blobId.toHexString())
                 .build();
 
         Video video2 = Video.builder()
                 .name("test")
-                .content(new byte[]{1, 2, 3})
+                .blobId(blobId.toHexString())
                 .id("my-id")
                 .build();
 
@@ -68,13 +83,9 @@ class VideoServiceTest {
         FilePart filePart = mock(FilePart.class);
         when(filePart.filename()).thenReturn("test");
         when(filePart.content()).thenReturn(Flux.just(dataBufferFactory.wrap(data)));
+        when(gridFsTemplate.store(any(), eq("test"), any(Document.class))).thenReturn(Mono.just(blobId));
 
-        Video video = Video.builder()
-                .name("test")
-                .content(new byte[]{1, 2, 3})
-                .build();
-
-        when(videoRepository.save(video)).thenThrow(new RuntimeException());
+        when(videoRepository.save(any())).thenThrow(new RuntimeException());
 
         StepVerifier.create(videoService.saveVideo(filePart)).verifyErrorSatisfies(error -> {
             assertTrue(error instanceof RepositoryException);
@@ -82,7 +93,7 @@ class VideoServiceTest {
     }
 
     @Test
-    void when_getVideo_success_thenSucceed(){
+    void when_getVideo_inline_thenStreamsContent(){
         Video video = Video.builder()
                 .name("test")
                 .id("my-id")
@@ -91,11 +102,33 @@ class VideoServiceTest {
 
         when(videoRepository.findById("my-id")).thenReturn(Mono.just(video));
 
-        StepVerifier.create(videoService.getVideo("my-id")).consumeNextWith(inputStreamResource -> {
-           assertTrue(inputStreamResource.exists());
-        }).verifyComplete();
+        StepVerifier.create(videoService.getVideo("my-id").flatMapMany(content -> content))
+                .consumeNextWith(dataBuffer -> assertEquals(3, dataBuffer.readableByteCount()))
+                .verifyComplete();
+
+        verifyNoInteractions(gridFsTemplate);
+    }
 
+    @Test
+    void when_getVideo_migrated_thenStreamsGridFsChunks(){
+        Video video = Video.builder()
+                .name("test")
+                .id("my-id")
+                .blobId(blobId.toHexString())
+                .build();
+        var gridFSFile = new GridFSFile(new BsonObjectId(blobId), "test", 5, 4, new Date(), null);
+        var resource = mock(ReactiveGridFsResource.class);
+        var factory = DefaultDataBufferFactory.sharedInstance;
 
+        when(videoRepository.findById("my-id")).thenReturn(Mono.just(video));
+        when(gridFsTemplate.findOne(any())).thenReturn(Mono.just(gridFSFile));
+        when(gridFsTemplate.getResource(gridFSFile)).thenReturn(Mono.just(resource));
+        when(resource.getDownloadStream()).thenReturn(Flux.just(factory.wrap(new byte[]{1, 2, 3, 4}), factory.wrap(new byte[]{5})));
+
+        StepVerifier.create(videoService.getVideo("my-id").flatMapMany(content -> content))
+                .consumeNextWith(dataBuffer -> assertEquals(4, dataBuffer.readableByteCount()))
+                .consumeNextWith(dataBuffer -> assertEquals(1, dataBuffer.readableByteCount()))
+                .verifyComplete();
     }
 
     @Test
@@ -109,6 +142,7 @@ class VideoServiceTest {
 
     @Test
     void when_delete_success_thenReturns(){
+        when(videoRepository.findById(anyString())).thenReturn(Mono.empty());
         when(videoRepository.deleteById(anyString()))
                 .thenReturn(Mono.empty());
 
@@ -118,8 +152,26 @@ class VideoServiceTest {
                 }).verifyComplete();
     }
 
+    @Test
+    void when_delete_migrated_thenRemovesBlob(){
+        Video video = Video.builder()
+                .id("id")
+                .blobId(blobId.toHexString())
+                .build();
+        when(videoRepository.findById("id")).thenReturn(Mono.just(video));
+        when(gridFsTemplate.delete(any())).thenReturn(Mono.empty());
+        when(videoRepository.deleteById("id")).thenReturn(Mono.empty());
+
+        StepVerifier.create(videoService.delete("id"))
+                .expectNext("id")
+                .verifyComplete();
+
+        verify(gridFsTemplate).delete(any());
+    }
+
     @Test
     void when_delete_fails_thenThrows(){
+        when(videoRepository.findById(anyString())).thenReturn(Mono.empty());
         when(videoRepository.deleteById(anyString())).thenThrow(new RuntimeException());
 
         StepVerifier.create(videoService.delete("id"))
@@ -128,4 +180,4 @@ class VideoServiceTest {
                 });
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+package com.media.quickmedia.service.cache;
+
+import com.media.quickmedia.service.cache.config.ImageCacheProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageCacheTest {
+
+    private ImageCacheProperties properties;
+    private SimpleMeterRegistry meterRegistry;
+    private AtomicInteger loads;
+
+    @BeforeEach
+    void setUp() {
+        properties = new ImageCacheProperties();
+        meterRegistry = new SimpleMeterRegistry();
+        loads = new AtomicInteger();
+    }
+
+    private Function<String, Mono<byte[]>> loader(byte[] bytes){
+        return id -> Mono.fromSupplier(() -> {
+            loads.incrementAndGet();
+            return bytes;
+        });
+    }
+
+    @Test
+    void when_get_twice_thenLoadsOnce() {
+        var imageCache = new ImageCache(properties, meterRegistry);
+
+        StepVerifier.create(imageCache.get("id", loader(new byte[]{1, 2, 3})))
+                .consumeNextWith(image -> assertArrayEquals(new byte[]{1, 2, 3}, image.getContent()))
+                .verifyComplete();
+        StepVerifier.create(imageCache.get("id", loader(new byte[]{1, 2, 3})))
+                .consumeNextWith(image -> assertArrayEquals(new byte[]{1, 2, 3}, image.getContent()))
+                .verifyComplete();
+
+        assertEquals(1, loads.get());
+        assertEquals(0.5, meterRegistry.get("quickmedia.images.cache.hit.ratio").gauge().value());
+        assertTrue(meterRegistry.get("quickmedia.images.cache.resident").gauge().value() >= 3);
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count());
+    }
+
+    @Test
+    void when_invalidate_thenReloads() {
+        var imageCache = new ImageCache(properties, meterRegistry);
+
+        imageCache.get("id", loader(new byte[]{1})).block();
+        imageCache.invalidate("id");
+        imageCache.get("id", loader(new byte[]{1})).block();
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void when_concurrentMisses_thenLoadsOnce() {
+        var imageCache = new ImageCache(properties, meterRegistry);
+        Sinks.One<byte[]> content = Sinks.one();
+        Function<String, Mono<byte[]>> loader = id -> {
+            loads.incrementAndGet();
+            return content.asMono();
+        };
+
+        var first = imageCache.get("id", loader).toFuture();
+        var second = imageCache.get("id", loader).toFuture();
+        content.tryEmitValue(new byte[]{1});
+
+        assertArrayEquals(new byte[]{1}, first.join().getContent());
+        assertArrayEquals(new byte[]{1}, second.join().getContent());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void when_invalidateDuringLoad_thenLoadNotCached() {
+        var imageCache = new ImageCache(properties, meterRegistry);
+        Sinks.One<byte[]> content = Sinks.one();
+
+        var inFlight = imageCache.get("id", id -> {
+            loads.incrementAndGet();
+            return content.asMono();
+        }).toFuture();
+        imageCache.invalidate("id");
+        content.tryEmitValue(new byte[]{1});
+        inFlight.join();
+
+        StepVerifier.create(imageCache.get("id", loader(new byte[]{2})))
+                .consumeNextWith(image -> assertArrayEquals(new byte[]{2}, image.getContent()))
+                .verifyComplete();
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void when_entryTooLarge_thenNotAdmitted() {
+        properties.setMaxEntryBytes(2);
+        var imageCache = new ImageCache(properties, meterRegistry);
+
+        imageCache.get("id", loader(new byte[]{1, 2, 3})).block();
+        StepVerifier.create(imageCache.get("id", loader(new byte[]{1, 2, 3})))
+                .consumeNextWith(image -> assertArrayEquals(new byte[]{1, 2, 3}, image.getContent()))
+                .verifyComplete();
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void when_disabled_thenAlwaysLoads() {
+        properties.setEnabled(false);
+        var imageCache = new ImageCache(properties, meterRegistry);
+
+        imageCache.get("id", loader(new byte[]{1})).block();
+        imageCache.get("id", loader(new byte[]{1})).block();
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void when_loaderEmpty_thenEmpty() {
+        var imageCache = new ImageCache(properties, meterRegistry);
+
+        StepVerifier.create(imageCache.get("id", id -> Mono.empty()))
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,96 @@
+package com.media.quickmedia.service.grpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.grpc.server.GrpcServerTransport;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
+import com.proto.service.DataChunk;
+import com.proto.service.DownloadRequest;
+import com.proto.service.DownloadResponse;
+import com.proto.service.Key;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+//bytes allocated and time taken to turn GridFS chunks into serialized downloadStream messages, wrapping the
+//chunks against copying them into a ByteString the way the stream used to. everything runs on the calling
+//thread, so its allocation counter covers the whole path. numbers go to the log, surefire skips it unless
+//the benchmark tag is let through
+@Tag("benchmark")
+@Slf4j
+public class DownloadStreamCopyBenchmarkTest {
+
+    private static final int CHUNK_SIZE = 255 * 1024;
+    private static final int CHUNKS = 256;
+    private static final int ROUNDS = 5;
+
+    @Test
+    void when_downloadStream_thenLogsAllocationWrappedAgainstCopied() throws IOException {
+        var content = new byte[CHUNK_SIZE];
+        new Random(42).nextBytes(content);
+        List<DataBuffer> chunks = IntStream.range(0, CHUNKS)
+                .mapToObj(i -> (DataBuffer) DefaultDataBufferFactory.sharedInstance.wrap(content.clone()))
+                .collect(Collectors.toList());
+
+        var mediaService = mock(MediaService.class);
+        when(mediaService.downloadStream("blob")).thenAnswer(invocation -> Flux.fromIterable(chunks));
+        var grpcVideoService = new GrpcVideoService(mediaService, new GrpcServerTransport(new GrpcServerProperties()),
+                mock(UploadSessionService.class), mock(MultipartUploadService.class));
+        var request = DownloadRequest.newBuilder().setKey(Key.newBuilder().setKey("blob").build()).build();
+
+        measure("wrapped", () -> grpcVideoService.downloadStream(Mono.just(request)));
+        measure("copied", () -> Flux.fromIterable(chunks)
+                .map(dataBuffer -> {
+                    var bytes = ByteString.copyFrom(dataBuffer.asByteBuffer());
+                    return DownloadResponse.newBuilder()
+                            .setData(DataChunk.newBuilder()
+                                    .setData(bytes)
+                                    .setSize(bytes.size())
+                                    .build()).build();
+                }));
+    }
+
+    //the sink and its buffer are reused, so serialization adds the same single copy to both paths
+    private void measure(String name, Supplier<Flux<DownloadResponse>> responses) throws IOException {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var output = CodedOutputStream.newInstance(OutputStream.nullOutputStream(), 64 * 1024);
+        long bestNanos = Long.MAX_VALUE;
+        long leastAllocated = Long.MAX_VALUE;
+        for(int round = 0; round < ROUNDS; round++){
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long started = System.nanoTime();
+            long written = 0;
+            for(DownloadResponse response : responses.get().toIterable()){
+                response.writeTo(output);
+                written += response.getData().getSize();
+            }
+            output.flush();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - started);
+            leastAllocated = Math.min(leastAllocated, threads.getCurrentThreadAllocatedBytes() - allocatedBefore);
+            assertEquals((long) CHUNK_SIZE * CHUNKS, written);
+        }
+        log.info("{}: {} KB allocated per {} KB chunk, {} MB/s", name,
+                String.format("%.1f", leastAllocated / 1024.0 / CHUNKS), CHUNK_SIZE / 1024,
+                String.format("%.1f", (double) CHUNK_SIZE * CHUNKS / 1024 / 1024 / (bestNanos / 1e9)));
+    }
+}
@@ -2,7 +2,12 @@ package com.media.quickmedia.service.grpc;
 
 import com.google.protobuf.ByteString;
 import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.model.ImagePage;
 import com.media.quickmedia.service.ImageService;
+import com.media.quickmedia.service.grpc.server.GrpcServerTransport;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import com.media.quickmedia.service.cache.CachedImage;
 import com.proto.service.*;
 import io.grpc.StatusRuntimeException;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,6 +15,7 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
@@ -19,6 +25,7 @@ import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -33,7 +40,7 @@ class GrpcImageServiceTest {
 
     @BeforeEach
     void init(){
-        grpcImageService = new GrpcImageService(imageService);
+        grpcImageService = new GrpcImageService(imageService, new GrpcServerTransport(new GrpcServerProperties()));
     }
 
     @Test
@@ -59,6 +66,43 @@ class GrpcImageServiceTest {
                 }).verifyComplete();
     }
 
+    @Test
+    void when_downloadImages_success_thenReturnsPage() {
+        var imagePage = ImagePage.builder()
+                .images(List.of(Image.builder().id("a").name("first").content(new byte[]{1, 2}).build(),
+                        Image.builder().id("b").name("second").build()))
+                .lastId("b")
+                .hasMore(true)
+                .build();
+        when(imageService.listImages("start", 2, true, 100)).thenReturn(Mono.just(imagePage));
+        var request = DownloadAllImagesRequest.newBuilder()
+                .setStartId("start")
+                .setPageSize("2")
+                .setMetadataOnly(true)
+                .setMaxBytes(100)
+                .build();
+
+        StepVerifier.create(grpcImageService.downloadImages(Mono.just(request)))
+                .consumeNextWith(response -> {
+                    assertEquals(2, response.getImageResponseCount());
+                    assertEquals("first", response.getImageResponse(0).getName());
+                    assertEquals(2, response.getImageResponse(0).getDataChunk().getSize());
+                    assertFalse(response.getImageResponse(1).hasDataChunk());
+                    assertEquals("b", response.getLastId());
+                    assertTrue(response.getHasMore());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_downloadImages_badPageSize_thenThrows() {
+        var request = DownloadAllImagesRequest.newBuilder()
+                .setPageSize("many")
+                .build();
+
+        StepVerifier.create(grpcImageService.downloadImages(Mono.just(request)))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof StatusRuntimeException));
+    }
+
     @Test
     void when_upload_fails_thenThrows(){
         when(imageService.saveImage(any(), anyString())).thenThrow(new RuntimeException());
@@ -80,11 +124,12 @@ class GrpcImageServiceTest {
 
     @Test
     void when_download_success_thenSuccess() {
-        var byteArrayInputStream = new ByteArrayInputStream(new byte[]{1, 2, 3});
-        when(imageService.getImageStream(any())).thenReturn(Mono.just(byteArrayInputStream));
+        var response = CachedImage.of(new byte[]{1, 2, 3}).toResponse();
+        when(imageService.getDownloadResponse("my-id", 256)).thenReturn(Mono.just(response));
         var downloadRequest = DownloadRequest.newBuilder()
                         .setKey(Key.newBuilder()
-                                .setKey("my-id").build()).build();
+                                .setKey("my-id").build())
+                        .setSize(256).build();
 
         StepVerifier.create(grpcImageService.download(Mono.just(downloadRequest)))
                 .consumeNextWith(downloadResponse -> {
@@ -94,8 +139,7 @@ class GrpcImageServiceTest {
 
     @Test
     void when_download_fails_thenThrows(){
-        var byteArrayInputStream = new ByteArrayInputStream(new byte[]{1, 2, 3});
-        when(imageService.getImageStream(any())).thenThrow(new RuntimeException());
+        when(imageService.getDownloadResponse(any(), anyInt())).thenThrow(new RuntimeException());
         var downloadRequest = DownloadRequest.newBuilder()
                 .setKey(Key.newBuilder()
                         .setKey("my-id").build()).build();
@@ -136,20 +180,41 @@ class GrpcImageServiceTest {
 
     @Test
     void when_uploadBatch_success_thenReturns(){
-        var images = List.of(Image.builder().id("hey").build(), Image.builder().id("world").build());
-        when(imageService.batchUpload(any())).thenReturn(Mono.just(images));
+        var results = List.of(UploadResult.builder().index(0).id("hey").build(),
+                UploadResult.builder().index(1).name("world").error("duplicate key").build());
+        when(imageService.batchUpload(any())).thenReturn(Mono.just(results));
 
         var request = BatchUploadRequest.getDefaultInstance();
 
         StepVerifier.create(grpcImageService.batchUpload(Mono.just(request)))
                 .consumeNextWith(batchUploadResponse -> {
                     assertEquals(2, batchUploadResponse.getUploadResponseList().size());
-                    var set = Set.of("hey", "world");
-                    assertTrue(set.contains(batchUploadResponse.getUploadResponseList().get(0).getKey().getKey()));
-                    assertTrue(set.contains(batchUploadResponse.getUploadResponseList().get(1).getKey().getKey()));
-
+                    assertEquals("hey", batchUploadResponse.getUploadResponse(0).getKey().getKey());
+                    assertTrue(batchUploadResponse.getUploadResponse(0).getError().isEmpty());
+                    assertFalse(batchUploadResponse.getUploadResponse(1).hasKey());
+                    assertEquals("duplicate key", batchUploadResponse.getUploadResponse(1).getError());
                 }).verifyComplete();
     }
+    @Test
+    void when_batchUploadStream_thenAcksEachItem(){
+        var results = Flux.just(UploadResult.builder().index(0).id("hey").build(),
+                UploadResult.builder().index(1).error("too large").build());
+        when(imageService.batchUploadStream(any())).thenReturn(results);
+
+        StepVerifier.create(grpcImageService.batchUploadStream(Flux.just(UploadRequest.getDefaultInstance())))
+                .consumeNextWith(response -> assertEquals("hey", response.getKey().getKey()))
+                .consumeNextWith(response -> assertEquals("too large", response.getError()))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_batchUploadStream_fails_thenThrows(){
+        when(imageService.batchUploadStream(any())).thenReturn(Flux.error(new RuntimeException()));
+
+        StepVerifier.create(grpcImageService.batchUploadStream(Flux.just(UploadRequest.getDefaultInstance())))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof StatusRuntimeException));
+    }
+
     @Test
     void when_uploadBatch_fails_thenThrows(){
         var images = List.of(Image.builder().id("hey").build(), Image.builder().id("world").build());
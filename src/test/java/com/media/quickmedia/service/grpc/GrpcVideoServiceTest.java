@@ -1,25 +1,41 @@
 package com.media.quickmedia.service.grpc;
 
 import com.google.protobuf.ByteString;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.model.UploadSession;
 import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.grpc.server.GrpcServerTransport;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
+import com.mongodb.client.gridfs.model.GridFSFile;
 import com.proto.service.*;
 import io.grpc.StatusRuntimeException;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.bson.BsonObjectId;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Date;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -30,9 +46,16 @@ class GrpcVideoServiceTest {
     @Mock
     MediaService mediaService;
 
+    @Mock
+    UploadSessionService uploadSessionService;
+
+    @Mock
+    MultipartUploadService multipartUploadService;
+
     @BeforeEach
     void init(){
-        grpcVideoService = new GrpcVideoService(mediaService);
+        grpcVideoService = new GrpcVideoService(mediaService, new GrpcServerTransport(new GrpcServerProperties()),
+                uploadSessionService, multipartUploadService);
     }
 
     @Test
@@ -110,7 +133,7 @@ class GrpcVideoServiceTest {
     @Test
     void when_downloadStream_success_thenReturns() {
         var bytes = new byte[]{1, 2, 3};
-        when(mediaService.downloadStream(any())).thenReturn(Flux.just(bytes));
+        when(mediaService.downloadStream(any())).thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(bytes)));
         var downloadRequest = DownloadRequest.newBuilder()
                 .setKey(Key.newBuilder()
                         .setKey("my-id").build()).build();
@@ -121,6 +144,50 @@ class GrpcVideoServiceTest {
                 }).verifyComplete();
     }
 
+    @Test
+    void when_downloadStream_success_thenWrapsReadableBytesWithoutCopy() {
+        var bytes = new byte[]{1, 2, 3, 4};
+        var dataBuffer = DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+        dataBuffer.readPosition(1);
+        when(mediaService.downloadStream(any())).thenReturn(Flux.just(dataBuffer));
+        var downloadRequest = DownloadRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("my-id").build()).build();
+
+        StepVerifier.create(grpcVideoService.downloadStream(Mono.just(downloadRequest)))
+                .consumeNextWith(downloadResponse -> {
+                    var data = downloadResponse.getData().getData();
+                    assertEquals(3, downloadResponse.getData().getSize());
+                    assertEquals(2, data.byteAt(0));
+                    bytes[1] = 9;
+                    assertEquals(9, data.byteAt(0));
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_downloadStream_pooledBuffers_thenCopiedAndReleased() {
+        var nettyFactory = new NettyDataBufferFactory(PooledByteBufAllocator.DEFAULT);
+        var first = nettyFactory.allocateBuffer(3).write(new byte[]{1, 2, 3});
+        var second = nettyFactory.allocateBuffer(2).write(new byte[]{4, 5});
+        when(mediaService.downloadStream(any())).thenReturn(Flux.just(first, second));
+        var downloadRequest = DownloadRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("my-id").build()).build();
+
+        StepVerifier.create(grpcVideoService.downloadStream(Mono.just(downloadRequest)))
+                .consumeNextWith(downloadResponse -> {
+                    assertEquals(0, first.getNativeBuffer().refCnt());
+                    assertEquals(1, downloadResponse.getData().getData().byteAt(0));
+                })
+                .consumeNextWith(downloadResponse -> {
+                    assertEquals(0, second.getNativeBuffer().refCnt());
+                    assertEquals(4, downloadResponse.getData().getData().byteAt(0));
+                })
+                .verifyComplete();
+
+        assertEquals(0, second.getNativeBuffer().refCnt());
+    }
+
     @Test
     void when_downloadStream_fails_thenThrows(){
         var bytes = new byte[]{1, 2, 3};
@@ -135,12 +202,101 @@ class GrpcVideoServiceTest {
                 });
     }
 
+    @Test
+    void when_downloadRange_success_thenReturnsOffsets() {
+        var first = DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2});
+        var second = DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{3, 4, 5});
+        when(mediaService.downloadStream("my-id", 100, 5)).thenReturn(Flux.just(first, second));
+        var rangeRequest = RangeDownloadRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("my-id").build())
+                .setOffset(100)
+                .setLength(5).build();
+
+        StepVerifier.create(grpcVideoService.downloadRange(Mono.just(rangeRequest)))
+                .consumeNextWith(downloadResponse -> {
+                    assertEquals(100, downloadResponse.getData().getOffset());
+                    assertEquals(2, downloadResponse.getData().getSize());
+                })
+                .consumeNextWith(downloadResponse -> {
+                    assertEquals(102, downloadResponse.getData().getOffset());
+                    assertEquals(3, downloadResponse.getData().getSize());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_downloadRange_fails_thenThrows(){
+        when(mediaService.downloadStream(anyString(), anyLong(), anyLong())).thenThrow(new RuntimeException());
+        var rangeRequest = RangeDownloadRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("my-id").build()).build();
+
+        StepVerifier.create(grpcVideoService.downloadRange(Mono.just(rangeRequest)))
+                .verifyErrorSatisfies(error->{
+                    assertTrue(error instanceof StatusRuntimeException);
+                });
+    }
+
+    @Test
+    void when_stat_success_thenReturns() {
+        var gridFSFile = new GridFSFile(new BsonObjectId(new ObjectId("62c314e22525c96a4ae223b3")),
+                "first-upload.mkv", 1024, 255, new Date(), null);
+        when(mediaService.describe("62c314e22525c96a4ae223b3")).thenReturn(Mono.just(new MediaService.MediaStat("movie.mkv", gridFSFile)));
+        var statRequest = StatRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("62c314e22525c96a4ae223b3").build()).build();
+
+        StepVerifier.create(grpcVideoService.stat(Mono.just(statRequest)))
+                .consumeNextWith(statResponse -> {
+                    assertEquals("62c314e22525c96a4ae223b3", statResponse.getKey().getKey());
+                    assertEquals("movie.mkv", statResponse.getName());
+                    assertEquals(1024, statResponse.getLength());
+                    assertEquals(255, statResponse.getChunkSize());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_stat_fails_thenThrows(){
+        when(mediaService.describe(anyString())).thenThrow(new RuntimeException());
+
+        StepVerifier.create(grpcVideoService.stat(Mono.just(StatRequest.getDefaultInstance())))
+                .verifyErrorSatisfies(error->{
+                    assertTrue(error instanceof StatusRuntimeException);
+                });
+    }
+
+    @Test
+    void when_getMetaData_success_thenReturns() {
+        var response = MetaDataResponse.newBuilder()
+                .addMetaData(ImageMetaData.newBuilder().setKey("Content-Type").setValue("video/mp4").build())
+                .build();
+        when(mediaService.getMetaData(any())).thenReturn(Mono.just(response));
+        var metaDataRequest = MetaDataRequest.newBuilder()
+                .setKey(Key.newBuilder()
+                        .setKey("62c314e22525c96a4ae223b3").build()).build();
+
+        StepVerifier.create(grpcVideoService.getMetaData(Mono.just(metaDataRequest)))
+                .consumeNextWith(next -> assertEquals("video/mp4", next.getMetaData(0).getValue()))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_getMetaData_fails_thenThrows(){
+        when(mediaService.getMetaData(any())).thenReturn(Mono.error(new RuntimeException()));
+
+        StepVerifier.create(grpcVideoService.getMetaData(Mono.just(MetaDataRequest.getDefaultInstance())))
+                .verifyErrorSatisfies(error->{
+                    assertTrue(error instanceof StatusRuntimeException);
+                });
+    }
+
     @Test
     void when_uploadStream_success_thenReturns() {
         var byteString = ByteString.copyFrom(new byte[]{1, 2, 3});
         ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
 
-        when(mediaService.uploadStream(any(), anyString())).thenReturn(Mono.just(expected));
+        when(mediaService.uploadStream(any(), anyString(), eq(0))).thenReturn(Mono.just(expected));
         var uploadRequest = UploadRequest.newBuilder()
                 .setData(
                         DataChunk.newBuilder()
@@ -163,7 +319,7 @@ class GrpcVideoServiceTest {
         var byteString = ByteString.copyFrom(new byte[]{1, 2, 3});
         ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
 
-        when(mediaService.uploadStream(any(), anyString())).thenThrow(new RuntimeException());
+        when(mediaService.uploadStream(any(), anyString(), eq(0))).thenThrow(new RuntimeException());
         var uploadRequest = UploadRequest.newBuilder()
                 .setData(
                         DataChunk.newBuilder()
@@ -180,6 +336,57 @@ class GrpcVideoServiceTest {
                 });
     }
 
+    @Test
+    void when_uploadStream_multipleChunks_thenStreamsToService() {
+        ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
+        var requests = Flux.just(
+                UploadRequest.newBuilder()
+                        .setData(DataChunk.newBuilder()
+                                .setData(ByteString.copyFrom(new byte[]{1, 2, 3})).build())
+                        .setKey(Key.newBuilder().setKey("my-file").build()).build(),
+                UploadRequest.newBuilder()
+                        .setData(DataChunk.newBuilder()
+                                .setData(ByteString.copyFrom(new byte[]{4, 5})).build()).build());
+
+        when(mediaService.uploadStream(any(), eq("my-file"), eq(0))).thenAnswer(invocation -> {
+            Flux<ByteString> chunks = invocation.getArgument(0);
+            return chunks.map(ByteString::size)
+                    .reduce(Integer::sum)
+                    .doOnNext(total -> assertEquals(5, total))
+                    .thenReturn(expected);
+        });
+
+        StepVerifier.create(grpcVideoService.uploadStream(requests))
+                .consumeNextWith(uploadResponse -> {
+                    assertEquals(expected.toHexString(), uploadResponse.getKey().getKey());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_uploadStream_chunkSizeOnFirst_thenPassesIt() {
+        ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
+        when(mediaService.uploadStream(any(), eq("my-file"), eq(1024 * 1024))).thenReturn(Mono.just(expected));
+        var uploadRequest = UploadRequest.newBuilder()
+                .setData(DataChunk.newBuilder()
+                        .setData(ByteString.copyFrom(new byte[]{1, 2, 3})).build())
+                .setKey(Key.newBuilder().setKey("my-file").build())
+                .setChunkSize(1024 * 1024)
+                .build();
+
+        StepVerifier.create(grpcVideoService.uploadStream(Flux.just(uploadRequest)))
+                .consumeNextWith(uploadResponse -> {
+                    assertEquals(expected.toHexString(), uploadResponse.getKey().getKey());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_uploadStream_empty_thenThrows(){
+        StepVerifier.create(grpcVideoService.uploadStream(Flux.empty()))
+                .verifyErrorSatisfies(error->{
+                    assertTrue(error instanceof StatusRuntimeException);
+                });
+    }
+
     @Test
     void when_deleteVideo_success_thenReturns(){
         ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
@@ -213,9 +420,10 @@ class GrpcVideoServiceTest {
 
     @Test
     void when_batchUploadVideo_success_thenReturns(){
-        ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
-        var objectIds = List.of(expected, expected, expected);
-        when(mediaService.batchUpload(any())).thenReturn(Mono.just(objectIds));
+        var results = List.of(UploadResult.builder().index(0).id("62c314e22525c96a4ae223b3").build(),
+                UploadResult.builder().index(1).id("62c314e22525c96a4ae223b4").build(),
+                UploadResult.builder().index(2).error("gridfs down").build());
+        when(mediaService.batchUpload(any())).thenReturn(Mono.just(results));
 
         var request = BatchUploadRequest.getDefaultInstance();
 
@@ -223,14 +431,25 @@ class GrpcVideoServiceTest {
                 next->{
                     assertEquals(3, next.getUploadResponseList().size());
                     assertEquals("62c314e22525c96a4ae223b3", next.getUploadResponseList().get(0).getKey().getKey());
+                    assertEquals("gridfs down", next.getUploadResponse(2).getError());
                 }
         ).verifyComplete();
     }
 
+    @Test
+    void when_batchUploadStream_thenAcksEachItem(){
+        var results = Flux.just(UploadResult.builder().index(0).id("62c314e22525c96a4ae223b3").build(),
+                UploadResult.builder().index(1).error("gridfs down").build());
+        when(mediaService.batchUploadStream(any())).thenReturn(results);
+
+        StepVerifier.create(grpcVideoService.batchUploadStream(Flux.just(UploadRequest.getDefaultInstance())))
+                .consumeNextWith(response -> assertEquals("62c314e22525c96a4ae223b3", response.getKey().getKey()))
+                .consumeNextWith(response -> assertEquals("gridfs down", response.getError()))
+                .verifyComplete();
+    }
+
     @Test
     void when_batchUploadVideo_fails_thenThrows(){
-        ObjectId expected = new ObjectId("62c314e22525c96a4ae223b3");
-        var objectIds = List.of(expected, expected, expected);
         when(mediaService.batchUpload(any())).thenThrow(new RuntimeException());
 
         var request = BatchUploadRequest.getDefaultInstance();
@@ -241,4 +460,72 @@ class GrpcVideoServiceTest {
                     }
         );
     }
-}
\ No newline at end of file
+
+    @Test
+    void when_appendChunks_thenAcksCommittedOffsets(){
+        var expiresAt = Instant.ofEpochSecond(1000);
+        when(uploadSessionService.append(eq("session"), eq(0L), any(), eq(7L)))
+                .thenReturn(Mono.just(UploadSession.builder().id("session").committedOffset(3).expiresAt(expiresAt).build()));
+        when(uploadSessionService.append(eq("session"), eq(3L), any(), eq(null)))
+                .thenReturn(Mono.just(UploadSession.builder().id("session").committedOffset(5).expiresAt(expiresAt).build()));
+        var first = AppendChunkRequest.newBuilder().setSessionId("session").setOffset(0)
+                .setData(ByteString.copyFrom(new byte[]{1, 2, 3})).setCrc32C(7).build();
+        var second = AppendChunkRequest.newBuilder().setSessionId("session").setOffset(3)
+                .setData(ByteString.copyFrom(new byte[]{4, 5})).build();
+
+        StepVerifier.create(grpcVideoService.appendChunks(Flux.just(first, second)))
+                .consumeNextWith(response -> {
+                    assertEquals(3, response.getCommittedOffset());
+                    assertEquals(1000, response.getExpiresAt().getSeconds());
+                })
+                .consumeNextWith(response -> assertEquals(5, response.getCommittedOffset()))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_appendChunk_fails_thenThrows(){
+        when(uploadSessionService.append(anyString(), anyLong(), any(), any()))
+                .thenReturn(Mono.error(new RuntimeException("expects offset 3")));
+
+        StepVerifier.create(grpcVideoService.appendChunk(Mono.just(AppendChunkRequest.newBuilder()
+                        .setSessionId("session").setOffset(9).setData(ByteString.copyFrom(new byte[]{1})).build())))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof StatusRuntimeException));
+    }
+
+    @Test
+    void when_finishUploadSession_thenReturnsKey(){
+        when(uploadSessionService.finish("session", 5)).thenReturn(Mono.just("62c314e22525c96a4ae223b3"));
+
+        StepVerifier.create(grpcVideoService.finishUploadSession(Mono.just(FinishUploadSessionRequest.newBuilder()
+                        .setSessionId("session").setLength(5).build())))
+                .consumeNextWith(response -> assertEquals("62c314e22525c96a4ae223b3", response.getKey().getKey()))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_uploadPart_thenStreamsPartData(){
+        when(multipartUploadService.uploadPart(eq("upload"), eq(3), any())).thenAnswer(invocation -> {
+            Flux<ByteBuffer> content = invocation.getArgument(2);
+            return content.map(ByteBuffer::remaining).reduce(0L, Long::sum);
+        });
+        var first = UploadPartRequest.newBuilder().setUploadId("upload").setPartNumber(3)
+                .setData(ByteString.copyFrom(new byte[]{1, 2})).build();
+        var second = UploadPartRequest.newBuilder().setData(ByteString.copyFrom(new byte[]{3})).build();
+
+        StepVerifier.create(grpcVideoService.uploadPart(Flux.just(first, second)))
+                .consumeNextWith(response -> {
+                    assertEquals(3, response.getPartNumber());
+                    assertEquals(3, response.getLength());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_completeMultipartUpload_fails_thenThrows(){
+        when(multipartUploadService.complete("upload", 0)).thenReturn(Mono.error(new RuntimeException("missing part 2")));
+
+        StepVerifier.create(grpcVideoService.completeMultipartUpload(Mono.just(CompleteMultipartUploadRequest.newBuilder()
+                        .setUploadId("upload").build())))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof StatusRuntimeException));
+    }
+}
@@ -0,0 +1,175 @@
+package com.media.quickmedia.service.grpc.server;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.google.protobuf.UnsafeByteOperations;
+import com.media.quickmedia.service.ImageService;
+import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.grpc.GrpcImageService;
+import com.media.quickmedia.service.grpc.GrpcVideoService;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties.ExecutorMode;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
+import com.proto.service.DataChunk;
+import com.proto.service.DownloadRequest;
+import com.proto.service.DownloadResponse;
+import com.proto.service.Key;
+import com.proto.service.ReactorImageServiceGrpc;
+import com.proto.service.ReactorVideoServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+//image download throughput per executor mode while video streams run next to it, over loopback netty.
+//content comes from memory and every call checksums what it serves so the callbacks do some cpu work.
+//numbers go to the log, surefire skips it unless the benchmark tag is let through
+@Tag("benchmark")
+@Slf4j
+public class GrpcServerExecutorsBenchmarkTest {
+
+    private static final int IMAGE_SIZE = 64 * 1024;
+    private static final int IMAGE_CALLS = 2000;
+    private static final int IMAGE_CONCURRENCY = 32;
+    private static final int VIDEO_CHUNK_SIZE = 255 * 1024;
+    private static final int VIDEO_CHUNKS = 64;
+    private static final int VIDEO_STREAMS = 4;
+
+    private Level rootLevel;
+
+    //outside spring logback logs everything at debug, and a line per call would be most of what gets measured
+    @BeforeEach
+    void quietLogs(){
+        var root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        rootLevel = root.getLevel();
+        root.setLevel(Level.WARN);
+        ((Logger) LoggerFactory.getLogger(getClass())).setLevel(Level.INFO);
+    }
+
+    @AfterEach
+    void restoreLogs(){
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(rootLevel);
+    }
+
+    @Test
+    void when_mixedLoad_thenLogsThroughputPerExecutorMode() throws Exception {
+        var random = new Random(42);
+        var image = new byte[IMAGE_SIZE];
+        random.nextBytes(image);
+        var chunk = new byte[VIDEO_CHUNK_SIZE];
+        random.nextBytes(chunk);
+
+        var imageService = mock(ImageService.class);
+        when(imageService.getDownloadResponse(anyString(), anyInt())).thenAnswer(invocation -> Mono.fromSupplier(() -> {
+            checksum(image);
+            return DownloadResponse.newBuilder()
+                    .setData(DataChunk.newBuilder().setData(UnsafeByteOperations.unsafeWrap(image)).build())
+                    .build();
+        }));
+        var mediaService = mock(MediaService.class);
+        when(mediaService.downloadStream(anyString())).thenAnswer(invocation -> Flux.range(0, VIDEO_CHUNKS)
+                .map(i -> {
+                    checksum(chunk);
+                    return (DataBuffer) DefaultDataBufferFactory.sharedInstance.wrap(chunk);
+                }));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        //an unlogged pass so the first mode measured is not the one paying for the jit
+        run(null, ExecutorMode.FORK_JOIN, cores, imageService, mediaService);
+        run("fork join, 1 thread", ExecutorMode.FORK_JOIN, 1, imageService, mediaService);
+        run("direct", ExecutorMode.DIRECT, cores, imageService, mediaService);
+        run(String.format("fork join, %d threads", cores), ExecutorMode.FORK_JOIN, cores, imageService, mediaService);
+        run(String.format("per service, %d threads each", cores), ExecutorMode.PER_SERVICE, cores, imageService, mediaService);
+    }
+
+    private void run(String name, ExecutorMode mode, int threads, ImageService imageService, MediaService mediaService)
+            throws Exception {
+        var properties = new GrpcServerProperties();
+        properties.setPort(0);
+        properties.setExecutor(mode);
+        properties.setThreads(threads);
+        //random content does not compress, gzip would only add the same cost to every mode
+        properties.setResponseCompression("");
+        var executors = new GrpcServerExecutors(properties);
+        var transport = new GrpcServerTransport(properties);
+        var serverBuilder = NettyServerBuilder.forPort(0)
+                .addService(new GrpcImageService(imageService, transport))
+                .addService(new GrpcVideoService(mediaService, transport, mock(UploadSessionService.class),
+                        mock(MultipartUploadService.class)));
+        executors.configure(serverBuilder);
+        transport.configure(serverBuilder);
+        Server server = serverBuilder.build();
+        ManagedChannel channel = null;
+        try {
+            server.start();
+            channel = NettyChannelBuilder.forAddress("localhost", server.getPort())
+                    .usePlaintext()
+                    .flowControlWindow(properties.getFlowControlWindow())
+                    .maxInboundMessageSize(properties.getMaxInboundMessageSize())
+                    .build();
+            var images = ReactorImageServiceGrpc.newReactorStub(channel);
+            var videos = ReactorVideoServiceGrpc.newReactorStub(channel);
+            var request = DownloadRequest.newBuilder().setKey(Key.newBuilder().setKey("blob").build()).build();
+
+            Mono.defer(() -> images.download(Mono.just(request))).repeat(200).blockLast();
+
+            var videoBytes = new AtomicLong();
+            var videoLoad = Flux.range(0, VIDEO_STREAMS)
+                    .flatMap(i -> Flux.defer(() -> videos.downloadStream(Mono.just(request))).repeat(), VIDEO_STREAMS)
+                    .subscribe(response -> videoBytes.addAndGet(response.getData().getData().size()));
+            long started = System.nanoTime();
+            long served = Flux.range(0, IMAGE_CALLS)
+                    .flatMap(i -> images.download(Mono.just(request)), IMAGE_CONCURRENCY)
+                    .count()
+                    .block();
+            long elapsed = System.nanoTime() - started;
+            long streamed = videoBytes.get();
+            videoLoad.dispose();
+
+            assertEquals(IMAGE_CALLS, served);
+            if(name == null){
+                return;
+            }
+            log.info("{}: {} image calls/s next to {} MB/s of video", name,
+                    String.format("%.0f", IMAGE_CALLS / (elapsed / 1e9)),
+                    String.format("%.1f", streamed / 1024.0 / 1024.0 / (elapsed / 1e9)));
+        } finally {
+            //the server goes first so cancelled video streams are not written to a closing connection
+            server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            if(channel != null){
+                channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            }
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            transport.shutdown();
+            executors.shutdown();
+        }
+    }
+
+    private static long checksum(byte[] content){
+        var crc = new CRC32C();
+        crc.update(content);
+        return crc.getValue();
+    }
+}
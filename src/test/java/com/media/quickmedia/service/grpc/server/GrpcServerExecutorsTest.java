@@ -0,0 +1,77 @@
+package com.media.quickmedia.service.grpc.server;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import com.proto.service.ImageServiceGrpc;
+import com.proto.service.VideoServiceGrpc;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GrpcServerExecutorsTest {
+
+    private static final String IMAGES = ImageServiceGrpc.SERVICE_NAME;
+    private static final String VIDEOS = VideoServiceGrpc.SERVICE_NAME;
+
+    private GrpcServerProperties properties;
+
+    private GrpcServerExecutors grpcServerExecutors;
+
+    @BeforeEach
+    void setUp() {
+        properties = new GrpcServerProperties();
+        grpcServerExecutors = new GrpcServerExecutors(properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        grpcServerExecutors.shutdown();
+    }
+
+    @Test
+    void when_direct_thenRunsOnCaller() {
+        properties.setExecutor(GrpcServerProperties.ExecutorMode.DIRECT);
+
+        assertSame(MoreExecutors.directExecutor(), grpcServerExecutors.executorFor(IMAGES));
+    }
+
+    @Test
+    void when_forkJoin_thenSharedPoolSizedToThreads() {
+        properties.setThreads(3);
+
+        var executor = grpcServerExecutors.executorFor(IMAGES);
+
+        assertSame(executor, grpcServerExecutors.executorFor(VIDEOS));
+        assertEquals(3, ((ForkJoinPool) executor).getParallelism());
+    }
+
+    @Test
+    void when_perService_thenServicesIsolated() throws InterruptedException {
+        properties.setExecutor(GrpcServerProperties.ExecutorMode.PER_SERVICE);
+        properties.setThreads(2);
+        properties.getServiceThreads().put(VIDEOS, 1);
+        var release = new CountDownLatch(1);
+        var imageRan = new CountDownLatch(1);
+
+        //a stuck video call holds its whole pool
+        grpcServerExecutors.executorFor(VIDEOS).execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        grpcServerExecutors.executorFor(IMAGES).execute(imageRan::countDown);
+
+        assertTrue(imageRan.await(1, TimeUnit.SECONDS));
+        assertNotSame(grpcServerExecutors.executorFor(IMAGES), grpcServerExecutors.executorFor(VIDEOS));
+        assertEquals(1, ((ForkJoinPool) grpcServerExecutors.executorFor(VIDEOS)).getParallelism());
+        release.countDown();
+    }
+}
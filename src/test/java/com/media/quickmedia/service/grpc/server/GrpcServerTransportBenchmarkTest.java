@@ -0,0 +1,134 @@
+package com.media.quickmedia.service.grpc.server;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.grpc.GrpcVideoService;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
+import com.proto.service.DownloadRequest;
+import com.proto.service.Key;
+import com.proto.service.ReactorVideoServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.epoll.Epoll;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+//downloadStream throughput over loopback netty per transport setting, the http/2 default window against the
+//configured large one, and nio against epoll where the native library loads. loopback has next to no
+//latency, so the window matters far less here than across a real network. numbers go to the log,
+//surefire skips it unless the benchmark tag is let through
+@Tag("benchmark")
+@Slf4j
+public class GrpcServerTransportBenchmarkTest {
+
+    private static final int CHUNK_SIZE = 255 * 1024;
+    private static final int CHUNKS = 256;
+    private static final int ROUNDS = 3;
+    //the initial window http/2 starts every stream with
+    private static final int HTTP2_DEFAULT_WINDOW = 65535;
+
+    private Level rootLevel;
+
+    //outside spring logback runs at debug, and netty logging every frame would slow the transport being measured
+    @BeforeEach
+    void quietLogs(){
+        var root = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        rootLevel = root.getLevel();
+        root.setLevel(Level.WARN);
+        ((Logger) LoggerFactory.getLogger(getClass())).setLevel(Level.INFO);
+    }
+
+    @AfterEach
+    void restoreLogs(){
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(rootLevel);
+    }
+
+    @Test
+    void when_downloadStream_thenLogsThroughputPerTransport() throws Exception {
+        var chunk = new byte[CHUNK_SIZE];
+        new Random(42).nextBytes(chunk);
+        var mediaService = mock(MediaService.class);
+        when(mediaService.downloadStream(anyString())).thenAnswer(invocation -> Flux.range(0, CHUNKS)
+                .map(i -> (DataBuffer) DefaultDataBufferFactory.sharedInstance.wrap(chunk)));
+
+        int largeWindow = new GrpcServerProperties().getFlowControlWindow();
+        run("nio, 64 KB window", false, HTTP2_DEFAULT_WINDOW, mediaService);
+        run(String.format("nio, %d KB window", largeWindow / 1024), false, largeWindow, mediaService);
+        if(Epoll.isAvailable()){
+            run(String.format("epoll, %d KB window", largeWindow / 1024), true, largeWindow, mediaService);
+        } else {
+            log.info("epoll is not available here: {}", Epoll.unavailabilityCause().getMessage());
+        }
+    }
+
+    private void run(String name, boolean nativeTransport, int flowControlWindow, MediaService mediaService) throws Exception {
+        var properties = new GrpcServerProperties();
+        properties.setNativeTransport(nativeTransport);
+        properties.setFlowControlWindow(flowControlWindow);
+        //random content does not compress, gzip would only hide the transport behind the deflater
+        properties.setResponseCompression("");
+        var executors = new GrpcServerExecutors(properties);
+        var transport = new GrpcServerTransport(properties);
+        var serverBuilder = NettyServerBuilder.forPort(0)
+                .addService(new GrpcVideoService(mediaService, transport, mock(UploadSessionService.class),
+                        mock(MultipartUploadService.class)));
+        executors.configure(serverBuilder);
+        transport.configure(serverBuilder);
+        Server server = serverBuilder.build();
+        ManagedChannel channel = null;
+        try {
+            server.start();
+            channel = NettyChannelBuilder.forAddress("localhost", server.getPort())
+                    .usePlaintext()
+                    .flowControlWindow(flowControlWindow)
+                    .build();
+            var videos = ReactorVideoServiceGrpc.newReactorStub(channel);
+            var request = DownloadRequest.newBuilder().setKey(Key.newBuilder().setKey("blob").build()).build();
+
+            long best = Long.MAX_VALUE;
+            //the first round only warms up the connection and the jit
+            for(int round = 0; round <= ROUNDS; round++){
+                long started = System.nanoTime();
+                long received = videos.downloadStream(Mono.just(request))
+                        .map(response -> (long) response.getData().getData().size())
+                        .reduce(0L, Long::sum)
+                        .block();
+                if(round > 0){
+                    best = Math.min(best, System.nanoTime() - started);
+                }
+                assertEquals((long) CHUNK_SIZE * CHUNKS, received);
+            }
+            log.info("{}: {} MB/s downloadStream", name,
+                    String.format("%.1f", (double) CHUNK_SIZE * CHUNKS / 1024 / 1024 / (best / 1e9)));
+        } finally {
+            server.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            if(channel != null){
+                channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            }
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            transport.shutdown();
+            executors.shutdown();
+        }
+    }
+}
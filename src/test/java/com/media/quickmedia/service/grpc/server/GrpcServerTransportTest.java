@@ -0,0 +1,171 @@
+package com.media.quickmedia.service.grpc.server;
+
+import com.google.protobuf.ByteString;
+import com.media.quickmedia.service.MediaService;
+import com.media.quickmedia.service.grpc.GrpcVideoService;
+import com.media.quickmedia.service.grpc.server.config.GrpcServerProperties;
+import com.media.quickmedia.service.upload.MultipartUploadService;
+import com.media.quickmedia.service.upload.UploadSessionService;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.proto.service.DataChunk;
+import com.proto.service.DownloadRequest;
+import com.proto.service.Key;
+import com.proto.service.StatRequest;
+import com.proto.service.UploadRequest;
+import com.proto.service.VideoServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import org.bson.BsonObjectId;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.salesforce.reactorgrpc.stub.ReactorCallOptions.CALL_OPTIONS_LOW_TIDE;
+import static com.salesforce.reactorgrpc.stub.ReactorCallOptions.CALL_OPTIONS_PREFETCH;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class GrpcServerTransportTest {
+
+    @Mock
+    private MediaService mediaService;
+
+    @Mock
+    private UploadSessionService uploadSessionService;
+
+    @Mock
+    private MultipartUploadService multipartUploadService;
+
+    private GrpcServerProperties properties;
+
+    private GrpcServerTransport grpcServerTransport;
+
+    private Server server;
+
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void setUp() {
+        properties = new GrpcServerProperties();
+        grpcServerTransport = new GrpcServerTransport(properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if(channel != null){
+            channel.shutdownNow();
+        }
+        if(server != null){
+            server.shutdownNow();
+        }
+        grpcServerTransport.shutdown();
+    }
+
+    private VideoServiceGrpc.VideoServiceBlockingStub start() throws IOException {
+        var serverBuilder = NettyServerBuilder.forPort(0)
+                .addService(new GrpcVideoService(mediaService, grpcServerTransport, uploadSessionService, multipartUploadService));
+        grpcServerTransport.configure(serverBuilder);
+        server = serverBuilder.build().start();
+        channel = NettyChannelBuilder.forAddress("localhost", server.getPort())
+                .usePlaintext()
+                .maxInboundMessageSize(Integer.MAX_VALUE)
+                .build();
+        return VideoServiceGrpc.newBlockingStub(channel);
+    }
+
+    @Test
+    void when_configured_thenServes() throws IOException {
+        var gridFSFile = new GridFSFile(new BsonObjectId(new ObjectId("62c314e22525c96a4ae223b3")),
+                "movie.mkv", 1024, 255, new Date(), null);
+        when(mediaService.describe("62c314e22525c96a4ae223b3")).thenReturn(Mono.just(new MediaService.MediaStat("movie.mkv", gridFSFile)));
+
+        var response = start().stat(StatRequest.newBuilder()
+                .setKey(Key.newBuilder().setKey("62c314e22525c96a4ae223b3").build()).build());
+
+        assertEquals("movie.mkv", response.getName());
+    }
+
+    @Test
+    void when_messageOverInboundLimit_thenRejected() throws IOException {
+        properties.setMaxInboundMessageSize(1024);
+        var stub = start();
+        var request = UploadRequest.newBuilder()
+                .setKey(Key.newBuilder().setKey("movie.mkv").build())
+                .setData(DataChunk.newBuilder().setData(ByteString.copyFrom(new byte[4096])).build())
+                .build();
+
+        //the server resets the stream before the message reaches the service
+        assertThrows(StatusRuntimeException.class, () -> stub.upload(request));
+
+        verifyNoInteractions(mediaService);
+    }
+
+    @Test
+    void when_nativeTransportDisabled_thenUsesNio() throws IOException {
+        properties.setNativeTransport(false);
+
+        assertFalse(grpcServerTransport.usesEpoll());
+        assertNotNull(start());
+    }
+
+    private String downloadEncoding() throws IOException {
+        when(mediaService.downloadStream("62c314e22525c96a4ae223b3"))
+                .thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[1024])));
+        var headers = new AtomicReference<Metadata>();
+        var stub = start().withInterceptors(MetadataUtils.newCaptureMetadataInterceptor(headers, new AtomicReference<>()));
+
+        stub.downloadStream(DownloadRequest.newBuilder()
+                .setKey(Key.newBuilder().setKey("62c314e22525c96a4ae223b3").build()).build())
+                .forEachRemaining(response -> assertEquals(1024, response.getData().getData().size()));
+
+        return headers.get().get(Metadata.Key.of("grpc-encoding", Metadata.ASCII_STRING_MARSHALLER));
+    }
+
+    @Test
+    void when_clientAcceptsGzip_thenDownloadStreamCompressed() throws IOException {
+        assertEquals("gzip", downloadEncoding());
+    }
+
+    @Test
+    void when_responseCompressionOff_thenDownloadStreamPlain() throws IOException {
+        properties.setResponseCompression("");
+
+        assertNotEquals("gzip", downloadEncoding());
+    }
+
+    @Test
+    void when_prefetchSet_thenCallOptionsCarryIt() {
+        properties.setPrefetch(64);
+        properties.setLowTide(16);
+
+        var callOptions = grpcServerTransport.callOptions();
+
+        assertEquals(64, callOptions.getOption(CALL_OPTIONS_PREFETCH));
+        assertEquals(16, callOptions.getOption(CALL_OPTIONS_LOW_TIDE));
+    }
+
+    @Test
+    void when_prefetchUnset_thenLibraryDefaults() {
+        var callOptions = grpcServerTransport.callOptions();
+
+        assertEquals(CALL_OPTIONS_PREFETCH.getDefault(), callOptions.getOption(CALL_OPTIONS_PREFETCH));
+    }
+}
@@ -0,0 +1,172 @@
+package com.media.quickmedia.service.metadata;
+
+import com.media.quickmedia.metadata.MetaDataParser;
+import com.media.quickmedia.metadata.error.MetaDataException;
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.MetaDataEntry;
+import com.media.quickmedia.model.MetaDataStatus;
+import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.metadata.config.MetaDataPipelineProperties;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.tika.metadata.Metadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MetaDataPipelineTest {
+
+    @Mock
+    private ImageRepository imageRepository;
+
+    @Mock
+    private ImageStorageEngine imageStorageEngine;
+
+    @Mock
+    private MetaDataParser metaDataParser;
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    private MetaDataPipelineProperties properties;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private MetaDataPipeline metaDataPipeline;
+
+    private final Image image = Image.builder().id("image-id").content(new byte[]{1, 2, 3}).build();
+
+    @BeforeEach
+    void setUp() {
+        properties = new MetaDataPipelineProperties();
+        meterRegistry = new SimpleMeterRegistry();
+        metaDataPipeline = new MetaDataPipeline(imageRepository, imageStorageEngine, metaDataParser,
+                reactiveMongoTemplate, properties, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        metaDataPipeline.stop();
+    }
+
+    @Test
+    void when_extract_thenStoresEntries() {
+        var metadata = new Metadata();
+        metadata.set("hello", "world");
+        var updateCaptor = ArgumentCaptor.forClass(Update.class);
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(imageStorageEngine.head(eq(image), anyLong())).thenReturn(Flux.empty());
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.just(metadata));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), updateCaptor.capture(), eq(Image.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(metaDataPipeline.extract("image-id"))
+                .verifyComplete();
+
+        var set = (org.bson.Document) updateCaptor.getValue().getUpdateObject().get("$set");
+        assertEquals(MetaDataStatus.EXTRACTED, set.get("metadataStatus"));
+        assertEquals(1, ((List<?>) set.get("metadata")).size());
+        assertEquals(1, meterRegistry.get("quickmedia.metadata.parse").timer().count());
+    }
+
+    @Test
+    void when_storeParsed_thenOnlyImagesWithoutStatus() {
+        var queryCaptor = ArgumentCaptor.forClass(Query.class);
+        var updateCaptor = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.updateFirst(queryCaptor.capture(), updateCaptor.capture(), eq(Image.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+
+        StepVerifier.create(metaDataPipeline.storeParsed("image-id",
+                        List.of(MetaDataEntry.builder().key("hello").value("world").build())))
+                .verifyComplete();
+
+        var criteria = queryCaptor.getValue().getQueryObject();
+        assertEquals("image-id", criteria.get("_id"));
+        assertEquals(new org.bson.Document("$exists", false), criteria.get("metadataStatus"));
+        var set = (org.bson.Document) updateCaptor.getValue().getUpdateObject().get("$set");
+        assertEquals(MetaDataStatus.EXTRACTED, set.get("metadataStatus"));
+        assertEquals(1, ((List<?>) set.get("metadata")).size());
+    }
+
+    @Test
+    void when_extract_parserFails_thenMarksFailed() {
+        var updateCaptor = ArgumentCaptor.forClass(Update.class);
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(imageStorageEngine.head(eq(image), anyLong())).thenReturn(Flux.empty());
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.error(new MetaDataException("broken")));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), updateCaptor.capture(), eq(Image.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(metaDataPipeline.extract("image-id"))
+                .verifyComplete();
+
+        var set = (org.bson.Document) updateCaptor.getValue().getUpdateObject().get("$set");
+        assertEquals(MetaDataStatus.FAILED, set.get("metadataStatus"));
+        assertNull(set.get("metadata"));
+        assertEquals(1.0, meterRegistry.get("quickmedia.metadata.failures").counter().count());
+    }
+
+    @Test
+    void when_submit_started_thenExtractsInBackground() {
+        var metadata = new Metadata();
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(imageStorageEngine.head(eq(image), anyLong())).thenReturn(Flux.empty());
+        when(metaDataParser.parseHeader(any())).thenReturn(Mono.just(metadata));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Image.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        metaDataPipeline.start();
+
+        metaDataPipeline.submit("image-id");
+
+        verify(reactiveMongoTemplate, timeout(1000)).updateFirst(any(Query.class), any(Update.class), eq(Image.class));
+    }
+
+    @Test
+    void when_submit_queueFull_thenRejects() {
+        properties.setQueueCapacity(1);
+        metaDataPipeline.stop();
+        meterRegistry = new SimpleMeterRegistry();
+        metaDataPipeline = new MetaDataPipeline(imageRepository, imageStorageEngine, metaDataParser,
+                reactiveMongoTemplate, properties, meterRegistry);
+
+        metaDataPipeline.submit("first");
+        metaDataPipeline.submit("second");
+
+        assertEquals(1.0, meterRegistry.get("quickmedia.metadata.queue").gauge().value());
+        assertEquals(1.0, meterRegistry.get("quickmedia.metadata.rejected").counter().count());
+        verifyNoInteractions(imageRepository);
+    }
+
+    @Test
+    void when_disabled_thenSubmitIgnored() {
+        properties.setEnabled(false);
+
+        metaDataPipeline.submit("image-id");
+
+        assertEquals(0.0, meterRegistry.get("quickmedia.metadata.queue").gauge().value());
+    }
+}
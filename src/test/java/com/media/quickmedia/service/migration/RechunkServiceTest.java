@@ -0,0 +1,210 @@
+package com.media.quickmedia.service.migration;
+
+import com.media.quickmedia.model.ContentBlob;
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.Video;
+import com.media.quickmedia.repository.MigrationCheckpointRepository;
+import com.media.quickmedia.service.migration.config.RechunkProperties;
+import com.media.quickmedia.service.storage.ChunkSizePolicy;
+import com.media.quickmedia.service.storage.config.ChunkSizeProperties;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsUpload;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class RechunkServiceTest {
+
+    @Mock
+    private ReactiveGridFsTemplate gridFsTemplate;
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Mock
+    private MigrationCheckpointRepository checkpointRepository;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private RechunkService rechunkService;
+
+    private final ObjectId oldId = new ObjectId("62c314e22525c96a4ae223b3");
+    private final ObjectId newId = new ObjectId("62c314e22525c96a4ae223b4");
+
+    @BeforeEach
+    void setUp() {
+        var chunkSizeProperties = new ChunkSizeProperties();
+        chunkSizeProperties.setTargetChunks(2);
+        chunkSizeProperties.setMinSize(4);
+        var properties = new RechunkProperties();
+        properties.setGracePeriod(Duration.ZERO);
+        meterRegistry = new SimpleMeterRegistry();
+        rechunkService = new RechunkService(gridFsTemplate, reactiveMongoTemplate, new ChunkSizePolicy(chunkSizeProperties),
+                checkpointRepository, properties, meterRegistry);
+        when(checkpointRepository.findById(RechunkService.CHECKPOINT_ID)).thenReturn(Mono.empty());
+        when(checkpointRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    }
+
+    private GridFSFile file(long length, int chunkSize){
+        return new GridFSFile(new BsonObjectId(oldId), "movie.mp4", length, chunkSize, new Date(), new Document("type", "media"));
+    }
+
+    private void givenCopy(ArgumentCaptor<ReactiveGridFsUpload> upload, GridFSFile file){
+        var resource = mock(ReactiveGridFsResource.class);
+        when(gridFsTemplate.find(any(Query.class))).thenReturn(Flux.just(file));
+        when(gridFsTemplate.getResource(file)).thenReturn(Mono.just(resource));
+        when(resource.getDownloadStream()).thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2, 3})));
+        when(gridFsTemplate.store(upload.capture())).thenReturn(Mono.just(newId));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        for(var type : new Class<?>[]{MediaKey.class, Image.class, Video.class, ImageVariant.class}){
+            when(reactiveMongoTemplate.updateMulti(any(Query.class), any(Update.class), eq(type)))
+                    .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        }
+        when(gridFsTemplate.delete(any())).thenReturn(Mono.empty());
+    }
+
+    @Test
+    void when_rechunkBatch_oversizedChunks_thenCopiesRepointsAndDeletes() {
+        var upload = ArgumentCaptor.forClass(ReactiveGridFsUpload.class);
+        var update = ArgumentCaptor.forClass(Update.class);
+        givenCopy(upload, file(1024L * 1024, 255 * 1024));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(ContentBlob.class))).thenReturn(Mono.just(true));
+
+        StepVerifier.create(rechunkService.rechunkBatch())
+                .consumeNextWith(checkpoint -> {
+                    assertEquals(oldId.toHexString(), checkpoint.getLastId());
+                    assertEquals(1, checkpoint.getMigratedCount());
+                    assertEquals(1024L * 1024, checkpoint.getMigratedBytes());
+                }).verifyComplete();
+
+        assertEquals(512 * 1024, upload.getValue().getOptions().getChunkSize());
+        assertEquals("movie.mp4", upload.getValue().getFilename());
+        verify(reactiveMongoTemplate, times(2)).updateFirst(any(Query.class), update.capture(), eq(ContentBlob.class));
+        assertEquals(new Document("blobId", newId.toHexString()), update.getValue().getUpdateObject().get("$set"));
+        verify(reactiveMongoTemplate, never()).save(any(MediaKey.class));
+        verify(gridFsTemplate).delete(any());
+        assertEquals(1.0, meterRegistry.counter("quickmedia.migration.rechunk.files").count());
+    }
+
+    @Test
+    void when_rechunkBatch_legacyFile_thenKeepsOldIdAsKey() {
+        var key = ArgumentCaptor.forClass(MediaKey.class);
+        givenCopy(ArgumentCaptor.forClass(ReactiveGridFsUpload.class), file(1024L * 1024, 255 * 1024));
+        when(reactiveMongoTemplate.exists(any(Query.class), any(Class.class))).thenReturn(Mono.just(false));
+        when(reactiveMongoTemplate.save(key.capture())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(rechunkService.rechunkBatch())
+                .consumeNextWith(checkpoint -> assertEquals(1, checkpoint.getMigratedCount()))
+                .verifyComplete();
+
+        assertEquals(oldId.toHexString(), key.getValue().getId());
+        assertEquals(newId.toHexString(), key.getValue().getBlobId());
+    }
+
+    @Test
+    void when_rechunkBatch_legacyVideoBlob_thenNoKey() {
+        givenCopy(ArgumentCaptor.forClass(ReactiveGridFsUpload.class), file(1024L * 1024, 255 * 1024));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(ContentBlob.class))).thenReturn(Mono.just(false));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(Video.class))).thenReturn(Mono.just(true));
+
+        StepVerifier.create(rechunkService.rechunkBatch())
+                .consumeNextWith(checkpoint -> assertEquals(1, checkpoint.getMigratedCount()))
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, never()).save(any(MediaKey.class));
+        verify(reactiveMongoTemplate, times(2)).updateMulti(any(Query.class), any(Update.class), eq(Video.class));
+    }
+
+    @Test
+    void when_rechunkBatch_variantBlob_thenRepointsVariant() {
+        var query = ArgumentCaptor.forClass(Query.class);
+        var update = ArgumentCaptor.forClass(Update.class);
+        givenCopy(ArgumentCaptor.forClass(ReactiveGridFsUpload.class), file(1024L * 1024, 255 * 1024));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(ContentBlob.class))).thenReturn(Mono.just(false));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(Video.class))).thenReturn(Mono.just(false));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(Image.class))).thenReturn(Mono.just(false));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(ImageVariant.class))).thenReturn(Mono.just(true));
+
+        StepVerifier.create(rechunkService.rechunkBatch())
+                .consumeNextWith(checkpoint -> assertEquals(1, checkpoint.getMigratedCount()))
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, times(2)).updateMulti(query.capture(), update.capture(), eq(ImageVariant.class));
+        assertEquals(new Document("blobId", oldId.toHexString()), query.getValue().getQueryObject());
+        assertEquals(new Document("blobId", newId.toHexString()), update.getValue().getUpdateObject().get("$set"));
+        verify(reactiveMongoTemplate, never()).save(any(MediaKey.class));
+        verify(gridFsTemplate).delete(any());
+    }
+
+    @Test
+    void when_rechunkBatch_atTarget_thenSkips() {
+        when(gridFsTemplate.find(any(Query.class))).thenReturn(Flux.just(file(100, 64 * 1024)));
+
+        StepVerifier.create(rechunkService.rechunkBatch())
+                .consumeNextWith(checkpoint -> {
+                    assertEquals(oldId.toHexString(), checkpoint.getLastId());
+                    assertEquals(0, checkpoint.getMigratedCount());
+                }).verifyComplete();
+
+        verify(gridFsTemplate, never()).store(any(ReactiveGridFsUpload.class));
+        verify(gridFsTemplate, never()).delete(any());
+    }
+
+    @Test
+    void when_rechunkBatch_copyFails_thenKeepsOldFile() {
+        var file = file(1024L * 1024, 255 * 1024);
+        var resource = mock(ReactiveGridFsResource.class);
+        when(gridFsTemplate.find(any(Query.class))).thenReturn(Flux.just(file));
+        when(gridFsTemplate.getResource(file)).thenReturn(Mono.just(resource));
+        when(resource.getDownloadStream()).thenReturn(Flux.error(new IllegalStateException("broken")));
+        when(gridFsTemplate.store(any(ReactiveGridFsUpload.class))).thenAnswer(invocation -> {
+            ReactiveGridFsUpload<ObjectId> upload = invocation.getArgument(0);
+            return Flux.from(upload.getContent()).then(Mono.just(newId));
+        });
+
+        StepVerifier.create(rechunkService.rechunkBatch())
+                .consumeNextWith(checkpoint -> assertEquals(0, checkpoint.getMigratedCount()))
+                .verifyComplete();
+
+        verify(gridFsTemplate, never()).delete(any());
+        verifyNoInteractions(reactiveMongoTemplate);
+    }
+
+    @Test
+    void when_rechunkBatch_emptyFromStart_thenCompletes() {
+        when(gridFsTemplate.find(any(Query.class))).thenReturn(Flux.empty());
+
+        StepVerifier.create(rechunkService.rechunkBatch())
+                .consumeNextWith(checkpoint -> assertTrue(checkpoint.isCompleted()))
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,165 @@
+package com.media.quickmedia.service.migration;
+
+import com.media.quickmedia.model.MigrationCheckpoint;
+import com.media.quickmedia.model.Video;
+import com.media.quickmedia.repository.MigrationCheckpointRepository;
+import com.media.quickmedia.repository.VideoRepository;
+import com.media.quickmedia.service.migration.config.VideoMigrationProperties;
+import com.media.quickmedia.service.utils.DataBufferService;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class VideoMigrationServiceTest {
+
+    @Mock
+    private VideoRepository videoRepository;
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Mock
+    private ReactiveGridFsTemplate gridFsTemplate;
+
+    @Mock
+    private MigrationCheckpointRepository checkpointRepository;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private VideoMigrationService videoMigrationService;
+
+    private final ObjectId blobId = new ObjectId("62c314e22525c96a4ae223b3");
+    private final String videoId = "62c314e22525c96a4ae223b4";
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        videoMigrationService = new VideoMigrationService(videoRepository, reactiveMongoTemplate, gridFsTemplate,
+                new DataBufferService(), checkpointRepository, new VideoMigrationProperties(), meterRegistry);
+    }
+
+    @Test
+    void when_migrateBatch_inlineVideo_thenMovesToGridFs() {
+        var video = Video.builder().id(videoId).name("test").content(new byte[]{1, 2, 3}).build();
+        when(checkpointRepository.findById(VideoMigrationService.CHECKPOINT_ID)).thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Video.class))).thenReturn(Flux.just(Video.builder().id(videoId).build()));
+        when(videoRepository.findById(videoId)).thenReturn(Mono.just(video));
+        when(gridFsTemplate.store(any(), eq("test"), any(Document.class))).thenReturn(Mono.just(blobId));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Video.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(reactiveMongoTemplate.count(any(Query.class), eq(Video.class))).thenReturn(Mono.just(0L));
+        when(checkpointRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(videoMigrationService.migrateBatch())
+                .consumeNextWith(checkpoint -> {
+                    assertEquals(videoId, checkpoint.getLastId());
+                    assertEquals(1, checkpoint.getMigratedCount());
+                    assertEquals(3, checkpoint.getMigratedBytes());
+                    assertFalse(checkpoint.isCompleted());
+                }).verifyComplete();
+
+        assertEquals(1.0, meterRegistry.counter("quickmedia.migration.videos.migrated").count());
+        assertEquals(3.0, meterRegistry.counter("quickmedia.migration.videos.bytes").count());
+        assertEquals(0.0, meterRegistry.get("quickmedia.migration.videos.remaining").gauge().value());
+        assertEquals(1, meterRegistry.get("quickmedia.migration.videos.batch").timer().count());
+        verify(gridFsTemplate, never()).delete(any());
+    }
+
+    @Test
+    void when_migrateBatch_lostRace_thenDeletesOrphanBlob() {
+        var video = Video.builder().id(videoId).name("test").content(new byte[]{1, 2, 3}).build();
+        when(checkpointRepository.findById(VideoMigrationService.CHECKPOINT_ID)).thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Video.class))).thenReturn(Flux.just(Video.builder().id(videoId).build()));
+        when(videoRepository.findById(videoId)).thenReturn(Mono.just(video));
+        when(gridFsTemplate.store(any(), eq("test"), any(Document.class))).thenReturn(Mono.just(blobId));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(Video.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+        when(gridFsTemplate.delete(any())).thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.count(any(Query.class), eq(Video.class))).thenReturn(Mono.just(0L));
+        when(checkpointRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(videoMigrationService.migrateBatch())
+                .consumeNextWith(checkpoint -> {
+                    assertEquals(videoId, checkpoint.getLastId());
+                    assertEquals(0, checkpoint.getMigratedCount());
+                }).verifyComplete();
+
+        verify(gridFsTemplate).delete(any());
+    }
+
+    @Test
+    void when_migrateBatch_emptyAfterCursor_thenRestartsPass() {
+        var checkpoint = MigrationCheckpoint.builder().id(VideoMigrationService.CHECKPOINT_ID).lastId(videoId).build();
+        when(checkpointRepository.findById(VideoMigrationService.CHECKPOINT_ID)).thenReturn(Mono.just(checkpoint));
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Video.class))).thenReturn(Flux.empty());
+        when(reactiveMongoTemplate.count(any(Query.class), eq(Video.class))).thenReturn(Mono.just(2L));
+        when(checkpointRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(videoMigrationService.migrateBatch())
+                .consumeNextWith(saved -> {
+                    assertNull(saved.getLastId());
+                    assertFalse(saved.isCompleted());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_migrateBatch_emptyFromStart_thenCompletes() {
+        when(checkpointRepository.findById(VideoMigrationService.CHECKPOINT_ID)).thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.find(any(Query.class), eq(Video.class))).thenReturn(Flux.empty());
+        when(reactiveMongoTemplate.count(any(Query.class), eq(Video.class))).thenReturn(Mono.just(0L));
+        when(checkpointRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(videoMigrationService.migrateBatch())
+                .consumeNextWith(saved -> assertTrue(saved.isCompleted()))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_paused_thenSkipsBatch() {
+        when(checkpointRepository.findById(VideoMigrationService.CHECKPOINT_ID)).thenReturn(Mono.empty());
+        when(checkpointRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(videoMigrationService.pause())
+                .consumeNextWith(saved -> assertTrue(saved.isPaused()))
+                .verifyComplete();
+        assertEquals(1.0, meterRegistry.get("quickmedia.migration.videos.paused").gauge().value());
+
+        StepVerifier.create(videoMigrationService.migrateBatch())
+                .expectNextCount(1)
+                .verifyComplete();
+
+        verifyNoInteractions(reactiveMongoTemplate, videoRepository, gridFsTemplate);
+    }
+
+    @Test
+    void when_resume_thenClearsPaused() {
+        when(checkpointRepository.findById(anyString()))
+                .thenReturn(Mono.just(MigrationCheckpoint.builder().id(VideoMigrationService.CHECKPOINT_ID).paused(true).build()));
+        when(checkpointRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(videoMigrationService.resume())
+                .consumeNextWith(saved -> assertFalse(saved.isPaused()))
+                .verifyComplete();
+        assertEquals(0.0, meterRegistry.get("quickmedia.migration.videos.paused").gauge().value());
+    }
+}
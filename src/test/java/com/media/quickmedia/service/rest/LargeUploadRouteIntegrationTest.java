@@ -0,0 +1,100 @@
+package com.media.quickmedia.service.rest;
+
+import com.media.quickmedia.config.MongoDbTestConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.boot.test.autoconfigure.data.mongo.AutoConfigureDataMongo;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM;
+import static org.springframework.http.MediaType.MULTIPART_FORM_DATA;
+
+//upload throughput and process cpu of the raw PUT /media/{name} route against multipart POST /media/large-upload,
+//client and server share the jvm so the cpu covers both ends of each request. numbers go to the log.
+//a benchmark rather than a test, so surefire skips it unless the benchmark tag is let through
+@Tag("benchmark")
+@Import({MongoDbTestConfiguration.class})
+@AutoConfigureDataMongo
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.DEFINED_PORT)
+@ExtendWith(SpringExtension.class)
+@Slf4j
+public class LargeUploadRouteIntegrationTest {
+
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    private WebTestClient webTestClient;
+
+    @BeforeEach
+    public void init(){
+        webTestClient = WebTestClient
+                .bindToServer()
+                .baseUrl("http://localhost:9000")
+                .responseTimeout(Duration.ofMinutes(2))
+                .build();
+    }
+
+    @Test
+    void when_upload_thenLogsRawAgainstMultipart(){
+        measure("raw PUT /media/{name}", content -> webTestClient.put()
+                .uri("/media/{name}", "raw.bin")
+                .contentType(APPLICATION_OCTET_STREAM)
+                .bodyValue(content));
+        measure("multipart POST /media/large-upload", content -> {
+            var multipartBodyBuilder = new MultipartBodyBuilder();
+            multipartBodyBuilder.part("file", new ByteArrayResource(content), APPLICATION_OCTET_STREAM)
+                    .filename("multipart.bin");
+            return webTestClient.post()
+                    .uri("/media/large-upload")
+                    .contentType(MULTIPART_FORM_DATA)
+                    .body(BodyInserters.fromMultipartData(multipartBodyBuilder.build()));
+        });
+    }
+
+    //every upload carries fresh content so deduplication never skips the write, the first round warms up
+    private void measure(String name, Function<byte[], WebTestClient.RequestHeadersSpec<?>> upload){
+        var os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        var random = new Random(42);
+        long bestNanos = Long.MAX_VALUE;
+        long leastCpuNanos = Long.MAX_VALUE;
+        for(int round = 0; round <= ROUNDS; round++){
+            var content = new byte[FILE_SIZE];
+            random.nextBytes(content);
+            long cpuBefore = os.getProcessCpuTime();
+            long started = System.nanoTime();
+            var id = upload.apply(content)
+                    .exchange()
+                    .expectStatus().is2xxSuccessful()
+                    .expectBody(String.class)
+                    .returnResult()
+                    .getResponseBody();
+            long elapsed = System.nanoTime() - started;
+            long cpu = os.getProcessCpuTime() - cpuBefore;
+            assertNotNull(id);
+            webTestClient.delete().uri("/media/{id}", id).exchange().expectStatus().is2xxSuccessful();
+            if(round > 0){
+                bestNanos = Math.min(bestNanos, elapsed);
+                leastCpuNanos = Math.min(leastCpuNanos, cpu);
+            }
+        }
+        double megabytes = FILE_SIZE / 1024.0 / 1024.0;
+        log.info("{}: {} MB/s, {} ms cpu per MB", name,
+                String.format("%.1f", megabytes / (bestNanos / 1e9)),
+                String.format("%.2f", leastCpuNanos / 1e6 / megabytes));
+    }
+}
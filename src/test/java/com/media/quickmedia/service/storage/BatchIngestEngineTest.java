@@ -0,0 +1,184 @@
+package com.media.quickmedia.service.storage;
+
+import com.google.protobuf.ByteString;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.service.storage.config.BatchIngestProperties;
+import com.proto.service.DataChunk;
+import com.proto.service.Key;
+import com.proto.service.UploadRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchIngestEngineTest {
+
+    private BatchIngestProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new BatchIngestProperties();
+    }
+
+    private Flux<UploadRequest> requests(int count, int size){
+        return Flux.range(0, count)
+                .map(n -> UploadRequest.newBuilder()
+                        .setKey(Key.newBuilder().setKey("video-" + n).build())
+                        .setData(DataChunk.newBuilder().setData(ByteString.copyFrom(new byte[size])).build())
+                        .build());
+    }
+
+    @Test
+    void when_ingest_thenResultsKeepRequestOrder() {
+        var engine = new BatchIngestEngine(properties);
+
+        //later items finish first
+        StepVerifier.create(engine.ingest(requests(4, 1), request -> {
+                            int n = Integer.parseInt(request.getKey().getKey().substring(6));
+                            return Mono.just("id-" + n).delayElement(Duration.ofMillis(40 - n * 10L));
+                        })
+                        .map(UploadResult::getId)
+                        .collectList())
+                .expectNext(List.of("id-0", "id-1", "id-2", "id-3"))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_ingest_thenParallelismBounded() {
+        properties.setParallelism(2);
+        var engine = new BatchIngestEngine(properties);
+        var running = new AtomicInteger();
+        var peak = new AtomicInteger();
+
+        StepVerifier.create(engine.ingest(requests(8, 1), request -> Mono.defer(() -> {
+                            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                            return Mono.just("id").delayElement(Duration.ofMillis(10));
+                        }).doOnTerminate(running::decrementAndGet)))
+                .expectNextCount(8)
+                .verifyComplete();
+
+        assertEquals(2, peak.get());
+    }
+
+    @Test
+    void when_ingest_overByteBudget_thenAdmitsByBytes() {
+        properties.setParallelism(8);
+        properties.setMaxInFlightBytes(10);
+        var engine = new BatchIngestEngine(properties);
+        var inFlight = new AtomicLong();
+        var peak = new AtomicLong();
+
+        StepVerifier.create(engine.ingest(requests(6, 4), request -> Mono.defer(() -> {
+                            peak.accumulateAndGet(inFlight.addAndGet(4), Math::max);
+                            return Mono.just("id").delayElement(Duration.ofMillis(10));
+                        }).doOnTerminate(() -> inFlight.addAndGet(-4))))
+                .expectNextCount(6)
+                .verifyComplete();
+
+        assertEquals(8, peak.get());
+    }
+
+    @Test
+    void when_ingest_itemLargerThanBudget_thenRunsAlone() {
+        properties.setMaxInFlightBytes(2);
+        var engine = new BatchIngestEngine(properties);
+
+        StepVerifier.create(engine.ingest(requests(2, 4), request -> Mono.just("id")))
+                .expectNextCount(2)
+                .verifyComplete();
+    }
+
+    @Test
+    void when_ingest_itemFails_thenReportedAndBatchContinues() {
+        var engine = new BatchIngestEngine(properties);
+
+        StepVerifier.create(engine.ingest(requests(3, 1), request -> request.getKey().getKey().equals("video-1") ?
+                        Mono.error(new IllegalStateException("disk full")) : Mono.just("id")))
+                .consumeNextWith(result -> assertTrue(result.isSuccess()))
+                .consumeNextWith(result -> {
+                    assertEquals(1, result.getIndex());
+                    assertEquals("video-1", result.getName());
+                    assertEquals("disk full", result.getError());
+                })
+                .consumeNextWith(result -> assertTrue(result.isSuccess()))
+                .verifyComplete();
+    }
+
+    private UploadRequest chunk(String name, int size, boolean more){
+        return UploadRequest.newBuilder()
+                .setKey(Key.newBuilder().setKey(name).build())
+                .setData(DataChunk.newBuilder().setData(ByteString.copyFrom(new byte[size])).build())
+                .setMore(more)
+                .build();
+    }
+
+    @Test
+    void when_ingestChunked_thenGroupsChunksPerItem() {
+        var engine = new BatchIngestEngine(properties);
+        var chunks = Flux.just(chunk("a", 2, true), chunk("a", 3, false), chunk("b", 4, false));
+
+        StepVerifier.create(engine.ingestChunked(chunks, (name, data) -> data
+                        .map(ByteString::size)
+                        .reduce(0, Integer::sum)
+                        .map(size -> name + "-" + size)))
+                .consumeNextWith(result -> {
+                    assertEquals(0, result.getIndex());
+                    assertEquals("a-5", result.getId());
+                })
+                .consumeNextWith(result -> {
+                    assertEquals(1, result.getIndex());
+                    assertEquals("b-4", result.getId());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_ingestChunked_itemFails_thenReportedAndStreamContinues() {
+        var engine = new BatchIngestEngine(properties);
+        var chunks = Flux.just(chunk("a", 1, false), chunk("b", 1, true), chunk("b", 1, false), chunk("c", 1, false));
+
+        StepVerifier.create(engine.ingestChunked(chunks, (name, data) -> name.equals("b") ?
+                        data.then(Mono.error(new IllegalStateException("gridfs down"))) : data.then(Mono.just(name))))
+                .consumeNextWith(result -> assertEquals("a", result.getId()))
+                .consumeNextWith(result -> {
+                    assertEquals(1, result.getIndex());
+                    assertEquals("gridfs down", result.getError());
+                })
+                .consumeNextWith(result -> {
+                    assertEquals(2, result.getIndex());
+                    assertEquals("c", result.getId());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_ingestChunked_thenItemsShareByteBudget() {
+        properties.setParallelism(4);
+        properties.setStreamItemBytes(10);
+        properties.setMaxInFlightBytes(10);
+        var engine = new BatchIngestEngine(properties);
+        var running = new AtomicInteger();
+        var peak = new AtomicInteger();
+        var chunks = Flux.just(chunk("a", 1, false), chunk("b", 1, false), chunk("c", 1, false));
+
+        StepVerifier.create(engine.ingestChunked(chunks, (name, data) -> data
+                        .then(Mono.fromRunnable(() -> peak.accumulateAndGet(running.incrementAndGet(), Math::max)))
+                        .then(Mono.delay(Duration.ofMillis(20)))
+                        .thenReturn(name)
+                        .doOnTerminate(running::decrementAndGet))
+                        .map(UploadResult::getId)
+                        .collectList())
+                .expectNext(List.of("a", "b", "c"))
+                .verifyComplete();
+
+        assertEquals(1, peak.get());
+    }
+}
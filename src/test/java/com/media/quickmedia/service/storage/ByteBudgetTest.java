@@ -0,0 +1,36 @@
+package com.media.quickmedia.service.storage;
+
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteBudgetTest {
+
+    @Test
+    void when_overCapacity_thenWaitsForRelease() {
+        var byteBudget = new ByteBudget(10);
+        var first = byteBudget.acquire(8).block();
+
+        StepVerifier.create(byteBudget.acquire(4))
+                .then(first::release)
+                .consumeNextWith(ByteBudget.Permit::release)
+                .verifyComplete();
+
+        assertEquals(0, byteBudget.inFlight());
+    }
+
+    @Test
+    void when_cancelledWhileWaiting_thenBudgetUntouched() {
+        var byteBudget = new ByteBudget(10);
+        var first = byteBudget.acquire(8).block();
+
+        StepVerifier.create(byteBudget.acquire(4))
+                .thenCancel()
+                .verify();
+        first.release();
+        first.release();
+
+        assertEquals(0, byteBudget.inFlight());
+    }
+}
@@ -0,0 +1,82 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.service.storage.config.CompressionProperties;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkCompressorTest {
+
+    private CompressionProperties properties;
+
+    private ChunkCompressor chunkCompressor;
+
+    @BeforeEach
+    void setUp() {
+        properties = new CompressionProperties();
+        chunkCompressor = new ChunkCompressor(properties);
+    }
+
+    @Test
+    void when_applies_thenSkipsCompressedTypes() {
+        assertTrue(chunkCompressor.applies(new Document("_contentType", "image/bmp")));
+        assertFalse(chunkCompressor.applies(new Document("_contentType", "not a type")));
+        assertFalse(chunkCompressor.applies(new Document("_contentType", "image/jpeg")));
+        assertFalse(chunkCompressor.applies(new Document("_contentType", "video/mp4")));
+    }
+
+    @Test
+    void when_applies_typeUnknown_thenSkips() {
+        assertFalse(chunkCompressor.applies(new Document("type", "media")));
+        assertFalse(chunkCompressor.applies(null));
+    }
+
+    @Test
+    void when_disabled_thenNeverApplies() {
+        properties.setEnabled(false);
+
+        assertFalse(chunkCompressor.applies(new Document("_contentType", "image/bmp")));
+    }
+
+    @Test
+    void when_worthCompressing_thenOnlyForCompressibleSamples() {
+        var random = new byte[4096];
+        new Random(7).nextBytes(random);
+
+        assertTrue(chunkCompressor.worthCompressing(new byte[4096]));
+        assertFalse(chunkCompressor.worthCompressing(random));
+        assertFalse(chunkCompressor.worthCompressing(new byte[0]));
+    }
+
+    @Test
+    void when_compress_thenInflatesBack() throws Exception {
+        var chunk = "quickmedia quickmedia quickmedia quickmedia".getBytes();
+
+        var inflater = new Inflater();
+        inflater.setInput(chunkCompressor.compress(chunk));
+        var inflated = new byte[chunk.length];
+        assertEquals(chunk.length, inflater.inflate(inflated));
+        inflater.end();
+
+        assertArrayEquals(chunk, inflated);
+    }
+
+    @Test
+    void when_split_thenExactChunks() {
+        var factory = DefaultDataBufferFactory.sharedInstance;
+
+        StepVerifier.create(chunkCompressor.split(Flux.just(factory.wrap(new byte[]{1, 2, 3}), factory.wrap(new byte[]{4, 5})), 2))
+                .consumeNextWith(chunk -> assertArrayEquals(new byte[]{1, 2}, chunk))
+                .consumeNextWith(chunk -> assertArrayEquals(new byte[]{3, 4}, chunk))
+                .consumeNextWith(chunk -> assertArrayEquals(new byte[]{5}, chunk))
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,95 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.service.storage.config.ChunkSizeProperties;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChunkSizePolicyTest {
+
+    private ChunkSizeProperties properties;
+
+    private ChunkSizePolicy chunkSizePolicy;
+
+    @BeforeEach
+    void setUp() {
+        properties = new ChunkSizeProperties();
+        properties.setTypes(Map.of("video", 1024 * 1024));
+        properties.setMediaTypes(Map.of("video/*", 2 * 1024 * 1024, "video/mp4", 3 * 1024 * 1024));
+        chunkSizePolicy = new ChunkSizePolicy(properties);
+    }
+
+    @Test
+    void when_unknownLength_noMatch_thenDefault() {
+        assertEquals(255 * 1024, chunkSizePolicy.chunkSize(new Document("type", "media"), -1));
+    }
+
+    @Test
+    void when_unknownLength_thenByType() {
+        assertEquals(1024 * 1024, chunkSizePolicy.chunkSize(new Document("type", "video"), -1));
+    }
+
+    @Test
+    void when_unknownLength_thenMostSpecificMediaType() {
+        assertEquals(3 * 1024 * 1024, chunkSizePolicy.chunkSize(new Document("type", "video")
+                .append("_contentType", "video/mp4"), -1));
+        assertEquals(2 * 1024 * 1024, chunkSizePolicy.chunkSize(new Document("type", "video")
+                .append("_contentType", "video/webm"), -1));
+    }
+
+    @Test
+    void when_invalidMediaType_thenFallsBackToType() {
+        assertEquals(1024 * 1024, chunkSizePolicy.chunkSize(new Document("type", "video")
+                .append("_contentType", "not a type"), -1));
+    }
+
+    @Test
+    void when_declaredLength_thenAdaptiveWithinBounds() {
+        var metadata = new Document("type", "media");
+        //small files keep the minimum
+        assertEquals(255 * 1024, chunkSizePolicy.chunkSize(metadata, 1000));
+        //100MB over 256 chunks, rounded up to 64KB
+        assertEquals(448 * 1024, chunkSizePolicy.chunkSize(metadata, 100L * 1024 * 1024 + 1));
+        //huge files are capped
+        assertEquals(4 * 1024 * 1024, chunkSizePolicy.chunkSize(metadata, 100L * 1024 * 1024 * 1024));
+    }
+
+    @Test
+    void when_adaptiveDisabled_thenIgnoresLength() {
+        properties.setAdaptive(false);
+
+        assertEquals(255 * 1024, chunkSizePolicy.chunkSize(new Document("type", "media"), 100L * 1024 * 1024 * 1024));
+    }
+
+    @Test
+    void when_declaredLength_configuredType_thenConfiguredWins() {
+        assertEquals(1024 * 1024, chunkSizePolicy.chunkSize(new Document("type", "video"), 100L * 1024 * 1024 * 1024));
+        assertEquals(3 * 1024 * 1024, chunkSizePolicy.chunkSize(new Document("type", "video")
+                .append("_contentType", "video/mp4"), 1000));
+    }
+
+    @Test
+    void when_requested_thenWinsWithinBounds() {
+        var metadata = new Document("type", "video").append("_contentType", "video/mp4");
+
+        assertEquals(8 * 1024 * 1024, chunkSizePolicy.chunkSize(new Document(metadata)
+                .append(ChunkSizePolicy.CHUNK_SIZE_METADATA, 8 * 1024 * 1024), 1000));
+        assertEquals(ChunkSizePolicy.ALIGNMENT, chunkSizePolicy.chunkSize(new Document(metadata)
+                .append(ChunkSizePolicy.CHUNK_SIZE_METADATA, 1), -1));
+        assertEquals(ChunkSizePolicy.MAX_CHUNK_SIZE, chunkSizePolicy.chunkSize(new Document(metadata)
+                .append(ChunkSizePolicy.CHUNK_SIZE_METADATA, Integer.MAX_VALUE), -1));
+        assertEquals(3 * 1024 * 1024, chunkSizePolicy.chunkSize(new Document(metadata)
+                .append(ChunkSizePolicy.CHUNK_SIZE_METADATA, 0), -1));
+    }
+
+    @Test
+    void when_configuredAboveDocumentLimit_thenCapped() {
+        properties.setDefaultSize(64 * 1024 * 1024);
+
+        assertEquals(ChunkSizePolicy.MAX_CHUNK_SIZE, chunkSizePolicy.chunkSize(null, -1));
+    }
+}
@@ -0,0 +1,284 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.model.ContentBlob;
+import com.media.quickmedia.model.Video;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.service.storage.config.ChunkSizeProperties;
+import com.media.quickmedia.service.storage.config.CompressionProperties;
+import com.media.quickmedia.service.utils.DataBufferService;
+import com.mongodb.client.result.DeleteResult;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsUpload;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ContentStoreTest {
+
+    @Mock
+    private ReactiveGridFsTemplate gridFsTemplate;
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    private ContentStore contentStore;
+
+    private final ObjectId newBlobId = new ObjectId("62c314e22525c96a4ae223b3");
+    private final ObjectId existingBlobId = new ObjectId("62c314e22525c96a4ae223b4");
+    private final byte[] bytes = new byte[]{1, 2, 3, 4, 5};
+
+    @BeforeEach
+    void setUp() {
+        contentStore = new ContentStore(gridFsTemplate, reactiveMongoTemplate, new DataBufferService(),
+                new ChunkSizePolicy(new ChunkSizeProperties()), new ChunkCompressor(new CompressionProperties()));
+    }
+
+    @Test
+    void when_store_newContent_thenWritesAndIndexes() throws Exception {
+        var inserted = ArgumentCaptor.forClass(ContentBlob.class);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.empty());
+        when(gridFsTemplate.store(any(ReactiveGridFsUpload.class))).thenReturn(Mono.just(newBlobId));
+        when(reactiveMongoTemplate.insert(inserted.capture())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(contentStore.store(ByteBuffer.wrap(bytes), "file", new Document()))
+                .expectNext(newBlobId)
+                .verifyComplete();
+
+        assertEquals(sha256(bytes), inserted.getValue().getId());
+        assertEquals(newBlobId.toHexString(), inserted.getValue().getBlobId());
+        assertEquals(1, inserted.getValue().getRefCount());
+        assertEquals(5, inserted.getValue().getLength());
+    }
+
+    @Test
+    void when_store_duplicateInMemory_thenSkipsGridFs() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.just(existing(2)));
+
+        StepVerifier.create(contentStore.store(ByteBuffer.wrap(bytes), "file", new Document()))
+                .expectNext(existingBlobId)
+                .verifyComplete();
+
+        verifyNoInteractions(gridFsTemplate);
+    }
+
+    @Test
+    void when_store_duplicateStream_thenDiscardsCopy() {
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        var query = ArgumentCaptor.forClass(Query.class);
+        when(gridFsTemplate.store(any(ReactiveGridFsUpload.class))).thenAnswer(invocation -> {
+            ReactiveGridFsUpload<ObjectId> upload = invocation.getArgument(0);
+            return Flux.from(upload.getContent()).then(Mono.just(newBlobId));
+        });
+        when(reactiveMongoTemplate.findAndModify(query.capture(), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.just(existing(2)));
+        when(gridFsTemplate.delete(any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(contentStore.store(Flux.just(factory.wrap(new byte[]{1, 2}), factory.wrap(new byte[]{3, 4, 5})),
+                        "file", new Document()))
+                .expectNext(existingBlobId)
+                .verifyComplete();
+
+        assertEquals(sha256(bytes), query.getValue().getQueryObject().get("_id"));
+        verify(gridFsTemplate).delete(any());
+    }
+
+    @Test
+    void when_store_lostRegisterRace_thenClaimsWinner() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.empty(), Mono.just(existing(2)));
+        when(gridFsTemplate.store(any(ReactiveGridFsUpload.class))).thenReturn(Mono.just(newBlobId));
+        when(reactiveMongoTemplate.insert(any(ContentBlob.class))).thenReturn(Mono.error(new DuplicateKeyException("duplicate")));
+        when(gridFsTemplate.delete(any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(contentStore.store(ByteBuffer.wrap(bytes), "file", new Document()))
+                .expectNext(existingBlobId)
+                .verifyComplete();
+
+        verify(gridFsTemplate).delete(any());
+    }
+
+    @Test
+    void when_store_declaredLength_thenSizesChunks() {
+        var upload = ArgumentCaptor.forClass(ReactiveGridFsUpload.class);
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        when(gridFsTemplate.store(upload.capture())).thenReturn(Mono.just(newBlobId));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.insert(any(ContentBlob.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(contentStore.store(Flux.just(factory.wrap(bytes)), "file", new Document(), 1024L * 1024 * 1024))
+                .expectNext(newBlobId)
+                .verifyComplete();
+
+        assertEquals(4 * 1024 * 1024, upload.getValue().getOptions().getChunkSize());
+        assertEquals("file", upload.getValue().getFilename());
+    }
+
+    @Test
+    void when_store_compressibleStream_thenWritesDeflatedChunks() {
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        var chunks = ArgumentCaptor.forClass(Document.class);
+        var file = ArgumentCaptor.forClass(Document.class);
+        when(reactiveMongoTemplate.insert(chunks.capture(), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(reactiveMongoTemplate.insert(file.capture(), eq(GridFsChunkRepository.FILES_COLLECTION)))
+                .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.insert(any(ContentBlob.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(contentStore.store(Flux.just(factory.wrap(new byte[300 * 1024]), factory.wrap(new byte[300 * 1024])),
+                        "file", new Document("type", "media").append("_contentType", "text/plain")))
+                .consumeNextWith(blobId -> assertEquals(blobId, file.getValue().get("_id")))
+                .verifyComplete();
+
+        assertEquals(List.of(0, 1, 2), chunks.getAllValues().stream().map(chunk -> chunk.getInteger("n")).sorted().toList());
+        assertEquals(600L * 1024, file.getValue().get("length"));
+        assertEquals(255 * 1024, file.getValue().get("chunkSize"));
+        var metadata = file.getValue().get("metadata", Document.class);
+        assertEquals(GridFsChunkRepository.DEFLATE, metadata.getString(GridFsChunkRepository.CODEC_METADATA));
+        assertEquals("media", metadata.getString("type"));
+        verify(gridFsTemplate, never()).store(any(ReactiveGridFsUpload.class));
+    }
+
+    @Test
+    void when_store_incompressibleStream_thenStoresAsIs() {
+        var random = new byte[64 * 1024];
+        new Random(7).nextBytes(random);
+        var upload = ArgumentCaptor.forClass(ReactiveGridFsUpload.class);
+        when(gridFsTemplate.store(upload.capture())).thenAnswer(invocation -> {
+            ReactiveGridFsUpload<ObjectId> captured = invocation.getArgument(0);
+            return Flux.from(captured.getContent()).then(Mono.just(newBlobId));
+        });
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.insert(any(ContentBlob.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(contentStore.store(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(random)), "file",
+                        new Document("_contentType", "image/bmp")))
+                .expectNext(newBlobId)
+                .verifyComplete();
+
+        assertNull(upload.getValue().getOptions().getMetadata().get(GridFsChunkRepository.CODEC_METADATA));
+        verify(reactiveMongoTemplate, never()).insert(any(Document.class), eq(GridFsChunkRepository.FILES_COLLECTION));
+    }
+
+    @Test
+    void when_release_stillReferenced_thenKeepsBlob() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.just(existing(1)));
+
+        StepVerifier.create(contentStore.release(existingBlobId))
+                .verifyComplete();
+
+        verifyNoInteractions(gridFsTemplate);
+    }
+
+    @Test
+    void when_release_lastReference_thenReclaimsBlob() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.just(existing(0)));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(ContentBlob.class))).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+        when(gridFsTemplate.delete(any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(contentStore.release(existingBlobId))
+                .verifyComplete();
+
+        verify(gridFsTemplate).delete(any());
+    }
+
+    @Test
+    void when_release_revivedConcurrently_thenKeepsBlob() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.just(existing(0)));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(ContentBlob.class))).thenReturn(Mono.just(DeleteResult.acknowledged(0)));
+
+        StepVerifier.create(contentStore.release(existingBlobId))
+                .verifyComplete();
+
+        verifyNoInteractions(gridFsTemplate);
+    }
+
+    @Test
+    void when_isReferenced_videoBlob_thenTrue() {
+        var blobId = new ObjectId("62c314e22525c96a4ae223b3");
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(ContentBlob.class))).thenReturn(Mono.just(false));
+        when(reactiveMongoTemplate.exists(any(Query.class), eq(Video.class))).thenReturn(Mono.just(true));
+
+        StepVerifier.create(contentStore.isReferenced(blobId))
+                .expectNext(true)
+                .verifyComplete();
+    }
+
+    @Test
+    void when_isReferenced_unreferencedBlob_thenFalse() {
+        var blobId = new ObjectId("62c314e22525c96a4ae223b3");
+        when(reactiveMongoTemplate.exists(any(Query.class), any(Class.class))).thenReturn(Mono.just(false));
+
+        StepVerifier.create(contentStore.isReferenced(blobId))
+                .expectNext(false)
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, times(4)).exists(any(Query.class), any(Class.class));
+    }
+
+    @Test
+    void when_release_unindexedBlob_thenDeletes() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ContentBlob.class)))
+                .thenReturn(Mono.empty());
+        when(gridFsTemplate.delete(any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(contentStore.release(existingBlobId))
+                .verifyComplete();
+
+        verify(gridFsTemplate).delete(any());
+    }
+
+    private ContentBlob existing(long refCount){
+        return ContentBlob.builder()
+                .id(sha256(bytes))
+                .blobId(existingBlobId.toHexString())
+                .refCount(refCount)
+                .length(bytes.length)
+                .build();
+    }
+
+    private String sha256(byte[] content){
+        try{
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        }catch(Exception exception){
+            throw new IllegalStateException(exception);
+        }
+    }
+}
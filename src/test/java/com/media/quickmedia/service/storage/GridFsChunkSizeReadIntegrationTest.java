@@ -0,0 +1,83 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.config.MongoDbTestConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.AutoConfigureDataMongo;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsUpload;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+//rough sequential read throughput per chunk size against embedded mongo, numbers go to the log.
+//a benchmark rather than a test, so surefire skips it unless the benchmark tag is let through
+@Tag("benchmark")
+@Import({MongoDbTestConfiguration.class})
+@AutoConfigureDataMongo
+@SpringBootTest
+@ExtendWith(SpringExtension.class)
+@Slf4j
+public class GridFsChunkSizeReadIntegrationTest {
+
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Autowired
+    private ReactiveGridFsTemplate gridFsTemplate;
+
+    @Test
+    void when_readSequentially_thenLogsThroughputPerChunkSize(){
+        var content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        for(int chunkSize : new int[]{255 * 1024, 1024 * 1024, 4 * 1024 * 1024}){
+            var fileId = gridFsTemplate.store(ReactiveGridFsUpload.fromPublisher(buffers(content))
+                            .filename("chunk-size-" + chunkSize)
+                            .metadata(new Document("type", "media"))
+                            .chunkSize(chunkSize)
+                            .build())
+                    .block();
+            long best = Long.MAX_VALUE;
+            for(int round = 0; round < ROUNDS; round++){
+                long started = System.nanoTime();
+                long read = gridFsTemplate.findOne(query(where("_id").is(fileId)))
+                        .flatMap(gridFsTemplate::getResource)
+                        .flatMapMany(ReactiveGridFsResource::getDownloadStream)
+                        .map(dataBuffer -> {
+                            int length = dataBuffer.readableByteCount();
+                            DataBufferUtils.release(dataBuffer);
+                            return (long) length;
+                        })
+                        .reduce(0L, Long::sum)
+                        .block();
+                best = Math.min(best, System.nanoTime() - started);
+                assertEquals(FILE_SIZE, read);
+            }
+            log.info("Chunk size {} KB: {} MB/s sequential read", chunkSize / 1024,
+                    String.format("%.1f", FILE_SIZE / 1024.0 / 1024.0 / (best / 1e9)));
+            gridFsTemplate.delete(query(where("_id").is(fileId))).block();
+        }
+    }
+
+    private Flux<DataBuffer> buffers(byte[] content){
+        return Flux.range(0, content.length / BUFFER_SIZE)
+                .map(i -> DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(content, i * BUFFER_SIZE, BUFFER_SIZE)));
+    }
+}
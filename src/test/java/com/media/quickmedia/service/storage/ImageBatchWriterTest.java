@@ -0,0 +1,207 @@
+package com.media.quickmedia.service.storage;
+
+import com.google.protobuf.ByteString;
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.UploadResult;
+import com.media.quickmedia.service.storage.config.ImageBatchProperties;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.InsertManyResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.proto.service.DataChunk;
+import com.proto.service.Key;
+import com.proto.service.UploadRequest;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ImageBatchWriterTest {
+
+    @Mock
+    private ImageStorageEngine imageStorageEngine;
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Mock
+    private TransactionalOperator transactionalOperator;
+
+    @Mock
+    private MongoCollection<Document> mongoCollection;
+
+    private ImageBatchProperties properties;
+
+    private ImageBatchWriter imageBatchWriter;
+
+    @BeforeEach
+    void setUp() {
+        properties = new ImageBatchProperties();
+        imageBatchWriter = new ImageBatchWriter(imageStorageEngine, reactiveMongoTemplate, transactionalOperator, properties);
+        var converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+        converter.afterPropertiesSet();
+        lenient().when(reactiveMongoTemplate.getConverter()).thenReturn(converter);
+        lenient().when(reactiveMongoTemplate.getCollectionName(Image.class)).thenReturn("images");
+        lenient().when(reactiveMongoTemplate.getCollection("images")).thenReturn(Mono.just(mongoCollection));
+        lenient().when(imageStorageEngine.prepare(anyString(), any())).thenAnswer(invocation -> Mono.just(Image.builder()
+                .name(invocation.getArgument(0))
+                .content(invocation.getArgument(1))
+                .build()));
+    }
+
+    private List<UploadRequest> requests(int count){
+        return IntStream.range(0, count)
+                .mapToObj(n -> UploadRequest.newBuilder()
+                        .setKey(Key.newBuilder().setKey("image-" + n).build())
+                        .setData(DataChunk.newBuilder().setData(ByteString.copyFrom(new byte[]{1, 2, 3})).build())
+                        .build())
+                .toList();
+    }
+
+    @Test
+    void when_write_thenInsertsInCountCappedSubBatches() {
+        properties.setMaxCount(2);
+        var batchCaptor = ArgumentCaptor.forClass(List.class);
+        when(mongoCollection.insertMany(batchCaptor.capture(), any(InsertManyOptions.class)))
+                .thenReturn(Mono.just(InsertManyResult.acknowledged(Map.of())));
+
+        StepVerifier.create(imageBatchWriter.write(requests(5), false))
+                .consumeNextWith(results -> {
+                    assertEquals(List.of(0, 1, 2, 3, 4), results.stream().map(UploadResult::getIndex).toList());
+                    assertTrue(results.stream().allMatch(UploadResult::isSuccess));
+                    assertTrue(results.stream().allMatch(result -> result.getId() != null));
+                })
+                .verifyComplete();
+
+        assertEquals(List.of(2, 2, 1), batchCaptor.getAllValues().stream().map(List::size).toList());
+        var document = (Document) batchCaptor.getAllValues().get(0).get(0);
+        assertEquals("image-0", document.get("name"));
+        assertNotNull(document.get("_id"));
+    }
+
+    @Test
+    void when_write_overByteCap_thenSplits() {
+        properties.setMaxBytes(4);
+        when(mongoCollection.insertMany(anyList(), any(InsertManyOptions.class)))
+                .thenReturn(Mono.just(InsertManyResult.acknowledged(Map.of())));
+
+        StepVerifier.create(imageBatchWriter.write(requests(3), false))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        verify(mongoCollection, times(3)).insertMany(anyList(), any(InsertManyOptions.class));
+    }
+
+    @Test
+    void when_write_oneDocumentRejected_thenOthersStored() {
+        var spilled = Image.builder().name("image-1").blobId("62c314e22525c96a4ae223b3").build();
+        when(imageStorageEngine.prepare(eq("image-1"), any())).thenReturn(Mono.just(spilled));
+        when(imageStorageEngine.discard(spilled)).thenReturn(Mono.empty());
+        var bulkWriteException = new MongoBulkWriteException(BulkWriteResult.acknowledged(2, 0, 0, 0, List.of(), List.of()),
+                List.of(new BulkWriteError(11000, "duplicate key", new BsonDocument(), 1)), null, new ServerAddress(), Set.of());
+        when(mongoCollection.insertMany(anyList(), any(InsertManyOptions.class))).thenReturn(Mono.error(bulkWriteException));
+
+        StepVerifier.create(imageBatchWriter.write(requests(3), false))
+                .consumeNextWith(results -> {
+                    assertTrue(results.get(0).isSuccess());
+                    assertEquals("duplicate key", results.get(1).getError());
+                    assertNull(results.get(1).getId());
+                    assertTrue(results.get(2).isSuccess());
+                })
+                .verifyComplete();
+
+        verify(imageStorageEngine).discard(spilled);
+    }
+
+    @Test
+    void when_write_prepareFails_thenOnlyThatItemFails() {
+        when(imageStorageEngine.prepare(eq("image-0"), any())).thenReturn(Mono.error(new RuntimeException("gridfs down")));
+        var batchCaptor = ArgumentCaptor.forClass(List.class);
+        when(mongoCollection.insertMany(batchCaptor.capture(), any(InsertManyOptions.class)))
+                .thenReturn(Mono.just(InsertManyResult.acknowledged(Map.of())));
+
+        StepVerifier.create(imageBatchWriter.write(requests(2), false))
+                .consumeNextWith(results -> {
+                    assertFalse(results.get(0).isSuccess());
+                    assertTrue(results.get(1).isSuccess());
+                })
+                .verifyComplete();
+
+        assertEquals(1, batchCaptor.getValue().size());
+    }
+
+    @Test
+    void when_writeAtomic_thenInsertsInTransaction() {
+        when(transactionalOperator.transactional(any(Flux.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(reactiveMongoTemplate.insert(anyList(), eq(Image.class))).thenAnswer(invocation -> Flux.fromIterable(invocation.getArgument(0)));
+
+        StepVerifier.create(imageBatchWriter.write(requests(2), true))
+                .consumeNextWith(results -> assertTrue(results.stream().allMatch(UploadResult::isSuccess)))
+                .verifyComplete();
+
+        verify(transactionalOperator).transactional(any(Flux.class));
+        verify(mongoCollection, never()).insertMany(anyList(), any(InsertManyOptions.class));
+    }
+
+    @Test
+    void when_writeAtomic_insertFails_thenEveryItemFailsAndBlobsReleased() {
+        var spilled = Image.builder().name("image-0").blobId("62c314e22525c96a4ae223b3").build();
+        when(imageStorageEngine.prepare(eq("image-0"), any())).thenReturn(Mono.just(spilled));
+        when(imageStorageEngine.discard(any())).thenReturn(Mono.empty());
+        when(transactionalOperator.transactional(any(Flux.class))).thenAnswer(invocation -> invocation.getArgument(0));
+        when(reactiveMongoTemplate.insert(anyList(), eq(Image.class))).thenReturn(Flux.error(new RuntimeException("aborted")));
+
+        StepVerifier.create(imageBatchWriter.write(requests(2), true))
+                .consumeNextWith(results -> {
+                    assertTrue(results.stream().noneMatch(UploadResult::isSuccess));
+                    assertTrue(results.get(1).getError().contains("aborted"));
+                })
+                .verifyComplete();
+
+        verify(imageStorageEngine).discard(spilled);
+    }
+
+    @Test
+    void when_writeAtomic_prepareFails_thenNothingInserted() {
+        when(imageStorageEngine.prepare(eq("image-1"), any())).thenReturn(Mono.error(new RuntimeException("gridfs down")));
+        when(imageStorageEngine.discard(any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(imageBatchWriter.write(requests(2), true))
+                .consumeNextWith(results -> assertTrue(results.stream().noneMatch(UploadResult::isSuccess)))
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, never()).insert(anyList(), eq(Image.class));
+    }
+}
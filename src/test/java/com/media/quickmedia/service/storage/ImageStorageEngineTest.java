@@ -0,0 +1,231 @@
+package com.media.quickmedia.service.storage;
+
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.storage.config.ImageStorageProperties;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ImageStorageEngineTest {
+
+    @Mock
+    private ImageRepository imageRepository;
+
+    @Mock
+    private ReactiveGridFsTemplate gridFsTemplate;
+
+    @Mock
+    private ContentStore contentStore;
+
+    @Mock
+    private GridFsChunkRepository gridFsChunkRepository;
+
+    private ImageStorageEngine imageStorageEngine;
+
+    private final ObjectId blobId = new ObjectId("62c314e22525c96a4ae223b3");
+
+    @BeforeEach
+    void setUp() {
+        var properties = new ImageStorageProperties();
+        properties.setInlineThreshold(4);
+        imageStorageEngine = new ImageStorageEngine(imageRepository, gridFsTemplate, contentStore, properties, gridFsChunkRepository);
+    }
+
+    @Test
+    void when_save_small_thenInline() {
+        var image = Image.builder().name("small").content(new byte[]{1, 2, 3}).build();
+        when(imageRepository.save(image)).thenReturn(Mono.just(image));
+
+        StepVerifier.create(imageStorageEngine.save("small", new byte[]{1, 2, 3}))
+                .consumeNextWith(saved -> {
+                    assertNull(saved.getBlobId());
+                    assertArrayEquals(new byte[]{1, 2, 3}, saved.getContent());
+                }).verifyComplete();
+
+        verifyNoInteractions(contentStore);
+    }
+
+    @Test
+    void when_save_large_thenSpillsToGridFs() {
+        when(contentStore.store(any(ByteBuffer.class), eq("large"), any(Document.class))).thenReturn(Mono.just(blobId));
+        when(imageRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(imageStorageEngine.save("large", new byte[]{1, 2, 3, 4, 5}))
+                .consumeNextWith(saved -> {
+                    assertEquals(blobId.toHexString(), saved.getBlobId());
+                    assertNull(saved.getContent());
+                    assertEquals("large", saved.getName());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_save_smallStream_thenInline() {
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        when(imageRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(imageStorageEngine.save("small", Flux.just(factory.wrap(new byte[]{1, 2}), factory.wrap(new byte[]{3}))))
+                .consumeNextWith(saved -> {
+                    assertNull(saved.getBlobId());
+                    assertArrayEquals(new byte[]{1, 2, 3}, saved.getContent());
+                }).verifyComplete();
+
+        verifyNoInteractions(contentStore);
+    }
+
+    @Test
+    void when_save_largeStream_thenStreamsToGridFs() {
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        when(contentStore.store(any(Flux.class), eq("large"), any(Document.class))).thenAnswer(invocation -> {
+            Flux<DataBuffer> content = invocation.getArgument(0);
+            return content.map(DataBuffer::readableByteCount)
+                    .reduce(0, Integer::sum)
+                    .doOnNext(length -> assertEquals(7, length))
+                    .thenReturn(blobId);
+        });
+        when(imageRepository.save(any())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(imageStorageEngine.save("large", Flux.just(factory.wrap(new byte[]{1, 2, 3}),
+                        factory.wrap(new byte[]{4, 5}), factory.wrap(new byte[]{6, 7}))))
+                .consumeNextWith(saved -> {
+                    assertEquals(blobId.toHexString(), saved.getBlobId());
+                    assertNull(saved.getContent());
+                }).verifyComplete();
+    }
+
+    @Test
+    void when_prepare_large_thenSpillsWithoutSaving() {
+        when(contentStore.store(any(ByteBuffer.class), eq("large"), any(Document.class))).thenReturn(Mono.just(blobId));
+
+        StepVerifier.create(imageStorageEngine.prepare("large", new byte[]{1, 2, 3, 4, 5}))
+                .consumeNextWith(prepared -> assertEquals(blobId.toHexString(), prepared.getBlobId()))
+                .verifyComplete();
+
+        verifyNoInteractions(imageRepository);
+    }
+
+    @Test
+    void when_discard_spilled_thenReleasesBlob() {
+        when(contentStore.release(blobId)).thenReturn(Mono.empty());
+
+        StepVerifier.create(imageStorageEngine.discard(Image.builder().blobId(blobId.toHexString()).build()))
+                .verifyComplete();
+
+        verify(contentStore).release(blobId);
+    }
+
+    @Test
+    void when_content_inline_thenReturnsContent() {
+        var image = Image.builder().content(new byte[]{1, 2, 3}).build();
+
+        StepVerifier.create(imageStorageEngine.content(image))
+                .consumeNextWith(bytes -> assertArrayEquals(new byte[]{1, 2, 3}, bytes))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_content_spilled_thenReadsGridFs() {
+        var image = Image.builder().id("image-id").blobId(blobId.toHexString()).build();
+        var gridFSFile = new GridFSFile(new BsonObjectId(blobId), "large", 5, 4, new Date(), null);
+        var resource = mock(ReactiveGridFsResource.class);
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        when(gridFsTemplate.findOne(any())).thenReturn(Mono.just(gridFSFile));
+        when(gridFsTemplate.getResource(gridFSFile)).thenReturn(Mono.just(resource));
+        when(resource.getDownloadStream()).thenReturn(Flux.just(factory.wrap(new byte[]{1, 2, 3, 4}), factory.wrap(new byte[]{5})));
+
+        StepVerifier.create(imageStorageEngine.content(image))
+                .consumeNextWith(bytes -> assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, bytes))
+                .verifyComplete();
+    }
+
+    @Test
+    void when_content_compressed_thenReadsThroughChunkRepository() {
+        var image = Image.builder().id("image-id").blobId(blobId.toHexString()).build();
+        var gridFSFile = new GridFSFile(new BsonObjectId(blobId), "large", 5, 4, new Date(),
+                new Document(GridFsChunkRepository.CODEC_METADATA, GridFsChunkRepository.DEFLATE));
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        when(gridFsTemplate.findOne(any())).thenReturn(Mono.just(gridFSFile));
+        when(gridFsChunkRepository.readRange(gridFSFile, 0, 4))
+                .thenReturn(Flux.just(factory.wrap(new byte[]{1, 2, 3, 4}), factory.wrap(new byte[]{5})));
+
+        StepVerifier.create(imageStorageEngine.content(image))
+                .consumeNextWith(bytes -> assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, bytes))
+                .verifyComplete();
+
+        verify(gridFsTemplate, never()).getResource(any(GridFSFile.class));
+    }
+
+    @Test
+    void when_content_missingBlob_thenThrows() {
+        var image = Image.builder().id("image-id").blobId(blobId.toHexString()).build();
+        when(gridFsTemplate.findOne(any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(imageStorageEngine.content(image))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+    }
+
+    @Test
+    void when_head_inline_thenTruncates() {
+        var image = Image.builder().content(new byte[]{1, 2, 3}).build();
+
+        StepVerifier.create(imageStorageEngine.head(image, 2))
+                .consumeNextWith(dataBuffer -> {
+                    assertEquals(2, dataBuffer.readableByteCount());
+                    assertEquals(1, dataBuffer.read());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_head_spilled_thenReadsLeadingChunksOnly() {
+        var image = Image.builder().id("image-id").blobId(blobId.toHexString()).build();
+        var gridFSFile = new GridFSFile(new BsonObjectId(blobId), "large", 1000, 4, new Date(), null);
+        var head = DefaultDataBufferFactory.sharedInstance.wrap(new byte[]{1, 2, 3, 4, 5, 6});
+        when(gridFsTemplate.findOne(any())).thenReturn(Mono.just(gridFSFile));
+        when(gridFsChunkRepository.readRange(gridFSFile, 0, 5)).thenReturn(Flux.just(head));
+
+        StepVerifier.create(imageStorageEngine.head(image, 6))
+                .expectNext(head)
+                .verifyComplete();
+
+        verify(gridFsTemplate, never()).getResource(any(GridFSFile.class));
+    }
+
+    @Test
+    void when_delete_spilled_thenReleasesBlob() {
+        var image = Image.builder().id("image-id").blobId(blobId.toHexString()).build();
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(contentStore.release(blobId)).thenReturn(Mono.empty());
+        when(imageRepository.deleteById("image-id")).thenReturn(Mono.empty());
+
+        StepVerifier.create(imageStorageEngine.delete("image-id"))
+                .verifyComplete();
+
+        verify(contentStore).release(blobId);
+        verify(imageRepository).deleteById("image-id");
+    }
+}
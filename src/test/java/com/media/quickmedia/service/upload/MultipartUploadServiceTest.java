@@ -0,0 +1,334 @@
+package com.media.quickmedia.service.upload;
+
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.MultipartUpload;
+import com.media.quickmedia.model.UploadSessionStatus;
+import com.media.quickmedia.repository.GridFsChunkRepository;
+import com.media.quickmedia.repository.MediaKeyRepository;
+import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.upload.config.MultipartUploadProperties;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.ReactiveIndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class MultipartUploadServiceTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Mock
+    private MediaKeyRepository mediaKeyRepository;
+
+    private MultipartUploadProperties properties;
+
+    private MultipartUploadService multipartUploadService;
+
+    private final String uploadId = "62c314e22525c96a4ae223b3";
+
+    @BeforeEach
+    void setUp() {
+        properties = new MultipartUploadProperties();
+        properties.setChunkSize(4);
+        properties.setDefaultPartChunks(2);
+        multipartUploadService = new MultipartUploadService(reactiveMongoTemplate, mediaKeyRepository, properties);
+    }
+
+    private MultipartUpload upload(Map<String, Long> parts, UploadSessionStatus status){
+        return MultipartUpload.builder()
+                .id(uploadId)
+                .name("movie.mp4")
+                .partSize(8)
+                .chunkSize(4)
+                .parts(parts)
+                .status(status)
+                .expiresAt(Instant.now().plusSeconds(60))
+                .build();
+    }
+
+    private void givenUpload(MultipartUpload upload){
+        when(reactiveMongoTemplate.findOne(any(Query.class), eq(MultipartUpload.class))).thenReturn(Mono.just(upload));
+    }
+
+    private void givenPartAcquired(){
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenAnswer(invocation -> Mono.just(upload(new HashMap<>(), UploadSessionStatus.OPEN)));
+    }
+
+    @Test
+    void when_create_thenRoundsPartSizeToChunks() {
+        when(reactiveMongoTemplate.insert(any(MultipartUpload.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(multipartUploadService.create("movie.mp4", 9))
+                .consumeNextWith(upload -> {
+                    assertEquals(12, upload.getPartSize());
+                    assertEquals(4, upload.getChunkSize());
+                    assertEquals(UploadSessionStatus.OPEN, upload.getStatus());
+                })
+                .verifyComplete();
+    }
+
+    @Test
+    void when_uploadPart_thenWritesChunksAtPartOffset() {
+        givenUpload(upload(new HashMap<>(), UploadSessionStatus.OPEN));
+        givenPartAcquired();
+        var queries = ArgumentCaptor.forClass(Query.class);
+        var updates = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.upsert(queries.capture(), updates.capture(), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        //part 2 starts at chunk 2, the buffers do not line up with chunk boundaries
+        StepVerifier.create(multipartUploadService.uploadPart(uploadId, 2, Flux.just(
+                        ByteBuffer.wrap(new byte[]{1, 2, 3}), ByteBuffer.wrap(new byte[]{4, 5, 6}))))
+                .expectNext(6L)
+                .verifyComplete();
+
+        var chunkNumbers = queries.getAllValues().stream()
+                .map(query -> query.getQueryObject().get("n"))
+                .sorted()
+                .toList();
+        assertEquals(List.of(2, 3), chunkNumbers);
+        var lengths = updates.getAllValues().stream()
+                .map(update -> ((Binary) update.getUpdateObject().get("$set", Document.class).get("data")).length())
+                .sorted()
+                .toList();
+        assertEquals(List.of(2, 4), lengths);
+    }
+
+    @Test
+    void when_uploadPart_largerThanPartSize_thenThrowsAndReleasesPart() {
+        givenUpload(upload(new HashMap<>(), UploadSessionStatus.OPEN));
+        givenPartAcquired();
+        var updates = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.upsert(any(Query.class), any(Update.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), updates.capture(), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(multipartUploadService.uploadPart(uploadId, 1, Flux.just(ByteBuffer.wrap(new byte[9]))))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+
+        assertEquals(new Document("writers.1", 1), updates.getValue().getUpdateObject().get("$unset"));
+        assertNull(updates.getValue().getUpdateObject().get("$set"));
+    }
+
+    @Test
+    void when_uploadPart_partHeldByAnotherAttempt_thenThrows() {
+        givenUpload(upload(new HashMap<>(), UploadSessionStatus.OPEN));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(multipartUploadService.uploadPart(uploadId, 1, Flux.just(ByteBuffer.wrap(new byte[4]))))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("is being written")));
+
+        verify(reactiveMongoTemplate, never()).upsert(any(Query.class), any(Update.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION));
+    }
+
+    @Test
+    void when_uploadPart_completedWhileWriting_thenThrows() {
+        givenUpload(upload(new HashMap<>(), UploadSessionStatus.OPEN));
+        givenPartAcquired();
+        when(reactiveMongoTemplate.upsert(any(Query.class), any(Update.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(0, 0L, null)));
+
+        StepVerifier.create(multipartUploadService.uploadPart(uploadId, 1, Flux.just(ByteBuffer.wrap(new byte[4]))))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("was completed or part 1 was taken over")));
+    }
+
+    @Test
+    void when_complete_thenWritesFilesDocument() {
+        givenUpload(upload(Map.of("1", 8L, "2", 3L), UploadSessionStatus.OPEN));
+        var file = ArgumentCaptor.forClass(Document.class);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(upload(Map.of("1", 8L, "2", 3L), UploadSessionStatus.FINISHING)));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Mono.just(DeleteResult.acknowledged(0)));
+        when(reactiveMongoTemplate.insert(file.capture(), eq(MultipartUploadService.FILES_COLLECTION)))
+                .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(mediaKeyRepository.save(any())).thenAnswer(invocation -> {
+            MediaKey key = invocation.getArgument(0);
+            assertEquals(uploadId, key.getBlobId());
+            key.setId("media-key");
+            return Mono.just(key);
+        });
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(multipartUploadService.complete(uploadId, 2))
+                .expectNext("media-key")
+                .verifyComplete();
+
+        assertEquals(11L, file.getValue().get("length"));
+        assertEquals(4, file.getValue().get("chunkSize"));
+        assertEquals("movie.mp4", file.getValue().get("filename"));
+    }
+
+    @Test
+    void when_complete_missingPart_thenThrows() {
+        givenUpload(upload(Map.of("1", 8L, "3", 3L), UploadSessionStatus.OPEN));
+
+        StepVerifier.create(multipartUploadService.complete(uploadId, 0))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("missing part 2")));
+
+        verify(reactiveMongoTemplate, never()).insert(any(Document.class), eq(MultipartUploadService.FILES_COLLECTION));
+    }
+
+    @Test
+    void when_complete_shortMiddlePart_thenThrows() {
+        givenUpload(upload(Map.of("1", 5L, "2", 3L), UploadSessionStatus.OPEN));
+
+        StepVerifier.create(multipartUploadService.complete(uploadId, 2))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+    }
+
+    @Test
+    void when_complete_partsStillWriting_thenThrows() {
+        givenUpload(upload(Map.of("1", 8L), UploadSessionStatus.OPEN));
+        var claim = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.findAndModify(claim.capture(), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(multipartUploadService.complete(uploadId, 1))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("still being written")));
+
+        assertTrue(claim.getValue().getQueryObject().containsKey("$or"));
+        verify(reactiveMongoTemplate, never()).insert(any(Document.class), eq(MultipartUploadService.FILES_COLLECTION));
+    }
+
+    @Test
+    void when_complete_lapsedWriter_thenReleasedBeforeClaim() {
+        var lapsed = new MultipartUpload.PartWriter("attempt", Instant.now().minusSeconds(1));
+        givenUpload(upload(Map.of("1", 8L), UploadSessionStatus.OPEN).toBuilder().writers(Map.of("2", lapsed)).build());
+        var release = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.updateFirst(release.capture(), any(Update.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(multipartUploadService.complete(uploadId, 1))
+                .verifyError(RepositoryException.class);
+
+        assertEquals("attempt", release.getValue().getQueryObject().get("writers.2.attempt"));
+    }
+
+    @Test
+    void when_complete_alreadyFinished_thenReturnsSameKey() {
+        givenUpload(upload(Map.of("1", 8L), UploadSessionStatus.FINISHED).toBuilder().mediaKey("media-key").build());
+
+        StepVerifier.create(multipartUploadService.complete(uploadId, 1))
+                .expectNext("media-key")
+                .verifyComplete();
+
+        verifyNoInteractions(mediaKeyRepository);
+    }
+
+    @Test
+    void when_ensureChunkIndex_thenUniqueOnFileAndChunk() {
+        var indexOperations = mock(ReactiveIndexOperations.class);
+        var index = ArgumentCaptor.forClass(IndexDefinition.class);
+        when(reactiveMongoTemplate.indexOps(GridFsChunkRepository.CHUNKS_COLLECTION)).thenReturn(indexOperations);
+        when(indexOperations.ensureIndex(index.capture())).thenReturn(Mono.just("files_id_1_n_1"));
+
+        StepVerifier.create(multipartUploadService.ensureChunkIndex())
+                .expectNext("files_id_1_n_1")
+                .verifyComplete();
+
+        assertEquals(new Document("files_id", 1).append("n", 1), index.getValue().getIndexKeys());
+        assertEquals(true, index.getValue().getIndexOptions().get("unique"));
+    }
+
+    @Test
+    void when_expire_thenDropsChunksOfUnfinishedUploads() {
+        var open = upload(Map.of("1", 8L), UploadSessionStatus.OPEN);
+        var finished = upload(Map.of("1", 8L), UploadSessionStatus.FINISHED).toBuilder().id("62c314e22525c96a4ae223b4").build();
+        when(reactiveMongoTemplate.find(any(Query.class), eq(MultipartUpload.class))).thenReturn(Flux.just(open, finished));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(open.toBuilder().status(UploadSessionStatus.ABORTING).build()));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Mono.just(DeleteResult.acknowledged(2)));
+        when(reactiveMongoTemplate.remove(any(MultipartUpload.class))).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+
+        StepVerifier.create(multipartUploadService.expire())
+                .expectNext(2L)
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, times(1)).remove(any(Query.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION));
+    }
+
+    @Test
+    void when_expire_partStillWriting_thenKeepsChunks() {
+        var writer = new MultipartUpload.PartWriter("attempt", Instant.now().plusSeconds(60));
+        var open = upload(Map.of("1", 8L), UploadSessionStatus.OPEN).toBuilder().writers(Map.of("2", writer)).build();
+        when(reactiveMongoTemplate.find(any(Query.class), eq(MultipartUpload.class))).thenReturn(Flux.just(open));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(multipartUploadService.expire())
+                .expectNext(0L)
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, never()).remove(any(Query.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION));
+        verify(reactiveMongoTemplate, never()).remove(any(MultipartUpload.class));
+    }
+
+    @Test
+    void when_abort_thenClaimsBeforeDroppingChunks() {
+        givenUpload(upload(Map.of("1", 8L), UploadSessionStatus.OPEN));
+        var claim = ArgumentCaptor.forClass(Query.class);
+        var update = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.findAndModify(claim.capture(), update.capture(), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.just(upload(Map.of("1", 8L), UploadSessionStatus.ABORTING)));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION)))
+                .thenReturn(Mono.just(DeleteResult.acknowledged(2)));
+        when(reactiveMongoTemplate.remove(any(MultipartUpload.class))).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+
+        StepVerifier.create(multipartUploadService.abort(uploadId))
+                .verifyComplete();
+
+        assertTrue(claim.getValue().getQueryObject().containsKey("$or"));
+        assertEquals(new Document("status", UploadSessionStatus.ABORTING), update.getValue().getUpdateObject().get("$set"));
+    }
+
+    @Test
+    void when_abort_partStillWriting_thenThrows() {
+        givenUpload(upload(Map.of("1", 8L), UploadSessionStatus.OPEN));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(MultipartUpload.class)))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(multipartUploadService.abort(uploadId))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("still being written")));
+
+        verify(reactiveMongoTemplate, never()).remove(any(Query.class), eq(GridFsChunkRepository.CHUNKS_COLLECTION));
+    }
+}
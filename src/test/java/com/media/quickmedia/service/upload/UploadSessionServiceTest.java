@@ -0,0 +1,279 @@
+package com.media.quickmedia.service.upload;
+
+import com.media.quickmedia.model.MediaKey;
+import com.media.quickmedia.model.UploadSession;
+import com.media.quickmedia.model.UploadSessionChunk;
+import com.media.quickmedia.model.UploadSessionStatus;
+import com.media.quickmedia.repository.MediaKeyRepository;
+import com.media.quickmedia.service.error.RepositoryException;
+import com.media.quickmedia.service.storage.ContentStore;
+import com.media.quickmedia.service.upload.config.UploadSessionProperties;
+import com.media.quickmedia.service.utils.DataBufferService;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class UploadSessionServiceTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Mock
+    private ContentStore contentStore;
+
+    @Mock
+    private MediaKeyRepository mediaKeyRepository;
+
+    private UploadSessionService uploadSessionService;
+
+    private final byte[] data = new byte[]{1, 2, 3};
+
+    @BeforeEach
+    void setUp() {
+        var properties = new UploadSessionProperties();
+        properties.setMaxChunkBytes(4);
+        uploadSessionService = new UploadSessionService(reactiveMongoTemplate, contentStore, mediaKeyRepository,
+                new DataBufferService(), properties);
+    }
+
+    private UploadSession session(long committedOffset, int chunkCount, UploadSessionStatus status){
+        return UploadSession.builder()
+                .id("session")
+                .name("movie.mp4")
+                .committedOffset(committedOffset)
+                .chunkCount(chunkCount)
+                .status(status)
+                .expiresAt(Instant.now().plusSeconds(60))
+                .build();
+    }
+
+    private void givenSession(UploadSession session){
+        when(reactiveMongoTemplate.findOne(any(Query.class), eq(UploadSession.class))).thenReturn(Mono.just(session));
+    }
+
+    @Test
+    void when_append_atCommittedOffset_thenStoresChunkAndAdvances() {
+        givenSession(session(4, 1, UploadSessionStatus.OPEN));
+        var chunk = ArgumentCaptor.forClass(UploadSessionChunk.class);
+        var update = ArgumentCaptor.forClass(Update.class);
+        when(reactiveMongoTemplate.insert(chunk.capture())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), update.capture(), any(FindAndModifyOptions.class), eq(UploadSession.class)))
+                .thenReturn(Mono.just(session(7, 2, UploadSessionStatus.OPEN)));
+
+        StepVerifier.create(uploadSessionService.append("session", 4, data, UploadSessionService.crc32c(data)))
+                .consumeNextWith(session -> assertEquals(7, session.getCommittedOffset()))
+                .verifyComplete();
+
+        assertTrue(chunk.getValue().getId().startsWith("session:1:"));
+        assertEquals(4, chunk.getValue().getOffset());
+        assertEquals(new Document("committedOffset", 3).append("chunkCount", 1),
+                update.getValue().getUpdateObject().get("$inc"));
+        assertEquals(chunk.getValue().getId(), update.getValue().getUpdateObject().get("$push", Document.class).get("chunkIds"));
+    }
+
+    private UploadSession committed(){
+        return session(6, 2, UploadSessionStatus.OPEN).toBuilder().chunkIds(List.of("session:0:a", "session:1:b")).build();
+    }
+
+    private void givenCommittedChunks(UploadSessionChunk... chunks){
+        when(reactiveMongoTemplate.find(any(Query.class), eq(UploadSessionChunk.class))).thenReturn(Flux.just(chunks));
+    }
+
+    @Test
+    void when_append_alreadyCommitted_thenAcksWithoutWriting() {
+        var session = committed();
+        givenSession(session);
+        givenCommittedChunks(UploadSessionChunk.builder().n(1).offset(3).data(data).build());
+
+        StepVerifier.create(uploadSessionService.append("session", 3, data, null))
+                .expectNext(session)
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, never()).insert(any(UploadSessionChunk.class));
+    }
+
+    @Test
+    void when_append_alreadyCommittedAcrossChunks_thenComparesCoveredBytes() {
+        var session = committed();
+        givenSession(session);
+        givenCommittedChunks(UploadSessionChunk.builder().n(0).offset(0).data(new byte[]{7, 1, 2}).build(),
+                UploadSessionChunk.builder().n(1).offset(3).data(new byte[]{3, 8, 9}).build());
+
+        StepVerifier.create(uploadSessionService.append("session", 1, data, null))
+                .expectNext(session)
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate, never()).insert(any(UploadSessionChunk.class));
+    }
+
+    @Test
+    void when_append_alreadyCommittedWithOtherBytes_thenThrows() {
+        givenSession(committed());
+        givenCommittedChunks(UploadSessionChunk.builder().n(1).offset(3).data(new byte[]{9, 9, 9}).build());
+
+        StepVerifier.create(uploadSessionService.append("session", 3, data, null))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("different bytes")));
+
+        verify(reactiveMongoTemplate, never()).insert(any(UploadSessionChunk.class));
+    }
+
+    @Test
+    void when_append_alreadyCommittedChunkMissing_thenThrows() {
+        givenSession(committed());
+        givenCommittedChunks(UploadSessionChunk.builder().n(1).offset(4).data(new byte[]{2, 3}).build());
+
+        StepVerifier.create(uploadSessionService.append("session", 3, data, null))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("different bytes")));
+    }
+
+    @Test
+    void when_append_gap_thenThrows() {
+        givenSession(session(3, 1, UploadSessionStatus.OPEN));
+
+        StepVerifier.create(uploadSessionService.append("session", 5, data, null))
+                .verifyErrorSatisfies(error -> {
+                    assertTrue(error instanceof RepositoryException);
+                    assertTrue(error.getMessage().contains("expects offset 3"));
+                });
+    }
+
+    @Test
+    void when_append_checksumMismatch_thenThrows() {
+        StepVerifier.create(uploadSessionService.append("session", 0, data, UploadSessionService.crc32c(data) + 1))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+
+        verifyNoInteractions(reactiveMongoTemplate);
+    }
+
+    @Test
+    void when_append_tooLarge_thenThrows() {
+        StepVerifier.create(uploadSessionService.append("session", 0, new byte[5], null))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+    }
+
+    private void givenConcurrentAppendWon(UploadSessionChunk committed){
+        when(reactiveMongoTemplate.insert(any(UploadSessionChunk.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(UploadSession.class)))
+                .thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(UploadSessionChunk.class)))
+                .thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+        when(reactiveMongoTemplate.findOne(any(Query.class), eq(UploadSession.class)))
+                .thenReturn(Mono.just(session(0, 0, UploadSessionStatus.OPEN)),
+                        Mono.just(session(3, 1, UploadSessionStatus.OPEN).toBuilder().chunkIds(List.of("session:0:winner")).build()));
+        when(reactiveMongoTemplate.findById("session:0:winner", UploadSessionChunk.class)).thenReturn(Mono.just(committed));
+    }
+
+    @Test
+    void when_append_concurrentRetryWon_thenAcks() {
+        givenConcurrentAppendWon(UploadSessionChunk.builder().id("session:0:winner").data(data).crc32c(UploadSessionService.crc32c(data)).build());
+
+        StepVerifier.create(uploadSessionService.append("session", 0, data, null))
+                .consumeNextWith(session -> assertEquals(3, session.getCommittedOffset()))
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate).remove(any(Query.class), eq(UploadSessionChunk.class));
+    }
+
+    @Test
+    void when_append_concurrentAppendWonWithOtherBytes_thenThrows() {
+        var other = new byte[]{9, 9, 9};
+        givenConcurrentAppendWon(UploadSessionChunk.builder().id("session:0:winner").data(other).crc32c(UploadSessionService.crc32c(other)).build());
+
+        StepVerifier.create(uploadSessionService.append("session", 0, data, null))
+                .verifyErrorSatisfies(error -> assertTrue(error.getMessage().contains("different bytes")));
+    }
+
+    @Test
+    void when_finish_thenStreamsChunksIntoContentStore() {
+        var blobId = new ObjectId("62c314e22525c96a4ae223b3");
+        givenSession(session(5, 2, UploadSessionStatus.OPEN));
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(UploadSession.class)))
+                .thenReturn(Mono.just(session(5, 2, UploadSessionStatus.FINISHING).toBuilder().chunkIds(List.of("session:0:a", "session:1:b")).build()));
+        when(reactiveMongoTemplate.find(any(Query.class), eq(UploadSessionChunk.class))).thenReturn(Flux.just(
+                UploadSessionChunk.builder().n(0).data(new byte[]{1, 2, 3}).build(),
+                UploadSessionChunk.builder().n(1).data(new byte[]{4, 5}).build()));
+        when(contentStore.store(ArgumentMatchers.<Flux<DataBuffer>>any(), eq("movie.mp4"), any(Document.class), eq(5L))).thenAnswer(invocation -> {
+            Flux<DataBuffer> content = invocation.getArgument(0);
+            return DataBufferUtils.join(content)
+                    .doOnNext(joined -> assertEquals(5, joined.readableByteCount()))
+                    .thenReturn(blobId);
+        });
+        when(mediaKeyRepository.save(any())).thenAnswer(invocation -> {
+            MediaKey key = invocation.getArgument(0);
+            key.setId("media-key");
+            return Mono.just(key);
+        });
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(UploadSession.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(UploadSessionChunk.class)))
+                .thenReturn(Mono.just(DeleteResult.acknowledged(2)));
+
+        StepVerifier.create(uploadSessionService.finish("session", 5))
+                .expectNext("media-key")
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate).remove(any(Query.class), eq(UploadSessionChunk.class));
+    }
+
+    @Test
+    void when_finish_alreadyFinished_thenReturnsSameKey() {
+        givenSession(session(5, 2, UploadSessionStatus.FINISHED).toBuilder().mediaKey("media-key").build());
+
+        StepVerifier.create(uploadSessionService.finish("session", 5))
+                .expectNext("media-key")
+                .verifyComplete();
+
+        verifyNoInteractions(contentStore);
+    }
+
+    @Test
+    void when_finish_lengthMismatch_thenThrows() {
+        givenSession(session(5, 2, UploadSessionStatus.OPEN));
+
+        StepVerifier.create(uploadSessionService.finish("session", 9))
+                .verifyErrorSatisfies(error -> assertTrue(error instanceof RepositoryException));
+
+        verifyNoInteractions(contentStore);
+    }
+
+    @Test
+    void when_expire_thenRemovesChunksAndSessions() {
+        var expired = session(5, 2, UploadSessionStatus.OPEN);
+        when(reactiveMongoTemplate.find(any(Query.class), eq(UploadSession.class))).thenReturn(Flux.just(expired));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(UploadSessionChunk.class)))
+                .thenReturn(Mono.just(DeleteResult.acknowledged(2)));
+        when(reactiveMongoTemplate.remove(expired)).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+
+        StepVerifier.create(uploadSessionService.expire())
+                .expectNext(1L)
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate).remove(expired);
+    }
+}
@@ -0,0 +1,94 @@
+package com.media.quickmedia.service.variant;
+
+import com.media.quickmedia.service.variant.config.ImageVariantProperties;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageResizerTest {
+
+    private final ImageVariantProperties properties = new ImageVariantProperties();
+
+    private final ImageResizer imageResizer = new ImageResizer(properties);
+
+    private byte[] png(int width, int height, int type) throws IOException {
+        var image = new BufferedImage(width, height, type);
+        for(int x = 0; x < width; x++){
+            image.setRGB(x, x * height / width, 0xFFFF0000);
+        }
+        var output = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", output);
+        return output.toByteArray();
+    }
+
+    @Test
+    void when_resize_thenKeepsAspectRatioPerSize() throws IOException {
+        var scaled = imageResizer.resize(png(400, 200, BufferedImage.TYPE_INT_RGB), List.of(64, 256));
+
+        assertEquals(2, scaled.size());
+        assertEquals(256, scaled.get(0).getWidth());
+        assertEquals(128, scaled.get(0).getHeight());
+        assertEquals(64, scaled.get(1).getWidth());
+        assertEquals(32, scaled.get(1).getHeight());
+        assertEquals("image/jpeg", scaled.get(1).getContentType());
+        var decoded = ImageIO.read(new ByteArrayInputStream(scaled.get(1).getContent()));
+        assertEquals(64, decoded.getWidth());
+    }
+
+    @Test
+    void when_resize_sizeNotSmaller_thenSkipped() throws IOException {
+        var scaled = imageResizer.resize(png(100, 50, BufferedImage.TYPE_INT_RGB), List.of(64, 100, 1024));
+
+        assertEquals(1, scaled.size());
+        assertEquals(64, scaled.get(0).getSize());
+    }
+
+    @Test
+    void when_resize_alpha_thenWritesPng() throws IOException {
+        var scaled = imageResizer.resize(png(128, 128, BufferedImage.TYPE_INT_ARGB), List.of(32));
+
+        assertEquals("image/png", scaled.get(0).getContentType());
+        assertTrue(ImageIO.read(new ByteArrayInputStream(scaled.get(0).getContent())).getColorModel().hasAlpha());
+    }
+
+    @Test
+    void when_resize_notAnImage_thenThrows() {
+        assertThrows(IllegalArgumentException.class, () -> imageResizer.resize(new byte[]{1, 2, 3}, List.of(64)));
+    }
+
+    @Test
+    void when_resize_overPixelLimit_thenRejectedBeforeDecoding() throws IOException {
+        properties.setMaxPixels(100 * 100 - 1);
+
+        var error = assertThrows(IllegalArgumentException.class,
+                () -> imageResizer.resize(png(100, 100, BufferedImage.TYPE_INT_RGB), List.of(32)));
+
+        assertTrue(error.getMessage().contains("100x100"));
+    }
+
+    @Test
+    void when_resize_largeOriginal_thenSubsampledToExactSize() throws IOException {
+        var scaled = imageResizer.resize(png(1000, 500, BufferedImage.TYPE_INT_RGB), List.of(64));
+
+        assertEquals(64, scaled.get(0).getWidth());
+        assertEquals(32, scaled.get(0).getHeight());
+    }
+
+    @Test
+    void when_resize_truncatedImage_thenThrowsIllegalArgument() throws IOException {
+        var png = png(64, 64, BufferedImage.TYPE_INT_RGB);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> imageResizer.resize(Arrays.copyOf(png, png.length / 2), List.of(32)));
+    }
+}
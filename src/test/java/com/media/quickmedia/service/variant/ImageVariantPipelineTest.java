@@ -0,0 +1,195 @@
+package com.media.quickmedia.service.variant;
+
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.model.ImageVariantJob;
+import com.media.quickmedia.model.ImageVariantJobStatus;
+import com.media.quickmedia.repository.ImageRepository;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import com.media.quickmedia.service.variant.config.ImageVariantProperties;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ImageVariantPipelineTest {
+
+    @Mock
+    private ImageRepository imageRepository;
+
+    @Mock
+    private ImageStorageEngine imageStorageEngine;
+
+    @Mock
+    private ImageVariantService imageVariantService;
+
+    @Mock
+    private ImageResizer imageResizer;
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    private ImageVariantProperties properties;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ImageVariantPipeline imageVariantPipeline;
+
+    private final Image image = Image.builder().id("image-id").name("cat.png").content(new byte[]{1, 2, 3}).build();
+
+    @BeforeEach
+    void setUp() {
+        properties = new ImageVariantProperties();
+        meterRegistry = new SimpleMeterRegistry();
+        imageVariantPipeline = new ImageVariantPipeline(imageRepository, imageStorageEngine, imageVariantService,
+                imageResizer, reactiveMongoTemplate, properties, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        imageVariantPipeline.stop();
+    }
+
+    private ImageVariantJob job(int attempts){
+        return ImageVariantJob.builder().id("image-id").status(ImageVariantJobStatus.RUNNING).attempts(attempts).build();
+    }
+
+    @Test
+    void when_enqueue_thenUpsertsPendingJob() {
+        var update = ArgumentCaptor.forClass(Update.class);
+        var options = ArgumentCaptor.forClass(FindAndModifyOptions.class);
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), update.capture(), options.capture(), eq(ImageVariantJob.class)))
+                .thenReturn(Mono.just(job(0)));
+
+        StepVerifier.create(imageVariantPipeline.enqueue("image-id"))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        assertEquals(ImageVariantJobStatus.PENDING, update.getValue().getUpdateObject().get("$set", Document.class).get("status"));
+        assertEquals(true, options.getValue().isUpsert());
+    }
+
+    @Test
+    void when_process_thenStoresEachVariantAndRemovesJob() {
+        var variants = ArgumentCaptor.forClass(ImageVariant.class);
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(imageStorageEngine.content(image)).thenReturn(Mono.just(new byte[]{1, 2, 3}));
+        when(imageResizer.resize(new byte[]{1, 2, 3}, properties.getSizes())).thenReturn(List.of(
+                new ImageResizer.ScaledImage(256, 256, 128, "image/jpeg", new byte[]{4}),
+                new ImageResizer.ScaledImage(64, 64, 32, "image/jpeg", new byte[]{5})));
+        when(imageStorageEngine.prepare(any(), any())).thenAnswer(invocation -> Mono.just(Image.builder()
+                .name(invocation.getArgument(0))
+                .content(invocation.getArgument(1))
+                .build()));
+        when(imageVariantService.replace(variants.capture())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(imageRepository.existsById("image-id")).thenReturn(Mono.just(true));
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(ImageVariantJob.class))).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+
+        StepVerifier.create(imageVariantPipeline.process(job(1)))
+                .expectNext(2L)
+                .verifyComplete();
+
+        assertEquals("image-id:256", variants.getAllValues().get(0).getId());
+        assertEquals(64, variants.getAllValues().get(1).getWidth());
+        assertEquals(2.0, meterRegistry.counter("quickmedia.images.variants.generated").count());
+        verify(imageStorageEngine).prepare("cat.png@64", new byte[]{5});
+    }
+
+    @Test
+    void when_process_imageGone_thenDropsJob() {
+        when(imageRepository.findById("image-id")).thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(ImageVariantJob.class))).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+
+        StepVerifier.create(imageVariantPipeline.process(job(1)))
+                .expectNext(0L)
+                .verifyComplete();
+
+        verifyNoInteractions(imageResizer);
+    }
+
+    @Test
+    void when_process_deletedWhileScaling_thenRemovesVariants() {
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(imageStorageEngine.content(image)).thenReturn(Mono.just(new byte[]{1, 2, 3}));
+        when(imageResizer.resize(any(), any())).thenReturn(List.of());
+        when(imageRepository.existsById("image-id")).thenReturn(Mono.just(false));
+        when(imageVariantService.delete("image-id")).thenReturn(Flux.empty());
+        when(reactiveMongoTemplate.remove(any(Query.class), eq(ImageVariantJob.class))).thenReturn(Mono.just(DeleteResult.acknowledged(1)));
+
+        StepVerifier.create(imageVariantPipeline.process(job(1)))
+                .expectNext(0L)
+                .verifyComplete();
+
+        verify(imageVariantService).delete("image-id");
+    }
+
+    @Test
+    void when_process_fails_thenRetriesLater() {
+        var update = ArgumentCaptor.forClass(Update.class);
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(imageStorageEngine.content(image)).thenReturn(Mono.error(new IllegalStateException("mongo down")));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), update.capture(), eq(ImageVariantJob.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(imageVariantPipeline.process(job(1)))
+                .expectNext(0L)
+                .verifyComplete();
+
+        assertEquals(ImageVariantJobStatus.PENDING, update.getValue().getUpdateObject().get("$set", Document.class).get("status"));
+        assertEquals(1.0, meterRegistry.counter("quickmedia.images.variants.failures").count());
+        verify(reactiveMongoTemplate, never()).remove(any(Query.class), eq(ImageVariantJob.class));
+    }
+
+    @Test
+    void when_process_unsupportedFormat_thenFails() {
+        var update = ArgumentCaptor.forClass(Update.class);
+        when(imageRepository.findById("image-id")).thenReturn(Mono.just(image));
+        when(imageStorageEngine.content(image)).thenReturn(Mono.just(new byte[]{1, 2, 3}));
+        when(imageResizer.resize(any(), any())).thenThrow(new IllegalArgumentException("Unsupported image format"));
+        when(reactiveMongoTemplate.updateFirst(any(Query.class), update.capture(), eq(ImageVariantJob.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(imageVariantPipeline.process(job(1)))
+                .expectNext(0L)
+                .verifyComplete();
+
+        assertEquals(ImageVariantJobStatus.FAILED, update.getValue().getUpdateObject().get("$set", Document.class).get("status"));
+    }
+
+    @Test
+    void when_drain_noJobs_thenStopsAfterFirstClaim() {
+        when(reactiveMongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ImageVariantJob.class)))
+                .thenReturn(Mono.empty());
+
+        StepVerifier.create(imageVariantPipeline.drain())
+                .verifyComplete();
+
+        verify(reactiveMongoTemplate).findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ImageVariantJob.class));
+        verifyNoInteractions(imageRepository);
+    }
+}
@@ -0,0 +1,98 @@
+package com.media.quickmedia.service.variant;
+
+import com.media.quickmedia.model.Image;
+import com.media.quickmedia.model.ImageVariant;
+import com.media.quickmedia.service.storage.ImageStorageEngine;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ImageVariantServiceTest {
+
+    @Mock
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Mock
+    private ImageStorageEngine imageStorageEngine;
+
+    private ImageVariantService imageVariantService;
+
+    private final ImageVariant variant = ImageVariant.builder()
+            .id("image-id:256")
+            .imageId("image-id")
+            .size(256)
+            .blobId("62c314e22525c96a4ae223b3")
+            .build();
+
+    @BeforeEach
+    void setUp() {
+        imageVariantService = new ImageVariantService(reactiveMongoTemplate, imageStorageEngine);
+    }
+
+    @Test
+    void when_nearest_thenAsksForSmallestAtLeastSize() {
+        var query = ArgumentCaptor.forClass(Query.class);
+        when(reactiveMongoTemplate.findOne(query.capture(), eq(ImageVariant.class))).thenReturn(Mono.just(variant));
+
+        StepVerifier.create(imageVariantService.nearest("image-id", 200))
+                .expectNext(variant)
+                .verifyComplete();
+
+        assertEquals(200, query.getValue().getQueryObject().get("size", Document.class).get("$gte"));
+        assertEquals(1, query.getValue().getSortObject().get("size"));
+    }
+
+    @Test
+    void when_replace_existing_thenDiscardsPreviousCopy() {
+        var previous = ImageVariant.builder().id("image-id:256").blobId("62c314e22525c96a4ae223b4").build();
+        var image = ArgumentCaptor.forClass(Image.class);
+        when(reactiveMongoTemplate.findById("image-id:256", ImageVariant.class)).thenReturn(Mono.just(previous));
+        when(reactiveMongoTemplate.save(variant)).thenReturn(Mono.just(variant));
+        when(imageStorageEngine.discard(image.capture())).thenReturn(Mono.empty());
+
+        StepVerifier.create(imageVariantService.replace(variant))
+                .expectNext(variant)
+                .verifyComplete();
+
+        assertEquals("62c314e22525c96a4ae223b4", image.getValue().getBlobId());
+    }
+
+    @Test
+    void when_replace_new_thenOnlySaves() {
+        when(reactiveMongoTemplate.findById("image-id:256", ImageVariant.class)).thenReturn(Mono.empty());
+        when(reactiveMongoTemplate.save(variant)).thenReturn(Mono.just(variant));
+
+        StepVerifier.create(imageVariantService.replace(variant))
+                .expectNext(variant)
+                .verifyComplete();
+
+        verify(imageStorageEngine, never()).discard(any());
+    }
+
+    @Test
+    void when_delete_thenDiscardsEachVariant() {
+        when(reactiveMongoTemplate.findAllAndRemove(any(Query.class), eq(ImageVariant.class))).thenReturn(Flux.just(variant));
+        when(imageStorageEngine.discard(any())).thenReturn(Mono.empty());
+
+        StepVerifier.create(imageVariantService.delete("image-id"))
+                .expectNext("image-id:256")
+                .verifyComplete();
+    }
+}